@@ -0,0 +1,88 @@
+/*
+ * Copyright (c) 2020 Hongbao Chen <chenhongbao@outlook.com>
+ *
+ * Licensed under the  GNU Affero General Public License v3.0 and you may not use
+ * this file except in compliance with the  License. You may obtain a copy of the
+ * License at
+ *
+ *                    https://www.gnu.org/licenses/agpl-3.0.txt
+ *
+ * Permission is hereby  granted, free of charge, to any  person obtaining a copy
+ * of this software and associated  documentation files (the "Software"), to deal
+ * in the Software  without restriction, including without  limitation the rights
+ * to  use, copy,  modify, merge,  publish, distribute,  sublicense, and/or  sell
+ * copies  of  the Software,  and  to  permit persons  to  whom  the Software  is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE  IS PROVIDED "AS  IS", WITHOUT WARRANTY  OF ANY KIND,  EXPRESS OR
+ * IMPLIED,  INCLUDING BUT  NOT  LIMITED TO  THE  WARRANTIES OF  MERCHANTABILITY,
+ * FITNESS FOR  A PARTICULAR PURPOSE AND  NONINFRINGEMENT. IN NO EVENT  SHALL THE
+ * AUTHORS  OR COPYRIGHT  HOLDERS  BE  LIABLE FOR  ANY  CLAIM,  DAMAGES OR  OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF  CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE  OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.nabiki.ctp4j.md.internal;
+
+import com.nabiki.ctp4j.jni.struct.CThostFtdcDepthMarketDataField;
+import com.nabiki.ctp4j.md.CThostFtdcMdSpi;
+import com.nabiki.ctp4j.sim.BenchData;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Filtering of depths by subscription in {@link CThostFtdcMdApiImpl.SourceHubSPI}.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class SourceHubBench {
+    @Param({"1", "100", "1000"})
+    public int subscribed;
+
+    private CThostFtdcMdSpi hub;
+    private CThostFtdcDepthMarketDataField subscribedDepth, otherDepth;
+
+    @Setup
+    public void setup(Blackhole hole) throws IOException {
+        var api = new CThostFtdcMdApiImpl(
+                Files.createTempDirectory("md").toString(), false, false);
+        api.RegisterSpi(new CThostFtdcMdSpi() {
+            @Override
+            public void OnRtnDepthMarketData(
+                    CThostFtdcDepthMarketDataField depthMarketData) {
+                hole.consume(depthMarketData);
+            }
+        });
+        var ids = new String[this.subscribed];
+        for (int i = 0; i < this.subscribed; ++i) {
+            ids[i] = BenchData.instrumentID(i);
+            BenchData.register(ids[i]);
+        }
+        api.SubscribeMarketData(ids, ids.length);
+        this.hub = api.new SourceHubSPI();
+        this.subscribedDepth = BenchData.depth(ids[ids.length / 2]);
+        this.otherDepth = BenchData.depth(BenchData.instrumentID(-1));
+    }
+
+    @Benchmark
+    public void subscribed() {
+        this.hub.OnRtnDepthMarketData(this.subscribedDepth);
+    }
+
+    @Benchmark
+    public void unsubscribed() {
+        this.hub.OnRtnDepthMarketData(this.otherDepth);
+    }
+}
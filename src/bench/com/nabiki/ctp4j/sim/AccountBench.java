@@ -0,0 +1,95 @@
+/*
+ * Copyright (c) 2020 Hongbao Chen <chenhongbao@outlook.com>
+ *
+ * Licensed under the  GNU Affero General Public License v3.0 and you may not use
+ * this file except in compliance with the  License. You may obtain a copy of the
+ * License at
+ *
+ *                    https://www.gnu.org/licenses/agpl-3.0.txt
+ *
+ * Permission is hereby  granted, free of charge, to any  person obtaining a copy
+ * of this software and associated  documentation files (the "Software"), to deal
+ * in the Software  without restriction, including without  limitation the rights
+ * to  use, copy,  modify, merge,  publish, distribute,  sublicense, and/or  sell
+ * copies  of  the Software,  and  to  permit persons  to  whom  the Software  is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE  IS PROVIDED "AS  IS", WITHOUT WARRANTY  OF ANY KIND,  EXPRESS OR
+ * IMPLIED,  INCLUDING BUT  NOT  LIMITED TO  THE  WARRANTIES OF  MERCHANTABILITY,
+ * FITNESS FOR  A PARTICULAR PURPOSE AND  NONINFRINGEMENT. IN NO EVENT  SHALL THE
+ * AUTHORS  OR COPYRIGHT  HOLDERS  BE  LIABLE FOR  ANY  CLAIM,  DAMAGES OR  OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF  CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE  OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.nabiki.ctp4j.sim;
+
+import com.nabiki.ctp4j.jni.flag.TThostFtdcCombOffsetFlagType;
+import com.nabiki.ctp4j.jni.flag.TThostFtdcDirectionType;
+import com.nabiki.ctp4j.jni.struct.CThostFtdcTradeField;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Open and close of one lot on an account holding positions of many
+ * instruments.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class AccountBench {
+    @Param({"1", "5000"})
+    public int positions;
+
+    private Account account;
+    private CThostFtdcTradeField[] opens, closes;
+    private int next = 0;
+
+    @Setup
+    public void setup() {
+        this.account = new Account("9999", "0001", Account.DEFAULT_BALANCE);
+        this.opens = new CThostFtdcTradeField[this.positions];
+        this.closes = new CThostFtdcTradeField[this.positions];
+        for (int i = 0; i < this.positions; ++i) {
+            var instrID = BenchData.instrumentID(i);
+            BenchData.register(instrID);
+            this.opens[i] = trade(instrID, TThostFtdcDirectionType.DIRECTION_BUY,
+                    TThostFtdcCombOffsetFlagType.OFFSET_OPEN, 2100);
+            this.closes[i] = trade(instrID, TThostFtdcDirectionType.DIRECTION_SELL,
+                    TThostFtdcCombOffsetFlagType.OFFSET_CLOSE, 2101);
+            // Each instrument holds one lot the benchmark doesn't close.
+            this.account.trade(this.opens[i]);
+        }
+    }
+
+    private static CThostFtdcTradeField trade(String instrID, byte direction,
+                                              byte offset, double price) {
+        var trade = new CThostFtdcTradeField();
+        trade.BrokerID = "9999";
+        trade.InvestorID = "0001";
+        trade.InstrumentID = instrID;
+        trade.TradeID = "1";
+        trade.TradingDay = "20200709";
+        trade.Direction = direction;
+        trade.OffsetFlag = offset;
+        trade.Price = price;
+        trade.Volume = 1;
+        return trade;
+    }
+
+    @Benchmark
+    public void openAndClose() {
+        var i = this.next;
+        if (++this.next == this.positions)
+            this.next = 0;
+        this.account.trade(this.opens[i]);
+        this.account.trade(this.closes[i]);
+    }
+}
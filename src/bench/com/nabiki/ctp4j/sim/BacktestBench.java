@@ -0,0 +1,86 @@
+/*
+ * Copyright (c) 2020 Hongbao Chen <chenhongbao@outlook.com>
+ *
+ * Licensed under the  GNU Affero General Public License v3.0 and you may not use
+ * this file except in compliance with the  License. You may obtain a copy of the
+ * License at
+ *
+ *                    https://www.gnu.org/licenses/agpl-3.0.txt
+ *
+ * Permission is hereby  granted, free of charge, to any  person obtaining a copy
+ * of this software and associated  documentation files (the "Software"), to deal
+ * in the Software  without restriction, including without  limitation the rights
+ * to  use, copy,  modify, merge,  publish, distribute,  sublicense, and/or  sell
+ * copies  of  the Software,  and  to  permit persons  to  whom  the Software  is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE  IS PROVIDED "AS  IS", WITHOUT WARRANTY  OF ANY KIND,  EXPRESS OR
+ * IMPLIED,  INCLUDING BUT  NOT  LIMITED TO  THE  WARRANTIES OF  MERCHANTABILITY,
+ * FITNESS FOR  A PARTICULAR PURPOSE AND  NONINFRINGEMENT. IN NO EVENT  SHALL THE
+ * AUTHORS  OR COPYRIGHT  HOLDERS  BE  LIABLE FOR  ANY  CLAIM,  DAMAGES OR  OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF  CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE  OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.nabiki.ctp4j.sim;
+
+import com.nabiki.ctp4j.jni.struct.CThostFtdcDepthMarketDataField;
+import com.nabiki.ctp4j.md.CThostFtdcMdSpi;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.time.LocalDateTime;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One backtest round: every book emits a depth on the calling thread and the
+ * simulated clock steps forward.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class BacktestBench {
+    @Param({"500"})
+    public int instruments;
+
+    private TickSource source;
+    private CThostFtdcMdSpi spi;
+    private Backtest backtest;
+
+    @Setup
+    public void setup(Blackhole hole) {
+        this.source = new TickSource();
+        this.source.stop();
+        this.source.setPublishMode(TickSource.PublishMode.SNAPSHOT);
+        this.source.setEmitChance(1.0D);
+        for (int i = 0; i < this.instruments; ++i)
+            this.source.initialize(BenchData.register(BenchData.instrumentID(i)));
+        this.spi = new CThostFtdcMdSpi() {
+            @Override
+            public void OnRtnDepthMarketData(
+                    CThostFtdcDepthMarketDataField depthMarketData) {
+                hole.consume(depthMarketData);
+            }
+        };
+        this.source.addSPI(this.spi);
+        this.backtest = new Backtest(this.source, 42,
+                LocalDateTime.of(2020, 7, 9, 9, 0), 500, TimeUnit.MILLISECONDS);
+    }
+
+    @TearDown
+    public void tearDown() {
+        this.backtest.close();
+        this.source.removeSPI(this.spi);
+    }
+
+    @Benchmark
+    public long round() {
+        return this.backtest.run(1);
+    }
+}
@@ -0,0 +1,106 @@
+/*
+ * Copyright (c) 2020 Hongbao Chen <chenhongbao@outlook.com>
+ *
+ * Licensed under the  GNU Affero General Public License v3.0 and you may not use
+ * this file except in compliance with the  License. You may obtain a copy of the
+ * License at
+ *
+ *                    https://www.gnu.org/licenses/agpl-3.0.txt
+ *
+ * Permission is hereby  granted, free of charge, to any  person obtaining a copy
+ * of this software and associated  documentation files (the "Software"), to deal
+ * in the Software  without restriction, including without  limitation the rights
+ * to  use, copy,  modify, merge,  publish, distribute,  sublicense, and/or  sell
+ * copies  of  the Software,  and  to  permit persons  to  whom  the Software  is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE  IS PROVIDED "AS  IS", WITHOUT WARRANTY  OF ANY KIND,  EXPRESS OR
+ * IMPLIED,  INCLUDING BUT  NOT  LIMITED TO  THE  WARRANTIES OF  MERCHANTABILITY,
+ * FITNESS FOR  A PARTICULAR PURPOSE AND  NONINFRINGEMENT. IN NO EVENT  SHALL THE
+ * AUTHORS  OR COPYRIGHT  HOLDERS  BE  LIABLE FOR  ANY  CLAIM,  DAMAGES OR  OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF  CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE  OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.nabiki.ctp4j.sim;
+
+import com.nabiki.ctp4j.jni.flag.TThostFtdcCombHedgeFlagType;
+import com.nabiki.ctp4j.jni.flag.TThostFtdcCombOffsetFlagType;
+import com.nabiki.ctp4j.jni.flag.TThostFtdcDirectionType;
+import com.nabiki.ctp4j.jni.struct.CThostFtdcDepthMarketDataField;
+import com.nabiki.ctp4j.jni.struct.CThostFtdcInputOrderField;
+import com.nabiki.ctp4j.jni.struct.CThostFtdcInstrumentField;
+
+/**
+ * Synthetic market data for benchmarks.
+ */
+public class BenchData {
+    public static String instrumentID(int index) {
+        return "x" + (10000 + index);
+    }
+
+    public static CThostFtdcInstrumentField instrument(String instrID) {
+        var in = new CThostFtdcInstrumentField();
+        in.InstrumentID = instrID;
+        in.ExchangeID = "SZFE";
+        in.ExchangeInstID = instrID;
+        in.PriceTick = 1.0D;
+        in.VolumeMultiple = 10;
+        in.MaxLimitOrderVolume = 10000;
+        in.MinLimitOrderVolume = 1;
+        return in;
+    }
+
+    public static CThostFtdcDepthMarketDataField depth(String instrID) {
+        var md = new CThostFtdcDepthMarketDataField();
+        md.InstrumentID = instrID;
+        md.ExchangeID = "SZFE";
+        md.ExchangeInstID = instrID;
+        md.LastPrice = 2100;
+        md.PreClosePrice = 2099;
+        md.PreSettlementPrice = 2104;
+        md.UpperLimitPrice = 2209;
+        md.LowerLimitPrice = 1999;
+        md.AskVolume1 = 1352;
+        md.AskPrice1 = 2100;
+        md.BidVolume1 = 465;
+        md.BidPrice1 = 2099;
+        return md;
+    }
+
+    /**
+     * Register instrument and initial depth of the specified instrument in
+     * {@link CommonData}.
+     *
+     * @param instrID instrument ID
+     * @return initial depth
+     */
+    public static CThostFtdcDepthMarketDataField register(String instrID) {
+        var depth = depth(instrID);
+        CommonData.addInstrument(instrID, instrument(instrID));
+        CommonData.addDepth(instrID, depth);
+        return depth;
+    }
+
+    public static CThostFtdcInputOrderField order(String instrID, String orderRef,
+                                                  boolean buy, double price) {
+        var order = new CThostFtdcInputOrderField();
+        order.BrokerID = "9999";
+        order.InvestorID = "0001";
+        order.UserID = "0001";
+        order.InstrumentID = instrID;
+        order.ExchangeID = "SZFE";
+        order.OrderRef = orderRef;
+        order.Direction = buy ? TThostFtdcDirectionType.DIRECTION_BUY
+                : TThostFtdcDirectionType.DIRECTION_SELL;
+        order.CombOffsetFlag = TThostFtdcCombOffsetFlagType.OFFSET_OPEN;
+        order.CombHedgeFlag = TThostFtdcCombHedgeFlagType.SPECULATION;
+        order.LimitPrice = price;
+        order.VolumeTotalOriginal = 1;
+        return order;
+    }
+}
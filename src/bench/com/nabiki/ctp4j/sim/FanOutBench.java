@@ -0,0 +1,158 @@
+/*
+ * Copyright (c) 2020 Hongbao Chen <chenhongbao@outlook.com>
+ *
+ * Licensed under the  GNU Affero General Public License v3.0 and you may not use
+ * this file except in compliance with the  License. You may obtain a copy of the
+ * License at
+ *
+ *                    https://www.gnu.org/licenses/agpl-3.0.txt
+ *
+ * Permission is hereby  granted, free of charge, to any  person obtaining a copy
+ * of this software and associated  documentation files (the "Software"), to deal
+ * in the Software  without restriction, including without  limitation the rights
+ * to  use, copy,  modify, merge,  publish, distribute,  sublicense, and/or  sell
+ * copies  of  the Software,  and  to  permit persons  to  whom  the Software  is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE  IS PROVIDED "AS  IS", WITHOUT WARRANTY  OF ANY KIND,  EXPRESS OR
+ * IMPLIED,  INCLUDING BUT  NOT  LIMITED TO  THE  WARRANTIES OF  MERCHANTABILITY,
+ * FITNESS FOR  A PARTICULAR PURPOSE AND  NONINFRINGEMENT. IN NO EVENT  SHALL THE
+ * AUTHORS  OR COPYRIGHT  HOLDERS  BE  LIABLE FOR  ANY  CLAIM,  DAMAGES OR  OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF  CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE  OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.nabiki.ctp4j.sim;
+
+import com.nabiki.ctp4j.jni.struct.CThostFtdcDepthMarketDataField;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Handing depths from one generator thread to a number of SPI threads, through
+ * one {@link LinkedBlockingQueue} per SPI as {@code SpiDaemon} used to, or through
+ * one shared {@link DepthRingBuffer}.
+ *
+ * <p>{@code latency} publishes one depth and waits until every SPI has seen it,
+ * run it in sample mode for percentiles. {@code throughput} publishes a batch and
+ * waits for all SPIs to drain it.
+ * </p>
+ */
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class FanOutBench {
+    private static final int BATCH = 1000;
+
+    @Param({"1", "8", "64"})
+    public int spis;
+
+    @Param({"QUEUE", "RING"})
+    public String fanOut;
+
+    private final CThostFtdcDepthMarketDataField depth = BenchData.depth("x2009");
+    private final List<Thread> threads = new LinkedList<>();
+    private volatile boolean stopped;
+
+    private Receiver[] receivers;
+    private DepthRingBuffer ring;
+    private long published;
+
+    static class Receiver implements Consumer<CThostFtdcDepthMarketDataField> {
+        final BlockingQueue<CThostFtdcDepthMarketDataField> queue
+                = new LinkedBlockingQueue<>();
+        volatile long received = 0;
+
+        @Override
+        public void accept(CThostFtdcDepthMarketDataField depth) {
+            this.received = this.received + 1;
+        }
+    }
+
+    @Setup(Level.Iteration)
+    public void setup() {
+        this.stopped = false;
+        this.published = 0;
+        this.ring = new DepthRingBuffer(TickSource.RING_SIZE);
+        this.receivers = new Receiver[this.spis];
+        for (int i = 0; i < this.spis; ++i) {
+            var r = this.receivers[i] = new Receiver();
+            Thread t;
+            if (this.fanOut.equals("QUEUE"))
+                t = new Thread(() -> {
+                    while (!this.stopped) {
+                        try {
+                            var d = r.queue.poll(1, TimeUnit.DAYS);
+                            if (d != null)
+                                r.accept(d);
+                        } catch (InterruptedException ignored) {
+                        }
+                    }
+                });
+            else {
+                var seq = new DepthRingBuffer.Sequence[] {this.ring.subscribe()};
+                t = new Thread(() -> {
+                    while (!this.stopped)
+                        if (seq[0].drain(r) == 0)
+                            DepthRingBuffer.await(seq);
+                });
+            }
+            this.threads.add(t);
+            t.start();
+        }
+    }
+
+    @TearDown(Level.Iteration)
+    public void tearDown() throws InterruptedException {
+        this.stopped = true;
+        for (var t : this.threads) {
+            t.interrupt();
+            t.join();
+        }
+        this.threads.clear();
+    }
+
+    private void publish() {
+        ++this.published;
+        if (this.ring != null && this.fanOut.equals("RING"))
+            this.ring.publish(this.depth);
+        else
+            for (var r : this.receivers)
+                r.queue.offer(this.depth);
+    }
+
+    private void awaitReceivers() {
+        for (var r : this.receivers)
+            while (r.received < this.published)
+                Thread.yield();
+    }
+
+    @Benchmark
+    @BenchmarkMode({Mode.SampleTime})
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public void latency() {
+        publish();
+        awaitReceivers();
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    @OperationsPerInvocation(BATCH)
+    public void throughput() {
+        for (int i = 0; i < BATCH; ++i)
+            publish();
+        awaitReceivers();
+    }
+}
@@ -0,0 +1,69 @@
+/*
+ * Copyright (c) 2020 Hongbao Chen <chenhongbao@outlook.com>
+ *
+ * Licensed under the  GNU Affero General Public License v3.0 and you may not use
+ * this file except in compliance with the  License. You may obtain a copy of the
+ * License at
+ *
+ *                    https://www.gnu.org/licenses/agpl-3.0.txt
+ *
+ * Permission is hereby  granted, free of charge, to any  person obtaining a copy
+ * of this software and associated  documentation files (the "Software"), to deal
+ * in the Software  without restriction, including without  limitation the rights
+ * to  use, copy,  modify, merge,  publish, distribute,  sublicense, and/or  sell
+ * copies  of  the Software,  and  to  permit persons  to  whom  the Software  is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE  IS PROVIDED "AS  IS", WITHOUT WARRANTY  OF ANY KIND,  EXPRESS OR
+ * IMPLIED,  INCLUDING BUT  NOT  LIMITED TO  THE  WARRANTIES OF  MERCHANTABILITY,
+ * FITNESS FOR  A PARTICULAR PURPOSE AND  NONINFRINGEMENT. IN NO EVENT  SHALL THE
+ * AUTHORS  OR COPYRIGHT  HOLDERS  BE  LIABLE FOR  ANY  CLAIM,  DAMAGES OR  OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF  CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE  OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.nabiki.ctp4j.sim;
+
+import com.nabiki.ctp4j.jni.struct.CThostFtdcInputOrderField;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Pre-trade check of an open order, sampled so percentiles of its latency are
+ * reported. Volume and money the check freezes are released after each call.
+ */
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class RiskCheckBench {
+    private static final String instrID = BenchData.instrumentID(0);
+
+    private RiskCheck risk;
+    private Account account;
+    private CThostFtdcInputOrderField order;
+
+    @Setup
+    public void setup() {
+        var depth = BenchData.register(instrID);
+        this.risk = new RiskCheck();
+        this.account = new Account("9999", "0001", Account.DEFAULT_BALANCE);
+        this.order = BenchData.order(instrID, "1", true, depth.BidPrice1);
+    }
+
+    @Benchmark
+    public int check() {
+        var rule = this.risk.rule(instrID);
+        var error = this.risk.check(this.order, rule, this.account);
+        var price = this.order.LimitPrice;
+        this.account.release(instrID, true, 1);
+        this.account.unfreeze(rule.margin(true, price), rule.commission(price));
+        return error;
+    }
+}
@@ -0,0 +1,77 @@
+/*
+ * Copyright (c) 2020 Hongbao Chen <chenhongbao@outlook.com>
+ *
+ * Licensed under the  GNU Affero General Public License v3.0 and you may not use
+ * this file except in compliance with the  License. You may obtain a copy of the
+ * License at
+ *
+ *                    https://www.gnu.org/licenses/agpl-3.0.txt
+ *
+ * Permission is hereby  granted, free of charge, to any  person obtaining a copy
+ * of this software and associated  documentation files (the "Software"), to deal
+ * in the Software  without restriction, including without  limitation the rights
+ * to  use, copy,  modify, merge,  publish, distribute,  sublicense, and/or  sell
+ * copies  of  the Software,  and  to  permit persons  to  whom  the Software  is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE  IS PROVIDED "AS  IS", WITHOUT WARRANTY  OF ANY KIND,  EXPRESS OR
+ * IMPLIED,  INCLUDING BUT  NOT  LIMITED TO  THE  WARRANTIES OF  MERCHANTABILITY,
+ * FITNESS FOR  A PARTICULAR PURPOSE AND  NONINFRINGEMENT. IN NO EVENT  SHALL THE
+ * AUTHORS  OR COPYRIGHT  HOLDERS  BE  LIABLE FOR  ANY  CLAIM,  DAMAGES OR  OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF  CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE  OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.nabiki.ctp4j.sim;
+
+import com.nabiki.ctp4j.trader.CThostFtdcTraderSpi;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Life of a trader session: login, one resting order, logout and a mass cancel
+ * of the session's orders, so the book doesn't grow.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class SessionBench {
+    private static final String instrID = BenchData.instrumentID(0);
+
+    private final CThostFtdcTraderSpi spi = new CThostFtdcTraderSpi() {};
+
+    private TradeBook book;
+    private double price;
+
+    @Setup(Level.Iteration)
+    public void setup() {
+        var depth = BenchData.register(instrID);
+        this.price = depth.BidPrice1 - 10;
+        // A new book each iteration so session IDs don't run out.
+        this.book = new TradeBook(1);
+        this.book.setSynchronous(true);
+        this.book.OnRtnDepthMarketData(depth);
+    }
+
+    @TearDown(Level.Iteration)
+    public void tearDown() {
+        this.book.stop();
+    }
+
+    @Benchmark
+    public int session() {
+        var session = this.book.login("0001", this.spi);
+        // Every session sends the same order ref.
+        this.book.enqueue(BenchData.order(instrID, "1", true, this.price), 0,
+                this.spi, session);
+        this.book.logout(session);
+        return this.book.cancelAll(session, null);
+    }
+}
@@ -0,0 +1,114 @@
+/*
+ * Copyright (c) 2020 Hongbao Chen <chenhongbao@outlook.com>
+ *
+ * Licensed under the  GNU Affero General Public License v3.0 and you may not use
+ * this file except in compliance with the  License. You may obtain a copy of the
+ * License at
+ *
+ *                    https://www.gnu.org/licenses/agpl-3.0.txt
+ *
+ * Permission is hereby  granted, free of charge, to any  person obtaining a copy
+ * of this software and associated  documentation files (the "Software"), to deal
+ * in the Software  without restriction, including without  limitation the rights
+ * to  use, copy,  modify, merge,  publish, distribute,  sublicense, and/or  sell
+ * copies  of  the Software,  and  to  permit persons  to  whom  the Software  is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE  IS PROVIDED "AS  IS", WITHOUT WARRANTY  OF ANY KIND,  EXPRESS OR
+ * IMPLIED,  INCLUDING BUT  NOT  LIMITED TO  THE  WARRANTIES OF  MERCHANTABILITY,
+ * FITNESS FOR  A PARTICULAR PURPOSE AND  NONINFRINGEMENT. IN NO EVENT  SHALL THE
+ * AUTHORS  OR COPYRIGHT  HOLDERS  BE  LIABLE FOR  ANY  CLAIM,  DAMAGES OR  OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF  CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE  OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.nabiki.ctp4j.sim;
+
+import com.nabiki.ctp4j.jni.struct.CThostFtdcRspUserLoginField;
+import com.nabiki.ctp4j.trader.CThostFtdcTraderSpi;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Saving and loading a snapshot of books with resting orders on both sides.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class SimSnapshotBench {
+    @Param({"500"})
+    public int instruments;
+
+    @Param({"10"})
+    public int ordersPerSide;
+
+    private final CThostFtdcTraderSpi spi = new CThostFtdcTraderSpi() {};
+    private final CThostFtdcRspUserLoginField usr
+            = new CThostFtdcRspUserLoginField();
+
+    private TickSource source;
+    private TradeBook book;
+    private Path file;
+
+    @Setup
+    public void setup() throws IOException {
+        this.usr.BrokerID = "9999";
+        this.usr.UserID = "0001";
+        this.usr.FrontID = 1;
+        this.usr.SessionID = 1;
+        this.source = new TickSource();
+        this.source.stop();
+        this.book = new TradeBook(2);
+        this.book.setSynchronous(true);
+        var orderRef = 0;
+        for (int i = 0; i < this.instruments; ++i) {
+            var depth = BenchData.register(BenchData.instrumentID(i));
+            this.source.initialize(depth);
+            this.book.OnRtnDepthMarketData(depth);
+            for (int k = 0; k < this.ordersPerSide; ++k) {
+                this.book.enqueue(BenchData.order(depth.InstrumentID,
+                        String.valueOf(++orderRef), true, depth.BidPrice1 - 1 - k),
+                        0, this.spi, this.usr);
+                this.book.enqueue(BenchData.order(depth.InstrumentID,
+                        String.valueOf(++orderRef), false, depth.AskPrice1 + 1 + k),
+                        0, this.spi, this.usr);
+            }
+        }
+        this.file = Files.createTempFile("snapshot-bench", ".bin");
+        SimSnapshot.save(this.file, this.source, this.book);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        this.book.stop();
+        Files.deleteIfExists(this.file);
+    }
+
+    @Benchmark
+    public void save() throws IOException {
+        SimSnapshot.save(this.file, this.source, this.book);
+    }
+
+    @Benchmark
+    public long load() throws IOException {
+        var source = new TickSource();
+        source.stop();
+        var book = new TradeBook(2);
+        try {
+            SimSnapshot.load(this.file, source, book);
+            return book.getLiveCount();
+        } finally {
+            book.stop();
+        }
+    }
+}
@@ -0,0 +1,85 @@
+/*
+ * Copyright (c) 2020 Hongbao Chen <chenhongbao@outlook.com>
+ *
+ * Licensed under the  GNU Affero General Public License v3.0 and you may not use
+ * this file except in compliance with the  License. You may obtain a copy of the
+ * License at
+ *
+ *                    https://www.gnu.org/licenses/agpl-3.0.txt
+ *
+ * Permission is hereby  granted, free of charge, to any  person obtaining a copy
+ * of this software and associated  documentation files (the "Software"), to deal
+ * in the Software  without restriction, including without  limitation the rights
+ * to  use, copy,  modify, merge,  publish, distribute,  sublicense, and/or  sell
+ * copies  of  the Software,  and  to  permit persons  to  whom  the Software  is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE  IS PROVIDED "AS  IS", WITHOUT WARRANTY  OF ANY KIND,  EXPRESS OR
+ * IMPLIED,  INCLUDING BUT  NOT  LIMITED TO  THE  WARRANTIES OF  MERCHANTABILITY,
+ * FITNESS FOR  A PARTICULAR PURPOSE AND  NONINFRINGEMENT. IN NO EVENT  SHALL THE
+ * AUTHORS  OR COPYRIGHT  HOLDERS  BE  LIABLE FOR  ANY  CLAIM,  DAMAGES OR  OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF  CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE  OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.nabiki.ctp4j.sim;
+
+import com.nabiki.ctp4j.jni.struct.CThostFtdcDepthMarketDataField;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class TickRecorderBench {
+    @Param({"1", "100"})
+    public int instruments;
+
+    private Path file;
+    private TickRecorder recorder;
+    private CThostFtdcDepthMarketDataField[] depths;
+    private int next = 0, millis = 0;
+
+    @Setup
+    public void setup() throws IOException {
+        this.file = Files.createTempFile("tick-bench", ".tkz");
+        this.recorder = new TickRecorder(this.file);
+        this.depths = new CThostFtdcDepthMarketDataField[this.instruments];
+        for (int i = 0; i < this.instruments; ++i) {
+            this.depths[i] = BenchData.depth(BenchData.instrumentID(i));
+            this.depths[i].TradingDay = this.depths[i].ActionDay = "20200709";
+            this.depths[i].UpdateTime = "09:00:00";
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        this.recorder.close();
+        Files.deleteIfExists(this.file);
+    }
+
+    /**
+     * Encode one depth on the SPI thread.
+     */
+    @Benchmark
+    public void record() {
+        var depth = this.depths[this.next];
+        if (++this.next == this.depths.length)
+            this.next = 0;
+        depth.UpdateMillisec = (this.millis += 500) % 1000;
+        depth.LastPrice += (this.millis & 1000) == 0 ? 1 : -1;
+        ++depth.Volume;
+        this.recorder.OnRtnDepthMarketData(depth);
+    }
+}
@@ -0,0 +1,95 @@
+/*
+ * Copyright (c) 2020 Hongbao Chen <chenhongbao@outlook.com>
+ *
+ * Licensed under the  GNU Affero General Public License v3.0 and you may not use
+ * this file except in compliance with the  License. You may obtain a copy of the
+ * License at
+ *
+ *                    https://www.gnu.org/licenses/agpl-3.0.txt
+ *
+ * Permission is hereby  granted, free of charge, to any  person obtaining a copy
+ * of this software and associated  documentation files (the "Software"), to deal
+ * in the Software  without restriction, including without  limitation the rights
+ * to  use, copy,  modify, merge,  publish, distribute,  sublicense, and/or  sell
+ * copies  of  the Software,  and  to  permit persons  to  whom  the Software  is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE  IS PROVIDED "AS  IS", WITHOUT WARRANTY  OF ANY KIND,  EXPRESS OR
+ * IMPLIED,  INCLUDING BUT  NOT  LIMITED TO  THE  WARRANTIES OF  MERCHANTABILITY,
+ * FITNESS FOR  A PARTICULAR PURPOSE AND  NONINFRINGEMENT. IN NO EVENT  SHALL THE
+ * AUTHORS  OR COPYRIGHT  HOLDERS  BE  LIABLE FOR  ANY  CLAIM,  DAMAGES OR  OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF  CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE  OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.nabiki.ctp4j.sim;
+
+import com.nabiki.ctp4j.jni.struct.CThostFtdcDepthMarketDataField;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class TickReplayBench {
+    private static final int RECORDS = 100 * 1000;
+
+    @Param({"1", "100"})
+    public int files;
+
+    private Path[] paths;
+    private TickReplay replay;
+    private final CThostFtdcDepthMarketDataField depth
+            = new CThostFtdcDepthMarketDataField();
+
+    @Setup
+    public void setup() throws IOException {
+        this.paths = new Path[this.files];
+        for (int f = 0; f < this.files; ++f) {
+            this.paths[f] = Files.createTempFile("tick-bench", ".bin");
+            this.paths[f].toFile().deleteOnExit();
+            var md = BenchData.depth(BenchData.instrumentID(f));
+            md.TradingDay = md.ActionDay = "20200709";
+            try (var writer = new TickFileWriter(this.paths[f])) {
+                for (int i = 0; i < RECORDS / this.files; ++i) {
+                    var millis = i * 500;
+                    md.UpdateTime = String.format("%02d:%02d:%02d",
+                            millis / 3600000, millis / 60000 % 60, millis / 1000 % 60);
+                    md.UpdateMillisec = millis % 1000;
+                    md.Volume = i;
+                    writer.write(md);
+                }
+            }
+        }
+        this.replay = TickReplay.open(this.paths);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        this.replay.close();
+    }
+
+    /**
+     * Merge and decode one record.
+     */
+    @Benchmark
+    public CThostFtdcDepthMarketDataField next() throws IOException {
+        if (!this.replay.next()) {
+            this.replay.close();
+            this.replay = TickReplay.open(this.paths);
+            this.replay.next();
+        }
+        return this.replay.read(this.depth);
+    }
+}
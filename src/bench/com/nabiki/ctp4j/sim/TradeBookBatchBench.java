@@ -0,0 +1,109 @@
+/*
+ * Copyright (c) 2020 Hongbao Chen <chenhongbao@outlook.com>
+ *
+ * Licensed under the  GNU Affero General Public License v3.0 and you may not use
+ * this file except in compliance with the  License. You may obtain a copy of the
+ * License at
+ *
+ *                    https://www.gnu.org/licenses/agpl-3.0.txt
+ *
+ * Permission is hereby  granted, free of charge, to any  person obtaining a copy
+ * of this software and associated  documentation files (the "Software"), to deal
+ * in the Software  without restriction, including without  limitation the rights
+ * to  use, copy,  modify, merge,  publish, distribute,  sublicense, and/or  sell
+ * copies  of  the Software,  and  to  permit persons  to  whom  the Software  is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE  IS PROVIDED "AS  IS", WITHOUT WARRANTY  OF ANY KIND,  EXPRESS OR
+ * IMPLIED,  INCLUDING BUT  NOT  LIMITED TO  THE  WARRANTIES OF  MERCHANTABILITY,
+ * FITNESS FOR  A PARTICULAR PURPOSE AND  NONINFRINGEMENT. IN NO EVENT  SHALL THE
+ * AUTHORS  OR COPYRIGHT  HOLDERS  BE  LIABLE FOR  ANY  CLAIM,  DAMAGES OR  OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF  CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE  OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.nabiki.ctp4j.sim;
+
+import com.nabiki.ctp4j.jni.struct.CThostFtdcDepthMarketDataField;
+import com.nabiki.ctp4j.jni.struct.CThostFtdcInputOrderActionField;
+import com.nabiki.ctp4j.jni.struct.CThostFtdcInputOrderField;
+import com.nabiki.ctp4j.trader.CThostFtdcTraderSpi;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Requoting through batches: each operation sends a batch of new resting orders
+ * and cancels of the orders of the last operation, so the book keeps the same
+ * size. A batch of one is sent as a single order and a single cancel.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class TradeBookBatchBench {
+    @Param({"1", "10", "50"})
+    public int batch;
+
+    private static final String instrID = BenchData.instrumentID(0);
+
+    private final CThostFtdcTraderSpi spi = new CThostFtdcTraderSpi() {};
+
+    private TradeBook book;
+    private SessionRegistry.Session session;
+    private CThostFtdcDepthMarketDataField depth;
+    private final List<CThostFtdcInputOrderField> orders = new ArrayList<>();
+    private final List<CThostFtdcInputOrderActionField> actions = new ArrayList<>();
+    private int orderRef;
+
+    @Setup(Level.Iteration)
+    public void setup() {
+        this.depth = BenchData.register(instrID);
+        this.book = new TradeBook(1);
+        // Match on the benchmark thread to measure matching, not queueing.
+        this.book.setSynchronous(true);
+        this.book.OnRtnDepthMarketData(this.depth);
+        this.session = this.book.login("0001", this.spi);
+        this.orderRef = 0;
+        this.orders.clear();
+        this.actions.clear();
+    }
+
+    @TearDown(Level.Iteration)
+    public void tearDown() {
+        this.book.stop();
+    }
+
+    @Benchmark
+    public int requote() {
+        // Cancel the orders of the last operation.
+        for (int i = 0; i < this.orders.size(); ++i) {
+            if (i == this.actions.size())
+                this.actions.add(new CThostFtdcInputOrderActionField());
+            var action = this.actions.get(i);
+            action.OrderRef = this.orders.get(i).OrderRef;
+            action.FrontID = this.session.getFrontID();
+            action.SessionID = this.session.getSessionID();
+        }
+        this.orders.clear();
+        for (int i = 0; i < this.batch; ++i) {
+            var buy = i % 2 == 0;
+            var price = buy ? this.depth.BidPrice1 - 1 : this.depth.AskPrice1 + 1;
+            this.orders.add(BenchData.order(instrID, String.valueOf(++this.orderRef),
+                    buy, price));
+        }
+        if (this.batch > 1)
+            return this.book.enqueue(this.orders, this.actions, 0, this.spi,
+                    this.session);
+        if (!this.actions.isEmpty())
+            this.book.enqueue(this.actions.get(0), 0, this.spi, this.session);
+        return this.book.enqueue(this.orders.get(0), 0, this.spi, this.session);
+    }
+}
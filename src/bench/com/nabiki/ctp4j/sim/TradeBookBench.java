@@ -0,0 +1,112 @@
+/*
+ * Copyright (c) 2020 Hongbao Chen <chenhongbao@outlook.com>
+ *
+ * Licensed under the  GNU Affero General Public License v3.0 and you may not use
+ * this file except in compliance with the  License. You may obtain a copy of the
+ * License at
+ *
+ *                    https://www.gnu.org/licenses/agpl-3.0.txt
+ *
+ * Permission is hereby  granted, free of charge, to any  person obtaining a copy
+ * of this software and associated  documentation files (the "Software"), to deal
+ * in the Software  without restriction, including without  limitation the rights
+ * to  use, copy,  modify, merge,  publish, distribute,  sublicense, and/or  sell
+ * copies  of  the Software,  and  to  permit persons  to  whom  the Software  is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE  IS PROVIDED "AS  IS", WITHOUT WARRANTY  OF ANY KIND,  EXPRESS OR
+ * IMPLIED,  INCLUDING BUT  NOT  LIMITED TO  THE  WARRANTIES OF  MERCHANTABILITY,
+ * FITNESS FOR  A PARTICULAR PURPOSE AND  NONINFRINGEMENT. IN NO EVENT  SHALL THE
+ * AUTHORS  OR COPYRIGHT  HOLDERS  BE  LIABLE FOR  ANY  CLAIM,  DAMAGES OR  OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF  CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE  OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.nabiki.ctp4j.sim;
+
+import com.nabiki.ctp4j.jni.struct.CThostFtdcDepthMarketDataField;
+import com.nabiki.ctp4j.jni.struct.CThostFtdcInputOrderActionField;
+import com.nabiki.ctp4j.jni.struct.CThostFtdcInputOrderField;
+import com.nabiki.ctp4j.jni.struct.CThostFtdcRspUserLoginField;
+import com.nabiki.ctp4j.trader.CThostFtdcTraderSpi;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Order insertion and matching against a number of resting orders that never
+ * cross the market, so each operation goes through the resting book without
+ * filling.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class TradeBookBench {
+    @Param({"10", "1000", "100000"})
+    public int orders;
+
+    private static final String instrID = BenchData.instrumentID(0);
+
+    private final CThostFtdcTraderSpi spi = new CThostFtdcTraderSpi() {};
+    private final CThostFtdcRspUserLoginField usr
+            = new CThostFtdcRspUserLoginField();
+    private final CThostFtdcInputOrderActionField action
+            = new CThostFtdcInputOrderActionField();
+
+    private TradeBook book;
+    private CThostFtdcDepthMarketDataField depth;
+    private int orderRef;
+
+    @Setup(Level.Iteration)
+    public void setup() {
+        this.usr.BrokerID = "9999";
+        this.usr.UserID = "0001";
+        this.usr.FrontID = 1;
+        this.usr.SessionID = 1;
+        this.action.InstrumentID = instrID;
+        this.action.FrontID = this.usr.FrontID;
+        this.action.SessionID = this.usr.SessionID;
+        this.depth = BenchData.register(instrID);
+        this.book = new TradeBook(1);
+        // Match on the benchmark thread to measure matching, not queueing.
+        this.book.setSynchronous(true);
+        this.orderRef = 0;
+        // Resting orders on both sides, away from the market.
+        for (int i = 0; i < this.orders; ++i)
+            this.book.enqueue(nextOrder(i % 2 == 0), 0, this.spi, this.usr);
+        this.book.OnRtnDepthMarketData(this.depth);
+    }
+
+    @TearDown(Level.Iteration)
+    public void tearDown() {
+        this.book.stop();
+    }
+
+    private CThostFtdcInputOrderField nextOrder(boolean buy) {
+        var price = buy ? this.depth.BidPrice1 - 10 : this.depth.AskPrice1 + 10;
+        return BenchData.order(instrID, String.valueOf(++this.orderRef), buy, price);
+    }
+
+    /**
+     * Insert a resting order and cancel it, so the book keeps its size.
+     */
+    @Benchmark
+    public int enqueue() {
+        var order = nextOrder(true);
+        this.book.enqueue(order, 0, this.spi, this.usr);
+        this.action.OrderRef = order.OrderRef;
+        return this.book.enqueue(this.action, 0, this.spi);
+    }
+
+    @Benchmark
+    public void tryTrade() {
+        this.book.OnRtnDepthMarketData(this.depth);
+    }
+}
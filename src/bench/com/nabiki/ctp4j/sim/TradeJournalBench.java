@@ -0,0 +1,155 @@
+/*
+ * Copyright (c) 2020 Hongbao Chen <chenhongbao@outlook.com>
+ *
+ * Licensed under the  GNU Affero General Public License v3.0 and you may not use
+ * this file except in compliance with the  License. You may obtain a copy of the
+ * License at
+ *
+ *                    https://www.gnu.org/licenses/agpl-3.0.txt
+ *
+ * Permission is hereby  granted, free of charge, to any  person obtaining a copy
+ * of this software and associated  documentation files (the "Software"), to deal
+ * in the Software  without restriction, including without  limitation the rights
+ * to  use, copy,  modify, merge,  publish, distribute,  sublicense, and/or  sell
+ * copies  of  the Software,  and  to  permit persons  to  whom  the Software  is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE  IS PROVIDED "AS  IS", WITHOUT WARRANTY  OF ANY KIND,  EXPRESS OR
+ * IMPLIED,  INCLUDING BUT  NOT  LIMITED TO  THE  WARRANTIES OF  MERCHANTABILITY,
+ * FITNESS FOR  A PARTICULAR PURPOSE AND  NONINFRINGEMENT. IN NO EVENT  SHALL THE
+ * AUTHORS  OR COPYRIGHT  HOLDERS  BE  LIABLE FOR  ANY  CLAIM,  DAMAGES OR  OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF  CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE  OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.nabiki.ctp4j.sim;
+
+import com.nabiki.ctp4j.jni.struct.CThostFtdcInputOrderField;
+import com.nabiki.ctp4j.jni.struct.CThostFtdcOrderField;
+import com.nabiki.ctp4j.jni.struct.CThostFtdcTradeField;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Appending an accepted order and its trade to the journal, and recovering a
+ * book from a journal of half filled orders.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TradeJournalBench {
+    private static final String instrID = BenchData.instrumentID(0);
+
+    @State(Scope.Thread)
+    public static class Events {
+        final CThostFtdcInputOrderField order
+                = BenchData.order(instrID, "1", true, 2000);
+        final CThostFtdcOrderField rtn = new CThostFtdcOrderField();
+        final CThostFtdcTradeField trade = new CThostFtdcTradeField();
+        long sequence = 0;
+
+        Events() {
+            this.order.VolumeTotalOriginal = 2;
+            this.rtn.FrontID = 1;
+            this.rtn.SessionID = 1;
+            this.rtn.TradingDay = "20200709";
+            this.rtn.InsertDate = "20200709";
+            this.rtn.InsertTime = "09:00:00";
+            this.trade.InstrumentID = instrID;
+            this.trade.Price = 2000;
+            this.trade.Volume = 1;
+            this.trade.TradingDay = "20200709";
+            this.trade.TradeDate = "20200709";
+            this.trade.TradeTime = "09:00:00";
+        }
+
+        void append(TradeJournal journal) {
+            var n = ++this.sequence;
+            this.order.OrderRef = String.valueOf(n);
+            this.rtn.OrderSysID = IdSequence.render(n);
+            journal.insert(OrderKey.of(this.order.OrderRef, 1, 1), this.order,
+                    this.rtn);
+            this.trade.OrderSysID = this.rtn.OrderSysID;
+            this.trade.TradeID = IdSequence.render(n);
+            journal.trade(this.trade, this.rtn.TradingDay);
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Append {
+        Path file;
+        TradeJournal journal;
+
+        @Setup(Level.Iteration)
+        public void setup() throws IOException {
+            this.file = Files.createTempFile("journal-bench", ".bin");
+            Files.delete(this.file);
+            this.journal = new TradeJournal(this.file);
+        }
+
+        @TearDown(Level.Iteration)
+        public void tearDown() throws IOException {
+            this.journal.close();
+            Files.deleteIfExists(this.file);
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class Recover {
+        @Param({"100000"})
+        public int orders;
+
+        Path file;
+
+        @Setup
+        public void setup() throws IOException {
+            BenchData.register(instrID);
+            var events = new Events();
+            this.file = Files.createTempFile("journal-bench", ".bin");
+            Files.delete(this.file);
+            try (var journal = new TradeJournal(this.file)) {
+                for (int i = 0; i < this.orders; ++i)
+                    events.append(journal);
+            }
+        }
+
+        @TearDown
+        public void tearDown() throws IOException {
+            Files.deleteIfExists(this.file);
+        }
+    }
+
+    /**
+     * Append an insert and a trade.
+     */
+    @Benchmark
+    public void append(Append append, Events events) {
+        events.append(append.journal);
+    }
+
+    /**
+     * Replay the whole journal into a new book.
+     */
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    @Warmup(iterations = 3)
+    @Measurement(iterations = 5)
+    public long recover(Recover recover) throws IOException {
+        var book = new TradeBook(2);
+        try (var journal = new TradeJournal(recover.file)) {
+            return book.recover(journal);
+        } finally {
+            book.stop();
+        }
+    }
+}
@@ -0,0 +1,89 @@
+/*
+ * Copyright (c) 2020 Hongbao Chen <chenhongbao@outlook.com>
+ *
+ * Licensed under the  GNU Affero General Public License v3.0 and you may not use
+ * this file except in compliance with the  License. You may obtain a copy of the
+ * License at
+ *
+ *                    https://www.gnu.org/licenses/agpl-3.0.txt
+ *
+ * Permission is hereby  granted, free of charge, to any  person obtaining a copy
+ * of this software and associated  documentation files (the "Software"), to deal
+ * in the Software  without restriction, including without  limitation the rights
+ * to  use, copy,  modify, merge,  publish, distribute,  sublicense, and/or  sell
+ * copies  of  the Software,  and  to  permit persons  to  whom  the Software  is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE  IS PROVIDED "AS  IS", WITHOUT WARRANTY  OF ANY KIND,  EXPRESS OR
+ * IMPLIED,  INCLUDING BUT  NOT  LIMITED TO  THE  WARRANTIES OF  MERCHANTABILITY,
+ * FITNESS FOR  A PARTICULAR PURPOSE AND  NONINFRINGEMENT. IN NO EVENT  SHALL THE
+ * AUTHORS  OR COPYRIGHT  HOLDERS  BE  LIABLE FOR  ANY  CLAIM,  DAMAGES OR  OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF  CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE  OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.nabiki.ctp4j.trader.internal;
+
+import com.nabiki.ctp4j._x.OP;
+import com.nabiki.ctp4j.jni.struct.CThostFtdcInstrumentCommissionRateField;
+import com.nabiki.ctp4j.jni.struct.CThostFtdcInstrumentMarginRateField;
+import com.nabiki.ctp4j.sim.BenchData;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Loading instrument, commission and margin JSON files in
+ * {@link CThostFtdcTraderApiImpl#Init()}.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class TraderInitBench {
+    @Param({"10", "1000"})
+    public int instruments;
+
+    private CThostFtdcTraderApiImpl api;
+
+    @Setup
+    public void setup() throws IOException {
+        var flowDir = Files.createTempDirectory("trader");
+        this.api = new CThostFtdcTraderApiImpl(flowDir.toString());
+        var dir = Path.of(flowDir.toString(), ".instrument");
+        for (int i = 0; i < this.instruments; ++i) {
+            var instrID = BenchData.instrumentID(i);
+            var comm = new CThostFtdcInstrumentCommissionRateField();
+            comm.InstrumentID = instrID;
+            comm.OpenRatioByVolume = 1.5D;
+            var margin = new CThostFtdcInstrumentMarginRateField();
+            margin.InstrumentID = instrID;
+            margin.LongMarginRatioByMoney = 0.05D;
+            margin.ShortMarginRatioByMoney = 0.05D;
+            write(BenchData.instrument(instrID), dir, "instrument." + instrID);
+            write(comm, dir, "commission." + instrID);
+            write(margin, dir, "margin." + instrID);
+        }
+    }
+
+    private static void write(Object obj, Path dir, String name)
+            throws IOException {
+        OP.writeText(OP.toJson(obj), Path.of(dir.toString(), name + ".json").toFile(),
+                StandardCharsets.UTF_8, false);
+    }
+
+    @Benchmark
+    public void init() {
+        this.api.Init();
+    }
+}
@@ -36,8 +36,10 @@ import java.io.*;
 import java.nio.charset.Charset;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.time.DayOfWeek;
 import java.time.Duration;
 import java.time.LocalDate;
+import java.time.LocalDateTime;
 import java.time.LocalTime;
 import java.time.format.DateTimeFormatter;
 import java.util.Objects;
@@ -46,8 +48,10 @@ import java.util.regex.Pattern;
 
 public class OP {
     /**
-     * Get a deep copy of the specified object. The method first serializes the
-     * object to a byte array and then recover a new object from it.
+     * Get a deep copy of the specified object. The copy is made field by field by
+     * the {@link StructCopier} of the object's class, which is built on the first
+     * copy of the class and cached. Classes that can't be copied field by field are
+     * copied through serialization.
      *
      * <p>The object to be copied must implement {@link Serializable}, or the method
      * fails and returns {@code null}.
@@ -59,13 +63,27 @@ public class OP {
      */
     @SuppressWarnings("unchecked")
     public static <T> T deepCopy(T copied) {
-        try (ByteArrayOutputStream bo = new ByteArrayOutputStream()) {
-            new ObjectOutputStream(bo).writeObject(copied);
-            return (T) new ObjectInputStream(
-                    new ByteArrayInputStream(bo.toByteArray())).readObject();
-        } catch (IOException | ClassNotFoundException ignored) {
+        if (copied == null)
             return null;
-        }
+        return (T) StructCopier.of(copied.getClass()).copy(copied);
+    }
+
+    /**
+     * Copy fields of the specified source object into the specified destination
+     * object without creating a new object.
+     *
+     * @param src source object
+     * @param dst destination object
+     * @param <T> generic type of a copied object
+     * @return the destination object
+     */
+    public static <T> T copyInto(T src, T dst) {
+        Objects.requireNonNull(src, "copy source null");
+        Objects.requireNonNull(dst, "copy destination null");
+        if (src.getClass() != dst.getClass())
+            throw new IllegalArgumentException("copy between different classes");
+        StructCopier.of(src.getClass()).copyInto(src, dst);
+        return dst;
     }
 
     /**
@@ -200,9 +218,9 @@ public class OP {
         if (pattern == null || pattern.trim().length() == 0)
             pattern = dayPatternStr;
         if (pattern.compareTo(dayPatternStr) == 0)
-            return LocalDate.now().format(dayPattern);
+            return day.format(dayPattern);
         else
-            return LocalDate.now().format(DateTimeFormatter.ofPattern(pattern));
+            return day.format(DateTimeFormatter.ofPattern(pattern));
     }
 
     public static String getTime(LocalTime time, String pattern) {
@@ -213,7 +231,7 @@ public class OP {
         if (pattern.compareTo(timePatternStr) == 0)
             return time.format(timePattern);
         else
-            return LocalTime.now().format(DateTimeFormatter.ofPattern(pattern));
+            return time.format(DateTimeFormatter.ofPattern(pattern));
     }
 
     /**
@@ -255,10 +273,34 @@ public class OP {
     }
 
 
+    /**
+     * Get trading day of the specified day at the time of {@link SimClock}.
+     *
+     * @param day action day
+     * @return trading day
+     */
     public static String getTradingDay(LocalDate day) {
-        var n = LocalDate.from(day);
-        if (LocalTime.now().getHour() > 20)
-            n.plusDays(1);
+        if (day == null)
+            throw new NullPointerException("day null");
+        return getTradingDay(LocalDateTime.of(day, SimClock.current().time()));
+    }
+
+    /**
+     * Get trading day of the specified action time. Night session after 20:59
+     * belongs to the next trading day, and weekend belongs to the Monday after.
+     *
+     * @param time action day and time
+     * @return trading day
+     */
+    public static String getTradingDay(LocalDateTime time) {
+        if (time == null)
+            throw new NullPointerException("time null");
+        var n = time.toLocalDate();
+        if (time.getHour() > 20)
+            n = n.plusDays(1);
+        while (n.getDayOfWeek() == DayOfWeek.SATURDAY
+                || n.getDayOfWeek() == DayOfWeek.SUNDAY)
+            n = n.plusDays(1);
         return n.format(dayPattern);
     }
 
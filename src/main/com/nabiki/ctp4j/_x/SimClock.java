@@ -0,0 +1,238 @@
+/*
+ * Copyright (c) 2020 Hongbao Chen <chenhongbao@outlook.com>
+ *
+ * Licensed under the  GNU Affero General Public License v3.0 and you may not use
+ * this file except in compliance with the  License. You may obtain a copy of the
+ * License at
+ *
+ *                    https://www.gnu.org/licenses/agpl-3.0.txt
+ *
+ * Permission is hereby  granted, free of charge, to any  person obtaining a copy
+ * of this software and associated  documentation files (the "Software"), to deal
+ * in the Software  without restriction, including without  limitation the rights
+ * to  use, copy,  modify, merge,  publish, distribute,  sublicense, and/or  sell
+ * copies  of  the Software,  and  to  permit persons  to  whom  the Software  is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE  IS PROVIDED "AS  IS", WITHOUT WARRANTY  OF ANY KIND,  EXPRESS OR
+ * IMPLIED,  INCLUDING BUT  NOT  LIMITED TO  THE  WARRANTIES OF  MERCHANTABILITY,
+ * FITNESS FOR  A PARTICULAR PURPOSE AND  NONINFRINGEMENT. IN NO EVENT  SHALL THE
+ * AUTHORS  OR COPYRIGHT  HOLDERS  BE  LIABLE FOR  ANY  CLAIM,  DAMAGES OR  OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF  CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE  OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.nabiki.ctp4j._x;
+
+import java.time.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Clock of the simulated market. All timestamps of depths, orders, trades and
+ * logins are taken from the current clock, so a simulated session is not tied to
+ * the wall clock.
+ *
+ * <p>There are three kinds of clocks:</p>
+ * <ul>
+ *     <li>{@link #wall()} follows the system clock. It is the default.</li>
+ *     <li>{@link #accelerated(LocalDateTime, double)} starts at the specified
+ *     time and runs the specified times faster than the wall clock.</li>
+ *     <li>{@link #stepped(LocalDateTime)} stays still until it is advanced
+ *     explicitly.</li>
+ * </ul>
+ */
+public abstract class SimClock {
+    private static volatile SimClock current = wall();
+
+    /**
+     * Get the clock used by the simulator.
+     *
+     * @return current clock
+     */
+    public static SimClock current() {
+        return current;
+    }
+
+    /**
+     * Set the clock used by the simulator. Set it before a session starts, so
+     * timestamps are consistent.
+     *
+     * @param clock new clock
+     */
+    public static void setCurrent(SimClock clock) {
+        if (clock == null)
+            throw new NullPointerException("clock null");
+        current = clock;
+    }
+
+    public static SimClock wall() {
+        return new Wall();
+    }
+
+    /**
+     * Create a clock that starts at the specified time now and runs the specified
+     * times faster than the wall clock.
+     *
+     * @param start simulated time now
+     * @param speed speed factor, greater than zero
+     * @return accelerated clock
+     */
+    public static SimClock accelerated(LocalDateTime start, double speed) {
+        return new Accelerated(start, speed);
+    }
+
+    /**
+     * Create a clock that stays at the specified time until it is advanced.
+     *
+     * @param start simulated time now
+     * @return stepped clock
+     */
+    public static Stepped stepped(LocalDateTime start) {
+        return new Stepped(start);
+    }
+
+    /**
+     * Get simulated time in milliseconds of local date and time since epoch, as if
+     * local time were UTC.
+     *
+     * @return milliseconds since epoch in local time
+     */
+    public abstract long millis();
+
+    /**
+     * Convert the specified simulated duration to wall clock duration. Stepped
+     * clocks don't map to the wall clock and return the duration unchanged.
+     *
+     * @param nanos simulated duration in nanoseconds
+     * @return wall clock duration in nanoseconds
+     */
+    public long toWallNanos(long nanos) {
+        return nanos;
+    }
+
+    public LocalDateTime now() {
+        var m = millis();
+        return LocalDateTime.ofEpochSecond(Math.floorDiv(m, 1000),
+                (int) Math.floorMod(m, 1000) * 1000_000, ZoneOffset.UTC);
+    }
+
+    public LocalDate today() {
+        return now().toLocalDate();
+    }
+
+    public LocalTime time() {
+        return now().toLocalTime();
+    }
+
+    static long toMillis(LocalDateTime time) {
+        return time.toInstant(ZoneOffset.UTC).toEpochMilli();
+    }
+
+    static class Wall extends SimClock {
+        private final ZoneId zone = ZoneId.systemDefault();
+        // Zone offset is cached until the next transition of the zone rules, so
+        // reading the clock creates no object.
+        private volatile Offset offset = new Offset(0, 0, Long.MIN_VALUE);
+
+        static class Offset {
+            final long millis, from, until;
+
+            Offset(long millis, long from, long until) {
+                this.millis = millis;
+                this.from = from;
+                this.until = until;
+            }
+        }
+
+        @Override
+        public long millis() {
+            var now = System.currentTimeMillis();
+            var o = this.offset;
+            if (now < o.from || now >= o.until)
+                this.offset = o = offset(now);
+            return now + o.millis;
+        }
+
+        private Offset offset(long now) {
+            var rules = this.zone.getRules();
+            var instant = Instant.ofEpochMilli(now);
+            var prev = rules.previousTransition(instant);
+            var next = rules.nextTransition(instant);
+            return new Offset(rules.getOffset(instant).getTotalSeconds() * 1000L,
+                    prev == null ? Long.MIN_VALUE : prev.toEpochSecond() * 1000L,
+                    next == null ? Long.MAX_VALUE : next.toEpochSecond() * 1000L);
+        }
+    }
+
+    static class Accelerated extends SimClock {
+        private final long startMillis, startNanos;
+        private final double speed;
+
+        Accelerated(LocalDateTime start, double speed) {
+            if (start == null)
+                throw new NullPointerException("start null");
+            if (!(speed > 0.0D) || Double.isInfinite(speed))
+                throw new IllegalArgumentException("speed not positive");
+            this.startMillis = toMillis(start);
+            this.startNanos = System.nanoTime();
+            this.speed = speed;
+        }
+
+        @Override
+        public long millis() {
+            var elapsed = (System.nanoTime() - this.startNanos) * this.speed;
+            return this.startMillis + (long) (elapsed / 1000_000D);
+        }
+
+        @Override
+        public long toWallNanos(long nanos) {
+            return (long) (nanos / this.speed);
+        }
+    }
+
+    /**
+     * Clock that moves only when it is advanced.
+     */
+    public static class Stepped extends SimClock {
+        private volatile long millis;
+
+        Stepped(LocalDateTime start) {
+            if (start == null)
+                throw new NullPointerException("start null");
+            this.millis = toMillis(start);
+        }
+
+        @Override
+        public long millis() {
+            return this.millis;
+        }
+
+        /**
+         * Move the clock forward by the specified duration.
+         *
+         * @param duration duration
+         * @param unit time unit of the duration
+         */
+        public synchronized void advance(long duration, TimeUnit unit) {
+            if (duration < 0)
+                throw new IllegalArgumentException("advance backward");
+            this.millis += unit.toMillis(duration);
+        }
+
+        /**
+         * Move the clock to the specified time, which can't be earlier than now.
+         *
+         * @param time new time
+         */
+        public synchronized void set(LocalDateTime time) {
+            var m = toMillis(time);
+            if (m < this.millis)
+                throw new IllegalArgumentException("set backward");
+            this.millis = m;
+        }
+    }
+}
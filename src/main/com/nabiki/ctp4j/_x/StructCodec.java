@@ -0,0 +1,500 @@
+/*
+ * Copyright (c) 2020 Hongbao Chen <chenhongbao@outlook.com>
+ *
+ * Licensed under the  GNU Affero General Public License v3.0 and you may not use
+ * this file except in compliance with the  License. You may obtain a copy of the
+ * License at
+ *
+ *                    https://www.gnu.org/licenses/agpl-3.0.txt
+ *
+ * Permission is hereby  granted, free of charge, to any  person obtaining a copy
+ * of this software and associated  documentation files (the "Software"), to deal
+ * in the Software  without restriction, including without  limitation the rights
+ * to  use, copy,  modify, merge,  publish, distribute,  sublicense, and/or  sell
+ * copies  of  the Software,  and  to  permit persons  to  whom  the Software  is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE  IS PROVIDED "AS  IS", WITHOUT WARRANTY  OF ANY KIND,  EXPRESS OR
+ * IMPLIED,  INCLUDING BUT  NOT  LIMITED TO  THE  WARRANTIES OF  MERCHANTABILITY,
+ * FITNESS FOR  A PARTICULAR PURPOSE AND  NONINFRINGEMENT. IN NO EVENT  SHALL THE
+ * AUTHORS  OR COPYRIGHT  HOLDERS  BE  LIABLE FOR  ANY  CLAIM,  DAMAGES OR  OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF  CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE  OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.nabiki.ctp4j._x;
+
+import java.io.Serializable;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Comparator;
+
+/**
+ * Binary codec of plain struct classes like {@code CThostFtdc*Field}.
+ *
+ * <p>A codec is built once for each class on first use and cached, like
+ * {@link StructCopier}. It writes the non-static, non-transient fields in the
+ * order of their names, so the layout doesn't depend on how the JVM lists
+ * fields. Fields are read and written through method handles and primitives are
+ * never boxed. Supported field types are primitives and strings.
+ * </p>
+ *
+ * <p>Numbers are written in the byte order of the buffer. A string is a short
+ * length, or -1 for {@code null}, and then its chars. Chars take one byte each
+ * if all of them fit, otherwise two bytes each and the length has its high bit
+ * set.
+ * </p>
+ *
+ * <p>Writes and reads are absolute, so threads can encode into disjoint parts of
+ * one buffer at the same time.
+ * </p>
+ */
+public class StructCodec {
+    private static final ClassValue<StructCodec> codecs = new ClassValue<>() {
+        @Override
+        protected StructCodec computeValue(Class<?> type) {
+            try {
+                return new StructCodec(type);
+            } catch (ReflectiveOperationException e) {
+                throw new IllegalArgumentException(
+                        "can't encode " + type.getCanonicalName(), e);
+            }
+        }
+    };
+
+    /**
+     * Max length of an encoded string.
+     */
+    public static final int MAX_STRING = Short.MAX_VALUE;
+    private static final int WIDE = 0x8000;
+
+    private static final int T_STRING = 0, T_BYTE = 1, T_CHAR = 2, T_SHORT = 3,
+            T_INT = 4, T_LONG = 5, T_FLOAT = 6, T_DOUBLE = 7, T_BOOLEAN = 8;
+
+    private final MethodHandle constructor;
+    private final int[] types;
+    private final MethodHandle[] getters, setters;
+
+    /**
+     * Get the codec of the specified class. The codec is created on the first call
+     * and then cached for the class.
+     *
+     * @param type class of the encoded objects
+     * @return codec of the specified class
+     * @throws IllegalArgumentException if the class has fields of other types than
+     *                                  primitives and strings, or no public no-arg
+     *                                  constructor
+     */
+    public static StructCodec of(Class<?> type) {
+        return codecs.get(type);
+    }
+
+    private StructCodec(Class<?> type) throws ReflectiveOperationException {
+        if (!Serializable.class.isAssignableFrom(type))
+            throw new IllegalArgumentException("not a struct class");
+        var lookup = MethodHandles.publicLookup();
+        this.constructor = lookup
+                .findConstructor(type, MethodType.methodType(void.class))
+                .asType(MethodType.methodType(Object.class));
+        var fields = new ArrayList<Field>();
+        for (var c = type; c != null && c != Object.class; c = c.getSuperclass()) {
+            for (var f : c.getDeclaredFields()) {
+                var mod = f.getModifiers();
+                if (Modifier.isStatic(mod) || Modifier.isTransient(mod))
+                    continue;
+                if (Modifier.isFinal(mod))
+                    throw new IllegalArgumentException("final field");
+                fields.add(f);
+            }
+        }
+        fields.sort(Comparator.comparing(Field::getName));
+        this.types = new int[fields.size()];
+        this.getters = new MethodHandle[fields.size()];
+        this.setters = new MethodHandle[fields.size()];
+        for (int i = 0; i < fields.size(); ++i) {
+            var f = fields.get(i);
+            var t = f.getType();
+            this.types[i] = typeOf(t);
+            this.getters[i] = lookup.unreflectGetter(f)
+                    .asType(MethodType.methodType(t, Object.class));
+            this.setters[i] = lookup.unreflectSetter(f)
+                    .asType(MethodType.methodType(void.class, Object.class, t));
+        }
+    }
+
+    private static int typeOf(Class<?> t) {
+        if (t == String.class)
+            return T_STRING;
+        else if (t == byte.class)
+            return T_BYTE;
+        else if (t == char.class)
+            return T_CHAR;
+        else if (t == short.class)
+            return T_SHORT;
+        else if (t == int.class)
+            return T_INT;
+        else if (t == long.class)
+            return T_LONG;
+        else if (t == float.class)
+            return T_FLOAT;
+        else if (t == double.class)
+            return T_DOUBLE;
+        else if (t == boolean.class)
+            return T_BOOLEAN;
+        else
+            throw new IllegalArgumentException("unsupported field type " + t);
+    }
+
+    /**
+     * Get number of bytes the specified object takes when encoded.
+     *
+     * @param o object of the codec's class
+     * @return encoded size
+     */
+    public int size(Object o) {
+        int n = 0;
+        try {
+            for (int i = 0; i < this.types.length; ++i) {
+                switch (this.types[i]) {
+                    case T_STRING:
+                        n += size((String) this.getters[i].invokeExact(o));
+                        break;
+                    case T_BYTE:
+                    case T_BOOLEAN:
+                        n += 1;
+                        break;
+                    case T_CHAR:
+                    case T_SHORT:
+                        n += 2;
+                        break;
+                    case T_INT:
+                    case T_FLOAT:
+                        n += 4;
+                        break;
+                    default:
+                        n += 8;
+                }
+            }
+        } catch (Throwable th) {
+            throw rethrow(th);
+        }
+        return n;
+    }
+
+    /**
+     * Encode the specified object into the buffer at the specified offset.
+     *
+     * @param b  buffer
+     * @param at offset to write at
+     * @param o  object of the codec's class
+     * @return offset after the encoded object
+     */
+    public int write(ByteBuffer b, int at, Object o) {
+        try {
+            for (int i = 0; i < this.types.length; ++i) {
+                var g = this.getters[i];
+                switch (this.types[i]) {
+                    case T_STRING:
+                        at = putString(b, at, (String) g.invokeExact(o));
+                        break;
+                    case T_BYTE:
+                        b.put(at++, (byte) g.invokeExact(o));
+                        break;
+                    case T_BOOLEAN:
+                        b.put(at++, (boolean) g.invokeExact(o) ? (byte) 1 : 0);
+                        break;
+                    case T_CHAR:
+                        b.putChar(at, (char) g.invokeExact(o));
+                        at += 2;
+                        break;
+                    case T_SHORT:
+                        b.putShort(at, (short) g.invokeExact(o));
+                        at += 2;
+                        break;
+                    case T_INT:
+                        b.putInt(at, (int) g.invokeExact(o));
+                        at += 4;
+                        break;
+                    case T_FLOAT:
+                        b.putFloat(at, (float) g.invokeExact(o));
+                        at += 4;
+                        break;
+                    case T_LONG:
+                        b.putLong(at, (long) g.invokeExact(o));
+                        at += 8;
+                        break;
+                    default:
+                        b.putDouble(at, (double) g.invokeExact(o));
+                        at += 8;
+                }
+            }
+        } catch (Throwable th) {
+            throw rethrow(th);
+        }
+        return at;
+    }
+
+    /**
+     * Decode an object from the buffer at the specified offset into the specified
+     * object.
+     *
+     * @param b  buffer
+     * @param at offset to read at
+     * @param o  object of the codec's class to decode into
+     * @return offset after the encoded object
+     */
+    public int read(ByteBuffer b, int at, Object o) {
+        return read(b, at, o, null);
+    }
+
+    /**
+     * Decode an object from the buffer at the specified offset into the specified
+     * object, taking strings from the specified cache when they are there.
+     *
+     * @param b       buffer
+     * @param at      offset to read at
+     * @param o       object of the codec's class to decode into
+     * @param strings cache of decoded strings, or {@code null}
+     * @return offset after the encoded object
+     */
+    public int read(ByteBuffer b, int at, Object o, StringCache strings) {
+        try {
+            for (int i = 0; i < this.types.length; ++i) {
+                var s = this.setters[i];
+                switch (this.types[i]) {
+                    case T_STRING:
+                        s.invokeExact(o, getString(b, at, strings));
+                        at = skipString(b, at);
+                        break;
+                    case T_BYTE:
+                        s.invokeExact(o, b.get(at++));
+                        break;
+                    case T_BOOLEAN:
+                        s.invokeExact(o, b.get(at++) != 0);
+                        break;
+                    case T_CHAR:
+                        s.invokeExact(o, b.getChar(at));
+                        at += 2;
+                        break;
+                    case T_SHORT:
+                        s.invokeExact(o, b.getShort(at));
+                        at += 2;
+                        break;
+                    case T_INT:
+                        s.invokeExact(o, b.getInt(at));
+                        at += 4;
+                        break;
+                    case T_FLOAT:
+                        s.invokeExact(o, b.getFloat(at));
+                        at += 4;
+                        break;
+                    case T_LONG:
+                        s.invokeExact(o, b.getLong(at));
+                        at += 8;
+                        break;
+                    default:
+                        s.invokeExact(o, b.getDouble(at));
+                        at += 8;
+                }
+            }
+        } catch (Throwable th) {
+            throw rethrow(th);
+        }
+        return at;
+    }
+
+    /**
+     * Create a new object of the codec's class through its no-arg constructor.
+     *
+     * @return new object
+     */
+    public Object create() {
+        try {
+            return (Object) this.constructor.invokeExact();
+        } catch (Throwable th) {
+            throw rethrow(th);
+        }
+    }
+
+    /**
+     * Get number of bytes the specified string takes when encoded.
+     *
+     * @param s string, or {@code null}
+     * @return encoded size
+     */
+    public static int size(String s) {
+        if (s == null)
+            return 2;
+        if (s.length() > MAX_STRING)
+            throw new IllegalArgumentException("string too long");
+        return 2 + (isNarrow(s) ? s.length() : s.length() * 2);
+    }
+
+    /**
+     * Encode the specified string into the buffer at the specified offset.
+     *
+     * @param b  buffer
+     * @param at offset to write at
+     * @param s  string, or {@code null}
+     * @return offset after the encoded string
+     */
+    public static int putString(ByteBuffer b, int at, String s) {
+        if (s == null) {
+            b.putShort(at, (short) -1);
+            return at + 2;
+        }
+        var len = s.length();
+        if (len > MAX_STRING)
+            throw new IllegalArgumentException("string too long");
+        if (isNarrow(s)) {
+            b.putShort(at, (short) len);
+            at += 2;
+            for (int i = 0; i < len; ++i)
+                b.put(at++, (byte) s.charAt(i));
+        } else {
+            b.putShort(at, (short) (len | WIDE));
+            at += 2;
+            for (int i = 0; i < len; ++i, at += 2)
+                b.putChar(at, s.charAt(i));
+        }
+        return at;
+    }
+
+    /**
+     * Decode a string from the buffer at the specified offset. The encoded size is
+     * {@link #size(String)} of the returned string.
+     *
+     * @param b  buffer
+     * @param at offset to read at
+     * @return decoded string, or {@code null}
+     */
+    public static String getString(ByteBuffer b, int at) {
+        return getString(b, at, null);
+    }
+
+    /**
+     * Decode a string from the buffer at the specified offset, or take an equal
+     * string from the specified cache.
+     *
+     * @param b       buffer
+     * @param at      offset to read at
+     * @param strings cache of decoded strings, or {@code null}
+     * @return decoded string, or {@code null}
+     */
+    public static String getString(ByteBuffer b, int at, StringCache strings) {
+        var len = b.getShort(at) & 0xFFFF;
+        if (len == 0xFFFF)
+            return null;
+        at += 2;
+        if (len == 0)
+            return "";
+        if ((len & WIDE) == 0) {
+            if (strings != null && len <= StringCache.MAX_LENGTH)
+                return strings.get(b, at, len);
+            var bytes = new byte[len];
+            for (int i = 0; i < len; ++i)
+                bytes[i] = b.get(at + i);
+            return new String(bytes, StandardCharsets.ISO_8859_1);
+        }
+        len &= ~WIDE;
+        var chars = new char[len];
+        for (int i = 0; i < len; ++i)
+            chars[i] = b.getChar(at + i * 2);
+        return new String(chars);
+    }
+
+    /**
+     * Get offset after the string encoded at the specified offset, without
+     * decoding it.
+     *
+     * @param b  buffer
+     * @param at offset of the encoded string
+     * @return offset after the encoded string
+     */
+    public static int skipString(ByteBuffer b, int at) {
+        var len = b.getShort(at) & 0xFFFF;
+        if (len == 0xFFFF)
+            return at + 2;
+        if ((len & WIDE) != 0)
+            return at + 2 + (len & ~WIDE) * 2;
+        return at + 2 + len;
+    }
+
+    /**
+     * Cache of short decoded strings, by their bytes. Objects decoded with one
+     * cache share their equal strings, like IDs and dates repeated in many
+     * records, so decoding them allocates nothing and keeps less on heap. A cache
+     * is not thread-safe.
+     */
+    public static class StringCache {
+        static final int MAX_LENGTH = 64;
+        private final String[] strings;
+        private final int mask;
+
+        /**
+         * Create a cache of the specified number of slots. A slot keeps the string
+         * last decoded into it.
+         *
+         * @param capacity number of slots, rounded up to a power of two
+         */
+        public StringCache(int capacity) {
+            if (capacity <= 0)
+                throw new IllegalArgumentException("capacity not positive");
+            var n = Integer.highestOneBit(capacity);
+            if (n < capacity)
+                n <<= 1;
+            this.strings = new String[n];
+            this.mask = n - 1;
+        }
+
+        String get(ByteBuffer b, int at, int len) {
+            // Same hash as the string of these chars.
+            int h = 0;
+            for (int i = 0; i < len; ++i)
+                h = 31 * h + (b.get(at + i) & 0xFF);
+            var slot = (h ^ (h >>> 16)) & this.mask;
+            var s = this.strings[slot];
+            if (s != null && s.length() == len && s.hashCode() == h
+                    && matches(s, b, at))
+                return s;
+            var bytes = new byte[len];
+            for (int i = 0; i < len; ++i)
+                bytes[i] = b.get(at + i);
+            s = new String(bytes, StandardCharsets.ISO_8859_1);
+            this.strings[slot] = s;
+            return s;
+        }
+
+        private static boolean matches(String s, ByteBuffer b, int at) {
+            for (int i = 0; i < s.length(); ++i)
+                if (s.charAt(i) != (b.get(at + i) & 0xFF))
+                    return false;
+            return true;
+        }
+    }
+
+    private static boolean isNarrow(String s) {
+        for (int i = 0; i < s.length(); ++i)
+            if (s.charAt(i) > 0xFF)
+                return false;
+        return true;
+    }
+
+    private static RuntimeException rethrow(Throwable th) {
+        if (th instanceof RuntimeException)
+            return (RuntimeException) th;
+        if (th instanceof Error)
+            throw (Error) th;
+        return new IllegalStateException("struct codec", th);
+    }
+}
@@ -0,0 +1,256 @@
+/*
+ * Copyright (c) 2020 Hongbao Chen <chenhongbao@outlook.com>
+ *
+ * Licensed under the  GNU Affero General Public License v3.0 and you may not use
+ * this file except in compliance with the  License. You may obtain a copy of the
+ * License at
+ *
+ *                    https://www.gnu.org/licenses/agpl-3.0.txt
+ *
+ * Permission is hereby  granted, free of charge, to any  person obtaining a copy
+ * of this software and associated  documentation files (the "Software"), to deal
+ * in the Software  without restriction, including without  limitation the rights
+ * to  use, copy,  modify, merge,  publish, distribute,  sublicense, and/or  sell
+ * copies  of  the Software,  and  to  permit persons  to  whom  the Software  is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE  IS PROVIDED "AS  IS", WITHOUT WARRANTY  OF ANY KIND,  EXPRESS OR
+ * IMPLIED,  INCLUDING BUT  NOT  LIMITED TO  THE  WARRANTIES OF  MERCHANTABILITY,
+ * FITNESS FOR  A PARTICULAR PURPOSE AND  NONINFRINGEMENT. IN NO EVENT  SHALL THE
+ * AUTHORS  OR COPYRIGHT  HOLDERS  BE  LIABLE FOR  ANY  CLAIM,  DAMAGES OR  OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF  CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE  OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.nabiki.ctp4j._x;
+
+import java.io.*;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+
+/**
+ * Field-by-field copier of plain struct classes like {@code CThostFtdc*Field}.
+ *
+ * <p>A copier is built once for each class on first use and cached. It creates
+ * the new object through the no-arg constructor and copies every non-static,
+ * non-transient field through method handles, so primitives are never boxed.
+ * Strings and enums are shared because they are immutable, arrays are cloned and
+ * other references are copied recursively by their own copier.
+ * </p>
+ *
+ * <p>Classes that can't be copied this way, for example classes with final fields
+ * or without an accessible no-arg constructor, fall back to a serialization round
+ * trip.
+ * </p>
+ */
+public abstract class StructCopier {
+    private static final ClassValue<StructCopier> copiers
+            = new ClassValue<>() {
+        @Override
+        protected StructCopier computeValue(Class<?> type) {
+            try {
+                return new FieldCopier(type);
+            } catch (ReflectiveOperationException | RuntimeException ignored) {
+                return new SerialCopier();
+            }
+        }
+    };
+
+    /**
+     * Get the copier of the specified class. The copier is created on the first
+     * call and then cached for the class.
+     *
+     * @param type class of the copied objects
+     * @return copier of the specified class
+     */
+    public static StructCopier of(Class<?> type) {
+        return copiers.get(type);
+    }
+
+    /**
+     * Create a new object and copy the fields of the specified object into it.
+     *
+     * @param copied object to be copied
+     * @return a deep copy of the specified object, or {@code null} if the copy
+     * fails
+     */
+    public abstract Object copy(Object copied);
+
+    /**
+     * Copy fields of the specified source object into the specified destination
+     * object. Both objects must be of the class the copier is created for.
+     *
+     * @param src source object
+     * @param dst destination object
+     * @throws UnsupportedOperationException if the copier falls back to
+     * serialization and can't write into an existing object
+     */
+    public abstract void copyInto(Object src, Object dst);
+
+    /**
+     * Copy the specified object through a serialization round trip. It is the
+     * copy that works for any {@link Serializable} object, but it is slow and
+     * allocates a lot.
+     *
+     * @param copied object to be copied
+     * @param <T> generic type of a copied object
+     * @return deep copying object, or {@code null} if the object can't be
+     * serialized
+     */
+    @SuppressWarnings("unchecked")
+    static <T> T serialCopy(T copied) {
+        try (ByteArrayOutputStream bo = new ByteArrayOutputStream()) {
+            new ObjectOutputStream(bo).writeObject(copied);
+            return (T) new ObjectInputStream(
+                    new ByteArrayInputStream(bo.toByteArray())).readObject();
+        } catch (IOException | ClassNotFoundException ignored) {
+            return null;
+        }
+    }
+
+    static class SerialCopier extends StructCopier {
+        @Override
+        public Object copy(Object copied) {
+            return serialCopy(copied);
+        }
+
+        @Override
+        public void copyInto(Object src, Object dst) {
+            throw new UnsupportedOperationException(
+                    "can't copy into " + dst.getClass().getCanonicalName());
+        }
+    }
+
+    static class FieldCopier extends StructCopier {
+        private final MethodHandle constructor, copier;
+
+        FieldCopier(Class<?> type) throws ReflectiveOperationException {
+            if (!Serializable.class.isAssignableFrom(type) || type.isArray()
+                    || type.isInterface() || Modifier.isAbstract(type.getModifiers()))
+                throw new IllegalArgumentException("not a struct class");
+            var lookup = MethodHandles.publicLookup();
+            this.constructor = lookup
+                    .findConstructor(type, MethodType.methodType(void.class))
+                    .asType(MethodType.methodType(Object.class));
+            // Chain all field copies into one handle of type (Object, Object)void
+            // so a copy is a single invocation.
+            var chain = MethodHandles.empty(
+                    MethodType.methodType(void.class, Object.class, Object.class));
+            for (var c = type; c != null && c != Object.class; c = c.getSuperclass()) {
+                for (var f : c.getDeclaredFields()) {
+                    var mod = f.getModifiers();
+                    if (Modifier.isStatic(mod) || Modifier.isTransient(mod))
+                        continue;
+                    if (Modifier.isFinal(mod))
+                        throw new IllegalArgumentException("final field");
+                    chain = MethodHandles.foldArguments(chain, fieldCopy(lookup, f));
+                }
+            }
+            this.copier = chain;
+        }
+
+        @Override
+        public Object copy(Object copied) {
+            if (copied == null)
+                return null;
+            try {
+                var r = (Object) this.constructor.invokeExact();
+                this.copier.invokeExact(copied, r);
+                return r;
+            } catch (Throwable ignored) {
+                return null;
+            }
+        }
+
+        @Override
+        public void copyInto(Object src, Object dst) {
+            try {
+                this.copier.invokeExact(src, dst);
+            } catch (RuntimeException | Error e) {
+                throw e;
+            } catch (Throwable th) {
+                throw new IllegalStateException("copy fields", th);
+            }
+        }
+    }
+
+    private static final MethodHandle deepCopyHandle;
+    static {
+        try {
+            deepCopyHandle = MethodHandles.lookup().findStatic(StructCopier.class,
+                    "deepCopy",
+                    MethodType.methodType(Object.class, Object.class));
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    /*
+     * Create handle (Object src, Object dst)void that copies the specified field
+     * from src to dst.
+     */
+    private static MethodHandle fieldCopy(MethodHandles.Lookup lookup, Field f)
+            throws IllegalAccessException {
+        var type = f.getType();
+        var get = lookup.unreflectGetter(f);
+        var set = lookup.unreflectSetter(f);
+        if (!type.isPrimitive() && type != String.class && !type.isEnum())
+            // Mutable reference, copy it too.
+            get = MethodHandles.filterReturnValue(
+                    get, deepCopyHandle.asType(MethodType.methodType(type, Object.class)));
+        // (dst, src)void
+        var h = MethodHandles.filterArguments(set, 1, get);
+        h = MethodHandles.permuteArguments(h, MethodType.methodType(
+                void.class, f.getDeclaringClass(), f.getDeclaringClass()), 1, 0);
+        return h.asType(
+                MethodType.methodType(void.class, Object.class, Object.class));
+    }
+
+    private static Object deepCopy(Object copied) {
+        if (copied == null)
+            return null;
+        var type = copied.getClass();
+        if (type == String.class || type.isEnum())
+            return copied;
+        if (type.isArray()) {
+            if (type.getComponentType().isPrimitive())
+                return cloneArray(copied);
+            var src = (Object[]) copied;
+            var dst = src.clone();
+            for (int i = 0; i < dst.length; ++i)
+                dst[i] = deepCopy(src[i]);
+            return dst;
+        }
+        var r = of(type).copy(copied);
+        if (r == null)
+            throw new IllegalStateException(
+                    "can't copy " + type.getCanonicalName());
+        return r;
+    }
+
+    private static Object cloneArray(Object array) {
+        if (array instanceof int[])
+            return ((int[]) array).clone();
+        else if (array instanceof double[])
+            return ((double[]) array).clone();
+        else if (array instanceof long[])
+            return ((long[]) array).clone();
+        else if (array instanceof byte[])
+            return ((byte[]) array).clone();
+        else if (array instanceof char[])
+            return ((char[]) array).clone();
+        else if (array instanceof short[])
+            return ((short[]) array).clone();
+        else if (array instanceof float[])
+            return ((float[]) array).clone();
+        else
+            return ((boolean[]) array).clone();
+    }
+}
@@ -0,0 +1,102 @@
+/*
+ * Copyright (c) 2020 Hongbao Chen <chenhongbao@outlook.com>
+ *
+ * Licensed under the  GNU Affero General Public License v3.0 and you may not use
+ * this file except in compliance with the  License. You may obtain a copy of the
+ * License at
+ *
+ *                    https://www.gnu.org/licenses/agpl-3.0.txt
+ *
+ * Permission is hereby  granted, free of charge, to any  person obtaining a copy
+ * of this software and associated  documentation files (the "Software"), to deal
+ * in the Software  without restriction, including without  limitation the rights
+ * to  use, copy,  modify, merge,  publish, distribute,  sublicense, and/or  sell
+ * copies  of  the Software,  and  to  permit persons  to  whom  the Software  is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE  IS PROVIDED "AS  IS", WITHOUT WARRANTY  OF ANY KIND,  EXPRESS OR
+ * IMPLIED,  INCLUDING BUT  NOT  LIMITED TO  THE  WARRANTIES OF  MERCHANTABILITY,
+ * FITNESS FOR  A PARTICULAR PURPOSE AND  NONINFRINGEMENT. IN NO EVENT  SHALL THE
+ * AUTHORS  OR COPYRIGHT  HOLDERS  BE  LIABLE FOR  ANY  CLAIM,  DAMAGES OR  OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF  CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE  OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.nabiki.ctp4j._x;
+
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Factories of the threads that deliver callbacks to SPIs.
+ *
+ * <p>Virtual threads are created through reflection, so the simulator still
+ * builds and runs on JDKs without them. On such a JDK, or when virtual threads
+ * are a disabled preview feature, a virtual factory falls back to daemon platform
+ * threads.
+ * </p>
+ */
+public class Threads {
+    private static final ThreadFactory noVirtual = r -> null;
+    private static final ThreadFactory virtualFactory = virtualFactory();
+
+    /**
+     * Check whether the running JDK supports virtual threads.
+     *
+     * @return {@code true} if virtual threads are supported
+     */
+    public static boolean isVirtualSupported() {
+        return virtualFactory != noVirtual;
+    }
+
+    /**
+     * Create a factory of daemon platform threads named {@code name-N}.
+     *
+     * @param name prefix of thread names
+     * @return thread factory
+     */
+    public static ThreadFactory platform(String name) {
+        var count = new AtomicLong(0);
+        return r -> {
+            var t = new Thread(r, name + "-" + count.getAndIncrement());
+            t.setDaemon(true);
+            return t;
+        };
+    }
+
+    /**
+     * Create a factory of virtual threads named {@code name-N}, or of daemon
+     * platform threads if virtual threads are not supported.
+     *
+     * @param name prefix of thread names
+     * @return thread factory
+     */
+    public static ThreadFactory virtual(String name) {
+        if (!isVirtualSupported())
+            return platform(name);
+        var count = new AtomicLong(0);
+        return r -> {
+            var t = virtualFactory.newThread(r);
+            t.setName(name + "-" + count.getAndIncrement());
+            return t;
+        };
+    }
+
+    private static ThreadFactory virtualFactory() {
+        try {
+            // Thread.ofVirtual().factory()
+            var builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            var factory = (ThreadFactory) Class.forName("java.lang.Thread$Builder")
+                    .getMethod("factory").invoke(builder);
+            // Preview builds throw on first use if preview is not enabled.
+            factory.newThread(() -> {});
+            return factory;
+        } catch (ReflectiveOperationException | RuntimeException | LinkageError ignored) {
+            return noVirtual;
+        }
+    }
+}
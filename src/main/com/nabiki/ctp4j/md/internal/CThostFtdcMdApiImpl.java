@@ -29,6 +29,7 @@
 package com.nabiki.ctp4j.md.internal;
 
 import com.nabiki.ctp4j._x.OP;
+import com.nabiki.ctp4j._x.SimClock;
 import com.nabiki.ctp4j.jni.flag.TThostFtdcErrorCode;
 import com.nabiki.ctp4j.jni.flag.TThostFtdcErrorMessage;
 import com.nabiki.ctp4j.jni.struct.*;
@@ -43,8 +44,7 @@ import java.io.FileFilter;
 import java.io.IOException;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Path;
-import java.time.LocalDate;
-import java.time.LocalTime;
+import java.util.Objects;
 import java.util.Set;
 import java.util.concurrent.ConcurrentSkipListSet;
 import java.util.logging.FileHandler;
@@ -56,8 +56,12 @@ public class CThostFtdcMdApiImpl extends CThostFtdcMdApi {
         @Override
         public void OnRtnDepthMarketData(
                 CThostFtdcDepthMarketDataField depthMarketData) {
-            if (subscribed.contains(depthMarketData.InstrumentID))
-                spi.OnRtnDepthMarketData(depthMarketData);
+            if (subscribed.contains(depthMarketData.InstrumentID)) {
+                if (copyDepth)
+                    spi.OnRtnDepthMarketData(OP.deepCopy(depthMarketData));
+                else
+                    spi.OnRtnDepthMarketData(depthMarketData);
+            }
         }
     }
 
@@ -69,6 +73,8 @@ public class CThostFtdcMdApiImpl extends CThostFtdcMdApi {
     private final Set<String> subscribed = new ConcurrentSkipListSet<>();
 
     private CThostFtdcMdSpi spi = new DefaultSPI();
+    private volatile boolean copyDepth = false;
+    private boolean released = false;
     private final CThostFtdcMdSpi hubSpi = new SourceHubSPI();
 
     public CThostFtdcMdApiImpl(String flowDir, boolean isUsingUdp,
@@ -91,6 +97,48 @@ public class CThostFtdcMdApiImpl extends CThostFtdcMdApi {
         }
     }
 
+    /**
+     * Set whether the SPI gets its own copy of each depth. By default the SPI gets
+     * the depth shared with other consumers, which must be treated as read-only.
+     * With copy enabled, the SPI may keep or modify the depth freely.
+     *
+     * @param copy {@code true} to deliver a private copy of each depth
+     */
+    public void setCopyDepth(boolean copy) {
+        this.copyDepth = copy;
+    }
+
+    /**
+     * Set how depths are delivered to the SPI. With
+     * {@link TickSource.Delivery#CONFLATE}, a SPI that can't keep up gets only the
+     * latest depth of each instrument and the replaced depths are dropped.
+     *
+     * <p>The SPI misses depths published while the policy is switched.
+     * </p>
+     *
+     * @param delivery delivery policy
+     * @throws IllegalStateException if the API is released
+     */
+    public synchronized void setDelivery(TickSource.Delivery delivery) {
+        Objects.requireNonNull(delivery, "delivery null");
+        if (this.released)
+            throw new IllegalStateException("api released");
+        // Wait for the old delivery thread without holding the source, so it goes
+        // on publishing to other SPIs.
+        var source = TickSource.getTickSource();
+        source.removeSPI(this.hubSpi);
+        source.addSPI(this.hubSpi, delivery);
+    }
+
+    /**
+     * Get number of depths dropped because the SPI lagged behind.
+     *
+     * @return number of dropped depths
+     */
+    public long getDropCount() {
+        return TickSource.getTickSource().getDropCount(this.hubSpi);
+    }
+
     @Override
     public String GetApiVersion() {
         return apiVersion;
@@ -98,7 +146,7 @@ public class CThostFtdcMdApiImpl extends CThostFtdcMdApi {
 
     @Override
     public String GetTradingDay() {
-        return OP.getTradingDay(LocalDate.now());
+        return OP.getTradingDay(SimClock.current().now());
     }
 
     @Override
@@ -139,6 +187,9 @@ public class CThostFtdcMdApiImpl extends CThostFtdcMdApi {
 
     @Override
     public void Release() {
+        synchronized (this) {
+            this.released = true;
+        }
         TickSource.getTickSource().removeSPI(this.hubSpi);
         this.spi = null;
     }
@@ -151,10 +202,10 @@ public class CThostFtdcMdApiImpl extends CThostFtdcMdApi {
                 = rsp.INETime
                 = rsp.SHFETime
                 = rsp.LoginTime
-                = OP.getTime(LocalTime.now(), null);
+                = OP.getTime(SimClock.current().time(), null);
         rsp.SessionID += 1;
         rsp.UserID = reqUserLoginField.UserID;
-        rsp.TradingDay = OP.getTradingDay(LocalDate.now());
+        rsp.TradingDay = OP.getTradingDay(SimClock.current().now());
         this.spi.OnRspUserLogin(rsp,
                 rsp(TThostFtdcErrorCode.NONE, TThostFtdcErrorMessage.NONE),
                 requestID, true);
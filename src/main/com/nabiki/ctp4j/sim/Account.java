@@ -0,0 +1,745 @@
+/*
+ * Copyright (c) 2020 Hongbao Chen <chenhongbao@outlook.com>
+ *
+ * Licensed under the  GNU Affero General Public License v3.0 and you may not use
+ * this file except in compliance with the  License. You may obtain a copy of the
+ * License at
+ *
+ *                    https://www.gnu.org/licenses/agpl-3.0.txt
+ *
+ * Permission is hereby  granted, free of charge, to any  person obtaining a copy
+ * of this software and associated  documentation files (the "Software"), to deal
+ * in the Software  without restriction, including without  limitation the rights
+ * to  use, copy,  modify, merge,  publish, distribute,  sublicense, and/or  sell
+ * copies  of  the Software,  and  to  permit persons  to  whom  the Software  is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE  IS PROVIDED "AS  IS", WITHOUT WARRANTY  OF ANY KIND,  EXPRESS OR
+ * IMPLIED,  INCLUDING BUT  NOT  LIMITED TO  THE  WARRANTIES OF  MERCHANTABILITY,
+ * FITNESS FOR  A PARTICULAR PURPOSE AND  NONINFRINGEMENT. IN NO EVENT  SHALL THE
+ * AUTHORS  OR COPYRIGHT  HOLDERS  BE  LIABLE FOR  ANY  CLAIM,  DAMAGES OR  OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF  CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE  OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.nabiki.ctp4j.sim;
+
+import com.nabiki.ctp4j._x.OP;
+import com.nabiki.ctp4j.jni.flag.TThostFtdcCombOffsetFlagType;
+import com.nabiki.ctp4j.jni.flag.TThostFtdcDirectionType;
+import com.nabiki.ctp4j.jni.struct.CThostFtdcInvestorPositionDetailField;
+import com.nabiki.ctp4j.jni.struct.CThostFtdcTradeField;
+import com.nabiki.ctp4j.jni.struct.CThostFtdcTradingAccountField;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.function.ToDoubleFunction;
+
+/**
+ * Trading account and positions of an investor, kept up to date on each trade.
+ *
+ * <p>Positions are kept as open lots, one for each opening trade, queued by
+ * instrument and direction and split into yesterday and today lots. A close
+ * takes volume from the oldest lots, so a trade only touches the lots it closes.
+ * Margin, commission, realized profit and cost of the open positions are summed
+ * as trades come in, and only the position profit is marked to the latest prices
+ * when the account is queried.
+ * </p>
+ *
+ * <p>Margin and commission rates are from {@link CommonData}, and margin is
+ * charged on the open price. An instrument without rates is charged nothing.
+ * </p>
+ *
+ * <p>On a new trading day today lots become yesterday lots, and realized profit
+ * and commission of the last day are carried into the pre-balance.
+ * </p>
+ *
+ * <p>Trades of different instruments are matched on different threads, so
+ * updates and queries are synchronized on the account. Pre-trade checks read
+ * volumes and cash without the lock, and freeze money for open orders by
+ * compare-and-set, so they never wait for matching. Volume of live orders is
+ * held the same way: open volume is reserved against the position limit, and
+ * close volume is frozen on the positions it closes, until the order is filled
+ * or canceled.
+ * </p>
+ */
+public class Account {
+    /**
+     * Balance of a new account.
+     */
+    public static final double DEFAULT_BALANCE = 1000 * 1000D;
+
+    static class Side {
+        final boolean buy;
+        final ArrayDeque<CThostFtdcInvestorPositionDetailField> yesterday
+                = new ArrayDeque<>(), today = new ArrayDeque<>();
+        // Written under the account lock and read without it.
+        volatile int ydVolume, todayVolume;
+        // Sum of open price * volume * multiple of the open lots.
+        double cost, margin;
+        // Open volume of live orders.
+        final AtomicInteger opening = new AtomicInteger();
+        // Close volume of live orders, packed by slot of the closing offset.
+        final AtomicLong closing = new AtomicLong();
+
+        Side(boolean buy) {
+            this.buy = buy;
+        }
+
+        int volume() {
+            return this.ydVolume + this.todayVolume;
+        }
+    }
+
+    static class Holding {
+        final String instrID;
+        final int multiple;
+        final Side buy = new Side(true), sell = new Side(false);
+
+        Holding(String instrID, int multiple) {
+            this.instrID = instrID;
+            this.multiple = multiple;
+        }
+    }
+
+    // Slots of frozen close volume, CLOSE_BITS wide each.
+    private static final int CLOSE_YD = 0, CLOSE_TODAY = 1, CLOSE_ANY = 2;
+    private static final int CLOSE_BITS = 21;
+    private static final long CLOSE_MASK = (1L << CLOSE_BITS) - 1;
+
+    private final CThostFtdcTradingAccountField account
+            = new CThostFtdcTradingAccountField();
+    private final Map<String, Holding> holdings = new ConcurrentHashMap<>();
+    // Cash without position profit and frozen money, updated after each change.
+    private volatile double cash;
+    private volatile String tradingDay;
+    // Bits of the money frozen by open orders, margin and commission.
+    private final AtomicLong frozen = new AtomicLong(Double.doubleToRawLongBits(0.0D));
+    private final DoubleAdder frozenCommission = new DoubleAdder();
+
+    public Account(String brokerID, String accountID, double balance) {
+        this.account.BrokerID = brokerID;
+        this.account.AccountID = accountID;
+        this.account.CurrencyID = "CNY";
+        this.account.PreBalance = balance;
+        this.account.Balance = balance;
+        this.account.Available = balance;
+        this.account.WithdrawQuota = balance;
+        this.cash = balance;
+    }
+
+    public String getAccountID() {
+        return this.account.AccountID;
+    }
+
+    /**
+     * Get money available for new orders, without position profit. It doesn't
+     * take the account lock.
+     *
+     * @return available money
+     */
+    public double getAvailable() {
+        return this.cash - Double.longBitsToDouble(this.frozen.get());
+    }
+
+    /**
+     * Get volume of the specified instrument and direction that an order with the
+     * specified offset flag can close, less the volume frozen by live close
+     * orders. It doesn't take the account lock.
+     *
+     * @param instrID    instrument ID
+     * @param buy        {@code true} for long positions
+     * @param offset     offset flag of the closing order
+     * @param tradingDay current trading day
+     * @return closable volume
+     */
+    public int getClosable(String instrID, boolean buy, byte offset,
+                           String tradingDay) {
+        var holding = this.holdings.get(instrID);
+        if (holding == null)
+            return 0;
+        var side = buy ? holding.buy : holding.sell;
+        return closable(side, offset, tradingDay, side.closing.get());
+    }
+
+    /*
+     * Closable volume of a side with the specified frozen close volume. A close
+     * of either day may take today lots when yesterday lots are not enough, so
+     * it limits both closes of today and of yesterday.
+     */
+    private int closable(Side side, byte offset, String tradingDay, long closing) {
+        int yd = side.ydVolume, today = side.todayVolume;
+        if (tradingDay != null && !tradingDay.equals(this.tradingDay)) {
+            // Day has changed but not rolled yet.
+            yd += today;
+            today = 0;
+        }
+        yd -= slot(closing, CLOSE_YD);
+        today -= slot(closing, CLOSE_TODAY);
+        var any = yd + today - slot(closing, CLOSE_ANY);
+        if (offset == TThostFtdcCombOffsetFlagType.OFFSET_CLOSE_TODAY)
+            return Math.max(0, Math.min(today, any));
+        else if (offset == TThostFtdcCombOffsetFlagType.OFFSET_CLOSE_YESTERDAY)
+            return Math.max(0, Math.min(yd, any));
+        else
+            return Math.max(0, any);
+    }
+
+    /**
+     * Get volume of the specified instrument and direction. It doesn't take the
+     * account lock.
+     *
+     * @param instrID instrument ID
+     * @param buy     {@code true} for long positions
+     * @return position volume
+     */
+    public int getPosition(String instrID, boolean buy) {
+        var holding = this.holdings.get(instrID);
+        if (holding == null)
+            return 0;
+        return buy ? holding.buy.volume() : holding.sell.volume();
+    }
+
+    /**
+     * Reserve open volume of the specified instrument and direction if the
+     * position and open volume already reserved stay within the limit.
+     *
+     * @param instrID instrument ID
+     * @param buy     {@code true} for long positions
+     * @param volume  open volume
+     * @param limit   position limit
+     * @return {@code true} if volume is reserved, {@code false} if over the limit
+     */
+    public boolean tryReserve(String instrID, boolean buy, int volume, int limit) {
+        var side = side(instrID, buy);
+        while (true) {
+            var opening = side.opening.get();
+            if ((long) side.volume() + opening + volume > limit)
+                return false;
+            if (side.opening.compareAndSet(opening, opening + volume))
+                return true;
+        }
+    }
+
+    /*
+     * Reserve open volume without checking, like for orders replayed from a
+     * journal.
+     */
+    void reserve(String instrID, boolean buy, int volume) {
+        side(instrID, buy).opening.addAndGet(volume);
+    }
+
+    /**
+     * Release open volume reserved by {@link #tryReserve(String, boolean, int, int)}.
+     *
+     * @param instrID instrument ID
+     * @param buy     {@code true} for long positions
+     * @param volume  volume to release
+     */
+    public void release(String instrID, boolean buy, int volume) {
+        side(instrID, buy).opening.updateAndGet(v -> Math.max(0, v - volume));
+    }
+
+    /**
+     * Freeze close volume of the specified positions if enough volume is not
+     * frozen by other close orders.
+     *
+     * @param instrID    instrument ID
+     * @param buy        {@code true} for long positions
+     * @param offset     offset flag of the closing order
+     * @param volume     close volume
+     * @param tradingDay current trading day
+     * @return {@code true} if volume is frozen, {@code false} if over close
+     */
+    public boolean tryFreezeClose(String instrID, boolean buy, byte offset,
+                                  int volume, String tradingDay) {
+        var holding = this.holdings.get(instrID);
+        if (holding == null)
+            return false;
+        var side = buy ? holding.buy : holding.sell;
+        var slot = slotOf(offset);
+        while (true) {
+            var closing = side.closing.get();
+            if (closable(side, offset, tradingDay, closing) < volume
+                    || slot(closing, slot) + volume > CLOSE_MASK)
+                return false;
+            if (side.closing.compareAndSet(closing, add(closing, slot, volume)))
+                return true;
+        }
+    }
+
+    /*
+     * Freeze close volume without checking, like for orders replayed from a
+     * journal.
+     */
+    void freezeClose(String instrID, boolean buy, byte offset, int volume) {
+        var slot = slotOf(offset);
+        side(instrID, buy).closing.updateAndGet(c -> add(c, slot, volume));
+    }
+
+    /**
+     * Release close volume frozen by {@link #tryFreezeClose(String, boolean, byte,
+     * int, String)}.
+     *
+     * @param instrID instrument ID
+     * @param buy     {@code true} for long positions
+     * @param offset  offset flag of the closing order
+     * @param volume  volume to release
+     */
+    public void unfreezeClose(String instrID, boolean buy, byte offset, int volume) {
+        var slot = slotOf(offset);
+        side(instrID, buy).closing.updateAndGet(
+                c -> add(c, slot, -Math.min(volume, slot(c, slot))));
+    }
+
+    /**
+     * Freeze the specified margin and commission if the available money covers
+     * them.
+     *
+     * @param margin     margin to freeze
+     * @param commission commission to freeze
+     * @return {@code true} if money is frozen, {@code false} if not enough money
+     */
+    public boolean tryFreeze(double margin, double commission) {
+        var amount = margin + commission;
+        while (true) {
+            var bits = this.frozen.get();
+            var current = Double.longBitsToDouble(bits);
+            if (this.cash - current < amount)
+                return false;
+            if (this.frozen.compareAndSet(bits,
+                    Double.doubleToRawLongBits(current + amount))) {
+                this.frozenCommission.add(commission);
+                return true;
+            }
+        }
+    }
+
+    /*
+     * Freeze money without checking, like for orders replayed from a journal.
+     */
+    void freeze(double margin, double commission) {
+        var amount = margin + commission;
+        while (true) {
+            var bits = this.frozen.get();
+            var next = Double.longBitsToDouble(bits) + amount;
+            if (this.frozen.compareAndSet(bits, Double.doubleToRawLongBits(next))) {
+                this.frozenCommission.add(commission);
+                return;
+            }
+        }
+    }
+
+    /**
+     * Release money frozen by {@link #tryFreeze(double, double)}.
+     *
+     * @param margin     margin to release
+     * @param commission commission to release
+     */
+    public void unfreeze(double margin, double commission) {
+        var amount = margin + commission;
+        while (true) {
+            var bits = this.frozen.get();
+            var current = Double.longBitsToDouble(bits);
+            // Don't go below zero for rounding errors.
+            var next = Math.max(0.0D, current - amount);
+            if (this.frozen.compareAndSet(bits, Double.doubleToRawLongBits(next))) {
+                this.frozenCommission.add(-commission);
+                return;
+            }
+        }
+    }
+
+    /**
+     * Update positions and account with the specified trade.
+     *
+     * @param trade trade of the account
+     * @throws IllegalStateException if it closes more than the lots, see
+     *                               {@link #canTrade(CThostFtdcTradeField)}
+     */
+    public synchronized void trade(CThostFtdcTradeField trade) {
+        if (trade == null)
+            throw new NullPointerException("trade null");
+        roll(trade.TradingDay);
+        // Checks may add the holding without the lock.
+        var holding = this.holdings.computeIfAbsent(trade.InstrumentID,
+                k -> new Holding(k, multiple(k)));
+        var buy = trade.Direction == TThostFtdcDirectionType.DIRECTION_BUY;
+        if (trade.OffsetFlag == TThostFtdcCombOffsetFlagType.OFFSET_OPEN)
+            open(buy ? holding.buy : holding.sell, holding, trade);
+        else
+            // Buy closes short positions and sell closes long positions.
+            close(buy ? holding.sell : holding.buy, holding, trade);
+        updateCash();
+    }
+
+    /**
+     * Check if the positions have the lots that the specified trade closes. An
+     * open trade can always be taken. Volume frozen by live close orders is not
+     * subtracted, because the trade's own order has frozen it.
+     *
+     * @param trade trade of the account
+     * @return {@code true} if {@link #trade(CThostFtdcTradeField)} takes the trade
+     */
+    public synchronized boolean canTrade(CThostFtdcTradeField trade) {
+        if (trade.OffsetFlag == TThostFtdcCombOffsetFlagType.OFFSET_OPEN)
+            return true;
+        roll(trade.TradingDay);
+        var holding = this.holdings.get(trade.InstrumentID);
+        if (holding == null)
+            return false;
+        var buy = trade.Direction == TThostFtdcDirectionType.DIRECTION_BUY;
+        return lots(buy ? holding.sell : holding.buy, trade.OffsetFlag)
+                >= trade.Volume;
+    }
+
+    /**
+     * Get a copy of the trading account on the specified trading day, with open
+     * positions marked to the prices from the specified function. An instrument
+     * whose price is {@code NaN} adds no position profit.
+     *
+     * @param tradingDay current trading day
+     * @param lastPrice  latest price of an instrument
+     * @return trading account
+     */
+    public synchronized CThostFtdcTradingAccountField getTradingAccount(
+            String tradingDay, ToDoubleFunction<String> lastPrice) {
+        roll(tradingDay);
+        double profit = 0.0D;
+        for (var holding : this.holdings.values()) {
+            if (holding.buy.volume() == 0 && holding.sell.volume() == 0)
+                continue;
+            var price = lastPrice.applyAsDouble(holding.instrID);
+            if (Double.isNaN(price))
+                continue;
+            profit += price * holding.buy.volume() * holding.multiple
+                    - holding.buy.cost;
+            profit += holding.sell.cost
+                    - price * holding.sell.volume() * holding.multiple;
+        }
+        var a = this.account;
+        a.PositionProfit = profit;
+        var frozen = Double.longBitsToDouble(this.frozen.get());
+        a.FrozenCommission = Math.max(0.0D, this.frozenCommission.sum());
+        a.FrozenMargin = Math.max(0.0D, frozen - a.FrozenCommission);
+        a.Balance = a.PreBalance + a.Deposit - a.Withdraw + a.CloseProfit
+                + a.PositionProfit - a.Commission;
+        a.Available = a.Balance - a.CurrMargin - a.FrozenMargin - a.FrozenCash
+                - a.FrozenCommission;
+        a.WithdrawQuota = Math.max(0.0D, a.Available);
+        return OP.deepCopy(a);
+    }
+
+    /**
+     * Get copies of open lots of the specified instrument, or of all instruments
+     * if the instrument ID is {@code null} or empty. Lots are marked to the prices
+     * from the specified function.
+     *
+     * @param instrID    instrument ID
+     * @param tradingDay current trading day
+     * @param lastPrice  latest price of an instrument
+     * @return list of position details, yesterday lots before today lots
+     */
+    public synchronized List<CThostFtdcInvestorPositionDetailField> getPositionDetails(
+            String instrID, String tradingDay, ToDoubleFunction<String> lastPrice) {
+        roll(tradingDay);
+        var r = new ArrayList<CThostFtdcInvestorPositionDetailField>();
+        if (instrID == null || instrID.length() == 0) {
+            for (var holding : this.holdings.values())
+                details(holding, lastPrice, r);
+        } else {
+            var holding = this.holdings.get(instrID);
+            if (holding != null)
+                details(holding, lastPrice, r);
+        }
+        return r;
+    }
+
+    /*
+     * Write account, frozen money and open lots into a snapshot.
+     */
+    synchronized void save(SimSnapshot.Output out) {
+        out.putStruct(this.account);
+        out.putDouble(Double.longBitsToDouble(this.frozen.get()));
+        out.putDouble(this.frozenCommission.sum());
+        int n = 0;
+        for (var holding : this.holdings.values())
+            n += holding.buy.yesterday.size() + holding.buy.today.size()
+                    + holding.sell.yesterday.size() + holding.sell.today.size();
+        out.putInt(n);
+        for (var holding : this.holdings.values()) {
+            for (var side : new Side[] {holding.buy, holding.sell}) {
+                for (var lot : side.yesterday) {
+                    out.putByte((byte) 0);
+                    out.putStruct(lot);
+                }
+                for (var lot : side.today) {
+                    out.putByte((byte) 1);
+                    out.putStruct(lot);
+                }
+            }
+        }
+    }
+
+    /*
+     * Create an account from state read from a snapshot. Lots are queued in the
+     * order they are saved, and sums of each side are added up from them.
+     */
+    static Account load(SimSnapshot.Input in) {
+        var field = in.getStruct(CThostFtdcTradingAccountField.class);
+        var r = new Account(field.BrokerID, field.AccountID, field.PreBalance);
+        OP.copyInto(field, r.account);
+        r.tradingDay = field.TradingDay;
+        r.frozen.set(Double.doubleToRawLongBits(in.getDouble()));
+        r.frozenCommission.add(in.getDouble());
+        var n = in.getInt();
+        for (int i = 0; i < n; ++i) {
+            var today = in.getByte() != 0;
+            var lot = in.getStruct(CThostFtdcInvestorPositionDetailField.class);
+            var holding = r.holdings.get(lot.InstrumentID);
+            if (holding == null) {
+                holding = new Holding(lot.InstrumentID, multiple(lot.InstrumentID));
+                r.holdings.put(lot.InstrumentID, holding);
+            }
+            var side = lot.Direction == TThostFtdcDirectionType.DIRECTION_BUY
+                    ? holding.buy : holding.sell;
+            if (today) {
+                side.today.addLast(lot);
+                side.todayVolume += lot.Volume;
+            } else {
+                side.yesterday.addLast(lot);
+                side.ydVolume += lot.Volume;
+            }
+            side.cost += lot.OpenPrice * lot.Volume * holding.multiple;
+            side.margin += lot.Margin;
+        }
+        r.updateCash();
+        return r;
+    }
+
+    private void details(Holding holding, ToDoubleFunction<String> lastPrice,
+                         List<CThostFtdcInvestorPositionDetailField> r) {
+        if (holding.buy.volume() == 0 && holding.sell.volume() == 0)
+            return;
+        var price = lastPrice.applyAsDouble(holding.instrID);
+        for (var side : new Side[] {holding.buy, holding.sell}) {
+            for (var lot : side.yesterday)
+                r.add(detail(lot, side, holding, price));
+            for (var lot : side.today)
+                r.add(detail(lot, side, holding, price));
+        }
+    }
+
+    private CThostFtdcInvestorPositionDetailField detail(
+            CThostFtdcInvestorPositionDetailField lot, Side side, Holding holding,
+            double price) {
+        var d = OP.deepCopy(lot);
+        d.TradingDay = this.account.TradingDay;
+        if (!Double.isNaN(price)) {
+            d.PositionProfitByTrade = (price - d.OpenPrice) * d.Volume
+                    * holding.multiple * (side.buy ? 1 : -1);
+            d.PositionProfitByDate = d.PositionProfitByTrade;
+        }
+        return d;
+    }
+
+    private void open(Side side, Holding holding, CThostFtdcTradeField trade) {
+        var lot = new CThostFtdcInvestorPositionDetailField();
+        lot.InstrumentID = trade.InstrumentID;
+        lot.BrokerID = trade.BrokerID;
+        lot.InvestorID = trade.InvestorID;
+        lot.HedgeFlag = trade.HedgeFlag;
+        lot.Direction = trade.Direction;
+        lot.OpenDate = trade.TradingDay;
+        lot.TradeID = trade.TradeID;
+        lot.Volume = trade.Volume;
+        lot.OpenPrice = trade.Price;
+        lot.TradingDay = trade.TradingDay;
+        lot.TradeType = trade.TradeType;
+        lot.ExchangeID = trade.ExchangeID;
+        lot.InvestUnitID = trade.InvestUnitID;
+        var depth = CommonData.getDepth(trade.InstrumentID);
+        if (depth != null)
+            lot.LastSettlementPrice = depth.PreSettlementPrice;
+        var rate = CommonData.getMargin(trade.InstrumentID);
+        if (rate != null) {
+            lot.MarginRateByMoney = side.buy ? rate.LongMarginRatioByMoney
+                    : rate.ShortMarginRatioByMoney;
+            lot.MarginRateByVolume = side.buy ? rate.LongMarginRatioByVolume
+                    : rate.ShortMarginRatioByVolume;
+        }
+        lot.Margin = margin(lot, lot.Volume, holding.multiple);
+        lot.ExchMargin = lot.Margin;
+        side.today.addLast(lot);
+        side.todayVolume += lot.Volume;
+        side.cost += lot.OpenPrice * lot.Volume * holding.multiple;
+        side.margin += lot.Margin;
+        this.account.CurrMargin += lot.Margin;
+        var comm = CommonData.getCommission(trade.InstrumentID);
+        if (comm != null)
+            this.account.Commission += fee(comm.OpenRatioByMoney,
+                    comm.OpenRatioByVolume, trade.Price, trade.Volume,
+                    holding.multiple);
+    }
+
+    private void close(Side side, Holding holding, CThostFtdcTradeField trade) {
+        int yd = 0, today = 0;
+        var offset = trade.OffsetFlag;
+        if (lots(side, offset) < trade.Volume)
+            throw new IllegalStateException("over close position");
+        if (offset == TThostFtdcCombOffsetFlagType.OFFSET_CLOSE_TODAY)
+            today = take(side, side.today, trade.Volume, trade.Price, holding);
+        else if (offset == TThostFtdcCombOffsetFlagType.OFFSET_CLOSE_YESTERDAY)
+            yd = take(side, side.yesterday, trade.Volume, trade.Price, holding);
+        else {
+            // Close yesterday lots first.
+            yd = take(side, side.yesterday, trade.Volume, trade.Price, holding);
+            today = take(side, side.today, trade.Volume - yd, trade.Price,
+                    holding);
+        }
+        var comm = CommonData.getCommission(trade.InstrumentID);
+        if (comm != null)
+            this.account.Commission += fee(comm.CloseRatioByMoney,
+                    comm.CloseRatioByVolume, trade.Price, yd, holding.multiple)
+                    + fee(comm.CloseTodayRatioByMoney, comm.CloseTodayRatioByVolume,
+                    trade.Price, today, holding.multiple);
+    }
+
+    /*
+     * Volume of the lots that a close with the specified offset takes from.
+     */
+    private static int lots(Side side, byte offset) {
+        if (offset == TThostFtdcCombOffsetFlagType.OFFSET_CLOSE_TODAY)
+            return side.todayVolume;
+        else if (offset == TThostFtdcCombOffsetFlagType.OFFSET_CLOSE_YESTERDAY)
+            return side.ydVolume;
+        else
+            return side.volume();
+    }
+
+    /*
+     * Close volume from the oldest lots in the queue and return the volume closed,
+     * which is less than the specified volume if lots are not enough. Callers
+     * check the side has the volume before they close.
+     */
+    private int take(Side side, ArrayDeque<CThostFtdcInvestorPositionDetailField> lots,
+                     int volume, double price, Holding holding) {
+        int closed = 0;
+        while (closed < volume && !lots.isEmpty()) {
+            var lot = lots.peekFirst();
+            var n = Math.min(volume - closed, lot.Volume);
+            var profit = (price - lot.OpenPrice) * n * holding.multiple
+                    * (side.buy ? 1 : -1);
+            var margin = margin(lot, n, holding.multiple);
+            lot.Volume -= n;
+            lot.CloseVolume += n;
+            lot.CloseAmount += price * n * holding.multiple;
+            lot.CloseProfitByTrade += profit;
+            lot.CloseProfitByDate += profit;
+            lot.Margin -= margin;
+            lot.ExchMargin = lot.Margin;
+            side.cost -= lot.OpenPrice * n * holding.multiple;
+            side.margin -= margin;
+            this.account.CurrMargin -= margin;
+            this.account.CloseProfit += profit;
+            if (lots == side.today)
+                side.todayVolume -= n;
+            else
+                side.ydVolume -= n;
+            if (lot.Volume == 0)
+                lots.pollFirst();
+            closed += n;
+        }
+        if (closed > 0 && side.volume() == 0) {
+            // Clear rounding errors when the side is flat.
+            this.account.CurrMargin -= side.margin;
+            side.cost = 0.0D;
+            side.margin = 0.0D;
+        }
+        return closed;
+    }
+
+    /*
+     * Today lots become yesterday lots on a new trading day, and the last day's
+     * cash is carried into pre-balance.
+     */
+    private void roll(String tradingDay) {
+        if (tradingDay == null || tradingDay.equals(this.account.TradingDay))
+            return;
+        var a = this.account;
+        if (a.TradingDay != null) {
+            for (var holding : this.holdings.values()) {
+                for (var side : new Side[] {holding.buy, holding.sell}) {
+                    side.yesterday.addAll(side.today);
+                    side.today.clear();
+                    side.ydVolume += side.todayVolume;
+                    side.todayVolume = 0;
+                }
+            }
+            a.PreBalance = a.PreBalance + a.Deposit - a.Withdraw + a.CloseProfit
+                    - a.Commission;
+            a.PreMargin = a.CurrMargin;
+            a.Deposit = a.Withdraw = a.CloseProfit = a.Commission = 0.0D;
+        }
+        a.TradingDay = tradingDay;
+        this.tradingDay = tradingDay;
+        updateCash();
+    }
+
+    private void updateCash() {
+        var a = this.account;
+        this.cash = a.PreBalance + a.Deposit - a.Withdraw + a.CloseProfit
+                - a.Commission - a.CurrMargin;
+    }
+
+    private static double margin(CThostFtdcInvestorPositionDetailField lot,
+                                 int volume, int multiple) {
+        return lot.MarginRateByMoney * lot.OpenPrice * volume * multiple
+                + lot.MarginRateByVolume * volume;
+    }
+
+    private static double fee(double byMoney, double byVolume, double price,
+                              int volume, int multiple) {
+        return byMoney * price * volume * multiple + byVolume * volume;
+    }
+
+    private Side side(String instrID, boolean buy) {
+        var holding = this.holdings.computeIfAbsent(instrID,
+                k -> new Holding(k, multiple(k)));
+        return buy ? holding.buy : holding.sell;
+    }
+
+    private static int slotOf(byte offset) {
+        if (offset == TThostFtdcCombOffsetFlagType.OFFSET_CLOSE_TODAY)
+            return CLOSE_TODAY;
+        else if (offset == TThostFtdcCombOffsetFlagType.OFFSET_CLOSE_YESTERDAY)
+            return CLOSE_YD;
+        else
+            return CLOSE_ANY;
+    }
+
+    private static int slot(long closing, int slot) {
+        return (int) (closing >>> (slot * CLOSE_BITS) & CLOSE_MASK);
+    }
+
+    private static long add(long closing, int slot, int volume) {
+        return closing + ((long) volume << (slot * CLOSE_BITS));
+    }
+
+    private static int multiple(String instrID) {
+        var instrument = CommonData.getInstrument(instrID);
+        if (instrument == null || instrument.VolumeMultiple <= 0)
+            return 1;
+        return instrument.VolumeMultiple;
+    }
+}
@@ -0,0 +1,167 @@
+/*
+ * Copyright (c) 2020 Hongbao Chen <chenhongbao@outlook.com>
+ *
+ * Licensed under the  GNU Affero General Public License v3.0 and you may not use
+ * this file except in compliance with the  License. You may obtain a copy of the
+ * License at
+ *
+ *                    https://www.gnu.org/licenses/agpl-3.0.txt
+ *
+ * Permission is hereby  granted, free of charge, to any  person obtaining a copy
+ * of this software and associated  documentation files (the "Software"), to deal
+ * in the Software  without restriction, including without  limitation the rights
+ * to  use, copy,  modify, merge,  publish, distribute,  sublicense, and/or  sell
+ * copies  of  the Software,  and  to  permit persons  to  whom  the Software  is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE  IS PROVIDED "AS  IS", WITHOUT WARRANTY  OF ANY KIND,  EXPRESS OR
+ * IMPLIED,  INCLUDING BUT  NOT  LIMITED TO  THE  WARRANTIES OF  MERCHANTABILITY,
+ * FITNESS FOR  A PARTICULAR PURPOSE AND  NONINFRINGEMENT. IN NO EVENT  SHALL THE
+ * AUTHORS  OR COPYRIGHT  HOLDERS  BE  LIABLE FOR  ANY  CLAIM,  DAMAGES OR  OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF  CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE  OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.nabiki.ctp4j.sim;
+
+import com.nabiki.ctp4j._x.SimClock;
+import com.nabiki.ctp4j.jni.struct.CThostFtdcDepthMarketDataField;
+
+import java.time.LocalDateTime;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Discrete-event backtest that runs the simulator on the calling thread.
+ *
+ * <p>A backtest stops the tick source's own threads, switches it to synchronous
+ * delivery and sets a stepped {@link SimClock}. Each round then advances the
+ * clock, generates depths and calls market-data SPIs, including the trade book,
+ * one after another. Orders inserted from SPI callbacks are matched and answered
+ * inline, so everything happens on one thread in timestamp order, and the same
+ * seed and the same orders give the same results.
+ * </p>
+ * <pre>
+ * try (var backtest = new Backtest(42, start, 500, TimeUnit.MILLISECONDS)) {
+ *     backtest.runUntil(start.plusHours(6));
+ * }
+ * </pre>
+ */
+public class Backtest implements AutoCloseable {
+    private final TickSource source;
+    private final TradeBook book;
+    private final SimClock.Stepped clock;
+    private final long intervalMillis;
+    private final SimClock previousClock;
+    private final CThostFtdcDepthMarketDataField replayed
+            = new CThostFtdcDepthMarketDataField();
+
+    /**
+     * Set up a backtest over the global tick source and trade book. The trade
+     * book is switched to synchronous matching for the backtest.
+     *
+     * @param seed seed of random generators
+     * @param start simulated start time
+     * @param interval simulated time between two rounds
+     * @param unit time unit of the interval
+     */
+    public Backtest(long seed, LocalDateTime start, long interval, TimeUnit unit) {
+        this(TickSource.getTickSource(), TradeBook.getTradeSource(), seed, start,
+                interval, unit);
+    }
+
+    Backtest(TickSource source, long seed, LocalDateTime start, long interval,
+             TimeUnit unit) {
+        this(source, null, seed, start, interval, unit);
+    }
+
+    Backtest(TickSource source, TradeBook book, long seed, LocalDateTime start,
+             long interval, TimeUnit unit) {
+        if (unit.toMillis(interval) < 1)
+            throw new IllegalArgumentException("interval less than 1 millisecond");
+        this.source = source;
+        this.book = book;
+        this.clock = SimClock.stepped(start);
+        this.intervalMillis = unit.toMillis(interval);
+        this.previousClock = SimClock.current();
+        SimClock.setCurrent(this.clock);
+        this.source.stop();
+        this.source.setSynchronous(true);
+        this.source.setSeed(seed);
+        if (this.book != null)
+            this.book.setSynchronous(true);
+    }
+
+    public SimClock.Stepped getClock() {
+        return this.clock;
+    }
+
+    /**
+     * Run the specified number of rounds. Every round generates depths at the
+     * current simulated time, then advances the clock by the interval.
+     *
+     * @param rounds number of rounds
+     * @return number of depths generated
+     */
+    public long run(long rounds) {
+        var before = this.source.getTickCount();
+        for (long i = 0; i < rounds; ++i) {
+            this.source.run();
+            this.clock.advance(this.intervalMillis, TimeUnit.MILLISECONDS);
+        }
+        return this.source.getTickCount() - before;
+    }
+
+    /**
+     * Run rounds until the simulated clock reaches the specified time.
+     *
+     * @param end end time, exclusive
+     * @return number of depths generated
+     */
+    public long runUntil(LocalDateTime end) {
+        var before = this.source.getTickCount();
+        while (this.clock.now().isBefore(end)) {
+            this.source.run();
+            this.clock.advance(this.intervalMillis, TimeUnit.MILLISECONDS);
+        }
+        return this.source.getTickCount() - before;
+    }
+
+    /**
+     * Replay the recorded depths instead of generating them. The clock follows
+     * the timestamps of the records, and each depth is delivered before the next
+     * record is read. Records earlier than the clock don't move it back.
+     *
+     * @param replay recorded depths
+     * @return number of depths replayed
+     */
+    public long replay(TickReplay replay) {
+        if (replay == null)
+            throw new NullPointerException("replay null");
+        long count = 0;
+        while (replay.next()) {
+            var time = replay.timestamp();
+            if (time > this.clock.millis())
+                this.clock.advance(time - this.clock.millis(), TimeUnit.MILLISECONDS);
+            // Each depth is delivered before it is overwritten by the next record.
+            this.source.publish(replay.read(this.replayed));
+            ++count;
+        }
+        return count;
+    }
+
+    /**
+     * Give the tick source and the trade book back their own threads and restore
+     * the previous clock. The source is left stopped.
+     */
+    @Override
+    public void close() {
+        this.source.setSynchronous(false);
+        if (this.book != null)
+            this.book.setSynchronous(false);
+        SimClock.setCurrent(this.previousClock);
+    }
+}
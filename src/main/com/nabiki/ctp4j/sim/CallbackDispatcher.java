@@ -0,0 +1,142 @@
+/*
+ * Copyright (c) 2020 Hongbao Chen <chenhongbao@outlook.com>
+ *
+ * Licensed under the  GNU Affero General Public License v3.0 and you may not use
+ * this file except in compliance with the  License. You may obtain a copy of the
+ * License at
+ *
+ *                    https://www.gnu.org/licenses/agpl-3.0.txt
+ *
+ * Permission is hereby  granted, free of charge, to any  person obtaining a copy
+ * of this software and associated  documentation files (the "Software"), to deal
+ * in the Software  without restriction, including without  limitation the rights
+ * to  use, copy,  modify, merge,  publish, distribute,  sublicense, and/or  sell
+ * copies  of  the Software,  and  to  permit persons  to  whom  the Software  is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE  IS PROVIDED "AS  IS", WITHOUT WARRANTY  OF ANY KIND,  EXPRESS OR
+ * IMPLIED,  INCLUDING BUT  NOT  LIMITED TO  THE  WARRANTIES OF  MERCHANTABILITY,
+ * FITNESS FOR  A PARTICULAR PURPOSE AND  NONINFRINGEMENT. IN NO EVENT  SHALL THE
+ * AUTHORS  OR COPYRIGHT  HOLDERS  BE  LIABLE FOR  ANY  CLAIM,  DAMAGES OR  OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF  CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE  OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.nabiki.ctp4j.sim;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Outbound callbacks of one trader session, delivered by the session's own thread
+ * in the order they are dispatched.
+ *
+ * <p>The queue is bounded but not preallocated, so an idle session costs little.
+ * Dispatching never blocks, so a slow session never holds the matching thread or
+ * other sessions. A session that falls a full queue behind is disconnected: its
+ * queued callbacks are dropped, the overflow callback is delivered as the last
+ * one and later callbacks are ignored.
+ * </p>
+ */
+class CallbackDispatcher implements Runnable {
+    private final BlockingQueue<Runnable> queue;
+    private final Runnable onOverflow;
+    private final Thread thread;
+    private volatile boolean stopped = false, overflowed = false;
+
+    CallbackDispatcher(int capacity, ThreadFactory threads, Runnable onOverflow) {
+        this.queue = new LinkedBlockingQueue<>(capacity);
+        this.onOverflow = onOverflow;
+        this.thread = threads.newThread(this);
+        this.thread.start();
+    }
+
+    /**
+     * Queue the specified callback. It never blocks.
+     *
+     * @param callback callback
+     * @return {@code true} if the callback is queued, {@code false} if the
+     * dispatcher is stopped or overflowed
+     */
+    boolean dispatch(Runnable callback) {
+        if (this.stopped || this.overflowed)
+            return false;
+        if (this.queue.offer(callback))
+            return true;
+        overflow();
+        return false;
+    }
+
+    /**
+     * Check whether the queue has overflowed.
+     *
+     * @return {@code true} if the queue has overflowed
+     */
+    boolean isOverflowed() {
+        return this.overflowed;
+    }
+
+    /**
+     * Check whether the calling thread is the delivery thread, that is the caller
+     * is a callback of the dispatcher.
+     *
+     * @return {@code true} if called from a callback
+     */
+    boolean isDeliveryThread() {
+        return Thread.currentThread() == this.thread;
+    }
+
+    /**
+     * Get number of callbacks queued but not delivered.
+     *
+     * @return queue depth
+     */
+    int depth() {
+        return this.queue.size();
+    }
+
+    /**
+     * Stop delivering callbacks. Callbacks still in the queue are dropped.
+     */
+    void stop() {
+        this.stopped = true;
+        this.queue.clear();
+        this.thread.interrupt();
+    }
+
+    private synchronized void overflow() {
+        if (this.overflowed)
+            return;
+        this.overflowed = true;
+        Runnable last = () -> {
+            try {
+                if (this.onOverflow != null)
+                    this.onOverflow.run();
+            } finally {
+                this.stopped = true;
+            }
+        };
+        // A dispatch that passed the flag check may still take the room.
+        do {
+            this.queue.clear();
+        } while (!this.queue.offer(last));
+    }
+
+    @Override
+    public void run() {
+        while (!this.stopped) {
+            try {
+                this.queue.take().run();
+            } catch (InterruptedException e) {
+                if (this.stopped)
+                    break;
+            } catch (Throwable ignored) {
+            }
+        }
+    }
+}
@@ -33,6 +33,7 @@ import com.nabiki.ctp4j.jni.struct.CThostFtdcInstrumentCommissionRateField;
 import com.nabiki.ctp4j.jni.struct.CThostFtdcInstrumentField;
 import com.nabiki.ctp4j.jni.struct.CThostFtdcInstrumentMarginRateField;
 
+import java.util.HashMap;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 
@@ -82,4 +83,40 @@ public class CommonData {
     public static CThostFtdcDepthMarketDataField getDepth(String instrID) {
         return depths.get(instrID);
     }
+
+    /*
+     * Write all data into a snapshot.
+     */
+    static void save(SimSnapshot.Output out) {
+        out.putMap(depths);
+        out.putMap(instruments);
+        out.putMap(margins);
+        out.putMap(commissions);
+    }
+
+    /*
+     * Read all data from a snapshot. The returned action replaces the current data
+     * with it.
+     */
+    static Runnable load(SimSnapshot.Input in) {
+        var d = new HashMap<String, CThostFtdcDepthMarketDataField>();
+        var i = new HashMap<String, CThostFtdcInstrumentField>();
+        var m = new HashMap<String, CThostFtdcInstrumentMarginRateField>();
+        var c = new HashMap<String, CThostFtdcInstrumentCommissionRateField>();
+        in.getMap(d, CThostFtdcDepthMarketDataField.class);
+        in.getMap(i, CThostFtdcInstrumentField.class);
+        in.getMap(m, CThostFtdcInstrumentMarginRateField.class);
+        in.getMap(c, CThostFtdcInstrumentCommissionRateField.class);
+        return () -> {
+            replace(depths, d);
+            replace(instruments, i);
+            replace(margins, m);
+            replace(commissions, c);
+        };
+    }
+
+    private static <T> void replace(Map<String, T> map, Map<String, T> data) {
+        map.clear();
+        map.putAll(data);
+    }
 }
@@ -0,0 +1,59 @@
+/*
+ * Copyright (c) 2020 Hongbao Chen <chenhongbao@outlook.com>
+ *
+ * Licensed under the  GNU Affero General Public License v3.0 and you may not use
+ * this file except in compliance with the  License. You may obtain a copy of the
+ * License at
+ *
+ *                    https://www.gnu.org/licenses/agpl-3.0.txt
+ *
+ * Permission is hereby  granted, free of charge, to any  person obtaining a copy
+ * of this software and associated  documentation files (the "Software"), to deal
+ * in the Software  without restriction, including without  limitation the rights
+ * to  use, copy,  modify, merge,  publish, distribute,  sublicense, and/or  sell
+ * copies  of  the Software,  and  to  permit persons  to  whom  the Software  is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE  IS PROVIDED "AS  IS", WITHOUT WARRANTY  OF ANY KIND,  EXPRESS OR
+ * IMPLIED,  INCLUDING BUT  NOT  LIMITED TO  THE  WARRANTIES OF  MERCHANTABILITY,
+ * FITNESS FOR  A PARTICULAR PURPOSE AND  NONINFRINGEMENT. IN NO EVENT  SHALL THE
+ * AUTHORS  OR COPYRIGHT  HOLDERS  BE  LIABLE FOR  ANY  CLAIM,  DAMAGES OR  OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF  CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE  OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.nabiki.ctp4j.sim;
+
+import com.nabiki.ctp4j.jni.struct.CThostFtdcDepthMarketDataField;
+
+/**
+ * Fixed ring of preallocated depth objects for one instrument. The writer takes
+ * slots round-robin, so a slot is overwritten after the ring laps around.
+ */
+class DepthRing {
+    private final CThostFtdcDepthMarketDataField[] slots;
+    private int next = 0;
+
+    DepthRing(int size) {
+        if (size < 1)
+            throw new IllegalArgumentException("ring size less than 1");
+        this.slots = new CThostFtdcDepthMarketDataField[size];
+        for (int i = 0; i < size; ++i)
+            this.slots[i] = new CThostFtdcDepthMarketDataField();
+    }
+
+    CThostFtdcDepthMarketDataField next() {
+        var slot = this.slots[this.next];
+        if (++this.next == this.slots.length)
+            this.next = 0;
+        return slot;
+    }
+
+    int size() {
+        return this.slots.length;
+    }
+}
@@ -0,0 +1,248 @@
+/*
+ * Copyright (c) 2020 Hongbao Chen <chenhongbao@outlook.com>
+ *
+ * Licensed under the  GNU Affero General Public License v3.0 and you may not use
+ * this file except in compliance with the  License. You may obtain a copy of the
+ * License at
+ *
+ *                    https://www.gnu.org/licenses/agpl-3.0.txt
+ *
+ * Permission is hereby  granted, free of charge, to any  person obtaining a copy
+ * of this software and associated  documentation files (the "Software"), to deal
+ * in the Software  without restriction, including without  limitation the rights
+ * to  use, copy,  modify, merge,  publish, distribute,  sublicense, and/or  sell
+ * copies  of  the Software,  and  to  permit persons  to  whom  the Software  is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE  IS PROVIDED "AS  IS", WITHOUT WARRANTY  OF ANY KIND,  EXPRESS OR
+ * IMPLIED,  INCLUDING BUT  NOT  LIMITED TO  THE  WARRANTIES OF  MERCHANTABILITY,
+ * FITNESS FOR  A PARTICULAR PURPOSE AND  NONINFRINGEMENT. IN NO EVENT  SHALL THE
+ * AUTHORS  OR COPYRIGHT  HOLDERS  BE  LIABLE FOR  ANY  CLAIM,  DAMAGES OR  OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF  CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE  OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.nabiki.ctp4j.sim;
+
+import com.nabiki.ctp4j._x.OP;
+import com.nabiki.ctp4j.jni.struct.CThostFtdcDepthMarketDataField;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+
+/**
+ * Single-producer, multi-consumer ring of depths in the style of a disruptor.
+ *
+ * <p>The producer writes references into preallocated entries and publishes them
+ * by advancing the cursor, so publishing allocates nothing. A depth the producer
+ * recycles sooner than the ring laps, like a snapshot of a book, is published by
+ * copy into a depth owned by the entry instead. Each consumer tracks
+ * its own sequence and drains all entries published since its last drain in one
+ * batch. The producer never overwrites an entry that a consumer hasn't drained, so
+ * the slowest consumer holds back the producer instead of growing a queue.
+ * </p>
+ *
+ * <p>Consumers that find nothing to drain park their threads, and the producer
+ * wakes them only when some consumer is parked.
+ * </p>
+ */
+class DepthRingBuffer {
+    class Sequence {
+        private final AtomicLong sequence;
+        // Parked consumer thread, taken by the producer that wakes it.
+        private final AtomicReference<Thread> waiter = new AtomicReference<>();
+        // Set on unsubscribe, so a consumer stops in the middle of a batch.
+        private volatile boolean closed = false;
+
+        Sequence(long initial) {
+            this.sequence = new AtomicLong(initial);
+        }
+
+        DepthRingBuffer ring() {
+            return DepthRingBuffer.this;
+        }
+
+        /**
+         * Check if there are entries published but not drained.
+         *
+         * @return {@code true} if there are entries to drain
+         */
+        boolean available() {
+            return cursor.get() > this.sequence.get();
+        }
+
+        /**
+         * Hand all available entries to the specified handler in publishing order,
+         * then release them to the producer. It stops early if the sequence is
+         * unsubscribed.
+         *
+         * @param handler handler of depths
+         * @return number of drained entries
+         */
+        int drain(Consumer<CThostFtdcDepthMarketDataField> handler) {
+            var last = this.sequence.get();
+            var available = cursor.get();
+            if (available <= last)
+                return 0;
+            for (var seq = last + 1; seq <= available; ++seq) {
+                if (this.closed)
+                    return (int) (seq - 1 - last);
+                try {
+                    handler.accept(entries[(int) seq & mask]);
+                } catch (Throwable ignored) {
+                }
+            }
+            this.sequence.set(available);
+            return (int) (available - last);
+        }
+    }
+
+    private final CThostFtdcDepthMarketDataField[] entries;
+    // Depths owned by the entries, allocated on the first copy.
+    private CThostFtdcDepthMarketDataField[] owned;
+    private final int mask;
+    private final AtomicLong cursor = new AtomicLong(-1);
+    private final AtomicInteger waiters = new AtomicInteger(0);
+    private volatile Sequence[] sequences = new Sequence[0];
+
+    // Producer only.
+    private long cachedGate = -1;
+
+    DepthRingBuffer(int capacity) {
+        if (capacity < 1 || Integer.bitCount(capacity) != 1)
+            throw new IllegalArgumentException("capacity not power of 2");
+        this.entries = new CThostFtdcDepthMarketDataField[capacity];
+        this.mask = capacity - 1;
+    }
+
+    int capacity() {
+        return this.entries.length;
+    }
+
+    /**
+     * Publish the specified depth. It blocks while the slowest consumer is a full
+     * ring behind. Only one thread may publish at a time.
+     *
+     * @param depth depth to publish
+     */
+    void publish(CThostFtdcDepthMarketDataField depth) {
+        var next = claim();
+        this.entries[(int) next & this.mask] = depth;
+        commit(next);
+    }
+
+    /**
+     * Publish a copy of the specified depth, written into a depth owned by the
+     * entry. The copy stays unchanged until all consumers have drained it, so the
+     * caller may reuse the specified depth at once. Only one thread may publish
+     * at a time.
+     *
+     * @param depth depth to publish
+     */
+    void publishCopy(CThostFtdcDepthMarketDataField depth) {
+        if (this.owned == null) {
+            this.owned = new CThostFtdcDepthMarketDataField[this.entries.length];
+            for (int i = 0; i < this.owned.length; ++i)
+                this.owned[i] = new CThostFtdcDepthMarketDataField();
+        }
+        var next = claim();
+        var i = (int) next & this.mask;
+        this.entries[i] = OP.copyInto(depth, this.owned[i]);
+        commit(next);
+    }
+
+    /*
+     * Wait until the next entry is drained by all consumers and return its
+     * sequence.
+     */
+    private long claim() {
+        var next = this.cursor.get() + 1;
+        var wrap = next - this.entries.length;
+        if (wrap > this.cachedGate) {
+            long gate;
+            while (wrap > (gate = minSequence(next - 1)))
+                LockSupport.parkNanos(1000);
+            this.cachedGate = gate;
+        }
+        return next;
+    }
+
+    private void commit(long next) {
+        this.cursor.set(next);
+        if (this.waiters.get() > 0)
+            for (var s : this.sequences) {
+                // Only the first publish after a park wakes the consumer.
+                if (s.waiter.get() != null) {
+                    var waiter = s.waiter.getAndSet(null);
+                    if (waiter != null)
+                        LockSupport.unpark(waiter);
+                }
+            }
+    }
+
+    private long minSequence(long min) {
+        for (var s : this.sequences)
+            min = Math.min(min, s.sequence.get());
+        return min;
+    }
+
+    /**
+     * Add a consumer that starts after the latest published entry.
+     *
+     * @return sequence of the new consumer
+     */
+    synchronized Sequence subscribe() {
+        var s = new Sequence(this.cursor.get());
+        var n = Arrays.copyOf(this.sequences, this.sequences.length + 1);
+        n[n.length - 1] = s;
+        this.sequences = n;
+        return s;
+    }
+
+    /**
+     * Remove the specified consumer so it no longer holds back the producer.
+     *
+     * @param sequence sequence of the removed consumer
+     */
+    synchronized void unsubscribe(Sequence sequence) {
+        sequence.closed = true;
+        this.sequences = Arrays.stream(this.sequences)
+                .filter(s -> s != sequence)
+                .toArray(Sequence[]::new);
+    }
+
+    /**
+     * Park the calling thread until any of the specified consumers has entries to
+     * drain, or the thread is unparked or interrupted.
+     *
+     * @param sequences consumers of the calling thread
+     */
+    static void await(Sequence[] sequences) {
+        var self = Thread.currentThread();
+        for (var s : sequences) {
+            s.waiter.set(self);
+            s.ring().waiters.incrementAndGet();
+        }
+        try {
+            // Check again after announcing the wait, so a publish between the last
+            // drain and the park is never missed.
+            for (var s : sequences)
+                if (s.available())
+                    return;
+            LockSupport.park();
+        } finally {
+            for (var s : sequences) {
+                s.ring().waiters.decrementAndGet();
+                s.waiter.set(null);
+            }
+        }
+    }
+}
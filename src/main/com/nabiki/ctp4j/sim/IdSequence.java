@@ -0,0 +1,126 @@
+/*
+ * Copyright (c) 2020 Hongbao Chen <chenhongbao@outlook.com>
+ *
+ * Licensed under the  GNU Affero General Public License v3.0 and you may not use
+ * this file except in compliance with the  License. You may obtain a copy of the
+ * License at
+ *
+ *                    https://www.gnu.org/licenses/agpl-3.0.txt
+ *
+ * Permission is hereby  granted, free of charge, to any  person obtaining a copy
+ * of this software and associated  documentation files (the "Software"), to deal
+ * in the Software  without restriction, including without  limitation the rights
+ * to  use, copy,  modify, merge,  publish, distribute,  sublicense, and/or  sell
+ * copies  of  the Software,  and  to  permit persons  to  whom  the Software  is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE  IS PROVIDED "AS  IS", WITHOUT WARRANTY  OF ANY KIND,  EXPRESS OR
+ * IMPLIED,  INCLUDING BUT  NOT  LIMITED TO  THE  WARRANTIES OF  MERCHANTABILITY,
+ * FITNESS FOR  A PARTICULAR PURPOSE AND  NONINFRINGEMENT. IN NO EVENT  SHALL THE
+ * AUTHORS  OR COPYRIGHT  HOLDERS  BE  LIABLE FOR  ANY  CLAIM,  DAMAGES OR  OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF  CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE  OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.nabiki.ctp4j.sim;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Generator of IDs like OrderSysID and TradeID. IDs are decimal numbers of fixed
+ * width, zero padded, so they sort by their creation order as plain strings.
+ *
+ * <p>The sequence doesn't start again on a new trading day, so an ID is unique
+ * over a multi-day run and the sequence number alone keys an order or trade,
+ * even one left from an earlier day.
+ * </p>
+ *
+ * <p>The generator is lock-free and safe to be called from many threads. An ID is
+ * an atomic increment and one string built from a char array.
+ * </p>
+ */
+class IdSequence {
+    /**
+     * Width of generated IDs.
+     */
+    static final int WIDTH = 12;
+    private static final long MAX = 999_999_999_999L;
+
+    private final AtomicLong sequence = new AtomicLong(0);
+
+    /**
+     * Get next ID.
+     *
+     * @return next ID
+     */
+    String next() {
+        var seq = this.sequence.incrementAndGet();
+        if (seq > MAX)
+            throw new IllegalStateException("sequence overflow");
+        return render(seq);
+    }
+
+    /**
+     * Make sure later IDs come after the specified sequence number, like when IDs
+     * are replayed from a journal.
+     *
+     * @param value sequence number already used
+     */
+    void advance(long value) {
+        this.sequence.accumulateAndGet(value, Math::max);
+    }
+
+    /*
+     * Write last sequence number into a snapshot.
+     */
+    void save(SimSnapshot.Output out) {
+        out.putLong(this.sequence.get());
+    }
+
+    /*
+     * Read sequence number from a snapshot. The returned action continues from it.
+     */
+    Runnable load(SimSnapshot.Input in) {
+        var value = in.getLong();
+        return () -> this.sequence.set(value);
+    }
+
+    /**
+     * Parse the specified ID back into its sequence number.
+     *
+     * @param id ID, leading and trailing spaces ignored
+     * @return sequence number, or -1 if the string isn't an ID of the generator
+     */
+    static long parse(String id) {
+        if (id == null)
+            return -1;
+        int from = 0, to = id.length();
+        while (from < to && id.charAt(from) == ' ')
+            ++from;
+        while (to > from && id.charAt(to - 1) == ' ')
+            --to;
+        if (to - from != WIDTH)
+            return -1;
+        long r = 0;
+        for (int i = from; i < to; ++i) {
+            var c = id.charAt(i);
+            if (c < '0' || c > '9')
+                return -1;
+            r = r * 10 + (c - '0');
+        }
+        return r;
+    }
+
+    static String render(long value) {
+        var chars = new char[WIDTH];
+        for (int i = WIDTH - 1; i >= 0; --i) {
+            chars[i] = (char) ('0' + value % 10);
+            value /= 10;
+        }
+        return new String(chars);
+    }
+}
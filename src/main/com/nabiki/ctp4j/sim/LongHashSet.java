@@ -0,0 +1,132 @@
+/*
+ * Copyright (c) 2020 Hongbao Chen <chenhongbao@outlook.com>
+ *
+ * Licensed under the  GNU Affero General Public License v3.0 and you may not use
+ * this file except in compliance with the  License. You may obtain a copy of the
+ * License at
+ *
+ *                    https://www.gnu.org/licenses/agpl-3.0.txt
+ *
+ * Permission is hereby  granted, free of charge, to any  person obtaining a copy
+ * of this software and associated  documentation files (the "Software"), to deal
+ * in the Software  without restriction, including without  limitation the rights
+ * to  use, copy,  modify, merge,  publish, distribute,  sublicense, and/or  sell
+ * copies  of  the Software,  and  to  permit persons  to  whom  the Software  is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE  IS PROVIDED "AS  IS", WITHOUT WARRANTY  OF ANY KIND,  EXPRESS OR
+ * IMPLIED,  INCLUDING BUT  NOT  LIMITED TO  THE  WARRANTIES OF  MERCHANTABILITY,
+ * FITNESS FOR  A PARTICULAR PURPOSE AND  NONINFRINGEMENT. IN NO EVENT  SHALL THE
+ * AUTHORS  OR COPYRIGHT  HOLDERS  BE  LIABLE FOR  ANY  CLAIM,  DAMAGES OR  OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF  CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE  OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.nabiki.ctp4j.sim;
+
+import java.util.function.LongConsumer;
+
+/**
+ * Open-addressing hash set of primitive longs. Keys are stored in one
+ * {@code long} array with linear probing, so adding and looking up a key creates
+ * no object.
+ *
+ * <p>The class is not thread safe.
+ * </p>
+ */
+class LongHashSet {
+    // Zero marks an empty slot, so zero key is kept aside.
+    private long[] keys;
+    private boolean hasZero;
+    private int size, mask;
+
+    LongHashSet() {
+        this(16);
+    }
+
+    LongHashSet(int capacity) {
+        int n = Integer.highestOneBit(Math.max(capacity, 4) * 2 - 1);
+        this.keys = new long[n];
+        this.mask = n - 1;
+    }
+
+    /**
+     * Add the specified key.
+     *
+     * @param key key
+     * @return {@code true} if the key isn't in the set before
+     */
+    boolean add(long key) {
+        if (key == 0) {
+            if (this.hasZero)
+                return false;
+            this.hasZero = true;
+            ++this.size;
+            return true;
+        }
+        int i = index(key, this.mask);
+        while (this.keys[i] != 0) {
+            if (this.keys[i] == key)
+                return false;
+            i = (i + 1) & this.mask;
+        }
+        this.keys[i] = key;
+        if (++this.size * 2 > this.keys.length)
+            grow();
+        return true;
+    }
+
+    boolean contains(long key) {
+        if (key == 0)
+            return this.hasZero;
+        int i = index(key, this.mask);
+        while (this.keys[i] != 0) {
+            if (this.keys[i] == key)
+                return true;
+            i = (i + 1) & this.mask;
+        }
+        return false;
+    }
+
+    int size() {
+        return this.size;
+    }
+
+    /**
+     * Call the specified action on each key, in no particular order. The set must
+     * not change during the call.
+     *
+     * @param action action on a key
+     */
+    void forEach(LongConsumer action) {
+        if (this.hasZero)
+            action.accept(0L);
+        for (var key : this.keys)
+            if (key != 0)
+                action.accept(key);
+    }
+
+    static int index(long key, int mask) {
+        // Mix bits so sequential keys spread over the table.
+        var h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32)) & mask;
+    }
+
+    private void grow() {
+        var old = this.keys;
+        this.keys = new long[old.length * 2];
+        this.mask = this.keys.length - 1;
+        for (var key : old) {
+            if (key == 0)
+                continue;
+            int i = index(key, this.mask);
+            while (this.keys[i] != 0)
+                i = (i + 1) & this.mask;
+            this.keys[i] = key;
+        }
+    }
+}
@@ -0,0 +1,198 @@
+/*
+ * Copyright (c) 2020 Hongbao Chen <chenhongbao@outlook.com>
+ *
+ * Licensed under the  GNU Affero General Public License v3.0 and you may not use
+ * this file except in compliance with the  License. You may obtain a copy of the
+ * License at
+ *
+ *                    https://www.gnu.org/licenses/agpl-3.0.txt
+ *
+ * Permission is hereby  granted, free of charge, to any  person obtaining a copy
+ * of this software and associated  documentation files (the "Software"), to deal
+ * in the Software  without restriction, including without  limitation the rights
+ * to  use, copy,  modify, merge,  publish, distribute,  sublicense, and/or  sell
+ * copies  of  the Software,  and  to  permit persons  to  whom  the Software  is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE  IS PROVIDED "AS  IS", WITHOUT WARRANTY  OF ANY KIND,  EXPRESS OR
+ * IMPLIED,  INCLUDING BUT  NOT  LIMITED TO  THE  WARRANTIES OF  MERCHANTABILITY,
+ * FITNESS FOR  A PARTICULAR PURPOSE AND  NONINFRINGEMENT. IN NO EVENT  SHALL THE
+ * AUTHORS  OR COPYRIGHT  HOLDERS  BE  LIABLE FOR  ANY  CLAIM,  DAMAGES OR  OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF  CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE  OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.nabiki.ctp4j.sim;
+
+import java.util.function.Consumer;
+import java.util.function.ObjLongConsumer;
+
+/**
+ * Open-addressing hash map from primitive long keys to objects. Keys and values
+ * are stored in two arrays with linear probing, and a removed entry shifts its
+ * followers back instead of leaving a tombstone, so lookups, puts of existing keys
+ * and removals create no object.
+ *
+ * <p>The class is not thread safe.
+ * </p>
+ *
+ * @param <V> type of value
+ */
+class LongObjectMap<V> {
+    // Null value marks an empty slot.
+    private long[] keys;
+    private Object[] values;
+    private int size, mask;
+
+    LongObjectMap() {
+        this(16);
+    }
+
+    LongObjectMap(int capacity) {
+        int n = Integer.highestOneBit(Math.max(capacity, 4) * 2 - 1);
+        this.keys = new long[n];
+        this.values = new Object[n];
+        this.mask = n - 1;
+    }
+
+    @SuppressWarnings("unchecked")
+    V get(long key) {
+        int i = LongHashSet.index(key, this.mask);
+        Object v;
+        while ((v = this.values[i]) != null) {
+            if (this.keys[i] == key)
+                return (V) v;
+            i = (i + 1) & this.mask;
+        }
+        return null;
+    }
+
+    /**
+     * Put the specified value with the key.
+     *
+     * @param key key
+     * @param value value, not null
+     * @return previous value of the key, or {@code null} if the key is new
+     */
+    @SuppressWarnings("unchecked")
+    V put(long key, V value) {
+        if (value == null)
+            throw new NullPointerException("value null");
+        int i = LongHashSet.index(key, this.mask);
+        Object v;
+        while ((v = this.values[i]) != null) {
+            if (this.keys[i] == key) {
+                this.values[i] = value;
+                return (V) v;
+            }
+            i = (i + 1) & this.mask;
+        }
+        this.keys[i] = key;
+        this.values[i] = value;
+        if (++this.size * 2 > this.keys.length)
+            grow();
+        return null;
+    }
+
+    /**
+     * Remove the key if it maps to the specified value.
+     *
+     * @param key key
+     * @param value expected value
+     * @return {@code true} if the entry is removed
+     */
+    boolean remove(long key, V value) {
+        var v = get(key);
+        if (v == null || v != value)
+            return false;
+        remove(key);
+        return true;
+    }
+
+    @SuppressWarnings("unchecked")
+    V remove(long key) {
+        int i = LongHashSet.index(key, this.mask);
+        Object v;
+        while ((v = this.values[i]) != null) {
+            if (this.keys[i] == key) {
+                shiftBack(i);
+                --this.size;
+                return (V) v;
+            }
+            i = (i + 1) & this.mask;
+        }
+        return null;
+    }
+
+    int size() {
+        return this.size;
+    }
+
+    /**
+     * Call the specified action on each value, in no particular order. The map
+     * must not change during the call.
+     *
+     * @param action action on a value
+     */
+    @SuppressWarnings("unchecked")
+    void forEach(Consumer<? super V> action) {
+        for (var v : this.values)
+            if (v != null)
+                action.accept((V) v);
+    }
+
+    /**
+     * Call the specified action on each value and its key, in no particular
+     * order. The map must not change during the call.
+     *
+     * @param action action on a value and its key
+     */
+    @SuppressWarnings("unchecked")
+    void forEachEntry(ObjLongConsumer<? super V> action) {
+        for (int i = 0; i < this.values.length; ++i)
+            if (this.values[i] != null)
+                action.accept((V) this.values[i], this.keys[i]);
+    }
+
+    /*
+     * Fill the freed slot with a later entry of the same probe run whose home
+     * slot isn't between the freed slot and itself, and repeat from that entry.
+     */
+    private void shiftBack(int free) {
+        int i = free;
+        while (true) {
+            i = (i + 1) & this.mask;
+            if (this.values[i] == null)
+                break;
+            int home = LongHashSet.index(this.keys[i], this.mask);
+            if (((i - home) & this.mask) >= ((i - free) & this.mask)) {
+                this.keys[free] = this.keys[i];
+                this.values[free] = this.values[i];
+                free = i;
+            }
+        }
+        this.keys[free] = 0;
+        this.values[free] = null;
+    }
+
+    private void grow() {
+        var oldKeys = this.keys;
+        var oldValues = this.values;
+        this.keys = new long[oldKeys.length * 2];
+        this.values = new Object[oldValues.length * 2];
+        this.mask = this.keys.length - 1;
+        for (int j = 0; j < oldKeys.length; ++j) {
+            if (oldValues[j] == null)
+                continue;
+            int i = LongHashSet.index(oldKeys[j], this.mask);
+            while (this.values[i] != null)
+                i = (i + 1) & this.mask;
+            this.keys[i] = oldKeys[j];
+            this.values[i] = oldValues[j];
+        }
+    }
+}
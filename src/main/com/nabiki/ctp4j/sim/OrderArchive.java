@@ -0,0 +1,97 @@
+/*
+ * Copyright (c) 2020 Hongbao Chen <chenhongbao@outlook.com>
+ *
+ * Licensed under the  GNU Affero General Public License v3.0 and you may not use
+ * this file except in compliance with the  License. You may obtain a copy of the
+ * License at
+ *
+ *                    https://www.gnu.org/licenses/agpl-3.0.txt
+ *
+ * Permission is hereby  granted, free of charge, to any  person obtaining a copy
+ * of this software and associated  documentation files (the "Software"), to deal
+ * in the Software  without restriction, including without  limitation the rights
+ * to  use, copy,  modify, merge,  publish, distribute,  sublicense, and/or  sell
+ * copies  of  the Software,  and  to  permit persons  to  whom  the Software  is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE  IS PROVIDED "AS  IS", WITHOUT WARRANTY  OF ANY KIND,  EXPRESS OR
+ * IMPLIED,  INCLUDING BUT  NOT  LIMITED TO  THE  WARRANTIES OF  MERCHANTABILITY,
+ * FITNESS FOR  A PARTICULAR PURPOSE AND  NONINFRINGEMENT. IN NO EVENT  SHALL THE
+ * AUTHORS  OR COPYRIGHT  HOLDERS  BE  LIABLE FOR  ANY  CLAIM,  DAMAGES OR  OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF  CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE  OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.nabiki.ctp4j.sim;
+
+/**
+ * Archive of finished orders, that is orders all traded or canceled. The live
+ * state of an order is dropped once it is archived, and the archive keeps only
+ * what later requests need to know about it: its order ref key is taken, so the
+ * ref can't be inserted again, and its OrderSysID or ref key refers to a finished
+ * order, so an action on it is rejected for its status instead of not found.
+ *
+ * <p>Ref keys are the primitive {@link OrderKey}s and system IDs are stored as
+ * their 64-bit hashes, both in primitive sets, about 32 bytes an order, so a long
+ * run archiving millions of orders keeps a flat heap. Two different system IDs of
+ * the same hash are taken as the same, which is a chance of about one in
+ * 2<sup>64</sup> for a pair of IDs.
+ * </p>
+ *
+ * <p>The class is not thread safe.
+ * </p>
+ */
+class OrderArchive {
+    private final LongHashSet refKeys = new LongHashSet(), sysIDs = new LongHashSet();
+    private long count;
+
+    /**
+     * Archive an order of the specified keys.
+     *
+     * @param refKey {@link OrderKey} of the order ref, front ID and session ID
+     * @param orderSysID order system ID
+     */
+    void add(long refKey, String orderSysID) {
+        this.refKeys.add(refKey);
+        this.sysIDs.add(hash(orderSysID));
+        ++this.count;
+    }
+
+    boolean containsRef(long refKey) {
+        return this.refKeys.contains(refKey);
+    }
+
+    boolean containsSysID(String orderSysID) {
+        return this.sysIDs.contains(hash(orderSysID));
+    }
+
+    /**
+     * Get number of archived orders.
+     *
+     * @return number of archived orders
+     */
+    long size() {
+        return this.count;
+    }
+
+    /*
+     * 64-bit FNV-1a hash of chars, finished by the 64-bit mixer of MurmurHash3.
+     */
+    static long hash(String s) {
+        var h = 0xcbf29ce484222325L;
+        for (int i = 0; i < s.length(); ++i) {
+            h ^= s.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
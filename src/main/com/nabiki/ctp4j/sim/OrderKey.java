@@ -0,0 +1,116 @@
+/*
+ * Copyright (c) 2020 Hongbao Chen <chenhongbao@outlook.com>
+ *
+ * Licensed under the  GNU Affero General Public License v3.0 and you may not use
+ * this file except in compliance with the  License. You may obtain a copy of the
+ * License at
+ *
+ *                    https://www.gnu.org/licenses/agpl-3.0.txt
+ *
+ * Permission is hereby  granted, free of charge, to any  person obtaining a copy
+ * of this software and associated  documentation files (the "Software"), to deal
+ * in the Software  without restriction, including without  limitation the rights
+ * to  use, copy,  modify, merge,  publish, distribute,  sublicense, and/or  sell
+ * copies  of  the Software,  and  to  permit persons  to  whom  the Software  is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE  IS PROVIDED "AS  IS", WITHOUT WARRANTY  OF ANY KIND,  EXPRESS OR
+ * IMPLIED,  INCLUDING BUT  NOT  LIMITED TO  THE  WARRANTIES OF  MERCHANTABILITY,
+ * FITNESS FOR  A PARTICULAR PURPOSE AND  NONINFRINGEMENT. IN NO EVENT  SHALL THE
+ * AUTHORS  OR COPYRIGHT  HOLDERS  BE  LIABLE FOR  ANY  CLAIM,  DAMAGES OR  OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF  CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE  OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.nabiki.ctp4j.sim;
+
+/**
+ * Primitive key of an order ref in a front and session.
+ *
+ * <p>A numeric order ref that fits in 32 bits is packed with the front ID in 7
+ * bits and the session ID in 24 bits into a non-negative long:
+ * <pre>
+ *   0 | front ID, 7 bits | session ID, 24 bits | order ref, 32 bits
+ * </pre>
+ * Leading and trailing spaces of the order ref are ignored, so a ref right
+ * aligned in its field is the same ref. Any other order ref, front or session
+ * is keyed by the 64-bit hash of its text with the sign bit set, so it never
+ * equals a packed key. Two such keys of the same hash are taken as the same,
+ * which is a chance of about one in 2<sup>63</sup> for a pair of refs.
+ * </p>
+ *
+ * <p>Making a key creates no object.
+ * </p>
+ */
+class OrderKey {
+    static final long REF_MASK = 0xFFFFFFFFL;
+    static final int MAX_FRONT = 0x7F, MAX_SESSION = 0xFFFFFF;
+
+    private OrderKey() {}
+
+    static long of(String orderRef, int frontID, int sessionID) {
+        var ref = parseRef(orderRef);
+        if (ref < 0 || frontID < 0 || frontID > MAX_FRONT || sessionID < 0
+                || sessionID > MAX_SESSION)
+            return hashed(orderRef, frontID, sessionID);
+        return (long) frontID << 56 | (long) sessionID << 32 | ref;
+    }
+
+    static boolean isPacked(long key) {
+        return key >= 0;
+    }
+
+    /**
+     * Get the front and session part of a packed key.
+     *
+     * @param key packed key
+     * @return key of front and session
+     */
+    static long session(long key) {
+        return key >>> 32;
+    }
+
+    /**
+     * Get the order ref part of a packed key.
+     *
+     * @param key packed key
+     * @return order ref
+     */
+    static long ref(long key) {
+        return key & REF_MASK;
+    }
+
+    /*
+     * Parse numeric order ref, or return -1 if it isn't a number of 32 bits.
+     */
+    private static long parseRef(String orderRef) {
+        if (orderRef == null)
+            return -1;
+        int from = 0, to = orderRef.length();
+        while (from < to && orderRef.charAt(from) == ' ')
+            ++from;
+        while (to > from && orderRef.charAt(to - 1) == ' ')
+            --to;
+        if (from == to || to - from > 10)
+            return -1;
+        long r = 0;
+        for (int i = from; i < to; ++i) {
+            var c = orderRef.charAt(i);
+            if (c < '0' || c > '9')
+                return -1;
+            r = r * 10 + (c - '0');
+        }
+        return r <= REF_MASK ? r : -1;
+    }
+
+    private static long hashed(String orderRef, int frontID, int sessionID) {
+        var h = orderRef == null ? 0 : OrderArchive.hash(orderRef);
+        h = (h ^ frontID) * 0x9E3779B97F4A7C15L;
+        h = (h ^ sessionID) * 0x9E3779B97F4A7C15L;
+        return (h ^ (h >>> 29)) | Long.MIN_VALUE;
+    }
+}
@@ -0,0 +1,133 @@
+/*
+ * Copyright (c) 2020 Hongbao Chen <chenhongbao@outlook.com>
+ *
+ * Licensed under the  GNU Affero General Public License v3.0 and you may not use
+ * this file except in compliance with the  License. You may obtain a copy of the
+ * License at
+ *
+ *                    https://www.gnu.org/licenses/agpl-3.0.txt
+ *
+ * Permission is hereby  granted, free of charge, to any  person obtaining a copy
+ * of this software and associated  documentation files (the "Software"), to deal
+ * in the Software  without restriction, including without  limitation the rights
+ * to  use, copy,  modify, merge,  publish, distribute,  sublicense, and/or  sell
+ * copies  of  the Software,  and  to  permit persons  to  whom  the Software  is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE  IS PROVIDED "AS  IS", WITHOUT WARRANTY  OF ANY KIND,  EXPRESS OR
+ * IMPLIED,  INCLUDING BUT  NOT  LIMITED TO  THE  WARRANTIES OF  MERCHANTABILITY,
+ * FITNESS FOR  A PARTICULAR PURPOSE AND  NONINFRINGEMENT. IN NO EVENT  SHALL THE
+ * AUTHORS  OR COPYRIGHT  HOLDERS  BE  LIABLE FOR  ANY  CLAIM,  DAMAGES OR  OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF  CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE  OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.nabiki.ctp4j.sim;
+
+import java.util.*;
+
+/**
+ * Live orders of one instrument, kept in buy and sell price levels. Buy levels
+ * are sorted from the highest price and sell levels from the lowest, and orders of
+ * the same level are in time order. A depth only visits the levels its best bid or
+ * ask crosses, so matching doesn't grow with the number of resting orders. A
+ * level is a linked hash set, so an order is removed from anywhere in its level
+ * without a scan.
+ *
+ * <p>The class is not thread safe.
+ * </p>
+ *
+ * @param <T> type of order
+ */
+class RestingOrders<T> {
+    private final TreeMap<Double, LinkedHashSet<T>> buys
+            = new TreeMap<>(Comparator.reverseOrder());
+    private final TreeMap<Double, LinkedHashSet<T>> sells = new TreeMap<>();
+    private int size;
+
+    /**
+     * Add order at the end of its price level. An order already in the level
+     * keeps its place.
+     *
+     * @param buy {@code true} if it is a buy order
+     * @param price limit price
+     * @param order order
+     */
+    void add(boolean buy, double price, T order) {
+        if (levels(buy).computeIfAbsent(price, k -> new LinkedHashSet<>()).add(order))
+            ++this.size;
+    }
+
+    /**
+     * Remove order from its price level.
+     *
+     * @param buy {@code true} if it is a buy order
+     * @param price limit price
+     * @param order order
+     * @return {@code true} if the order is in the book and removed
+     */
+    boolean remove(boolean buy, double price, T order) {
+        var levels = levels(buy);
+        var level = levels.get(price);
+        if (level == null || !level.remove(order))
+            return false;
+        if (level.isEmpty())
+            levels.remove(price);
+        --this.size;
+        return true;
+    }
+
+    /**
+     * Collect orders that cross the specified best prices, that is buy orders
+     * priced at or above the best ask and sell orders priced at or below the best
+     * bid. Orders are added in price and then time priority, buy orders first.
+     *
+     * @param bestBid best bid price
+     * @param bestAsk best ask price
+     * @param crossed list to add the crossing orders into
+     */
+    void crossing(double bestBid, double bestAsk, List<T> crossed) {
+        if (!this.buys.isEmpty() && this.buys.firstKey() >= bestAsk)
+            for (var e : this.buys.entrySet()) {
+                if (e.getKey() < bestAsk)
+                    break;
+                crossed.addAll(e.getValue());
+            }
+        if (!this.sells.isEmpty() && this.sells.firstKey() <= bestBid)
+            for (var e : this.sells.entrySet()) {
+                if (e.getKey() > bestBid)
+                    break;
+                crossed.addAll(e.getValue());
+            }
+    }
+
+    /**
+     * Collect all orders, buy orders first, each side in price and then time
+     * priority.
+     *
+     * @param orders list to add the orders into
+     */
+    void all(List<T> orders) {
+        for (var level : this.buys.values())
+            orders.addAll(level);
+        for (var level : this.sells.values())
+            orders.addAll(level);
+    }
+
+    /**
+     * Get number of orders in the book.
+     *
+     * @return number of orders
+     */
+    int size() {
+        return this.size;
+    }
+
+    private TreeMap<Double, LinkedHashSet<T>> levels(boolean buy) {
+        return buy ? this.buys : this.sells;
+    }
+}
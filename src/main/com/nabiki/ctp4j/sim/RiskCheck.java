@@ -0,0 +1,233 @@
+/*
+ * Copyright (c) 2020 Hongbao Chen <chenhongbao@outlook.com>
+ *
+ * Licensed under the  GNU Affero General Public License v3.0 and you may not use
+ * this file except in compliance with the  License. You may obtain a copy of the
+ * License at
+ *
+ *                    https://www.gnu.org/licenses/agpl-3.0.txt
+ *
+ * Permission is hereby  granted, free of charge, to any  person obtaining a copy
+ * of this software and associated  documentation files (the "Software"), to deal
+ * in the Software  without restriction, including without  limitation the rights
+ * to  use, copy,  modify, merge,  publish, distribute,  sublicense, and/or  sell
+ * copies  of  the Software,  and  to  permit persons  to  whom  the Software  is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE  IS PROVIDED "AS  IS", WITHOUT WARRANTY  OF ANY KIND,  EXPRESS OR
+ * IMPLIED,  INCLUDING BUT  NOT  LIMITED TO  THE  WARRANTIES OF  MERCHANTABILITY,
+ * FITNESS FOR  A PARTICULAR PURPOSE AND  NONINFRINGEMENT. IN NO EVENT  SHALL THE
+ * AUTHORS  OR COPYRIGHT  HOLDERS  BE  LIABLE FOR  ANY  CLAIM,  DAMAGES OR  OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF  CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE  OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.nabiki.ctp4j.sim;
+
+import com.nabiki.ctp4j._x.OP;
+import com.nabiki.ctp4j._x.SimClock;
+import com.nabiki.ctp4j.jni.flag.TThostFtdcCombOffsetFlagType;
+import com.nabiki.ctp4j.jni.flag.TThostFtdcDirectionType;
+import com.nabiki.ctp4j.jni.flag.TThostFtdcErrorCode;
+import com.nabiki.ctp4j.jni.struct.CThostFtdcInputOrderField;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Pre-trade checks of orders before they are queued for matching.
+ *
+ * <p>An order is checked against a {@link Rule} of its instrument, which has
+ * the price tick, limit band, volume limits and rates from {@link CommonData}.
+ * A rule is computed on the first order of the instrument and cached, so later
+ * checks are a map lookup and some arithmetic. Call {@link #refresh()} after
+ * instruments or rates change.
+ * </p>
+ *
+ * <p>Accounts are read without locks. An open order reserves its volume against
+ * the position limit and freezes its margin and commission, and a close order
+ * freezes its volume on the positions it closes, all by compare-and-set on the
+ * account. So concurrent orders of an account can't spend the same money or
+ * close the same position. The book releases them when the order is filled or
+ * canceled.
+ * </p>
+ */
+public class RiskCheck {
+    /**
+     * Checking data of an instrument. A rule doesn't change after it is created.
+     */
+    public static class Rule {
+        final String instrID;
+        final double priceTick, upperLimit, lowerLimit;
+        final int minVolume, maxVolume, multiple;
+        final double longByMoney, longByVolume, shortByMoney, shortByVolume;
+        final double feeByMoney, feeByVolume;
+
+        Rule(String instrID) {
+            var instrument = CommonData.getInstrument(instrID);
+            if (instrument == null)
+                throw new IllegalArgumentException("instrument not found");
+            this.instrID = instrID;
+            this.priceTick = instrument.PriceTick;
+            this.minVolume = Math.max(1, instrument.MinLimitOrderVolume);
+            this.maxVolume = instrument.MaxLimitOrderVolume > 0
+                    ? instrument.MaxLimitOrderVolume : Integer.MAX_VALUE;
+            this.multiple = Math.max(1, instrument.VolumeMultiple);
+            var depth = CommonData.getDepth(instrID);
+            if (depth != null && isValid(depth.UpperLimitPrice)
+                    && isValid(depth.LowerLimitPrice)) {
+                this.upperLimit = depth.UpperLimitPrice;
+                this.lowerLimit = depth.LowerLimitPrice;
+            } else {
+                this.upperLimit = Double.MAX_VALUE;
+                this.lowerLimit = 0.0D;
+            }
+            var margin = CommonData.getMargin(instrID);
+            if (margin != null) {
+                this.longByMoney = margin.LongMarginRatioByMoney;
+                this.longByVolume = margin.LongMarginRatioByVolume;
+                this.shortByMoney = margin.ShortMarginRatioByMoney;
+                this.shortByVolume = margin.ShortMarginRatioByVolume;
+            } else
+                this.longByMoney = this.longByVolume = this.shortByMoney
+                        = this.shortByVolume = 0.0D;
+            var commission = CommonData.getCommission(instrID);
+            if (commission != null) {
+                this.feeByMoney = commission.OpenRatioByMoney;
+                this.feeByVolume = commission.OpenRatioByVolume;
+            } else
+                this.feeByMoney = this.feeByVolume = 0.0D;
+        }
+
+        /**
+         * Get margin of one lot opened at the specified price.
+         *
+         * @param buy   {@code true} for long position
+         * @param price open price
+         * @return margin of one lot
+         */
+        public double margin(boolean buy, double price) {
+            if (buy)
+                return this.longByMoney * price * this.multiple + this.longByVolume;
+            else
+                return this.shortByMoney * price * this.multiple + this.shortByVolume;
+        }
+
+        /**
+         * Get open commission of one lot at the specified price.
+         *
+         * @param price open price
+         * @return commission of one lot
+         */
+        public double commission(double price) {
+            return this.feeByMoney * price * this.multiple + this.feeByVolume;
+        }
+
+        private static boolean isValid(double price) {
+            return price > 0 && price < Double.MAX_VALUE;
+        }
+    }
+
+    /**
+     * Error ID of an open order that takes the position over the limit. The CTP
+     * flags have no such ID, so the simulator defines one after
+     * {@link TradeBook#CALLBACK_OVERFLOW}.
+     */
+    public static final int OVER_POSITION_LIMIT = 9002;
+    static final String OVER_POSITION_LIMIT_MSG = "超过持仓限额";
+
+    private final Map<String, Rule> rules = new ConcurrentHashMap<>();
+    private volatile int positionLimit = Integer.MAX_VALUE;
+
+    /**
+     * Get rule of the specified instrument.
+     *
+     * @param instrID instrument ID
+     * @return rule of the instrument, or {@code null} if the instrument is not
+     * in {@link CommonData}
+     */
+    public Rule rule(String instrID) {
+        if (instrID == null)
+            return null;
+        var rule = this.rules.get(instrID);
+        if (rule != null || CommonData.getInstrument(instrID) == null)
+            return rule;
+        rule = new Rule(instrID);
+        var old = this.rules.putIfAbsent(instrID, rule);
+        return old != null ? old : rule;
+    }
+
+    /**
+     * Drop cached rules so they are computed again from {@link CommonData}.
+     */
+    public void refresh() {
+        this.rules.clear();
+    }
+
+    /**
+     * Set max volume an account can hold for an instrument and direction.
+     *
+     * @param positionLimit position limit
+     */
+    public void setPositionLimit(int positionLimit) {
+        if (positionLimit < 0)
+            throw new IllegalArgumentException("negative position limit");
+        this.positionLimit = positionLimit;
+    }
+
+    public int getPositionLimit() {
+        return this.positionLimit;
+    }
+
+    /**
+     * Check the specified order against the specified rule and account. Volume
+     * and money of an open order, or volume of a close order, are frozen on the
+     * account if the order passes.
+     *
+     * @param order   input order
+     * @param rule    rule of the order's instrument, or {@code null} if the
+     *                instrument is not found
+     * @param account account of the order's investor
+     * @return {@link TThostFtdcErrorCode#NONE} if the order passes, or the
+     * error code
+     */
+    public int check(CThostFtdcInputOrderField order, Rule rule, Account account) {
+        if (rule == null)
+            return TThostFtdcErrorCode.INSTRUMENT_NOT_FOUND;
+        var volume = order.VolumeTotalOriginal;
+        if (volume < rule.minVolume || volume > rule.maxVolume)
+            return TThostFtdcErrorCode.BAD_FIELD;
+        var price = order.LimitPrice;
+        if (price < rule.lowerLimit || price > rule.upperLimit)
+            return TThostFtdcErrorCode.BAD_FIELD;
+        if (rule.priceTick > 0) {
+            var ticks = price / rule.priceTick;
+            if (Math.abs(ticks - Math.rint(ticks)) > 1E-6)
+                return TThostFtdcErrorCode.BAD_FIELD;
+        }
+        var buy = order.Direction == TThostFtdcDirectionType.DIRECTION_BUY;
+        var offset = order.CombOffsetFlag;
+        if (offset == TThostFtdcCombOffsetFlagType.OFFSET_OPEN) {
+            if (!account.tryReserve(rule.instrID, buy, volume, this.positionLimit))
+                return OVER_POSITION_LIMIT;
+            if (!account.tryFreeze(rule.margin(buy, price) * volume,
+                    rule.commission(price) * volume)) {
+                account.release(rule.instrID, buy, volume);
+                return TThostFtdcErrorCode.INSUFFICIENT_MONEY;
+            }
+        } else {
+            // Only closes of today or yesterday need to know if the day has changed.
+            var day = offset == TThostFtdcCombOffsetFlagType.OFFSET_CLOSE_TODAY
+                    || offset == TThostFtdcCombOffsetFlagType.OFFSET_CLOSE_YESTERDAY
+                    ? OP.getTradingDay(SimClock.current().now()) : null;
+            // Buy closes short positions and sell closes long positions.
+            if (!account.tryFreezeClose(rule.instrID, !buy, offset, volume, day))
+                return TThostFtdcErrorCode.OVER_CLOSE_POSITION;
+        }
+        return TThostFtdcErrorCode.NONE;
+    }
+}
@@ -0,0 +1,359 @@
+/*
+ * Copyright (c) 2020 Hongbao Chen <chenhongbao@outlook.com>
+ *
+ * Licensed under the  GNU Affero General Public License v3.0 and you may not use
+ * this file except in compliance with the  License. You may obtain a copy of the
+ * License at
+ *
+ *                    https://www.gnu.org/licenses/agpl-3.0.txt
+ *
+ * Permission is hereby  granted, free of charge, to any  person obtaining a copy
+ * of this software and associated  documentation files (the "Software"), to deal
+ * in the Software  without restriction, including without  limitation the rights
+ * to  use, copy,  modify, merge,  publish, distribute,  sublicense, and/or  sell
+ * copies  of  the Software,  and  to  permit persons  to  whom  the Software  is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE  IS PROVIDED "AS  IS", WITHOUT WARRANTY  OF ANY KIND,  EXPRESS OR
+ * IMPLIED,  INCLUDING BUT  NOT  LIMITED TO  THE  WARRANTIES OF  MERCHANTABILITY,
+ * FITNESS FOR  A PARTICULAR PURPOSE AND  NONINFRINGEMENT. IN NO EVENT  SHALL THE
+ * AUTHORS  OR COPYRIGHT  HOLDERS  BE  LIABLE FOR  ANY  CLAIM,  DAMAGES OR  OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF  CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE  OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.nabiki.ctp4j.sim;
+
+import com.nabiki.ctp4j.jni.struct.CThostFtdcRspUserLoginField;
+import com.nabiki.ctp4j.trader.CThostFtdcTraderSpi;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.ObjLongConsumer;
+
+/**
+ * Registry of trader sessions of a {@link TradeBook}.
+ *
+ * <p>A login is given the front ID of the book's login profile and a session ID
+ * no other session of the registry has had, so order refs of different clients
+ * never collide. Sessions are kept in a concurrent map by their front and session
+ * IDs and IDs come from an atomic counter, so logins of thousands of sessions
+ * don't wait for each other.
+ * </p>
+ *
+ * <p>Each session owns its order ref state and an index of its live orders, so a
+ * request only touches its own session. Refs and the index are kept in primitive
+ * long collections locked by the session, so they don't box the ref keys. An
+ * order carries its session, and callbacks of its later updates stop when the
+ * session logs out.
+ * </p>
+ *
+ * <p>A session that logs out after it has used refs leaves its ref state behind.
+ * A later request of its front and session ID without a login gets a new session
+ * that goes on from those refs, so it can't reuse a ref of the old session.
+ * </p>
+ */
+public class SessionRegistry {
+    /**
+     * Trader session of a front and session ID.
+     */
+    public static class Session {
+        private final int frontID, sessionID;
+        private final CThostFtdcRspUserLoginField login;
+        private final CThostFtdcTraderSpi spi;
+        private volatile boolean active = true;
+        // Last numeric order ref, and keys of other refs, ever accepted.
+        private final AtomicLong lastRef = new AtomicLong(-1);
+        private final LongHashSet otherRefs = new LongHashSet();
+        // Instrument IDs of live orders by ref key, written by matching threads.
+        private final LongObjectMap<String> orders = new LongObjectMap<>();
+
+        Session(int frontID, int sessionID, CThostFtdcRspUserLoginField login,
+                CThostFtdcTraderSpi spi) {
+            this.frontID = frontID;
+            this.sessionID = sessionID;
+            this.login = login;
+            this.spi = spi;
+        }
+
+        public int getFrontID() {
+            return this.frontID;
+        }
+
+        public int getSessionID() {
+            return this.sessionID;
+        }
+
+        /**
+         * Get login response of the session, or {@code null} if the session isn't
+         * created by a login, like a session of orders from a journal.
+         *
+         * @return login response
+         */
+        public CThostFtdcRspUserLoginField getLogin() {
+            return this.login;
+        }
+
+        public CThostFtdcTraderSpi getSpi() {
+            return this.spi;
+        }
+
+        /**
+         * Check whether the session hasn't logged out.
+         *
+         * @return {@code true} if the session is active
+         */
+        public boolean isActive() {
+            return this.active;
+        }
+
+        /**
+         * Get number of live orders of the session.
+         *
+         * @return number of live orders
+         */
+        public int getOrderCount() {
+            synchronized (this) {
+                return this.orders.size();
+            }
+        }
+
+        /*
+         * Numeric order ref must increase in its session, so it is checked against
+         * the last ref of the session only. Other refs must not have been used.
+         */
+        boolean admit(long refKey) {
+            if (!OrderKey.isPacked(refKey))
+                synchronized (this) {
+                    return this.otherRefs.add(refKey);
+                }
+            var ref = OrderKey.ref(refKey);
+            while (true) {
+                var current = this.lastRef.get();
+                if (ref <= current)
+                    return false;
+                if (this.lastRef.compareAndSet(current, ref))
+                    return true;
+            }
+        }
+
+        synchronized void addOrder(long refKey, String instrID) {
+            this.orders.put(refKey, instrID);
+        }
+
+        synchronized void removeOrder(long refKey) {
+            this.orders.remove(refKey);
+        }
+
+        /*
+         * Get instrument ID of the live order of the specified ref key, or null.
+         */
+        synchronized String getInstrumentID(long refKey) {
+            return this.orders.get(refKey);
+        }
+
+        /*
+         * Call the action on instrument ID and ref key of each live order, under
+         * the session's lock, so the action must not call back into the session.
+         */
+        synchronized void forEachOrder(ObjLongConsumer<String> action) {
+            this.orders.forEachEntry(action);
+        }
+
+        synchronized void save(SimSnapshot.Output out) {
+            out.putInt(this.frontID);
+            out.putInt(this.sessionID);
+            out.putLong(this.lastRef.get());
+            out.putInt(this.otherRefs.size());
+            this.otherRefs.forEach(out::putLong);
+        }
+
+        synchronized void load(SimSnapshot.Input in) {
+            this.lastRef.set(in.getLong());
+            for (int i = 0, n = in.getInt(); i < n; ++i)
+                this.otherRefs.add(in.getLong());
+        }
+
+        /*
+         * Check if the session has accepted a ref.
+         */
+        synchronized boolean hasRefs() {
+            return this.lastRef.get() >= 0 || this.otherRefs.size() > 0;
+        }
+
+        /*
+         * Take over refs of the specified session, which has logged out.
+         */
+        void inherit(Session old) {
+            synchronized (old) {
+                this.lastRef.set(old.lastRef.get());
+                old.otherRefs.forEach(this.otherRefs::add);
+            }
+        }
+    }
+
+    private final CThostFtdcRspUserLoginField profile;
+    private final Map<Long, Session> sessions = new ConcurrentHashMap<>();
+    // Logged out sessions that have used refs, kept for their ref state.
+    private final Map<Long, Session> retired = new ConcurrentHashMap<>();
+    private final AtomicInteger lastSessionID;
+
+    SessionRegistry(CThostFtdcRspUserLoginField profile) {
+        this.profile = profile;
+        this.lastSessionID = new AtomicInteger(profile.SessionID);
+    }
+
+    /**
+     * Create a session with a new session ID, from the specified login response
+     * that has other fields already filled in.
+     *
+     * @param login login response, its front and session ID are set
+     * @param spi   SPI of the session
+     * @return new session
+     * @throws IllegalStateException if session IDs run out
+     */
+    public Session login(CThostFtdcRspUserLoginField login, CThostFtdcTraderSpi spi) {
+        if (login == null)
+            throw new NullPointerException("login null");
+        var frontID = this.profile.FrontID;
+        while (true) {
+            var sessionID = this.lastSessionID.incrementAndGet();
+            if (sessionID > OrderKey.MAX_SESSION || sessionID <= 0)
+                throw new IllegalStateException("session ID run out");
+            var session = new Session(frontID, sessionID, login, spi);
+            // Skip ID of a session created without login.
+            if (this.sessions.putIfAbsent(key(frontID, sessionID), session) == null) {
+                login.FrontID = frontID;
+                login.SessionID = sessionID;
+                return session;
+            }
+        }
+    }
+
+    /**
+     * Remove the specified session. Its live orders are kept, but their updates
+     * are not returned to it any more.
+     *
+     * @param session session to remove
+     * @return {@code true} if the session is removed, {@code false} if it has
+     * logged out
+     */
+    public boolean logout(Session session) {
+        if (session == null)
+            return false;
+        session.active = false;
+        var key = key(session.frontID, session.sessionID);
+        // Retire before removal, so a request in between finds the refs.
+        var refs = session.hasRefs();
+        if (refs)
+            this.retired.put(key, session);
+        if (this.sessions.remove(key, session))
+            return true;
+        if (refs)
+            this.retired.remove(key, session);
+        return false;
+    }
+
+    /**
+     * Get the session of the specified front and session ID.
+     *
+     * @param frontID   front ID
+     * @param sessionID session ID
+     * @return session, or {@code null} if it doesn't exist or has logged out
+     */
+    public Session get(int frontID, int sessionID) {
+        return this.sessions.get(key(frontID, sessionID));
+    }
+
+    /**
+     * Get number of active sessions.
+     *
+     * @return number of sessions
+     */
+    public int size() {
+        return this.sessions.size();
+    }
+
+    /*
+     * Get the session of the specified front and session ID, or create it for
+     * requests made without a login, like from tests or a journal. Later logins
+     * get session IDs after it. A session created for a logged out one goes on
+     * from its refs.
+     */
+    Session session(int frontID, int sessionID) {
+        var key = key(frontID, sessionID);
+        var session = this.sessions.get(key);
+        if (session != null)
+            return session;
+        if (frontID == this.profile.FrontID)
+            this.lastSessionID.accumulateAndGet(sessionID, Math::max);
+        return this.sessions.computeIfAbsent(key, k -> {
+            var created = new Session(frontID, sessionID, null, null);
+            var old = this.retired.remove(k);
+            if (old != null)
+                created.inherit(old);
+            return created;
+        });
+    }
+
+    /*
+     * Get active sessions logged in with the specified SPI. It scans all sessions.
+     */
+    List<Session> find(CThostFtdcTraderSpi spi) {
+        var r = new ArrayList<Session>();
+        for (var session : this.sessions.values())
+            if (session.spi == spi)
+                r.add(session);
+        return r;
+    }
+
+    void save(SimSnapshot.Output out) {
+        out.putInt(this.lastSessionID.get());
+        for (var sessions : List.of(this.sessions, this.retired)) {
+            // Size and values may differ while sessions come and go.
+            var copy = new ArrayList<>(sessions.values());
+            out.putInt(copy.size());
+            for (var session : copy)
+                session.save(out);
+        }
+    }
+
+    /*
+     * Read sessions from a snapshot. They have no login or SPI. The returned action
+     * replaces the current sessions with them.
+     */
+    Runnable load(SimSnapshot.Input in) {
+        var lastSessionID = in.getInt();
+        var loggedIn = new HashMap<Long, Session>();
+        var loggedOut = new HashMap<Long, Session>();
+        for (var sessions : List.of(loggedIn, loggedOut))
+            for (int i = 0, n = in.getInt(); i < n; ++i) {
+                var frontID = in.getInt();
+                var sessionID = in.getInt();
+                var session = new Session(frontID, sessionID, null, null);
+                session.load(in);
+                sessions.put(key(frontID, sessionID), session);
+            }
+        for (var session : loggedOut.values())
+            session.active = false;
+        return () -> {
+            this.sessions.clear();
+            this.retired.clear();
+            this.lastSessionID.set(lastSessionID);
+            this.sessions.putAll(loggedIn);
+            this.retired.putAll(loggedOut);
+        };
+    }
+
+    private static long key(int frontID, int sessionID) {
+        return (long) frontID << 32 | (sessionID & 0xFFFFFFFFL);
+    }
+}
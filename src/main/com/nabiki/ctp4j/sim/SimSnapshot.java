@@ -0,0 +1,288 @@
+/*
+ * Copyright (c) 2020 Hongbao Chen <chenhongbao@outlook.com>
+ *
+ * Licensed under the  GNU Affero General Public License v3.0 and you may not use
+ * this file except in compliance with the  License. You may obtain a copy of the
+ * License at
+ *
+ *                    https://www.gnu.org/licenses/agpl-3.0.txt
+ *
+ * Permission is hereby  granted, free of charge, to any  person obtaining a copy
+ * of this software and associated  documentation files (the "Software"), to deal
+ * in the Software  without restriction, including without  limitation the rights
+ * to  use, copy,  modify, merge,  publish, distribute,  sublicense, and/or  sell
+ * copies  of  the Software,  and  to  permit persons  to  whom  the Software  is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE  IS PROVIDED "AS  IS", WITHOUT WARRANTY  OF ANY KIND,  EXPRESS OR
+ * IMPLIED,  INCLUDING BUT  NOT  LIMITED TO  THE  WARRANTIES OF  MERCHANTABILITY,
+ * FITNESS FOR  A PARTICULAR PURPOSE AND  NONINFRINGEMENT. IN NO EVENT  SHALL THE
+ * AUTHORS  OR COPYRIGHT  HOLDERS  BE  LIABLE FOR  ANY  CLAIM,  DAMAGES OR  OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF  CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE  OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.nabiki.ctp4j.sim;
+
+import com.nabiki.ctp4j._x.StructCodec;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+
+/**
+ * Binary snapshot of the whole simulator state in one file: {@link CommonData},
+ * the books of a {@link TickSource} with their random generators, and the live
+ * orders, latest depths, accounts and ID sequences of a {@link TradeBook}.
+ *
+ * <p>A restored simulator goes on exactly as the saved one would. Generated
+ * depths continue the same random sequences, orders rest in the books, and order
+ * refs and IDs continue after the saved ones. So many runs can be forked from one
+ * mid-session state.
+ * </p>
+ * <pre>
+ * SimSnapshot.save(file);
+ * ...
+ * SimSnapshot.load(file);
+ * </pre>
+ *
+ * <p>Structs are encoded by {@link StructCodec} and the whole file is written or
+ * read in one go. A snapshot is written to a temporary file first and then
+ * moved, so a file is either complete or not there. It is decoded in whole
+ * before any state is replaced, so a broken file changes nothing. Restored
+ * orders have no trader session, like those recovered from a
+ * {@link TradeJournal}. Finished orders are not saved.
+ * </p>
+ */
+public class SimSnapshot {
+    static final int MAGIC = 0x53505443; // "CTPS"
+    static final short VERSION = 4;
+    static final int INITIAL_SIZE = 64 * 1024;
+
+    private SimSnapshot() {}
+
+    /**
+     * Save the global tick source and trade book into the specified file.
+     *
+     * @param file snapshot file
+     * @throws IOException if the file can't be written
+     */
+    public static void save(Path file) throws IOException {
+        save(file, TickSource.getTickSource(), TradeBook.getTradeSource());
+    }
+
+    /**
+     * Save common data and the specified tick source and trade book into the
+     * specified file. The tick source must be stopped, and orders must not be
+     * sent during the call.
+     *
+     * @param file   snapshot file
+     * @param source tick source
+     * @param book   trade book
+     * @throws IOException if the file can't be written
+     */
+    public static void save(Path file, TickSource source, TradeBook book)
+            throws IOException {
+        if (file == null)
+            throw new NullPointerException("file null");
+        var out = new Output(INITIAL_SIZE);
+        out.putInt(MAGIC);
+        out.putShort(VERSION);
+        out.putShort((short) 0);
+        CommonData.save(out);
+        source.save(out);
+        book.save(out);
+        var b = out.buffer().flip();
+        var tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (var channel = FileChannel.open(tmp, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            while (b.hasRemaining())
+                channel.write(b);
+            channel.force(false);
+        }
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Load the specified file into the global tick source and trade book.
+     *
+     * @param file snapshot file
+     * @throws IOException if the file can't be read or is not a snapshot
+     */
+    public static void load(Path file) throws IOException {
+        load(file, TickSource.getTickSource(), TradeBook.getTradeSource());
+    }
+
+    /**
+     * Load the specified file into common data and the specified tick source and
+     * trade book. Common data and books of the tick source are replaced. The tick
+     * source must be stopped, and the trade book must be empty and have no
+     * journal.
+     *
+     * @param file   snapshot file
+     * @param source tick source
+     * @param book   trade book
+     * @throws IOException if the file can't be read or is not a snapshot
+     */
+    public static void load(Path file, TickSource source, TradeBook book)
+            throws IOException {
+        if (file == null)
+            throw new NullPointerException("file null");
+        ByteBuffer b;
+        try (var channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            b = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        b.order(ByteOrder.LITTLE_ENDIAN);
+        var in = new Input(b);
+        try {
+            if (in.getInt() != MAGIC)
+                throw new IOException("not a simulator snapshot: " + file);
+            if (in.getShort() != VERSION)
+                throw new IOException("unsupported snapshot version: " + file);
+            in.getShort();
+            // Decode the whole file before anything is replaced, so a broken
+            // snapshot leaves the simulator as it is.
+            var data = CommonData.load(in);
+            var books = source.load(in);
+            var orders = book.load(in);
+            data.run();
+            books.run();
+            orders.run();
+        } catch (IndexOutOfBoundsException | BufferUnderflowException e) {
+            throw new IOException("broken snapshot: " + file, e);
+        }
+    }
+
+    /*
+     * Growing little-endian buffer that snapshot parts are written into.
+     */
+    static class Output {
+        private ByteBuffer b;
+
+        Output(int capacity) {
+            this.b = ByteBuffer.allocate(capacity).order(ByteOrder.LITTLE_ENDIAN);
+        }
+
+        ByteBuffer buffer() {
+            return this.b;
+        }
+
+        void putByte(byte v) {
+            ensure(1).put(v);
+        }
+
+        void putShort(short v) {
+            ensure(2).putShort(v);
+        }
+
+        void putInt(int v) {
+            ensure(4).putInt(v);
+        }
+
+        void putLong(long v) {
+            ensure(8).putLong(v);
+        }
+
+        void putDouble(double v) {
+            ensure(8).putDouble(v);
+        }
+
+        void putString(String s) {
+            ensure(StructCodec.size(s));
+            this.b.position(StructCodec.putString(this.b, this.b.position(), s));
+        }
+
+        void putStruct(Object o) {
+            var codec = StructCodec.of(o.getClass());
+            ensure(codec.size(o));
+            this.b.position(codec.write(this.b, this.b.position(), o));
+        }
+
+        <T> void putMap(Map<String, T> map) {
+            putInt(map.size());
+            for (var entry : map.entrySet()) {
+                putString(entry.getKey());
+                putStruct(entry.getValue());
+            }
+        }
+
+        private ByteBuffer ensure(int size) {
+            if (this.b.remaining() < size) {
+                var n = ByteBuffer.allocate(
+                        Math.max(this.b.capacity() * 2, this.b.position() + size))
+                        .order(ByteOrder.LITTLE_ENDIAN);
+                n.put(this.b.flip());
+                this.b = n;
+            }
+            return this.b;
+        }
+    }
+
+    /*
+     * Reader of snapshot parts. Structs read by one input share their equal
+     * strings.
+     */
+    static class Input {
+        private final ByteBuffer b;
+        private final StructCodec.StringCache strings
+                = new StructCodec.StringCache(4096);
+
+        Input(ByteBuffer b) {
+            this.b = b;
+        }
+
+        byte getByte() {
+            return this.b.get();
+        }
+
+        short getShort() {
+            return this.b.getShort();
+        }
+
+        int getInt() {
+            return this.b.getInt();
+        }
+
+        long getLong() {
+            return this.b.getLong();
+        }
+
+        double getDouble() {
+            return this.b.getDouble();
+        }
+
+        String getString() {
+            var at = this.b.position();
+            var s = StructCodec.getString(this.b, at, this.strings);
+            this.b.position(StructCodec.skipString(this.b, at));
+            return s;
+        }
+
+        <T> T getStruct(Class<T> type) {
+            var codec = StructCodec.of(type);
+            var o = type.cast(codec.create());
+            this.b.position(codec.read(this.b, this.b.position(), o, this.strings));
+            return o;
+        }
+
+        <T> void getMap(Map<String, T> map, Class<T> type) {
+            map.clear();
+            var n = getInt();
+            for (int i = 0; i < n; ++i) {
+                var key = getString();
+                map.put(key, getStruct(type));
+            }
+        }
+    }
+}
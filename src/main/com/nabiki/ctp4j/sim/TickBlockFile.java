@@ -0,0 +1,268 @@
+/*
+ * Copyright (c) 2020 Hongbao Chen <chenhongbao@outlook.com>
+ *
+ * Licensed under the  GNU Affero General Public License v3.0 and you may not use
+ * this file except in compliance with the  License. You may obtain a copy of the
+ * License at
+ *
+ *                    https://www.gnu.org/licenses/agpl-3.0.txt
+ *
+ * Permission is hereby  granted, free of charge, to any  person obtaining a copy
+ * of this software and associated  documentation files (the "Software"), to deal
+ * in the Software  without restriction, including without  limitation the rights
+ * to  use, copy,  modify, merge,  publish, distribute,  sublicense, and/or  sell
+ * copies  of  the Software,  and  to  permit persons  to  whom  the Software  is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE  IS PROVIDED "AS  IS", WITHOUT WARRANTY  OF ANY KIND,  EXPRESS OR
+ * IMPLIED,  INCLUDING BUT  NOT  LIMITED TO  THE  WARRANTIES OF  MERCHANTABILITY,
+ * FITNESS FOR  A PARTICULAR PURPOSE AND  NONINFRINGEMENT. IN NO EVENT  SHALL THE
+ * AUTHORS  OR COPYRIGHT  HOLDERS  BE  LIABLE FOR  ANY  CLAIM,  DAMAGES OR  OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF  CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE  OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.nabiki.ctp4j.sim;
+
+import com.nabiki.ctp4j.jni.struct.CThostFtdcDepthMarketDataField;
+
+import java.util.Arrays;
+
+/**
+ * Layout and column codec of compressed tick files written by
+ * {@link TickRecorder}.
+ *
+ * <p>Records are grouped in blocks of at most {@link #BLOCK_RECORDS} records and
+ * each block is encoded column by column, then compressed by deflate. Blocks are
+ * independent, so a reader decodes only the blocks the index selects.
+ * </p>
+ * <pre>
+ * header, 8 bytes: int magic, short version, short zero
+ * block: int compressed size, int raw size, int record count, compressed bytes
+ * footer:
+ *   int instrument count, then UTF instrument ID and exchange ID of each,
+ *   UTF trading day,
+ *   int block count, then for each block long offset, long min time,
+ *   long max time, int record count, int instrument count and int indexes
+ * trailer, 16 bytes: long footer offset, int magic, int version
+ * </pre>
+ *
+ * <p>A raw block holds {@link #COLUMNS} columns, each a varint length and then
+ * varint values. Time is delta-encoded against the previous record and the
+ * instrument column holds indexes into the instrument table. Other fields are
+ * delta-encoded against the previous record of the same instrument in the block:
+ * integer fields as zigzag varints, prices as fixed point with four decimals. A
+ * price that doesn't fit fixed point, like {@code Double.MAX_VALUE} of an empty
+ * level, is written raw once and then referred to while it stays the same.
+ * </p>
+ */
+class TickBlockFile {
+    static final int MAGIC = 0x4354505a; // "CTPZ"
+    static final short VERSION = 1;
+    static final int HEADER_SIZE = 8, BLOCK_HEADER_SIZE = 12, TRAILER_SIZE = 16;
+    static final int BLOCK_RECORDS = 4096;
+
+    static final int PRICES = 24, INTS = 11;
+    static final int C_TIME = 0, C_INSTRUMENT = 1, C_INTS = 2, C_PRICES = C_INTS + INTS;
+    static final int COLUMNS = C_PRICES + PRICES;
+
+    // Price tags, in the low bits of the varint.
+    static final long TAG_RAW = 1, TAG_SAME_RAW = 3;
+    static final double SCALE = 10000.0D;
+
+    static void fields(CThostFtdcDepthMarketDataField d, long[] ints, double[] prices) {
+        ints[0] = d.Volume;
+        ints[1] = d.BidVolume1;
+        ints[2] = d.AskVolume1;
+        ints[3] = d.BidVolume2;
+        ints[4] = d.AskVolume2;
+        ints[5] = d.BidVolume3;
+        ints[6] = d.AskVolume3;
+        ints[7] = d.BidVolume4;
+        ints[8] = d.AskVolume4;
+        ints[9] = d.BidVolume5;
+        ints[10] = d.AskVolume5;
+        prices[0] = d.LastPrice;
+        prices[1] = d.PreSettlementPrice;
+        prices[2] = d.PreClosePrice;
+        prices[3] = d.PreOpenInterest;
+        prices[4] = d.OpenPrice;
+        prices[5] = d.HighestPrice;
+        prices[6] = d.LowestPrice;
+        prices[7] = d.Turnover;
+        prices[8] = d.OpenInterest;
+        prices[9] = d.ClosePrice;
+        prices[10] = d.SettlementPrice;
+        prices[11] = d.UpperLimitPrice;
+        prices[12] = d.LowerLimitPrice;
+        prices[13] = d.AveragePrice;
+        prices[14] = d.BidPrice1;
+        prices[15] = d.AskPrice1;
+        prices[16] = d.BidPrice2;
+        prices[17] = d.AskPrice2;
+        prices[18] = d.BidPrice3;
+        prices[19] = d.AskPrice3;
+        prices[20] = d.BidPrice4;
+        prices[21] = d.AskPrice4;
+        prices[22] = d.BidPrice5;
+        prices[23] = d.AskPrice5;
+    }
+
+    static void apply(CThostFtdcDepthMarketDataField d, long[][] ints,
+                      double[][] prices, int row) {
+        d.Volume = (int) ints[0][row];
+        d.BidVolume1 = (int) ints[1][row];
+        d.AskVolume1 = (int) ints[2][row];
+        d.BidVolume2 = (int) ints[3][row];
+        d.AskVolume2 = (int) ints[4][row];
+        d.BidVolume3 = (int) ints[5][row];
+        d.AskVolume3 = (int) ints[6][row];
+        d.BidVolume4 = (int) ints[7][row];
+        d.AskVolume4 = (int) ints[8][row];
+        d.BidVolume5 = (int) ints[9][row];
+        d.AskVolume5 = (int) ints[10][row];
+        d.LastPrice = prices[0][row];
+        d.PreSettlementPrice = prices[1][row];
+        d.PreClosePrice = prices[2][row];
+        d.PreOpenInterest = prices[3][row];
+        d.OpenPrice = prices[4][row];
+        d.HighestPrice = prices[5][row];
+        d.LowestPrice = prices[6][row];
+        d.Turnover = prices[7][row];
+        d.OpenInterest = prices[8][row];
+        d.ClosePrice = prices[9][row];
+        d.SettlementPrice = prices[10][row];
+        d.UpperLimitPrice = prices[11][row];
+        d.LowerLimitPrice = prices[12][row];
+        d.AveragePrice = prices[13][row];
+        d.BidPrice1 = prices[14][row];
+        d.AskPrice1 = prices[15][row];
+        d.BidPrice2 = prices[16][row];
+        d.AskPrice2 = prices[17][row];
+        d.BidPrice3 = prices[18][row];
+        d.AskPrice3 = prices[19][row];
+        d.BidPrice4 = prices[20][row];
+        d.AskPrice4 = prices[21][row];
+        d.BidPrice5 = prices[22][row];
+        d.AskPrice5 = prices[23][row];
+    }
+
+    /**
+     * Fixed point value of the specified price, or {@link Long#MIN_VALUE} if the
+     * price can't be represented exactly.
+     */
+    static long fixed(double price) {
+        if (!(Math.abs(price) < 1.0E11D))
+            return Long.MIN_VALUE;
+        var f = Math.round(price * SCALE);
+        return f / SCALE == price ? f : Long.MIN_VALUE;
+    }
+
+    static long zigzag(long v) {
+        return (v << 1) ^ (v >> 63);
+    }
+
+    static long unzigzag(long v) {
+        return (v >>> 1) ^ -(v & 1);
+    }
+
+    /**
+     * Previous values of one instrument in the current block, the base of deltas.
+     */
+    static class Previous {
+        final long[] ints = new long[INTS];
+        final long[] fixed = new long[PRICES];
+        final long[] raw = new long[PRICES];
+        int block = -1;
+
+        // Reset once per block, so blocks decode independently.
+        void reset(int block) {
+            if (this.block != block) {
+                this.block = block;
+                Arrays.fill(this.ints, 0);
+                Arrays.fill(this.fixed, 0);
+                Arrays.fill(this.raw, 0);
+            }
+        }
+    }
+
+    /**
+     * Growable byte buffer with varint coding.
+     */
+    static class Bytes {
+        byte[] data;
+        int size = 0;
+
+        Bytes(int capacity) {
+            this.data = new byte[capacity];
+        }
+
+        void clear() {
+            this.size = 0;
+        }
+
+        private void ensure(int more) {
+            if (this.size + more > this.data.length)
+                this.data = Arrays.copyOf(this.data,
+                        Math.max(this.data.length * 2, this.size + more));
+        }
+
+        void writeVar(long v) {
+            ensure(10);
+            while ((v & ~0x7FL) != 0) {
+                this.data[this.size++] = (byte) ((v & 0x7F) | 0x80);
+                v >>>= 7;
+            }
+            this.data[this.size++] = (byte) v;
+        }
+
+        void writeLong(long v) {
+            ensure(8);
+            for (int i = 0; i < 8; ++i) {
+                this.data[this.size++] = (byte) v;
+                v >>>= 8;
+            }
+        }
+
+        void write(Bytes other) {
+            ensure(other.size);
+            System.arraycopy(other.data, 0, this.data, this.size, other.size);
+            this.size += other.size;
+        }
+    }
+
+    /**
+     * Reader of varints from a byte array.
+     */
+    static class Input {
+        final byte[] data;
+        int position;
+
+        Input(byte[] data) {
+            this.data = data;
+        }
+
+        long readVar() {
+            long r = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = this.data[this.position++];
+                r |= (long) (b & 0x7F) << shift;
+                shift += 7;
+            } while (b < 0);
+            return r;
+        }
+
+        long readLong() {
+            long r = 0;
+            for (int i = 0; i < 8; ++i)
+                r |= (long) (this.data[this.position++] & 0xFF) << (8 * i);
+            return r;
+        }
+    }
+}
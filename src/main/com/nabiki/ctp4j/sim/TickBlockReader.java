@@ -0,0 +1,279 @@
+/*
+ * Copyright (c) 2020 Hongbao Chen <chenhongbao@outlook.com>
+ *
+ * Licensed under the  GNU Affero General Public License v3.0 and you may not use
+ * this file except in compliance with the  License. You may obtain a copy of the
+ * License at
+ *
+ *                    https://www.gnu.org/licenses/agpl-3.0.txt
+ *
+ * Permission is hereby  granted, free of charge, to any  person obtaining a copy
+ * of this software and associated  documentation files (the "Software"), to deal
+ * in the Software  without restriction, including without  limitation the rights
+ * to  use, copy,  modify, merge,  publish, distribute,  sublicense, and/or  sell
+ * copies  of  the Software,  and  to  permit persons  to  whom  the Software  is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE  IS PROVIDED "AS  IS", WITHOUT WARRANTY  OF ANY KIND,  EXPRESS OR
+ * IMPLIED,  INCLUDING BUT  NOT  LIMITED TO  THE  WARRANTIES OF  MERCHANTABILITY,
+ * FITNESS FOR  A PARTICULAR PURPOSE AND  NONINFRINGEMENT. IN NO EVENT  SHALL THE
+ * AUTHORS  OR COPYRIGHT  HOLDERS  BE  LIABLE FOR  ANY  CLAIM,  DAMAGES OR  OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF  CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE  OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.nabiki.ctp4j.sim;
+
+import com.nabiki.ctp4j.jni.struct.CThostFtdcDepthMarketDataField;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Set;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import static com.nabiki.ctp4j.sim.TickBlockFile.*;
+
+/**
+ * Cursor over records of a compressed tick file written by {@link TickRecorder}.
+ * The block index is loaded on open, and only blocks that have selected
+ * instruments in the selected time range are read and decoded.
+ */
+class TickBlockReader implements TickCursor {
+    private final FileChannel channel;
+    private final String[] instrumentIDs, exchangeIDs;
+    private final String tradingDay;
+    private final long[] offsets, minTimes, maxTimes;
+    private final int[] counts;
+    private final int[][] blockInstruments;
+    private final long count;
+
+    // Selection.
+    private boolean[] selected;
+    private long from = Long.MIN_VALUE, to = Long.MAX_VALUE;
+
+    // Decoded block.
+    private final Inflater inflater = new Inflater();
+    private byte[] compressed = new byte[BLOCK_RECORDS * 64], raw = new byte[0];
+    private final long[] times = new long[BLOCK_RECORDS];
+    private final int[] instruments = new int[BLOCK_RECORDS];
+    private final long[][] ints = new long[INTS][BLOCK_RECORDS];
+    private final double[][] prices = new double[PRICES][BLOCK_RECORDS];
+    private final int[] positions = new int[COLUMNS];
+    private Previous[] previous;
+    private int block = -1, rows = 0, row = -1;
+    private final TickFile.TimeText timeText = new TickFile.TimeText();
+
+    TickBlockReader(Path file) throws IOException {
+        this.channel = FileChannel.open(file, StandardOpenOption.READ);
+        try {
+            var size = this.channel.size();
+            if (size < HEADER_SIZE + TRAILER_SIZE)
+                throw new IOException("not a compressed tick file: " + file);
+            var trailer = read(size - TRAILER_SIZE, TRAILER_SIZE);
+            var footerOffset = trailer.getLong();
+            if (trailer.getInt() != MAGIC)
+                throw new IOException("not a compressed tick file: " + file);
+            if (trailer.getInt() != VERSION)
+                throw new IOException("unsupported tick file version: " + file);
+            var footer = read(footerOffset, (int) (size - TRAILER_SIZE - footerOffset));
+            var in = new DataInputStream(new ByteArrayInputStream(
+                    footer.array(), 0, footer.limit()));
+            var n = in.readInt();
+            this.instrumentIDs = new String[n];
+            this.exchangeIDs = new String[n];
+            this.previous = new Previous[n];
+            for (int i = 0; i < n; ++i) {
+                this.instrumentIDs[i] = in.readUTF();
+                this.exchangeIDs[i] = in.readUTF();
+                this.previous[i] = new Previous();
+            }
+            this.tradingDay = in.readUTF();
+            var blocks = in.readInt();
+            this.offsets = new long[blocks];
+            this.minTimes = new long[blocks];
+            this.maxTimes = new long[blocks];
+            this.counts = new int[blocks];
+            this.blockInstruments = new int[blocks][];
+            long total = 0;
+            for (int i = 0; i < blocks; ++i) {
+                this.offsets[i] = in.readLong();
+                this.minTimes[i] = in.readLong();
+                this.maxTimes[i] = in.readLong();
+                this.counts[i] = in.readInt();
+                this.blockInstruments[i] = new int[in.readInt()];
+                for (int j = 0; j < this.blockInstruments[i].length; ++j)
+                    this.blockInstruments[i][j] = in.readInt();
+                total += this.counts[i];
+            }
+            this.count = total;
+        } catch (IOException | RuntimeException e) {
+            this.channel.close();
+            throw e;
+        }
+    }
+
+    private ByteBuffer read(long position, int size) throws IOException {
+        var buffer = ByteBuffer.allocate(size);
+        while (buffer.hasRemaining())
+            if (this.channel.read(buffer, position + buffer.position()) < 0)
+                throw new IOException("unexpected end of tick file");
+        return buffer.flip();
+    }
+
+    @Override
+    public long count() {
+        return this.count;
+    }
+
+    @Override
+    public void select(Set<String> instruments, long from, long to) {
+        if (this.block >= 0)
+            throw new IllegalStateException("select after first record");
+        if (instruments != null) {
+            this.selected = new boolean[this.instrumentIDs.length];
+            for (int i = 0; i < this.instrumentIDs.length; ++i)
+                this.selected[i] = instruments.contains(this.instrumentIDs[i]);
+        }
+        this.from = from;
+        this.to = to;
+    }
+
+    @Override
+    public boolean next() {
+        while (true) {
+            while (++this.row < this.rows) {
+                var time = this.times[this.row];
+                if (time >= this.from && time <= this.to && (this.selected == null
+                        || this.selected[this.instruments[this.row]]))
+                    return true;
+            }
+            if (!nextBlock())
+                return false;
+        }
+    }
+
+    private boolean nextBlock() {
+        while (++this.block < this.offsets.length) {
+            if (this.maxTimes[this.block] < this.from
+                    || this.minTimes[this.block] > this.to || !hasSelected(this.block))
+                continue;
+            try {
+                decode(this.block);
+            } catch (IOException | DataFormatException e) {
+                throw new IllegalStateException("bad tick block " + this.block, e);
+            }
+            return true;
+        }
+        this.rows = 0;
+        return false;
+    }
+
+    private boolean hasSelected(int block) {
+        if (this.selected == null)
+            return true;
+        for (var i : this.blockInstruments[block])
+            if (this.selected[i])
+                return true;
+        return false;
+    }
+
+    private void decode(int block) throws IOException, DataFormatException {
+        var header = read(this.offsets[block], BLOCK_HEADER_SIZE);
+        var compressedSize = header.getInt();
+        var rawSize = header.getInt();
+        var count = header.getInt();
+        if (count < 0 || count > BLOCK_RECORDS)
+            throw new DataFormatException("bad record count " + count);
+        if (this.compressed.length < compressedSize)
+            this.compressed = new byte[compressedSize];
+        var buffer = ByteBuffer.wrap(this.compressed, 0, compressedSize);
+        var position = this.offsets[block] + BLOCK_HEADER_SIZE;
+        while (buffer.hasRemaining())
+            if (this.channel.read(buffer, position + buffer.position()) < 0)
+                throw new IOException("unexpected end of tick file");
+        if (this.raw.length < rawSize)
+            this.raw = new byte[rawSize];
+        this.inflater.reset();
+        this.inflater.setInput(this.compressed, 0, compressedSize);
+        if (this.inflater.inflate(this.raw, 0, rawSize) != rawSize)
+            throw new DataFormatException("short block");
+        // Locate columns.
+        var in = new Input(this.raw);
+        for (int c = 0; c < COLUMNS; ++c) {
+            var length = (int) in.readVar();
+            this.positions[c] = in.position;
+            in.position += length;
+        }
+        long time = 0;
+        for (int r = 0; r < count; ++r) {
+            time += unzigzag(var(in, C_TIME));
+            this.times[r] = time;
+            var instrument = (int) var(in, C_INSTRUMENT);
+            this.instruments[r] = instrument;
+            var p = this.previous[instrument];
+            p.reset(block);
+            for (int i = 0; i < INTS; ++i)
+                this.ints[i][r] = p.ints[i] += unzigzag(var(in, C_INTS + i));
+            for (int i = 0; i < PRICES; ++i) {
+                var v = var(in, C_PRICES + i);
+                if ((v & 1) == 0)
+                    this.prices[i][r] = (p.fixed[i] += unzigzag(v >>> 1)) / SCALE;
+                else {
+                    if (v == TAG_RAW) {
+                        in.position = this.positions[C_PRICES + i];
+                        p.raw[i] = in.readLong();
+                        this.positions[C_PRICES + i] = in.position;
+                    }
+                    this.prices[i][r] = Double.longBitsToDouble(p.raw[i]);
+                }
+            }
+        }
+        this.rows = count;
+        this.row = -1;
+    }
+
+    private long var(Input in, int column) {
+        in.position = this.positions[column];
+        var v = in.readVar();
+        this.positions[column] = in.position;
+        return v;
+    }
+
+    @Override
+    public long timestamp() {
+        return this.times[this.row];
+    }
+
+    @Override
+    public String instrumentID() {
+        return this.instrumentIDs[this.instruments[this.row]];
+    }
+
+    @Override
+    public CThostFtdcDepthMarketDataField read(CThostFtdcDepthMarketDataField depth) {
+        var instrument = this.instruments[this.row];
+        depth.InstrumentID = this.instrumentIDs[instrument];
+        depth.ExchangeID = this.exchangeIDs[instrument];
+        depth.ExchangeInstID = depth.InstrumentID;
+        depth.TradingDay = this.tradingDay;
+        this.timeText.apply(this.times[this.row], depth);
+        apply(depth, this.ints, this.prices, this.row);
+        return depth;
+    }
+
+    @Override
+    public void close() throws IOException {
+        this.inflater.end();
+        this.channel.close();
+    }
+}
@@ -29,13 +29,10 @@
 package com.nabiki.ctp4j.sim;
 
 import com.nabiki.ctp4j._x.OP;
+import com.nabiki.ctp4j._x.SimClock;
 import com.nabiki.ctp4j.jni.struct.CThostFtdcDepthMarketDataField;
 
-import java.time.LocalDate;
-import java.time.LocalTime;
-import java.time.format.DateTimeFormatter;
 import java.util.Objects;
-import java.util.Random;
 
 public class TickBook {
     enum SpreadType {
@@ -43,14 +40,24 @@ public class TickBook {
     }
 
     private final double priceTick;
-    private final Random rand = new Random(TickBook.class.hashCode());
+    private final RestorableRandom rand
+            = new RestorableRandom(TickBook.class.hashCode());
     private final CThostFtdcDepthMarketDataField md;
-    private final DateTimeFormatter dayFormat = DateTimeFormatter.ofPattern("yyyyMMdd");
-    private final DateTimeFormatter timeFormat = DateTimeFormatter.ofPattern("HH:mm:ss");
+    // Day and time strings, rebuilt only when the day or the second changes.
+    private final TickFile.TimeText timeText = new TickFile.TimeText();
+
+    /**
+     * Number of preallocated depth slots in the snapshot ring of a book. A snapshot
+     * stays unchanged until the book has published this many newer snapshots.
+     */
+    public static final int SNAPSHOT_SLOTS = 64;
 
     // Buy chance.
     private double buyChance = 0.5;
 
+    // Snapshot ring, allocated on first snapshot.
+    private DepthRing ring;
+
     public TickBook(CThostFtdcDepthMarketDataField origin, double priceTick) {
         if (origin == null)
             throw new NullPointerException("original market data null");
@@ -67,7 +74,87 @@ public class TickBook {
 
     public double getBuyChance() { return this.buyChance; }
 
+    public String getInstrumentID() {
+        return this.md.InstrumentID;
+    }
+
+    /**
+     * Seed the random generator of the book, so it generates the same sequence of
+     * depths from the same state.
+     *
+     * @param seed seed
+     */
+    public void setSeed(long seed) {
+        this.rand.setSeed(seed);
+    }
+
+    /**
+     * Generate the next depth and return it in a new object owned by the caller.
+     *
+     * @return new depth market data
+     */
     public CThostFtdcDepthMarketDataField refresh() {
+        update();
+        return OP.deepCopy(this.md);
+    }
+
+    /**
+     * Generate the next depth and write it into the specified depth owned by the
+     * caller. No object is created in steady state, so a caller that reuses its
+     * depth generates ticks without garbage.
+     *
+     * @param depth depth to write into
+     * @return the specified depth
+     */
+    public CThostFtdcDepthMarketDataField refresh(CThostFtdcDepthMarketDataField depth) {
+        Objects.requireNonNull(depth, "depth null");
+        update();
+        return OP.copyInto(this.md, depth);
+    }
+
+    /**
+     * Generate the next depth and write it into the next recycled slot of the
+     * book's snapshot ring. No object is created in steady state.
+     *
+     * <p>The returned depth is shared by all consumers and must be treated as
+     * read-only. It stays valid until the book publishes {@link #SNAPSHOT_SLOTS}
+     * more snapshots, so a consumer that keeps it longer must copy it.
+     * </p>
+     *
+     * @return shared read-only depth market data
+     */
+    public CThostFtdcDepthMarketDataField snapshot() {
+        update();
+        if (this.ring == null)
+            this.ring = new DepthRing(SNAPSHOT_SLOTS);
+        return OP.copyInto(this.md, this.ring.next());
+    }
+
+    /*
+     * Write state of the book into a snapshot.
+     */
+    void save(SimSnapshot.Output out) {
+        out.putStruct(this.md);
+        out.putDouble(this.priceTick);
+        out.putDouble(this.buyChance);
+        out.putLong(this.rand.getState());
+    }
+
+    /*
+     * Create a book from state read from a snapshot. It generates the same depths
+     * as the saved book.
+     */
+    static TickBook load(SimSnapshot.Input in) {
+        var md = in.getStruct(CThostFtdcDepthMarketDataField.class);
+        var book = new TickBook(md, in.getDouble());
+        // Highest and lowest prices too.
+        OP.copyInto(md, book.md);
+        book.buyChance = in.getDouble();
+        book.rand.setState(in.getLong());
+        return book;
+    }
+
+    private void update() {
         SpreadType direction;
         if (this.rand.nextDouble() < this.buyChance)
             direction = SpreadType.ASK;
@@ -116,16 +203,13 @@ public class TickBook {
         this.md.BidVolume1 = Math.max(this.md.BidVolume1, 0);
 
         // Day and time.
-        this.md.TradingDay = OP.getTradingDay(LocalDate.now());
-        this.md.ActionDay = LocalDate.now().format(this.dayFormat);
-        this.md.UpdateTime = LocalTime.now().format(this.timeFormat);
-        this.md.UpdateMillisec = (int)(System.currentTimeMillis() % 1000);
+        var now = SimClock.current().millis();
+        this.md.TradingDay = this.timeText.tradingDay(now);
+        this.timeText.apply(now, this.md);
 
         // Highest/lowest prices.
         this.md.HighestPrice = Math.max(this.md.LastPrice, this.md.HighestPrice);
         this.md.LowestPrice = Math.min(this.md.LastPrice, this.md.LowestPrice);
-
-        return OP.deepCopy(this.md);
     }
 
     private int nextRandomVolume(int bbound) {
@@ -0,0 +1,85 @@
+/*
+ * Copyright (c) 2020 Hongbao Chen <chenhongbao@outlook.com>
+ *
+ * Licensed under the  GNU Affero General Public License v3.0 and you may not use
+ * this file except in compliance with the  License. You may obtain a copy of the
+ * License at
+ *
+ *                    https://www.gnu.org/licenses/agpl-3.0.txt
+ *
+ * Permission is hereby  granted, free of charge, to any  person obtaining a copy
+ * of this software and associated  documentation files (the "Software"), to deal
+ * in the Software  without restriction, including without  limitation the rights
+ * to  use, copy,  modify, merge,  publish, distribute,  sublicense, and/or  sell
+ * copies  of  the Software,  and  to  permit persons  to  whom  the Software  is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE  IS PROVIDED "AS  IS", WITHOUT WARRANTY  OF ANY KIND,  EXPRESS OR
+ * IMPLIED,  INCLUDING BUT  NOT  LIMITED TO  THE  WARRANTIES OF  MERCHANTABILITY,
+ * FITNESS FOR  A PARTICULAR PURPOSE AND  NONINFRINGEMENT. IN NO EVENT  SHALL THE
+ * AUTHORS  OR COPYRIGHT  HOLDERS  BE  LIABLE FOR  ANY  CLAIM,  DAMAGES OR  OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF  CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE  OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.nabiki.ctp4j.sim;
+
+import com.nabiki.ctp4j.jni.struct.CThostFtdcDepthMarketDataField;
+
+import java.io.Closeable;
+import java.util.Set;
+
+/**
+ * Cursor over depths recorded in a tick file.
+ */
+interface TickCursor extends Closeable {
+    /**
+     * Get number of records in the file, selected or not.
+     *
+     * @return number of records
+     */
+    long count();
+
+    /**
+     * Restrict the cursor to records of the specified instruments within the
+     * specified time range. It must be called before the first {@link #next()}.
+     *
+     * @param instruments selected instrument IDs, or {@code null} for all
+     * @param from first selected timestamp, inclusive
+     * @param to last selected timestamp, inclusive
+     */
+    void select(Set<String> instruments, long from, long to);
+
+    /**
+     * Move to the next selected record.
+     *
+     * @return {@code false} if there are no more records
+     */
+    boolean next();
+
+    /**
+     * Get timestamp of the current record.
+     *
+     * @return milliseconds since epoch in local time
+     */
+    long timestamp();
+
+    /**
+     * Get instrument ID of the current record.
+     *
+     * @return instrument ID
+     */
+    String instrumentID();
+
+    /**
+     * Decode the current record into the specified depth.
+     *
+     * @param depth depth to write into
+     * @return the specified depth
+     */
+    CThostFtdcDepthMarketDataField read(CThostFtdcDepthMarketDataField depth);
+}
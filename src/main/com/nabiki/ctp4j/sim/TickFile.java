@@ -0,0 +1,192 @@
+/*
+ * Copyright (c) 2020 Hongbao Chen <chenhongbao@outlook.com>
+ *
+ * Licensed under the  GNU Affero General Public License v3.0 and you may not use
+ * this file except in compliance with the  License. You may obtain a copy of the
+ * License at
+ *
+ *                    https://www.gnu.org/licenses/agpl-3.0.txt
+ *
+ * Permission is hereby  granted, free of charge, to any  person obtaining a copy
+ * of this software and associated  documentation files (the "Software"), to deal
+ * in the Software  without restriction, including without  limitation the rights
+ * to  use, copy,  modify, merge,  publish, distribute,  sublicense, and/or  sell
+ * copies  of  the Software,  and  to  permit persons  to  whom  the Software  is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE  IS PROVIDED "AS  IS", WITHOUT WARRANTY  OF ANY KIND,  EXPRESS OR
+ * IMPLIED,  INCLUDING BUT  NOT  LIMITED TO  THE  WARRANTIES OF  MERCHANTABILITY,
+ * FITNESS FOR  A PARTICULAR PURPOSE AND  NONINFRINGEMENT. IN NO EVENT  SHALL THE
+ * AUTHORS  OR COPYRIGHT  HOLDERS  BE  LIABLE FOR  ANY  CLAIM,  DAMAGES OR  OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF  CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE  OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.nabiki.ctp4j.sim;
+
+import com.nabiki.ctp4j._x.OP;
+import com.nabiki.ctp4j.jni.struct.CThostFtdcDepthMarketDataField;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.LocalTime;
+import java.time.format.DateTimeFormatter;
+
+/**
+ * Layout of binary tick files written by {@link TickFileWriter} and replayed by
+ * {@link TickReplay}.
+ *
+ * <p>A file starts with a fixed header, followed by fixed-size records in time
+ * order and the instrument table. All numbers are little-endian.
+ * </p>
+ * <pre>
+ * header, 64 bytes:
+ *   int magic, short version, short record size, long record count,
+ *   long table offset, 8 bytes trading day, zero padding
+ * record, 256 bytes:
+ *   long timestamp, int instrument index, int volume, 14 double prices,
+ *   5 levels of double bid/ask prices, 5 levels of int bid/ask volumes,
+ *   zero padding
+ * table, at table offset:
+ *   int count, then for each instrument 32 bytes instrument ID and 16 bytes
+ *   exchange ID, zero padded
+ * </pre>
+ *
+ * <p>Timestamp is milliseconds of the action day and update time since epoch,
+ * counted in local time without zone.
+ * </p>
+ */
+class TickFile {
+    static final int MAGIC = 0x54505443; // "CTPT"
+    static final short VERSION = 1;
+    static final int HEADER_SIZE = 64;
+    static final int RECORD_SIZE = 256;
+    static final int ID_SIZE = 32, EXCHANGE_SIZE = 16;
+    static final int TABLE_ENTRY_SIZE = ID_SIZE + EXCHANGE_SIZE;
+    static final ByteOrder ORDER = ByteOrder.LITTLE_ENDIAN;
+
+    // Header offsets.
+    static final int H_MAGIC = 0, H_VERSION = 4, H_RECORD_SIZE = 6, H_COUNT = 8,
+            H_TABLE = 16, H_TRADING_DAY = 24;
+
+    // Record offsets.
+    static final int R_TIME = 0, R_INSTRUMENT = 8, R_VOLUME = 12, R_PRICES = 16,
+            R_LEVEL_PRICES = R_PRICES + 14 * 8, R_LEVEL_VOLUMES = R_LEVEL_PRICES + 10 * 8;
+
+    static final long MILLIS_PER_DAY = 24L * 3600 * 1000;
+
+    // Night session starts at 21:00 and trades for the next trading day.
+    static final long NIGHT_MILLIS = 21L * 3600 * 1000;
+
+    /**
+     * Encode timestamp of the specified depth.
+     *
+     * @param depth depth
+     * @return milliseconds since epoch in local time
+     */
+    static long timestamp(CThostFtdcDepthMarketDataField depth) {
+        var day = depth.ActionDay;
+        if (day == null || day.length() != 8)
+            day = depth.TradingDay;
+        var time = depth.UpdateTime;
+        if (day == null || day.length() != 8 || time == null || time.length() != 8)
+            throw new IllegalArgumentException("bad depth time");
+        var epochDay = LocalDate.of(digits(day, 0, 4), digits(day, 4, 2),
+                digits(day, 6, 2)).toEpochDay();
+        var seconds = digits(time, 0, 2) * 3600 + digits(time, 3, 2) * 60
+                + digits(time, 6, 2);
+        return epochDay * MILLIS_PER_DAY + seconds * 1000L + depth.UpdateMillisec;
+    }
+
+    private static int digits(String s, int from, int count) {
+        int r = 0;
+        for (int i = from; i < from + count; ++i) {
+            var c = s.charAt(i);
+            if (c < '0' || c > '9')
+                throw new IllegalArgumentException("bad digit in " + s);
+            r = r * 10 + (c - '0');
+        }
+        return r;
+    }
+
+    /**
+     * Decoder of timestamps into day and time strings of depths. Strings are
+     * cached and built only when the day or the second changes.
+     */
+    static class TimeText {
+        private long day = Long.MIN_VALUE, second = Long.MIN_VALUE,
+                session = Long.MIN_VALUE;
+        private String actionDay, updateTime, tradingDay;
+        private final char[] chars = new char[] {'0', '0', ':', '0', '0', ':', '0', '0'};
+
+        void apply(long time, CThostFtdcDepthMarketDataField depth) {
+            var d = Math.floorDiv(time, MILLIS_PER_DAY);
+            var millisOfDay = time - d * MILLIS_PER_DAY;
+            if (d != this.day) {
+                this.day = d;
+                this.actionDay = LocalDate.ofEpochDay(d)
+                        .format(DateTimeFormatter.BASIC_ISO_DATE);
+            }
+            var s = Math.floorDiv(time, 1000);
+            if (s != this.second) {
+                this.second = s;
+                var secondOfDay = (int) (millisOfDay / 1000);
+                put2(secondOfDay / 3600, 0);
+                put2(secondOfDay / 60 % 60, 3);
+                put2(secondOfDay % 60, 6);
+                this.updateTime = new String(this.chars);
+            }
+            depth.ActionDay = this.actionDay;
+            depth.UpdateTime = this.updateTime;
+            depth.UpdateMillisec = (int) (millisOfDay % 1000);
+        }
+
+        /**
+         * Get trading day of the specified timestamp. The string is cached and
+         * computed again only when the day changes or the night session begins.
+         *
+         * @param time milliseconds since epoch in local time
+         * @return trading day
+         */
+        String tradingDay(long time) {
+            var d = Math.floorDiv(time, MILLIS_PER_DAY);
+            var millisOfDay = time - d * MILLIS_PER_DAY;
+            var s = d * 2 + (millisOfDay >= NIGHT_MILLIS ? 1 : 0);
+            if (s != this.session) {
+                this.session = s;
+                this.tradingDay = OP.getTradingDay(LocalDateTime.of(
+                        LocalDate.ofEpochDay(d), LocalTime.ofNanoOfDay(
+                                millisOfDay * 1000_000L)));
+            }
+            return this.tradingDay;
+        }
+
+        private void put2(int value, int at) {
+            this.chars[at] = (char) ('0' + value / 10);
+            this.chars[at + 1] = (char) ('0' + value % 10);
+        }
+    }
+
+    static void putString(ByteBuffer buffer, int offset, String s, int size) {
+        var bytes = s == null ? new byte[0] : s.getBytes(StandardCharsets.US_ASCII);
+        if (bytes.length > size)
+            throw new IllegalArgumentException("string too long: " + s);
+        for (int i = 0; i < size; ++i)
+            buffer.put(offset + i, i < bytes.length ? bytes[i] : 0);
+    }
+
+    static String getString(ByteBuffer buffer, int offset, int size) {
+        var bytes = new byte[size];
+        int len = 0;
+        while (len < size && (bytes[len] = buffer.get(offset + len)) != 0)
+            ++len;
+        return new String(bytes, 0, len, StandardCharsets.US_ASCII);
+    }
+}
@@ -0,0 +1,225 @@
+/*
+ * Copyright (c) 2020 Hongbao Chen <chenhongbao@outlook.com>
+ *
+ * Licensed under the  GNU Affero General Public License v3.0 and you may not use
+ * this file except in compliance with the  License. You may obtain a copy of the
+ * License at
+ *
+ *                    https://www.gnu.org/licenses/agpl-3.0.txt
+ *
+ * Permission is hereby  granted, free of charge, to any  person obtaining a copy
+ * of this software and associated  documentation files (the "Software"), to deal
+ * in the Software  without restriction, including without  limitation the rights
+ * to  use, copy,  modify, merge,  publish, distribute,  sublicense, and/or  sell
+ * copies  of  the Software,  and  to  permit persons  to  whom  the Software  is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE  IS PROVIDED "AS  IS", WITHOUT WARRANTY  OF ANY KIND,  EXPRESS OR
+ * IMPLIED,  INCLUDING BUT  NOT  LIMITED TO  THE  WARRANTIES OF  MERCHANTABILITY,
+ * FITNESS FOR  A PARTICULAR PURPOSE AND  NONINFRINGEMENT. IN NO EVENT  SHALL THE
+ * AUTHORS  OR COPYRIGHT  HOLDERS  BE  LIABLE FOR  ANY  CLAIM,  DAMAGES OR  OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF  CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE  OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.nabiki.ctp4j.sim;
+
+import com.nabiki.ctp4j.jni.struct.CThostFtdcDepthMarketDataField;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Set;
+
+import static com.nabiki.ctp4j.sim.TickFile.*;
+
+/**
+ * Cursor over records of a binary tick file mapped into memory. Records are
+ * decoded straight from the mapped pages into a depth object without copying the
+ * bytes, and instrument ID and day strings are shared across records.
+ */
+class TickFileReader implements TickCursor {
+    // Whole records per mapped segment, so a record never spans two segments.
+    static final int SEGMENT_RECORDS = Integer.MAX_VALUE / RECORD_SIZE;
+
+    private final FileChannel channel;
+    private final MappedByteBuffer[] segments;
+    private final long count;
+    private final String tradingDay;
+    private final String[] instrumentIDs, exchangeIDs;
+
+    private long index = -1;
+    // Selected instruments by index, or null for all.
+    private boolean[] selected;
+    private long to = Long.MAX_VALUE;
+    private ByteBuffer segment;
+    private int offset;
+    private long time;
+    private final TimeText timeText = new TimeText();
+
+    TickFileReader(Path file) throws IOException {
+        this.channel = FileChannel.open(file, StandardOpenOption.READ);
+        try {
+            var header = this.channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_SIZE)
+                    .order(ORDER);
+            if (header.getInt(H_MAGIC) != MAGIC)
+                throw new IOException("not a tick file: " + file);
+            if (header.getShort(H_VERSION) != VERSION
+                    || header.getShort(H_RECORD_SIZE) != RECORD_SIZE)
+                throw new IOException("unsupported tick file version: " + file);
+            this.count = header.getLong(H_COUNT);
+            this.tradingDay = getString(header, H_TRADING_DAY, 8);
+            // Instrument table.
+            var tableOffset = header.getLong(H_TABLE);
+            var table = this.channel.map(FileChannel.MapMode.READ_ONLY, tableOffset,
+                    this.channel.size() - tableOffset).order(ORDER);
+            var n = table.getInt(0);
+            this.instrumentIDs = new String[n];
+            this.exchangeIDs = new String[n];
+            for (int i = 0; i < n; ++i) {
+                var at = 4 + i * TABLE_ENTRY_SIZE;
+                this.instrumentIDs[i] = getString(table, at, ID_SIZE);
+                this.exchangeIDs[i] = getString(table, at + ID_SIZE, EXCHANGE_SIZE);
+            }
+            // Records.
+            var segmentCount = (int) ((this.count + SEGMENT_RECORDS - 1) / SEGMENT_RECORDS);
+            this.segments = new MappedByteBuffer[segmentCount];
+            for (int i = 0; i < segmentCount; ++i) {
+                var first = (long) i * SEGMENT_RECORDS;
+                var records = Math.min(SEGMENT_RECORDS, this.count - first);
+                this.segments[i] = (MappedByteBuffer) this.channel.map(
+                        FileChannel.MapMode.READ_ONLY,
+                        HEADER_SIZE + first * RECORD_SIZE,
+                        records * RECORD_SIZE).order(ORDER);
+            }
+        } catch (IOException | RuntimeException e) {
+            this.channel.close();
+            throw e;
+        }
+    }
+
+    @Override
+    public long count() {
+        return this.count;
+    }
+
+    @Override
+    public void select(Set<String> instruments, long from, long to) {
+        if (this.index >= 0)
+            throw new IllegalStateException("select after first record");
+        if (instruments != null) {
+            this.selected = new boolean[this.instrumentIDs.length];
+            for (int i = 0; i < this.instrumentIDs.length; ++i)
+                this.selected[i] = instruments.contains(this.instrumentIDs[i]);
+        }
+        this.to = to;
+        // Records are in time order, so binary search the first selected one.
+        long low = 0, high = this.count;
+        while (low < high) {
+            var mid = (low + high) >>> 1;
+            if (timeAt(mid) < from)
+                low = mid + 1;
+            else
+                high = mid;
+        }
+        this.index = low - 1;
+    }
+
+    private long timeAt(long i) {
+        var s = (int) (i / SEGMENT_RECORDS);
+        return this.segments[s].getLong(
+                (int) (i - (long) s * SEGMENT_RECORDS) * RECORD_SIZE + R_TIME);
+    }
+
+    @Override
+    public boolean next() {
+        while (this.index + 1 < this.count) {
+            ++this.index;
+            var s = (int) (this.index / SEGMENT_RECORDS);
+            this.segment = this.segments[s];
+            this.offset = (int) (this.index - (long) s * SEGMENT_RECORDS) * RECORD_SIZE;
+            this.time = this.segment.getLong(this.offset + R_TIME);
+            if (this.time > this.to) {
+                this.index = this.count;
+                return false;
+            }
+            if (this.selected == null
+                    || this.selected[this.segment.getInt(this.offset + R_INSTRUMENT)])
+                return true;
+        }
+        return false;
+    }
+
+    @Override
+    public long timestamp() {
+        return this.time;
+    }
+
+    @Override
+    public String instrumentID() {
+        return this.instrumentIDs[this.segment.getInt(this.offset + R_INSTRUMENT)];
+    }
+
+    @Override
+    public CThostFtdcDepthMarketDataField read(CThostFtdcDepthMarketDataField depth) {
+        var b = this.segment;
+        var at = this.offset;
+        var instrument = b.getInt(at + R_INSTRUMENT);
+        depth.InstrumentID = this.instrumentIDs[instrument];
+        depth.ExchangeID = this.exchangeIDs[instrument];
+        depth.ExchangeInstID = depth.InstrumentID;
+        depth.TradingDay = this.tradingDay;
+        this.timeText.apply(this.time, depth);
+        depth.Volume = b.getInt(at + R_VOLUME);
+        var p = at + R_PRICES;
+        depth.LastPrice = b.getDouble(p);
+        depth.PreSettlementPrice = b.getDouble(p + 8);
+        depth.PreClosePrice = b.getDouble(p + 16);
+        depth.PreOpenInterest = b.getDouble(p + 24);
+        depth.OpenPrice = b.getDouble(p + 32);
+        depth.HighestPrice = b.getDouble(p + 40);
+        depth.LowestPrice = b.getDouble(p + 48);
+        depth.Turnover = b.getDouble(p + 56);
+        depth.OpenInterest = b.getDouble(p + 64);
+        depth.ClosePrice = b.getDouble(p + 72);
+        depth.SettlementPrice = b.getDouble(p + 80);
+        depth.UpperLimitPrice = b.getDouble(p + 88);
+        depth.LowerLimitPrice = b.getDouble(p + 96);
+        depth.AveragePrice = b.getDouble(p + 104);
+        p = at + R_LEVEL_PRICES;
+        depth.BidPrice1 = b.getDouble(p);
+        depth.AskPrice1 = b.getDouble(p + 8);
+        depth.BidPrice2 = b.getDouble(p + 16);
+        depth.AskPrice2 = b.getDouble(p + 24);
+        depth.BidPrice3 = b.getDouble(p + 32);
+        depth.AskPrice3 = b.getDouble(p + 40);
+        depth.BidPrice4 = b.getDouble(p + 48);
+        depth.AskPrice4 = b.getDouble(p + 56);
+        depth.BidPrice5 = b.getDouble(p + 64);
+        depth.AskPrice5 = b.getDouble(p + 72);
+        p = at + R_LEVEL_VOLUMES;
+        depth.BidVolume1 = b.getInt(p);
+        depth.AskVolume1 = b.getInt(p + 4);
+        depth.BidVolume2 = b.getInt(p + 8);
+        depth.AskVolume2 = b.getInt(p + 12);
+        depth.BidVolume3 = b.getInt(p + 16);
+        depth.AskVolume3 = b.getInt(p + 20);
+        depth.BidVolume4 = b.getInt(p + 24);
+        depth.AskVolume4 = b.getInt(p + 28);
+        depth.BidVolume5 = b.getInt(p + 32);
+        depth.AskVolume5 = b.getInt(p + 36);
+        return depth;
+    }
+
+    @Override
+    public void close() throws IOException {
+        this.channel.close();
+    }
+}
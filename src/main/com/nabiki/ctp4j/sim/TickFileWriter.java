@@ -0,0 +1,166 @@
+/*
+ * Copyright (c) 2020 Hongbao Chen <chenhongbao@outlook.com>
+ *
+ * Licensed under the  GNU Affero General Public License v3.0 and you may not use
+ * this file except in compliance with the  License. You may obtain a copy of the
+ * License at
+ *
+ *                    https://www.gnu.org/licenses/agpl-3.0.txt
+ *
+ * Permission is hereby  granted, free of charge, to any  person obtaining a copy
+ * of this software and associated  documentation files (the "Software"), to deal
+ * in the Software  without restriction, including without  limitation the rights
+ * to  use, copy,  modify, merge,  publish, distribute,  sublicense, and/or  sell
+ * copies  of  the Software,  and  to  permit persons  to  whom  the Software  is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE  IS PROVIDED "AS  IS", WITHOUT WARRANTY  OF ANY KIND,  EXPRESS OR
+ * IMPLIED,  INCLUDING BUT  NOT  LIMITED TO  THE  WARRANTIES OF  MERCHANTABILITY,
+ * FITNESS FOR  A PARTICULAR PURPOSE AND  NONINFRINGEMENT. IN NO EVENT  SHALL THE
+ * AUTHORS  OR COPYRIGHT  HOLDERS  BE  LIABLE FOR  ANY  CLAIM,  DAMAGES OR  OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF  CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE  OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.nabiki.ctp4j.sim;
+
+import com.nabiki.ctp4j.jni.struct.CThostFtdcDepthMarketDataField;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+import static com.nabiki.ctp4j.sim.TickFile.*;
+
+/**
+ * Writer of binary tick files that can be replayed by {@link TickReplay}. Depths
+ * must be written in time order.
+ */
+public class TickFileWriter implements Closeable {
+    private final FileChannel channel;
+    private final ByteBuffer buffer
+            = ByteBuffer.allocateDirect(RECORD_SIZE * 256).order(ORDER);
+    private final Map<String, Integer> indexes = new HashMap<>();
+    private final List<CThostFtdcDepthMarketDataField> instruments = new LinkedList<>();
+    private String tradingDay;
+    private long count = 0, lastTime = Long.MIN_VALUE;
+
+    public TickFileWriter(Path file) throws IOException {
+        this.channel = FileChannel.open(file, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        this.channel.position(HEADER_SIZE);
+    }
+
+    /**
+     * Append the specified depth. The depth must be no earlier than the last
+     * written one.
+     *
+     * @param depth depth to write
+     * @throws IOException if writing to file fails
+     */
+    public void write(CThostFtdcDepthMarketDataField depth) throws IOException {
+        if (depth == null)
+            throw new NullPointerException("depth null");
+        var time = timestamp(depth);
+        if (time < this.lastTime)
+            throw new IllegalArgumentException("depth out of time order");
+        if (this.tradingDay == null)
+            this.tradingDay = depth.TradingDay;
+        var index = this.indexes.get(depth.InstrumentID);
+        if (index == null) {
+            index = this.indexes.size();
+            this.indexes.put(depth.InstrumentID, index);
+            var in = new CThostFtdcDepthMarketDataField();
+            in.InstrumentID = depth.InstrumentID;
+            in.ExchangeID = depth.ExchangeID;
+            this.instruments.add(in);
+        }
+        if (this.buffer.remaining() < RECORD_SIZE)
+            flush();
+        var b = this.buffer;
+        var at = b.position();
+        b.putLong(at + R_TIME, time);
+        b.putInt(at + R_INSTRUMENT, index);
+        b.putInt(at + R_VOLUME, depth.Volume);
+        var p = at + R_PRICES;
+        for (var v : new double[] {depth.LastPrice, depth.PreSettlementPrice,
+                depth.PreClosePrice, depth.PreOpenInterest, depth.OpenPrice,
+                depth.HighestPrice, depth.LowestPrice, depth.Turnover,
+                depth.OpenInterest, depth.ClosePrice, depth.SettlementPrice,
+                depth.UpperLimitPrice, depth.LowerLimitPrice, depth.AveragePrice}) {
+            b.putDouble(p, v);
+            p += 8;
+        }
+        for (var v : new double[] {depth.BidPrice1, depth.AskPrice1,
+                depth.BidPrice2, depth.AskPrice2, depth.BidPrice3, depth.AskPrice3,
+                depth.BidPrice4, depth.AskPrice4, depth.BidPrice5, depth.AskPrice5}) {
+            b.putDouble(p, v);
+            p += 8;
+        }
+        for (var v : new int[] {depth.BidVolume1, depth.AskVolume1,
+                depth.BidVolume2, depth.AskVolume2, depth.BidVolume3, depth.AskVolume3,
+                depth.BidVolume4, depth.AskVolume4, depth.BidVolume5, depth.AskVolume5}) {
+            b.putInt(p, v);
+            p += 4;
+        }
+        while (p < at + RECORD_SIZE)
+            b.put(p++, (byte) 0);
+        b.position(at + RECORD_SIZE);
+        this.lastTime = time;
+        ++this.count;
+    }
+
+    private void flush() throws IOException {
+        this.buffer.flip();
+        while (this.buffer.hasRemaining())
+            this.channel.write(this.buffer);
+        this.buffer.clear();
+    }
+
+    /**
+     * Write the instrument table and header, then close the file.
+     *
+     * @throws IOException if writing to file fails
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            flush();
+            var tableOffset = this.channel.position();
+            var table = ByteBuffer
+                    .allocate(4 + TABLE_ENTRY_SIZE * this.instruments.size())
+                    .order(ORDER);
+            table.putInt(0, this.instruments.size());
+            int at = 4;
+            for (var in : this.instruments) {
+                putString(table, at, in.InstrumentID, ID_SIZE);
+                putString(table, at + ID_SIZE, in.ExchangeID, EXCHANGE_SIZE);
+                at += TABLE_ENTRY_SIZE;
+            }
+            while (table.hasRemaining())
+                this.channel.write(table);
+            var header = ByteBuffer.allocate(HEADER_SIZE).order(ORDER);
+            header.putInt(H_MAGIC, MAGIC);
+            header.putShort(H_VERSION, VERSION);
+            header.putShort(H_RECORD_SIZE, (short) RECORD_SIZE);
+            header.putLong(H_COUNT, this.count);
+            header.putLong(H_TABLE, tableOffset);
+            putString(header, H_TRADING_DAY, this.tradingDay, 8);
+            while (header.hasRemaining())
+                this.channel.write(header, header.position());
+        } finally {
+            this.channel.close();
+        }
+    }
+}
@@ -0,0 +1,365 @@
+/*
+ * Copyright (c) 2020 Hongbao Chen <chenhongbao@outlook.com>
+ *
+ * Licensed under the  GNU Affero General Public License v3.0 and you may not use
+ * this file except in compliance with the  License. You may obtain a copy of the
+ * License at
+ *
+ *                    https://www.gnu.org/licenses/agpl-3.0.txt
+ *
+ * Permission is hereby  granted, free of charge, to any  person obtaining a copy
+ * of this software and associated  documentation files (the "Software"), to deal
+ * in the Software  without restriction, including without  limitation the rights
+ * to  use, copy,  modify, merge,  publish, distribute,  sublicense, and/or  sell
+ * copies  of  the Software,  and  to  permit persons  to  whom  the Software  is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE  IS PROVIDED "AS  IS", WITHOUT WARRANTY  OF ANY KIND,  EXPRESS OR
+ * IMPLIED,  INCLUDING BUT  NOT  LIMITED TO  THE  WARRANTIES OF  MERCHANTABILITY,
+ * FITNESS FOR  A PARTICULAR PURPOSE AND  NONINFRINGEMENT. IN NO EVENT  SHALL THE
+ * AUTHORS  OR COPYRIGHT  HOLDERS  BE  LIABLE FOR  ANY  CLAIM,  DAMAGES OR  OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF  CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE  OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.nabiki.ctp4j.sim;
+
+import com.nabiki.ctp4j._x.Threads;
+import com.nabiki.ctp4j.jni.struct.CThostFtdcDepthMarketDataField;
+import com.nabiki.ctp4j.md.CThostFtdcMdSpi;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.zip.Deflater;
+
+import static com.nabiki.ctp4j.sim.TickBlockFile.*;
+
+/**
+ * Recorder of depths into a compressed tick file that can be replayed by
+ * {@link TickReplay}. Attach it to the tick source like any other SPI:
+ * <pre>
+ * var recorder = new TickRecorder(file);
+ * TickSource.getTickSource().addSPI(recorder);
+ * ...
+ * TickSource.getTickSource().removeSPI(recorder);
+ * recorder.close();
+ * </pre>
+ *
+ * <p>Depths are encoded into column blocks on the SPI's own thread, and full
+ * blocks are compressed and written by a writer thread, so recording costs the
+ * generator nothing and the SPI thread only the encoding. The file format is
+ * described in {@link TickBlockFile}.
+ * </p>
+ *
+ * <p>Depths are recorded in the order they arrive. With several shards, depths of
+ * different instruments may be slightly out of time order.
+ * </p>
+ */
+public class TickRecorder extends CThostFtdcMdSpi implements Closeable {
+    /**
+     * Number of blocks encoded or being written at the same time.
+     */
+    public static final int BLOCKS = 4;
+
+    // Raw columns of a block, filled by the SPI thread and written by the writer.
+    static class Block {
+        final Bytes[] columns = new Bytes[COLUMNS];
+        final BitSet instruments = new BitSet();
+        int count = 0;
+        long minTime = Long.MAX_VALUE, maxTime = Long.MIN_VALUE;
+
+        Block() {
+            for (int i = 0; i < COLUMNS; ++i)
+                this.columns[i] = new Bytes(BLOCK_RECORDS * 2);
+        }
+
+        void clear() {
+            for (var c : this.columns)
+                c.clear();
+            this.instruments.clear();
+            this.count = 0;
+            this.minTime = Long.MAX_VALUE;
+            this.maxTime = Long.MIN_VALUE;
+        }
+    }
+
+    static class IndexEntry {
+        final long offset, minTime, maxTime;
+        final int count;
+        final int[] instruments;
+
+        IndexEntry(long offset, Block block) {
+            this.offset = offset;
+            this.minTime = block.minTime;
+            this.maxTime = block.maxTime;
+            this.count = block.count;
+            this.instruments = block.instruments.stream().toArray();
+        }
+    }
+
+    private static final Block end = new Block();
+
+    private final FileChannel channel;
+    private final BlockingQueue<Block> free = new ArrayBlockingQueue<>(BLOCKS),
+            full = new ArrayBlockingQueue<>(BLOCKS + 1);
+    private final Thread writer;
+    private volatile IOException error;
+
+    // Encoder state, guarded by this.
+    private final Map<String, Integer> indexes = new HashMap<>();
+    private final List<String> instrumentIDs = new ArrayList<>(),
+            exchangeIDs = new ArrayList<>();
+    private Previous[] previous = new Previous[64];
+    private final long[] ints = new long[INTS];
+    private final double[] prices = new double[PRICES];
+    private Block block;
+    private int blockNumber = 0;
+    private long lastTime = 0, recorded = 0;
+    private String tradingDay;
+    private boolean closed = false;
+
+    // Writer state, owned by the writer thread until it ends.
+    private final List<IndexEntry> index = new ArrayList<>();
+    private final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+    private final Bytes raw = new Bytes(BLOCK_RECORDS * COLUMNS * 2);
+    private byte[] compressed = new byte[BLOCK_RECORDS * 64];
+    private long position = HEADER_SIZE;
+
+    public TickRecorder(Path file) throws IOException {
+        this.channel = FileChannel.open(file, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        var header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(MAGIC).putShort(VERSION).putShort((short) 0).flip();
+        while (header.hasRemaining())
+            this.channel.write(header);
+        for (int i = 0; i < BLOCKS - 1; ++i)
+            this.free.add(new Block());
+        this.block = new Block();
+        this.writer = Threads.platform("tick-recorder").newThread(this::write);
+        this.writer.start();
+    }
+
+    @Override
+    public synchronized void OnRtnDepthMarketData(
+            CThostFtdcDepthMarketDataField depth) {
+        if (this.closed || depth == null)
+            return;
+        var time = TickFile.timestamp(depth);
+        if (this.tradingDay == null)
+            this.tradingDay = depth.TradingDay;
+        var instrument = instrument(depth);
+        var p = this.previous[instrument];
+        p.reset(this.blockNumber);
+        var b = this.block;
+        var columns = b.columns;
+        columns[C_TIME].writeVar(zigzag(time - this.lastTime));
+        columns[C_INSTRUMENT].writeVar(instrument);
+        fields(depth, this.ints, this.prices);
+        for (int i = 0; i < INTS; ++i) {
+            columns[C_INTS + i].writeVar(zigzag(this.ints[i] - p.ints[i]));
+            p.ints[i] = this.ints[i];
+        }
+        for (int i = 0; i < PRICES; ++i) {
+            var column = columns[C_PRICES + i];
+            var f = fixed(this.prices[i]);
+            if (f != Long.MIN_VALUE) {
+                column.writeVar(zigzag(f - p.fixed[i]) << 1);
+                p.fixed[i] = f;
+            } else {
+                var bits = Double.doubleToRawLongBits(this.prices[i]);
+                if (bits == p.raw[i])
+                    column.writeVar(TAG_SAME_RAW);
+                else {
+                    column.writeVar(TAG_RAW);
+                    column.writeLong(bits);
+                    p.raw[i] = bits;
+                }
+            }
+        }
+        this.lastTime = time;
+        b.instruments.set(instrument);
+        b.minTime = Math.min(b.minTime, time);
+        b.maxTime = Math.max(b.maxTime, time);
+        ++this.recorded;
+        if (++b.count == BLOCK_RECORDS) {
+            submit(b);
+            this.block = take();
+        }
+    }
+
+    private int instrument(CThostFtdcDepthMarketDataField depth) {
+        var index = this.indexes.get(depth.InstrumentID);
+        if (index != null)
+            return index;
+        index = this.instrumentIDs.size();
+        this.indexes.put(depth.InstrumentID, index);
+        this.instrumentIDs.add(depth.InstrumentID);
+        this.exchangeIDs.add(depth.ExchangeID == null ? "" : depth.ExchangeID);
+        if (index == this.previous.length)
+            this.previous = Arrays.copyOf(this.previous, index * 2);
+        this.previous[index] = new Previous();
+        return index;
+    }
+
+    /**
+     * Get number of depths recorded.
+     *
+     * @return number of recorded depths
+     */
+    public synchronized long getRecordCount() {
+        return this.recorded;
+    }
+
+    private void submit(Block b) {
+        // Deltas of the next block start from scratch.
+        ++this.blockNumber;
+        this.lastTime = 0;
+        var interrupted = false;
+        while (true) {
+            try {
+                this.full.put(b);
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted)
+            Thread.currentThread().interrupt();
+    }
+
+    private Block take() {
+        var interrupted = false;
+        try {
+            while (true) {
+                try {
+                    return this.free.take();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        } finally {
+            if (interrupted)
+                Thread.currentThread().interrupt();
+        }
+    }
+
+    private void write() {
+        while (true) {
+            Block b;
+            try {
+                b = this.full.take();
+            } catch (InterruptedException e) {
+                continue;
+            }
+            if (b == end)
+                break;
+            if (this.error == null) {
+                try {
+                    writeBlock(b);
+                } catch (IOException e) {
+                    this.error = e;
+                }
+            }
+            b.clear();
+            this.free.add(b);
+        }
+    }
+
+    private void writeBlock(Block b) throws IOException {
+        this.raw.clear();
+        for (var column : b.columns) {
+            this.raw.writeVar(column.size);
+            this.raw.write(column);
+        }
+        this.deflater.reset();
+        this.deflater.setInput(this.raw.data, 0, this.raw.size);
+        this.deflater.finish();
+        int size = 0;
+        while (!this.deflater.finished()) {
+            if (size == this.compressed.length)
+                this.compressed = Arrays.copyOf(this.compressed, size * 2);
+            size += this.deflater.deflate(this.compressed, size,
+                    this.compressed.length - size);
+        }
+        var header = ByteBuffer.allocate(BLOCK_HEADER_SIZE);
+        header.putInt(size).putInt(this.raw.size).putInt(b.count).flip();
+        var data = ByteBuffer.wrap(this.compressed, 0, size);
+        var offset = this.position;
+        var buffers = new ByteBuffer[] {header, data};
+        while (data.hasRemaining())
+            this.position += this.channel.write(buffers);
+        this.index.add(new IndexEntry(offset, b));
+    }
+
+    /**
+     * Write the remaining depths and the index, then close the file. Remove the
+     * recorder from the tick source before closing it, or depths arriving after
+     * the close are ignored.
+     *
+     * @throws IOException if writing to file fails
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (this.closed)
+            return;
+        this.closed = true;
+        try {
+            if (this.block.count > 0)
+                submit(this.block);
+            submit(end);
+            while (this.writer.isAlive()) {
+                try {
+                    this.writer.join();
+                } catch (InterruptedException ignored) {
+                }
+            }
+            if (this.error != null)
+                throw this.error;
+            writeFooter();
+        } finally {
+            this.deflater.end();
+            this.channel.close();
+        }
+    }
+
+    private void writeFooter() throws IOException {
+        var bo = new ByteArrayOutputStream();
+        var out = new DataOutputStream(bo);
+        out.writeInt(this.instrumentIDs.size());
+        for (int i = 0; i < this.instrumentIDs.size(); ++i) {
+            out.writeUTF(this.instrumentIDs.get(i));
+            out.writeUTF(this.exchangeIDs.get(i));
+        }
+        out.writeUTF(this.tradingDay == null ? "" : this.tradingDay);
+        out.writeInt(this.index.size());
+        for (var entry : this.index) {
+            out.writeLong(entry.offset);
+            out.writeLong(entry.minTime);
+            out.writeLong(entry.maxTime);
+            out.writeInt(entry.count);
+            out.writeInt(entry.instruments.length);
+            for (var i : entry.instruments)
+                out.writeInt(i);
+        }
+        out.writeLong(this.position);
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.flush();
+        var buffer = ByteBuffer.wrap(bo.toByteArray());
+        while (buffer.hasRemaining())
+            this.position += this.channel.write(buffer, this.position);
+    }
+}
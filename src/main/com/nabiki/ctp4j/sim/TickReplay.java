@@ -0,0 +1,261 @@
+/*
+ * Copyright (c) 2020 Hongbao Chen <chenhongbao@outlook.com>
+ *
+ * Licensed under the  GNU Affero General Public License v3.0 and you may not use
+ * this file except in compliance with the  License. You may obtain a copy of the
+ * License at
+ *
+ *                    https://www.gnu.org/licenses/agpl-3.0.txt
+ *
+ * Permission is hereby  granted, free of charge, to any  person obtaining a copy
+ * of this software and associated  documentation files (the "Software"), to deal
+ * in the Software  without restriction, including without  limitation the rights
+ * to  use, copy,  modify, merge,  publish, distribute,  sublicense, and/or  sell
+ * copies  of  the Software,  and  to  permit persons  to  whom  the Software  is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE  IS PROVIDED "AS  IS", WITHOUT WARRANTY  OF ANY KIND,  EXPRESS OR
+ * IMPLIED,  INCLUDING BUT  NOT  LIMITED TO  THE  WARRANTIES OF  MERCHANTABILITY,
+ * FITNESS FOR  A PARTICULAR PURPOSE AND  NONINFRINGEMENT. IN NO EVENT  SHALL THE
+ * AUTHORS  OR COPYRIGHT  HOLDERS  BE  LIABLE FOR  ANY  CLAIM,  DAMAGES OR  OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF  CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE  OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.nabiki.ctp4j.sim;
+
+import com.nabiki.ctp4j.jni.struct.CThostFtdcDepthMarketDataField;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.Set;
+
+/**
+ * Replay of recorded depths from one or more tick files, written by
+ * {@link TickFileWriter} or {@link TickRecorder}. Fixed-record files are
+ * memory-mapped and compressed files are decoded block by block. Records of all
+ * files are merged by timestamp, so each file may hold one instrument or many. Records of the same
+ * timestamp keep the order of files and the order within a file.
+ *
+ * <p>Replay it through {@link TickSource#startReplay(TickReplay, double)} to feed
+ * the recorded depths to market-data SPIs and the trade book, or iterate it with
+ * {@link #next()} and {@link #read(CThostFtdcDepthMarketDataField)}.
+ * </p>
+ */
+public class TickReplay implements Closeable {
+    private final TickCursor[] readers;
+    // Binary min-heap of reader indexes, ordered by timestamp and then index.
+    private final int[] heap;
+    private final long[] times;
+    private int size = 0;
+    private TickCursor current;
+
+    private TickReplay(TickCursor[] readers) {
+        this.readers = readers;
+        this.heap = new int[readers.length];
+        this.times = new long[readers.length];
+        for (int i = 0; i < readers.length; ++i) {
+            if (readers[i].next()) {
+                this.times[i] = readers[i].timestamp();
+                this.heap[this.size] = i;
+                siftUp(this.size++);
+            }
+        }
+    }
+
+    private boolean less(int a, int b) {
+        var ta = this.times[a];
+        var tb = this.times[b];
+        return ta < tb || (ta == tb && a < b);
+    }
+
+    private void siftUp(int at) {
+        var x = this.heap[at];
+        while (at > 0) {
+            var parent = (at - 1) >>> 1;
+            if (!less(x, this.heap[parent]))
+                break;
+            this.heap[at] = this.heap[parent];
+            at = parent;
+        }
+        this.heap[at] = x;
+    }
+
+    private void siftDown(int at) {
+        var x = this.heap[at];
+        int child;
+        while ((child = 2 * at + 1) < this.size) {
+            if (child + 1 < this.size && less(this.heap[child + 1], this.heap[child]))
+                ++child;
+            if (!less(this.heap[child], x))
+                break;
+            this.heap[at] = this.heap[child];
+            at = child;
+        }
+        this.heap[at] = x;
+    }
+
+    /**
+     * Open the specified tick files for replay.
+     *
+     * @param files tick files
+     * @return replay of the files
+     * @throws IOException if a file can't be opened or is not a tick file
+     */
+    public static TickReplay open(Path... files) throws IOException {
+        return open(null, Long.MIN_VALUE, Long.MAX_VALUE, files);
+    }
+
+    /**
+     * Open the specified tick files for replay of the specified instruments
+     * within the specified time range. Compressed files skip the blocks that
+     * don't have the selected records by their index.
+     *
+     * @param instruments selected instrument IDs, or {@code null} for all
+     * @param from first selected timestamp, inclusive
+     * @param to last selected timestamp, inclusive
+     * @param files tick files
+     * @return replay of the selected records
+     * @throws IOException if a file can't be opened or is not a tick file
+     */
+    public static TickReplay open(Set<String> instruments, long from, long to,
+                                  Path... files) throws IOException {
+        var readers = new TickCursor[files.length];
+        try {
+            for (int i = 0; i < files.length; ++i) {
+                readers[i] = cursor(files[i]);
+                readers[i].select(instruments, from, to);
+            }
+        } catch (IOException | RuntimeException e) {
+            for (var r : readers)
+                if (r != null)
+                    r.close();
+            throw e;
+        }
+        return new TickReplay(readers);
+    }
+
+    private static TickCursor cursor(Path file) throws IOException {
+        var magic = new byte[4];
+        try (var in = Files.newInputStream(file)) {
+            if (in.readNBytes(magic, 0, 4) != 4)
+                throw new IOException("not a tick file: " + file);
+        }
+        switch (new String(magic, StandardCharsets.US_ASCII)) {
+            case "CTPT":
+                return new TickFileReader(file);
+            case "CTPZ":
+                return new TickBlockReader(file);
+            default:
+                throw new IOException("not a tick file: " + file);
+        }
+    }
+
+    /**
+     * Convert the specified local date and time to a timestamp of replayed
+     * records.
+     *
+     * @param time local date and time
+     * @return milliseconds since epoch in local time
+     */
+    public static long timestamp(LocalDateTime time) {
+        return time.toInstant(ZoneOffset.UTC).toEpochMilli();
+    }
+
+    /**
+     * Get number of records in all files, selected or not.
+     *
+     * @return number of records
+     */
+    public long count() {
+        long r = 0;
+        for (var reader : this.readers)
+            r += reader.count();
+        return r;
+    }
+
+    /**
+     * Move to the next record in time order.
+     *
+     * @return {@code false} if all records are replayed
+     */
+    public boolean next() {
+        if (this.current != null) {
+            // Advance the reader of the last record at the top of the heap, and
+            // put it back in order.
+            var top = this.heap[0];
+            if (this.current.next())
+                this.times[top] = this.current.timestamp();
+            else
+                this.heap[0] = this.heap[--this.size];
+            if (this.size > 1)
+                siftDown(0);
+        }
+        if (this.size == 0) {
+            this.current = null;
+            return false;
+        }
+        this.current = this.readers[this.heap[0]];
+        return true;
+    }
+
+    /**
+     * Get timestamp of the current record.
+     *
+     * @return milliseconds of action day and update time since epoch, in local
+     * time
+     */
+    public long timestamp() {
+        return current().timestamp();
+    }
+
+    /**
+     * Get instrument ID of the current record.
+     *
+     * @return instrument ID
+     */
+    public String instrumentID() {
+        return current().instrumentID();
+    }
+
+    /**
+     * Decode the current record into the specified depth.
+     *
+     * @param depth depth to write into
+     * @return the specified depth
+     */
+    public CThostFtdcDepthMarketDataField read(CThostFtdcDepthMarketDataField depth) {
+        if (depth == null)
+            throw new NullPointerException("depth null");
+        return current().read(depth);
+    }
+
+    private TickCursor current() {
+        if (this.current == null)
+            throw new IllegalStateException("no current record");
+        return this.current;
+    }
+
+    @Override
+    public void close() throws IOException {
+        IOException error = null;
+        for (var reader : this.readers) {
+            try {
+                reader.close();
+            } catch (IOException e) {
+                error = e;
+            }
+        }
+        if (error != null)
+            throw error;
+    }
+}
@@ -28,65 +28,686 @@
 
 package com.nabiki.ctp4j.sim;
 
+import com.nabiki.ctp4j._x.OP;
+import com.nabiki.ctp4j._x.SimClock;
+import com.nabiki.ctp4j._x.Threads;
 import com.nabiki.ctp4j.jni.struct.CThostFtdcDepthMarketDataField;
 import com.nabiki.ctp4j.md.CThostFtdcMdSpi;
 
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
 import java.util.Map;
-import java.util.Random;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.util.Queue;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
 
-public class TickSource extends TimerTask {
-    class SpiDaemon implements Runnable {
-        private final CThostFtdcMdSpi spi;
-        private final BlockingQueue<CThostFtdcDepthMarketDataField> depths;
-        private boolean stopped = Boolean.FALSE;
+public class TickSource implements Runnable {
+    /**
+     * How generated depths are handed to SPIs.
+     */
+    public enum PublishMode {
+        /**
+         * Each tick is copied into a new object, shared by all SPIs.
+         */
+        COPY,
+        /**
+         * Each tick is written into a recycled slot of the book's snapshot ring,
+         * and copied into an entry of the shard's ring for SPIs that get every
+         * depth. SPIs get a read-only view and must copy it if they keep or modify
+         * it.
+         */
+        SNAPSHOT
+    }
+
+    /**
+     * How depths are delivered to a SPI.
+     */
+    public enum Delivery {
+        /**
+         * Every depth is delivered in order. A SPI that falls a full ring behind
+         * holds back the generator.
+         */
+        ALL,
+        /**
+         * Only the latest depth of each instrument is delivered. Depths replaced
+         * before the SPI gets to them are dropped and counted, so a lagging SPI
+         * always jumps to the freshest depth and never holds back the generator.
+         */
+        CONFLATE
+    }
+
+    /**
+     * Kind of threads that deliver depths to SPIs.
+     */
+    public enum ThreadMode {
+        /**
+         * Each SPI gets a daemon platform thread.
+         */
+        PLATFORM,
+        /**
+         * Each SPI gets a virtual thread, so thousands of SPIs can share a JVM
+         * cheaply. Falls back to platform threads if the JDK has no virtual
+         * threads.
+         */
+        VIRTUAL
+    }
+
+    abstract class SpiDaemon implements Runnable {
+        protected final CThostFtdcMdSpi spi;
+        protected volatile boolean stopped = Boolean.FALSE;
+        protected volatile Thread thread;
 
         SpiDaemon(CThostFtdcMdSpi spi) {
             this.spi = spi;
-            this.depths = new LinkedBlockingQueue<>();
         }
 
-        boolean add(CThostFtdcDepthMarketDataField depth) {
-            return this.depths.offer(depth);
+        void start(ThreadFactory factory) {
+            var t = factory.newThread(this);
+            this.thread = t;
+            t.start();
         }
 
+        /**
+         * Stop delivery and interrupt the delivering thread, so a SPI blocked in a
+         * callback is woken up too.
+         */
         void stop() {
             this.stopped = true;
+            var t = this.thread;
+            if (t != null)
+                t.interrupt();
+        }
+
+        /**
+         * Wait for the delivering thread to exit.
+         *
+         * @param millis max milliseconds to wait
+         * @return {@code true} if the thread has exited
+         */
+        boolean await(long millis) {
+            var t = this.thread;
+            if (t == null || t == Thread.currentThread())
+                // Stopped in its own callback, the thread exits on return.
+                return t == null;
+            try {
+                t.join(millis);
+            } catch (InterruptedException ignored) {
+                Thread.currentThread().interrupt();
+            }
+            return !t.isAlive();
+        }
+
+        protected void wake() {
+            var t = this.thread;
+            if (t != null)
+                LockSupport.unpark(t);
+        }
+
+        long dropCount() {
+            return 0;
         }
 
         @Override
         public void run() {
-            while (!this.stopped) {
-                try {
-                    var depth = this.depths.poll(1, TimeUnit.DAYS);
-                    if (depth != null && !this.stopped)
+            while (!this.stopped)
+                poll();
+        }
+
+        /**
+         * Deliver available depths to the SPI, or park if there is none.
+         */
+        abstract void poll();
+    }
+
+    class RingDaemon extends SpiDaemon {
+        private final Consumer<CThostFtdcDepthMarketDataField> handler;
+        private volatile DepthRingBuffer.Sequence[] sequences;
+        // Sequences on rings of new shards, taken over when old rings are drained.
+        private volatile DepthRingBuffer.Sequence[] pending;
+
+        RingDaemon(CThostFtdcMdSpi spi, Shard[] shards) {
+            super(spi);
+            this.handler = this.spi::OnRtnDepthMarketData;
+            this.sequences = subscribe(shards);
+        }
+
+        private DepthRingBuffer.Sequence[] subscribe(Shard[] shards) {
+            var r = new DepthRingBuffer.Sequence[shards.length];
+            for (int i = 0; i < shards.length; ++i)
+                r[i] = shards[i].ring.subscribe();
+            return r;
+        }
+
+        void rebind(Shard[] shards) {
+            this.pending = subscribe(shards);
+            wake();
+        }
+
+        @Override
+        void stop() {
+            unsubscribe(this.sequences);
+            var p = this.pending;
+            if (p != null)
+                unsubscribe(p);
+            super.stop();
+        }
+
+        private void unsubscribe(DepthRingBuffer.Sequence[] sequences) {
+            for (var s : sequences)
+                s.ring().unsubscribe(s);
+        }
+
+        @Override
+        void poll() {
+            var current = this.sequences;
+            int drained = 0;
+            for (var s : current)
+                drained += s.drain(this.handler);
+            if (drained > 0 || this.stopped)
+                return;
+            var p = this.pending;
+            if (p != null) {
+                // Old rings are drained, move on to rings of the new shards.
+                unsubscribe(current);
+                this.sequences = p;
+                this.pending = null;
+            } else
+                DepthRingBuffer.await(current);
+        }
+    }
+
+    class ConflatingDaemon extends SpiDaemon {
+        /*
+         * Latest undelivered depth of an instrument. Offered depths are copied into
+         * the slot's own objects, because generators and replays recycle theirs
+         * long before a lagging SPI gets them. Guarded by the slot.
+         */
+        class Slot {
+            private CThostFtdcDepthMarketDataField latest
+                    = new CThostFtdcDepthMarketDataField();
+            // Depth last given to the SPI, reused for the next latest.
+            private CThostFtdcDepthMarketDataField delivered
+                    = new CThostFtdcDepthMarketDataField();
+            private boolean pending = false;
+
+            /*
+             * Copy the depth into the slot and return true if it replaced an
+             * undelivered one.
+             */
+            synchronized boolean put(CThostFtdcDepthMarketDataField depth) {
+                OP.copyInto(depth, this.latest);
+                var replaced = this.pending;
+                this.pending = true;
+                return replaced;
+            }
+
+            /*
+             * Take the undelivered depth, or null if there is none. The depth is
+             * not written again until the next take.
+             */
+            synchronized CThostFtdcDepthMarketDataField take() {
+                if (!this.pending)
+                    return null;
+                this.pending = false;
+                var depth = this.latest;
+                this.latest = this.delivered;
+                this.delivered = depth;
+                return depth;
+            }
+        }
+
+        private final Map<String, Slot> slots = new ConcurrentHashMap<>();
+        // Instruments with an undelivered depth, each at most once.
+        private final Queue<Slot> dirty = new ConcurrentLinkedQueue<>();
+        private final AtomicReference<Thread> waiter = new AtomicReference<>();
+        private final AtomicLong drops = new AtomicLong(0);
+
+        ConflatingDaemon(CThostFtdcMdSpi spi) {
+            super(spi);
+        }
+
+        /**
+         * Replace the latest depth of the instrument. Called by generator threads.
+         *
+         * @param depth new depth
+         */
+        void offer(CThostFtdcDepthMarketDataField depth) {
+            var slot = this.slots.get(depth.InstrumentID);
+            if (slot == null)
+                slot = this.slots.computeIfAbsent(depth.InstrumentID, k -> new Slot());
+            if (slot.put(depth))
+                // The previous depth is not delivered yet, and never will be.
+                this.drops.incrementAndGet();
+            else {
+                this.dirty.offer(slot);
+                if (this.waiter.get() != null) {
+                    var t = this.waiter.getAndSet(null);
+                    if (t != null)
+                        LockSupport.unpark(t);
+                }
+            }
+        }
+
+        @Override
+        long dropCount() {
+            return this.drops.get();
+        }
+
+        @Override
+        void poll() {
+            var slot = this.dirty.poll();
+            if (slot != null) {
+                var depth = slot.take();
+                if (depth != null) {
+                    try {
                         this.spi.OnRtnDepthMarketData(depth);
-                } catch (Throwable ignored) {}
+                    } catch (Throwable ignored) {
+                    }
+                }
+                return;
+            }
+            this.waiter.set(Thread.currentThread());
+            // Check again after announcing the wait, so an offer between the poll
+            // and the park is never missed.
+            if (this.dirty.isEmpty() && !this.stopped)
+                LockSupport.park();
+            this.waiter.set(null);
+        }
+    }
+
+    /**
+     * Group of books refreshed by one generator thread. A shard owns its books and
+     * random source, and no state is shared between shards in a round.
+     */
+    class Shard {
+        private final List<TickBook> books = new CopyOnWriteArrayList<>();
+        private final DepthRingBuffer ring = new DepthRingBuffer(RING_SIZE);
+        private final RestorableRandom random;
+        // Written only by the thread running the shard.
+        private volatile long ticks = 0;
+
+        Shard(long seed) {
+            this.random = new RestorableRandom(seed);
+        }
+
+        void add(TickBook book) {
+            this.books.add(book);
+        }
+
+        void seed(long seed) {
+            this.random.setSeed(seed);
+            // Fix the order of books, so rounds draw randoms in the same order.
+            this.books.sort(Comparator.comparing(TickBook::getInstrumentID));
+            for (var book : this.books)
+                book.setSeed(seed * 31 + book.getInstrumentID().hashCode());
+        }
+
+        void round(double emitChance) {
+            long count = 0;
+            var mode = publishMode;
+            for (var book : this.books) {
+                // There is a chance that it doesn't emit the depth.
+                if (emitChance < 1.0D && this.random.nextDouble() >= emitChance)
+                    continue;
+                // There is a very small chance that the market changes state.
+                if (this.random.nextDouble() < 0.0001)
+                    book.setBuyChance(newBuyChance(book.getBuyChance()));
+                // Refresh depth.
+                CThostFtdcDepthMarketDataField depth;
+                if (mode == PublishMode.SNAPSHOT)
+                    depth = book.snapshot();
+                else
+                    depth = book.refresh();
+                publish(this, depth, mode == PublishMode.SNAPSHOT);
+                ++count;
             }
+            this.ticks += count;
+        }
+
+        private double newBuyChance(double oldChance) {
+            var f = this.random.nextDouble() / 20.D;
+            if (oldChance > 0.5D)
+                return 0.5D - f;
+            else if (oldChance < 0.5D)
+                return 0.5D + f;
+            else
+                return 0.5D + f * (this.random.nextInt(3) - 1);
         }
     }
 
     private final static TickSource source = new TickSource();
 
-    private final Timer timer = new Timer();
-    private final Random random = new Random(TickSource.class.hashCode());
+    /**
+     * Default interval between two rounds of tick generation, in milliseconds.
+     */
+    public static final long DEFAULT_INTERVAL_MILLIS = 500;
+
+    /**
+     * Number of entries in the depth ring of a shard. A SPI that falls this many
+     * depths behind holds back the shard's generator.
+     */
+    public static final int RING_SIZE = 4096;
+
+    /**
+     * Max milliseconds {@link #removeSPI(CThostFtdcMdSpi)} waits for the SPI's
+     * thread to exit.
+     */
+    public static final long STOP_TIMEOUT_MILLIS = 1000;
+
+    private final ScheduledThreadPoolExecutor scheduler
+            = new ScheduledThreadPoolExecutor(1);
     private final Map<String, TickBook> books = new ConcurrentHashMap<>();
     private final Map<CThostFtdcMdSpi, SpiDaemon> daemons
             = new ConcurrentHashMap<>();
-    private final ExecutorService threads = Executors.newCachedThreadPool();
+    // SPIs in the order they are added, guarded by this.
+    private final Map<CThostFtdcMdSpi, Delivery> spis = new LinkedHashMap<>();
+    // SPIs called on the generating thread, or null if depths are delivered by
+    // daemons.
+    private volatile CThostFtdcMdSpi[] directSpis = null;
+    private volatile ThreadMode threadMode = ThreadMode.PLATFORM;
+    private volatile ThreadFactory threads = Threads.platform("tick-source-spi");
+
+    private volatile PublishMode publishMode = PublishMode.COPY;
+    private volatile double emitChance = 0.5D;
+    // Copy of conflating daemons for iteration on the generator threads.
+    private volatile ConflatingDaemon[] conflatingDaemons = new ConflatingDaemon[0];
+
+    // Shard and schedule state, guarded by this.
+    private volatile Shard[] shards = new Shard[] {new Shard(seed(0))};
+    private long retiredTicks = 0;
+    private final List<ScheduledFuture<?>> schedules = new LinkedList<>();
+    private final List<Thread> loops = new LinkedList<>();
+    private volatile boolean looping = false;
 
     TickSource() {
-        var delay = 500 - System.currentTimeMillis() % 500;
-        this.timer.scheduleAtFixedRate(this, delay, 500);
+        start(DEFAULT_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
     }
 
     public static TickSource getTickSource() {
         return source;
     }
 
-    public void initialize(CThostFtdcDepthMarketDataField depth) {
+    private static long seed(int shard) {
+        return TickSource.class.hashCode() + shard;
+    }
+
+    public void setPublishMode(PublishMode mode) {
+        if (mode == null)
+            throw new NullPointerException("publish mode null");
+        this.publishMode = mode;
+    }
+
+    public PublishMode getPublishMode() {
+        return this.publishMode;
+    }
+
+    /**
+     * Set kind of threads that deliver depths to SPIs added afterwards. The default
+     * is {@link ThreadMode#PLATFORM}.
+     *
+     * @param mode thread mode
+     */
+    public synchronized void setThreadMode(ThreadMode mode) {
+        if (mode == null)
+            throw new NullPointerException("thread mode null");
+        this.threadMode = mode;
+        if (mode == ThreadMode.VIRTUAL)
+            this.threads = Threads.virtual("tick-source-spi");
+        else
+            this.threads = Threads.platform("tick-source-spi");
+    }
+
+    public ThreadMode getThreadMode() {
+        return this.threadMode;
+    }
+
+    /**
+     * Set the chance that a book emits a depth in a scheduled round. The default
+     * is {@code 0.5}, so each book emits a depth every two rounds on average.
+     *
+     * @param chance chance in {@code [0, 1]}
+     */
+    public void setEmitChance(double chance) {
+        if (chance < 0.0D || chance > 1.0D)
+            throw new IllegalArgumentException("emit chance out of [0, 1]");
+        this.emitChance = chance;
+    }
+
+    public double getEmitChance() {
+        return this.emitChance;
+    }
+
+    /**
+     * Partition books into the specified number of shards, each refreshed by its
+     * own generator thread. A book is assigned to a shard by the hash of its
+     * instrument ID, so depths of one instrument are always generated in order by
+     * the same thread. The default is one shard.
+     *
+     * <p>The source must be stopped when the shards change.
+     * </p>
+     *
+     * @param count number of shards
+     */
+    public synchronized void setShards(int count) {
+        if (count < 1)
+            throw new IllegalArgumentException("shard count less than 1");
+        checkStopped("change shards of running source");
+        var n = new Shard[count];
+        for (int i = 0; i < count; ++i)
+            n[i] = new Shard(seed(i));
+        for (var entry : this.books.entrySet())
+            n[shardIndex(entry.getKey(), count)].add(entry.getValue());
+        replaceShards(n);
+    }
+
+    private void checkStopped(String message) {
+        if (!this.schedules.isEmpty() || !this.loops.isEmpty())
+            throw new IllegalStateException(message);
+    }
+
+    private void replaceShards(Shard[] n) {
+        for (var shard : this.shards)
+            this.retiredTicks += shard.ticks;
+        this.shards = n;
+        this.scheduler.setCorePoolSize(n.length);
+        for (var daemon : this.daemons.values())
+            if (daemon instanceof RingDaemon)
+                ((RingDaemon) daemon).rebind(n);
+    }
+
+    public int getShards() {
+        return this.shards.length;
+    }
+
+    private static int shardIndex(String instrID, int count) {
+        return Math.floorMod(instrID.hashCode(), count);
+    }
+
+    /**
+     * Get number of depths emitted since the source is created. Sample it twice
+     * to measure ticks per second.
+     *
+     * @return number of emitted depths
+     */
+    public long getTickCount() {
+        long count;
+        Shard[] current;
+        synchronized (this) {
+            count = this.retiredTicks;
+            current = this.shards;
+        }
+        for (var shard : current)
+            count += shard.ticks;
+        return count;
+    }
+
+    /**
+     * Generate ticks in rounds at the specified fixed rate, replacing the current
+     * schedule. Each shard runs its rounds on its own thread. The interval can be
+     * as small as one microsecond, but a round that takes longer than the interval
+     * delays the following rounds of the shard.
+     *
+     * <p>The interval is in time of {@link SimClock}, so an accelerated clock
+     * generates ticks faster in wall clock time.
+     * </p>
+     *
+     * @param interval interval between the starts of two rounds
+     * @param unit time unit of the interval
+     */
+    public synchronized void start(long interval, TimeUnit unit) {
+        var nanos = SimClock.current().toWallNanos(unit.toNanos(interval));
+        if (nanos < 1000)
+            throw new IllegalArgumentException("interval less than 1 microsecond");
+        stop();
+        // Align rounds to multiples of the interval in wall clock.
+        var now = TimeUnit.MILLISECONDS.toNanos(System.currentTimeMillis());
+        var delay = nanos - now % nanos;
+        for (var shard : this.shards)
+            this.schedules.add(this.scheduler.scheduleAtFixedRate(() -> {
+                try {
+                    shard.round(this.emitChance);
+                } catch (Throwable ignored) {}
+            }, delay, nanos, TimeUnit.NANOSECONDS));
+    }
+
+    /**
+     * Generate ticks as fast as possible on dedicated threads, one for each shard,
+     * replacing the current schedule. Every book emits a depth in every round.
+     */
+    public synchronized void startMaxThroughput() {
+        stop();
+        this.looping = true;
+        var all = this.shards;
+        for (int i = 0; i < all.length; ++i) {
+            var shard = all[i];
+            var loop = new Thread(() -> {
+                while (this.looping) {
+                    try {
+                        shard.round(1.0D);
+                    } catch (Throwable ignored) {}
+                }
+            }, "tick-source-loop-" + i);
+            this.loops.add(loop);
+            loop.start();
+        }
+    }
+
+    /**
+     * Replay speed factor that replays recorded depths as fast as possible.
+     */
+    public static final double UNTHROTTLED = Double.POSITIVE_INFINITY;
+
+    /**
+     * Replay the recorded depths on a dedicated thread instead of generating them,
+     * replacing the current schedule. Depths are paced by their timestamps divided
+     * by the specified speed factor, so {@code 1} replays in real time and
+     * {@link #UNTHROTTLED} replays as fast as SPIs take them.
+     *
+     * <p>Replayed depths are delivered the same way as generated depths in
+     * {@link PublishMode#SNAPSHOT} mode: they are decoded into recycled objects,
+     * and a SPI must copy a depth if it keeps or modifies it. The replay is not
+     * closed by the source.
+     * </p>
+     *
+     * @param replay recorded depths
+     * @param speed speed factor, no less than 1
+     */
+    public synchronized void startReplay(TickReplay replay, double speed) {
+        if (replay == null)
+            throw new NullPointerException("replay null");
+        if (!(speed >= 1.0D))
+            throw new IllegalArgumentException("replay speed less than 1");
+        stop();
+        this.looping = true;
+        var all = this.shards;
+        var loop = new Thread(() -> replay(replay, speed, all), "tick-source-replay");
+        this.loops.add(loop);
+        loop.start();
+    }
+
+    /**
+     * Check if recorded depths are being replayed.
+     *
+     * @return {@code true} if a replay has been started and not ended or stopped
+     */
+    public synchronized boolean isReplaying() {
+        for (var loop : this.loops)
+            if (loop.isAlive() && loop.getName().equals("tick-source-replay"))
+                return true;
+        return false;
+    }
+
+    private void replay(TickReplay replay, double speed, Shard[] all) {
+        // Decoded depths are recycled after the rings lap around, like snapshots.
+        var slots = new DepthRing[all.length];
+        for (int i = 0; i < all.length; ++i)
+            slots[i] = new DepthRing(RING_SIZE * 2);
+        var throttled = speed != UNTHROTTLED;
+        long firstTime = 0, lastTime = Long.MIN_VALUE, start = System.nanoTime();
+        boolean first = true;
+        while (this.looping && replay.next()) {
+            var time = replay.timestamp();
+            if (first) {
+                firstTime = time;
+                first = false;
+            }
+            if (throttled && time != lastTime) {
+                // Wait until the depth's time arrives at the replay speed.
+                var due = start + (long) ((time - firstTime) * 1000_000D / speed);
+                long wait;
+                while (this.looping && (wait = due - System.nanoTime()) > 0)
+                    LockSupport.parkNanos(Math.min(wait, 10_000_000L));
+            }
+            lastTime = time;
+            var i = shardIndex(replay.instrumentID(), all.length);
+            var shard = all[i];
+            var depth = replay.read(slots[i].next());
+            publish(shard, depth, false);
+            ++shard.ticks;
+        }
+    }
+
+    /**
+     * Stop generating ticks. Rounds can still be driven by calling {@link #run()}.
+     */
+    public synchronized void stop() {
+        for (var schedule : this.schedules)
+            schedule.cancel(false);
+        this.schedules.clear();
+        this.looping = false;
+        for (var loop : this.loops) {
+            try {
+                loop.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        this.loops.clear();
+    }
+
+    /**
+     * Stop generating ticks, remove all SPIs and release the scheduler's thread.
+     * The source can't be started on schedule afterwards.
+     */
+    void shutdown() {
+        List<CThostFtdcMdSpi> all;
+        synchronized (this) {
+            stop();
+            this.scheduler.shutdownNow();
+            all = new ArrayList<>(this.spis.keySet());
+        }
+        for (var spi : all)
+            removeSPI(spi);
+    }
+
+    public synchronized void initialize(CThostFtdcDepthMarketDataField depth) {
         if (depth == null)
             throw new NullPointerException("depth null");
         if (this.books.containsKey(depth.InstrumentID))
@@ -94,48 +715,243 @@ public class TickSource extends TimerTask {
         var inst = CommonData.getInstrument(depth.InstrumentID);
         if (inst == null)
             throw new IllegalStateException("instrument null");
-        this.books.put(depth.InstrumentID, new TickBook(depth, inst.PriceTick));
+        var book = new TickBook(depth, inst.PriceTick);
+        this.books.put(depth.InstrumentID, book);
+        var all = this.shards;
+        all[shardIndex(depth.InstrumentID, all.length)].add(book);
     }
 
     public void addSPI(CThostFtdcMdSpi spi) {
-        if (this.daemons.containsKey(spi))
+        addSPI(spi, Delivery.ALL);
+    }
+
+    /**
+     * Add the specified SPI with the specified delivery policy. Each SPI gets
+     * depths on its own thread.
+     *
+     * @param spi SPI to receive depths
+     * @param delivery delivery policy
+     */
+    public synchronized void addSPI(CThostFtdcMdSpi spi, Delivery delivery) {
+        if (spi == null || delivery == null)
+            throw new NullPointerException("spi or delivery null");
+        if (this.spis.containsKey(spi))
             throw new IllegalArgumentException("duplicated spi");
-        var daemon = new SpiDaemon(spi);
+        this.spis.put(spi, delivery);
+        if (this.directSpis != null)
+            updateDirect();
+        else
+            startDaemon(spi, delivery);
+    }
+
+    private void startDaemon(CThostFtdcMdSpi spi, Delivery delivery) {
+        SpiDaemon daemon;
+        if (delivery == Delivery.CONFLATE)
+            daemon = new ConflatingDaemon(spi);
+        else
+            daemon = new RingDaemon(spi, this.shards);
         this.daemons.put(spi, daemon);
-        this.threads.execute(daemon);
+        updateConflators();
+        daemon.start(this.threads);
+    }
+
+    private void updateDirect() {
+        this.directSpis = this.spis.keySet().toArray(new CThostFtdcMdSpi[0]);
     }
 
+    /**
+     * Remove the specified SPI and stop its thread. The method interrupts the
+     * thread and waits at most {@link #STOP_TIMEOUT_MILLIS} for it to exit, unless
+     * it is called from a callback of the removed SPI.
+     *
+     * @param spi SPI to remove
+     */
     public void removeSPI(CThostFtdcMdSpi spi) {
-        var daemon = this.daemons.get(spi);
-        if (daemon != null) {
+        SpiDaemon daemon;
+        synchronized (this) {
+            if (this.spis.remove(spi) == null)
+                return;
+            if (this.directSpis != null) {
+                updateDirect();
+                return;
+            }
+            daemon = this.daemons.remove(spi);
+            if (daemon == null)
+                return;
             daemon.stop();
-            this.daemons.remove(spi);
+            updateConflators();
+        }
+        // Wait outside the lock, in case the callback calls back into the source.
+        daemon.await(STOP_TIMEOUT_MILLIS);
+    }
+
+    private void updateConflators() {
+        this.conflatingDaemons = this.daemons.values().stream()
+                .filter(d -> d instanceof ConflatingDaemon)
+                .toArray(ConflatingDaemon[]::new);
+    }
+
+    /**
+     * Get number of depths dropped for the specified SPI because newer depths of
+     * the same instruments replaced them before delivery. It is always zero for
+     * SPIs that get all depths.
+     *
+     * @param spi SPI
+     * @return number of dropped depths
+     */
+    public long getDropCount(CThostFtdcMdSpi spi) {
+        var daemon = this.daemons.get(spi);
+        return daemon == null ? 0 : daemon.dropCount();
+    }
+
+    /**
+     * Set whether depths are delivered to SPIs synchronously on the thread that
+     * generates or replays them. SPIs are then called one after another in the
+     * order they are added, without queues or daemon threads, so a run on one
+     * thread is deterministic. Delivery policies don't apply, as no SPI lags
+     * behind.
+     *
+     * <p>The source must be stopped when the mode changes.
+     * </p>
+     *
+     * @param synchronous {@code true} to deliver depths on the generating thread
+     */
+    public void setSynchronous(boolean synchronous) {
+        var stopped = new LinkedList<SpiDaemon>();
+        synchronized (this) {
+            if (!this.schedules.isEmpty() || !this.loops.isEmpty())
+                throw new IllegalStateException("change delivery of running source");
+            if (synchronous == (this.directSpis != null))
+                return;
+            if (synchronous) {
+                for (var daemon : this.daemons.values()) {
+                    daemon.stop();
+                    stopped.add(daemon);
+                }
+                this.daemons.clear();
+                updateConflators();
+                updateDirect();
+            } else {
+                this.directSpis = null;
+                for (var entry : this.spis.entrySet())
+                    startDaemon(entry.getKey(), entry.getValue());
+            }
+        }
+        for (var daemon : stopped)
+            daemon.await(STOP_TIMEOUT_MILLIS);
+    }
+
+    public boolean isSynchronous() {
+        return this.directSpis != null;
+    }
+
+    /**
+     * Seed the random generators of all shards and books, so rounds driven on one
+     * thread generate the same depths for the same seed and books.
+     *
+     * @param seed seed
+     */
+    public synchronized void setSeed(long seed) {
+        var all = this.shards;
+        for (int i = 0; i < all.length; ++i)
+            all[i].seed(seed + i);
+    }
+
+    /*
+     * Write shards and their books into a snapshot. Books are written in the
+     * order their shard refreshes them, as the order decides which randoms each
+     * book draws.
+     */
+    synchronized void save(SimSnapshot.Output out) {
+        checkStopped("save running source");
+        var all = this.shards;
+        out.putInt(all.length);
+        for (var shard : all) {
+            out.putLong(shard.random.getState());
+            out.putInt(shard.books.size());
+            for (var book : shard.books)
+                book.save(out);
+        }
+    }
+
+    /*
+     * Read shards and books from a snapshot. The returned action replaces the
+     * current shards and books with them.
+     */
+    synchronized Runnable load(SimSnapshot.Input in) {
+        checkStopped("load into running source");
+        var n = new Shard[in.getInt()];
+        if (n.length < 1)
+            throw new IllegalArgumentException("shard count less than 1");
+        var books = new HashMap<String, TickBook>();
+        for (int i = 0; i < n.length; ++i) {
+            n[i] = new Shard(seed(i));
+            n[i].random.setState(in.getLong());
+            var count = in.getInt();
+            for (int j = 0; j < count; ++j) {
+                var book = TickBook.load(in);
+                books.put(book.getInstrumentID(), book);
+                n[i].add(book);
+            }
         }
+        return () -> {
+            synchronized (this) {
+                checkStopped("load into running source");
+                this.books.clear();
+                this.books.putAll(books);
+                replaceShards(n);
+            }
+        };
+    }
+
+    /**
+     * Publish the specified depth to SPIs as if it were generated by the source.
+     * The caller must be the only thread that generates depths.
+     *
+     * @param depth depth to publish
+     */
+    void publish(CThostFtdcDepthMarketDataField depth) {
+        var all = this.shards;
+        var shard = all[shardIndex(depth.InstrumentID, all.length)];
+        // The caller may reuse the depth for its next one.
+        publish(shard, depth, true);
+        ++shard.ticks;
+    }
+
+    /*
+     * Publish depth of a shard. A recycled depth is copied into the ring, because
+     * it may be rewritten before a lagging SPI drains it. Conflating daemons copy
+     * every depth into their slots.
+     */
+    private void publish(Shard shard, CThostFtdcDepthMarketDataField depth,
+                         boolean recycled) {
+        var direct = this.directSpis;
+        if (direct != null) {
+            for (var spi : direct) {
+                try {
+                    spi.OnRtnDepthMarketData(depth);
+                } catch (Throwable ignored) {
+                }
+            }
+            return;
+        }
+        if (recycled)
+            // Snapshots are recycled after SNAPSHOT_SLOTS ticks of a book, sooner
+            // than a consumer may lag behind in the ring.
+            shard.ring.publishCopy(depth);
+        else
+            shard.ring.publish(depth);
+        for (var c : this.conflatingDaemons)
+            c.offer(depth);
     }
 
+    /**
+     * Run one round of tick generation over all shards on the calling thread.
+     */
     @Override
     public void run() {
-        for (var book : this.books.values()) {
-            // There is a chance that it doesn't emit the depth.
-            if (this.random.nextDouble() <= 0.5)
-                continue;
-            // There is a very small chance that the market changes state.
-            if (this.random.nextDouble() < 0.0001)
-                book.setBuyChance(newBuyChance(book.getBuyChance()));
-            // Refresh depth.
-            var depth = book.refresh();
-            for (var daemon : this.daemons.values())
-                daemon.add(depth);
-        }
-    }
-
-    private double newBuyChance(double oldChance) {
-        var f = this.random.nextDouble() / 20.D;
-        if (oldChance > 0.5D)
-            return 0.5D - f;
-        else if (oldChance < 0.5D)
-            return 0.5D + f;
-        else
-            return 0.5D + f * (this.random.nextInt(3) - 1);
+        var chance = this.emitChance;
+        for (var shard : this.shards)
+            shard.round(chance);
     }
 }
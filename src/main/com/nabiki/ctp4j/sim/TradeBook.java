@@ -29,180 +29,1577 @@
 package com.nabiki.ctp4j.sim;
 
 import com.nabiki.ctp4j._x.OP;
+import com.nabiki.ctp4j._x.SimClock;
+import com.nabiki.ctp4j._x.Threads;
 import com.nabiki.ctp4j.jni.flag.*;
 import com.nabiki.ctp4j.jni.struct.*;
 import com.nabiki.ctp4j.md.CThostFtdcMdSpi;
 import com.nabiki.ctp4j.trader.CThostFtdcTraderSpi;
 
-import java.time.LocalDate;
 import java.time.LocalDateTime;
-import java.time.LocalTime;
-import java.time.format.DateTimeFormatter;
-import java.util.LinkedList;
-import java.util.List;
-import java.util.Map;
+import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
 
+/**
+ * Simulated exchange that matches orders against depths from {@link TickSource}.
+ *
+ * <p>Instruments are partitioned into shards by the hash of their IDs, regardless
+ * of case. Each shard owns the live orders, resting books and latest depths of its
+ * instruments, and only its own matching thread touches them. Requests are
+ * turned into commands on lock-free inbound queues and depths are copied into a
+ * ring of the shard, so matching takes no lock and scales with the number of
+ * shards.
+ * </p>
+ *
+ * <p>Matching threads never call trader SPIs. Callbacks are queued to a
+ * {@link CallbackDispatcher} of each trader session and delivered by the
+ * session's own thread, virtual if supported, in the order they are made. A slow
+ * session only backs up its own queue, and a session that overflows its queue is
+ * sent {@link #CALLBACK_OVERFLOW} and logged out, so queueing never blocks.
+ * </p>
+ *
+ * <p>Order refs and {@link RiskCheck} are checked on the calling thread before a
+ * request is queued, so duplicates are rejected across shards and an account's
+ * money is frozen before its next order is checked. A rejected order is still
+ * answered from its shard, in order with other callbacks. A cancel is sent to
+ * the shard of its instrument, or of the live order its ref names in the
+ * {@link SessionRegistry}, or to all shards if the order isn't found there.
+ * </p>
+ *
+ * <p>A batch of orders and cancels is sent to each shard as one command, so the
+ * shard matches the batch once and each SPI gets the batch's callbacks in one
+ * dispatch. Mass cancels by instrument or by session are batches too.
+ * </p>
+ *
+ * <p>Order refs are kept by the session they are sent from, and a login is given
+ * a session ID of its own, so sessions don't share any state on the request path.
+ * </p>
+ *
+ * <p>After {@link #recover(TradeJournal)}, matching threads append accepted orders,
+ * trades and cancels to the {@link TradeJournal} as they change order state, so
+ * a restarted book replays the journal to get its orders and accounts back.
+ * </p>
+ *
+ * <p>In synchronous mode commands and depths are handled on the calling thread
+ * instead, which is for single-threaded backtests.
+ * </p>
+ */
 public class TradeBook extends CThostFtdcMdSpi {
     class OngoingOrder {
+        public final long refKey;
         public final CThostFtdcInputOrderField order;
         public final CThostFtdcTraderSpi spi;
-        public final CThostFtdcRspUserLoginField user;
-        public final List<CThostFtdcOrderField> rtn
-                = new LinkedList<>();
+        public final SessionRegistry.Session session;
+        // Rule that froze money of an open order, or null.
+        private final RiskCheck.Rule frozen;
+        // Latest state of the order. Earlier states are sent to SPI and not kept.
+        private CThostFtdcOrderField rtn;
 
-        OngoingOrder(CThostFtdcInputOrderField order, CThostFtdcTraderSpi spi,
-                     CThostFtdcRspUserLoginField usr) {
+        OngoingOrder(long refKey, CThostFtdcInputOrderField order,
+                     CThostFtdcTraderSpi spi, SessionRegistry.Session session,
+                     RiskCheck.Rule rule) {
+            this.refKey = refKey;
             this.order = order;
             this.spi  =spi;
-            this.user = usr;
+            this.session = session;
+            this.frozen = order.CombOffsetFlag
+                    == TThostFtdcCombOffsetFlagType.OFFSET_OPEN ? rule : null;
+        }
+
+        /*
+         * SPI to return updates of the order to, or null after its session logs
+         * out.
+         */
+        CThostFtdcTraderSpi liveSpi() {
+            return this.session.isActive() ? this.spi : null;
         }
 
         CThostFtdcOrderField lastRtn() {
-            if (this.rtn.size() < 1)
+            if (this.rtn == null)
                 throw new IllegalStateException("return order empty");
-            return this.rtn.get(this.rtn.size() - 1);
+            return this.rtn;
+        }
+
+        boolean isBuy() {
+            return this.order.Direction == TThostFtdcDirectionType.DIRECTION_BUY;
+        }
+
+        boolean isOpen() {
+            return this.order.CombOffsetFlag
+                    == TThostFtdcCombOffsetFlagType.OFFSET_OPEN;
+        }
+    }
+
+    /*
+     * Request to a shard, run on the shard's thread.
+     */
+    interface Command {
+        void run(Shard shard);
+    }
+
+    static class Insert implements Command {
+        final long refKey;
+        final CThostFtdcInputOrderField order;
+        final int requestID;
+        final CThostFtdcTraderSpi spi;
+        final SessionRegistry.Session session;
+        final RiskCheck.Rule rule;
+        // Error code of the order, or NONE if it is accepted. Orders of a batch
+        // are checked on the shard, after the cancels of the batch.
+        int error;
+        boolean checked;
+
+        Insert(long refKey, CThostFtdcInputOrderField order, int requestID,
+               CThostFtdcTraderSpi spi, SessionRegistry.Session session,
+               RiskCheck.Rule rule, int error, boolean checked) {
+            this.refKey = refKey;
+            this.order = order;
+            this.requestID = requestID;
+            this.spi = spi;
+            this.session = session;
+            this.rule = rule;
+            this.error = error;
+            this.checked = checked;
+        }
+
+        /*
+         * SPI to answer, or null after the session logs out.
+         */
+        CThostFtdcTraderSpi liveSpi() {
+            return this.session.isActive() ? this.spi : null;
+        }
+
+        @Override
+        public void run(Shard shard) {
+            shard.insert(this);
+        }
+    }
+
+    static class Action implements Command {
+        final CThostFtdcInputOrderActionField action;
+        final int requestID;
+        final CThostFtdcTraderSpi spi;
+        // Session of the request, or null if it is made without a session.
+        final SessionRegistry.Session session;
+        // Shards yet to look up the order, or null if only one shard is asked.
+        final AtomicInteger pending;
+        volatile boolean found, archived;
+
+        Action(CThostFtdcInputOrderActionField action, int requestID,
+               CThostFtdcTraderSpi spi, SessionRegistry.Session session,
+               AtomicInteger pending) {
+            this.action = action;
+            this.requestID = requestID;
+            this.spi = spi;
+            this.session = session;
+            this.pending = pending;
+        }
+
+        /*
+         * SPI to answer, or null after the session logs out.
+         */
+        CThostFtdcTraderSpi liveSpi() {
+            return this.session == null || this.session.isActive() ? this.spi : null;
+        }
+
+        @Override
+        public void run(Shard shard) {
+            shard.cancel(this);
         }
     }
 
+    /*
+     * Trading day, day and time of a clock time, formatted.
+     */
+    static class Stamp {
+        final String tradingDay, day, time;
+
+        Stamp(LocalDateTime now) {
+            this.tradingDay = OP.getTradingDay(now);
+            this.day = OP.getDay(now.toLocalDate(), null);
+            this.time = OP.getTime(now.toLocalTime(), null);
+        }
+    }
+
+    /*
+     * Cancels and inserts of one request to a shard. Cancels are handled first,
+     * then inserts, then the instruments of the inserts are matched once.
+     */
+    static class Batch implements Command {
+        final List<Action> actions = new ArrayList<>();
+        final List<Insert> inserts = new ArrayList<>();
+
+        @Override
+        public void run(Shard shard) {
+            shard.batch(this);
+        }
+    }
+
+    /*
+     * Cancel live orders of the session, of the instrument if it isn't null, or
+     * all live orders of the instrument if the session is null.
+     */
+    static class MassCancel implements Command {
+        final String instrID;
+        final SessionRegistry.Session session;
+
+        MassCancel(String instrID, SessionRegistry.Session session) {
+            this.instrID = instrID;
+            this.session = session;
+        }
+
+        @Override
+        public void run(Shard shard) {
+            shard.cancelAll(this);
+        }
+    }
+
+    class Shard implements Runnable {
+        private final ConcurrentLinkedQueue<Command> inbox
+                = new ConcurrentLinkedQueue<>();
+        private final AtomicReference<Thread> waiter = new AtomicReference<>();
+        private final DepthRingBuffer depths = new DepthRingBuffer(DEPTH_RING_SIZE);
+        private final DepthRingBuffer.Sequence[] sequences
+                = new DepthRingBuffer.Sequence[] {this.depths.subscribe()};
+        // Producer only. Slots outnumber ring entries so a slot is never rewritten
+        // before the shard drains it.
+        private final DepthRing slots = new DepthRing(DEPTH_RING_SIZE * 2);
+        private final Consumer<CThostFtdcDepthMarketDataField> onDepth = this::match;
+        private volatile boolean stopped = false;
+
+        // Owned by the shard's thread.
+        private final LongObjectMap<OngoingOrder> orderRefs = new LongObjectMap<>();
+        private final LongObjectMap<OngoingOrder> orderSys = new LongObjectMap<>();
+        private final Map<String, CThostFtdcDepthMarketDataField> currentDepths
+                = new HashMap<>();
+        private final Map<String, RestingOrders<OngoingOrder>> resting
+                = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+        private final OrderArchive archive = new OrderArchive();
+        // Trading day of the latest depth, owned by the shard's thread.
+        private String tradingDay;
+        // Written by the shard's thread only.
+        private volatile int liveCount = 0;
+        private volatile long archivedCount = 0;
+        // Callbacks and time of the running batch, or null out of a batch.
+        private Map<CThostFtdcTraderSpi, List<Runnable>> batched;
+        private Stamp batchStamp;
+
+        void submit(Command command) {
+            if (synchronous) {
+                command.run(this);
+                return;
+            }
+            this.inbox.offer(command);
+            if (this.waiter.get() != null) {
+                var w = this.waiter.getAndSet(null);
+                if (w != null)
+                    LockSupport.unpark(w);
+            }
+        }
+
+        void publish(CThostFtdcDepthMarketDataField depth) {
+            if (synchronous)
+                match(depth);
+            else
+                this.depths.publish(OP.copyInto(depth, this.slots.next()));
+        }
+
+        void stop() {
+            this.stopped = true;
+            this.sequences[0].ring().unsubscribe(this.sequences[0]);
+            var w = this.waiter.getAndSet(null);
+            if (w != null)
+                LockSupport.unpark(w);
+        }
+
+        @Override
+        public void run() {
+            while (!this.stopped) {
+                if (drain() == 0)
+                    await();
+            }
+        }
+
+        /*
+         * Handle all published depths, then all queued commands.
+         */
+        private int drain() {
+            int n = this.sequences[0].drain(this.onDepth);
+            Command command;
+            while ((command = this.inbox.poll()) != null) {
+                try {
+                    command.run(this);
+                } catch (Throwable ignored) {
+                }
+                ++n;
+            }
+            return n;
+        }
+
+        private void await() {
+            this.waiter.set(Thread.currentThread());
+            // Check the inbox after announcing the wait, so a command queued
+            // between the last drain and the park is never missed.
+            if (this.inbox.isEmpty() && !this.stopped)
+                DepthRingBuffer.await(this.sequences);
+            this.waiter.set(null);
+        }
+
+        void flush(CountDownLatch latch) {
+            // Depths published before the flush may still be in the ring.
+            this.sequences[0].drain(this.onDepth);
+            latch.countDown();
+        }
+
+        private void insert(Insert insert) {
+            insert(insert, true);
+        }
+
+        /*
+         * Accept an order, and trade it with the current depth if matching is
+         * asked. Return true if the order is accepted.
+         */
+        private boolean insert(Insert insert, boolean match) {
+            if (!insert.checked) {
+                insert.error = TradeBook.this.risk.check(insert.order, insert.rule,
+                        getAccount(insert.order.InvestorID));
+                insert.checked = true;
+            }
+            if (insert.error != TThostFtdcErrorCode.NONE) {
+                // Duplicated order ref or failed risk check.
+                rspOrderInsert(insert.liveSpi(), insert.order,
+                        rsp(insert.error, message(insert.error)),
+                        insert.requestID);
+                return false;
+            }
+            var order = insert.order;
+            var rtn = createRtnOrder(order, stamp());
+            // Other ID.
+            rtn.RequestID = insert.requestID;
+            rtn.FrontID = insert.session.getFrontID();
+            rtn.SessionID = insert.session.getSessionID();
+            // Statuses.
+            rtn.OrderStatus = TThostFtdcOrderStatusType.NO_TRADE_QUEUEING;
+            rtn.OrderSubmitStatus = TThostFtdcOrderSubmitStatusType.ACCEPTED;
+            rtn.StatusMsg = "已提交";
+            // Create internal order object.
+            var ongoing = new OngoingOrder(insert.refKey, order, insert.spi,
+                    insert.session, insert.rule);
+            ongoing.order.RequestID = insert.requestID;
+            ongoing.rtn = rtn;
+            add(ongoing);
+            var journal = TradeBook.this.journal;
+            if (journal != null)
+                journal.insert(insert.refKey, order, rtn);
+            // Call SPI.
+            rtnOrder(insert.liveSpi(), OP.deepCopy(rtn));
+            // Check current market data. Trade if it could.
+            if (match)
+                tryTrade(order.InstrumentID);
+            return true;
+        }
+
+        /*
+         * Run commands of a batch and deliver their callbacks in one dispatch per
+         * SPI.
+         */
+        private void batch(Batch batch) {
+            runBatched(() -> {
+                for (var action : batch.actions)
+                    runQuietly(() -> cancel(action));
+                var matched = new TreeSet<>(String.CASE_INSENSITIVE_ORDER);
+                for (var insert : batch.inserts)
+                    runQuietly(() -> {
+                        if (insert(insert, false))
+                            matched.add(insert.order.InstrumentID);
+                    });
+                for (var instrID : matched)
+                    runQuietly(() -> tryTrade(instrID));
+            });
+        }
+
+        private void cancelAll(MassCancel command) {
+            runBatched(() -> {
+                var targets = new ArrayList<OngoingOrder>();
+                if (command.session != null) {
+                    // Orders queued before the command are in the index by now.
+                    command.session.forEachOrder((instrID, refKey) -> {
+                        if (command.instrID != null
+                                && !command.instrID.equalsIgnoreCase(instrID))
+                            return;
+                        // Orders of other shards aren't found.
+                        var ongoing = this.orderRefs.get(refKey);
+                        if (ongoing != null)
+                            targets.add(ongoing);
+                    });
+                } else {
+                    var orders = this.resting.get(command.instrID);
+                    if (orders != null)
+                        orders.all(targets);
+                }
+                cancelOrders(targets, stamp().time);
+            });
+        }
+
+        private void runBatched(Runnable body) {
+            this.batched = new LinkedHashMap<>();
+            // Orders and trades of a batch are stamped at the same time.
+            this.batchStamp = new Stamp(SimClock.current().now());
+            try {
+                body.run();
+            } finally {
+                var batched = this.batched;
+                this.batched = null;
+                this.batchStamp = null;
+                for (var entry : batched.entrySet()) {
+                    var callbacks = entry.getValue();
+                    deliver(entry.getKey(), () -> {
+                        for (var callback : callbacks)
+                            callback.run();
+                    });
+                }
+            }
+        }
+
+        private Stamp stamp() {
+            var stamp = this.batchStamp;
+            return stamp != null ? stamp : new Stamp(SimClock.current().now());
+        }
+
+        private String time() {
+            var stamp = this.batchStamp;
+            return stamp != null ? stamp.time
+                    : OP.getTime(SimClock.current().time(), null);
+        }
+
+        private void runQuietly(Runnable command) {
+            try {
+                command.run();
+            } catch (Throwable ignored) {
+            }
+        }
+
+        /*
+         * Rebuild an accepted order from the journal. It has no session to call.
+         */
+        void restore(long refKey, CThostFtdcInputOrderField order,
+                     CThostFtdcOrderField saved) {
+            var rtn = newRtnOrder(order);
+            rtn.RequestID = saved.RequestID;
+            rtn.FrontID = saved.FrontID;
+            rtn.SessionID = saved.SessionID;
+            rtn.TradingDay = saved.TradingDay;
+            rtn.InsertDate = saved.InsertDate;
+            rtn.InsertTime = saved.InsertTime;
+            rtn.ActiveTime = saved.InsertTime;
+            rtn.OrderSysID = saved.OrderSysID;
+            rtn.OrderStatus = TThostFtdcOrderStatusType.NO_TRADE_QUEUEING;
+            rtn.OrderSubmitStatus = TThostFtdcOrderSubmitStatusType.ACCEPTED;
+            rtn.StatusMsg = "已提交";
+            var ongoing = restoreLive(refKey, order, rtn);
+            var rule = ongoing.frozen;
+            // Money isn't in the journal, so freeze it again.
+            if (rule != null)
+                getAccount(order.InvestorID).freeze(
+                        rule.margin(ongoing.isBuy(), order.LimitPrice)
+                                * order.VolumeTotalOriginal,
+                        rule.commission(order.LimitPrice) * order.VolumeTotalOriginal);
+        }
+
+        /*
+         * Put back a live order in its latest state, like from a snapshot. Money it
+         * froze is restored with its account, and its remaining volume is frozen
+         * again here.
+         */
+        OngoingOrder restoreLive(long refKey, CThostFtdcInputOrderField order,
+                                 CThostFtdcOrderField rtn) {
+            var session = TradeBook.this.sessions.session(rtn.FrontID,
+                    rtn.SessionID);
+            var ongoing = new OngoingOrder(refKey, order, null, session,
+                    TradeBook.this.risk.rule(order.InstrumentID));
+            ongoing.rtn = rtn;
+            add(ongoing);
+            var account = getAccount(order.InvestorID);
+            if (ongoing.isOpen())
+                account.reserve(order.InstrumentID, ongoing.isBuy(), rtn.VolumeTotal);
+            else
+                account.freezeClose(order.InstrumentID, !ongoing.isBuy(),
+                        order.CombOffsetFlag, rtn.VolumeTotal);
+            return ongoing;
+        }
+
+        /*
+         * Write live orders and latest depths into a snapshot, run on the shard's
+         * thread.
+         */
+        void save(SimSnapshot.Output out) {
+            out.putInt(this.orderRefs.size());
+            this.orderRefs.forEach(ongoing -> {
+                out.putLong(ongoing.refKey);
+                out.putStruct(ongoing.order);
+                out.putStruct(ongoing.lastRtn());
+            });
+            out.putInt(this.currentDepths.size());
+            for (var depth : this.currentDepths.values())
+                out.putStruct(depth);
+        }
+
+        /*
+         * Put back the latest depth of an instrument, like from a snapshot. Orders
+         * aren't matched until the next depth, as in the saved book.
+         */
+        void restoreDepth(CThostFtdcDepthMarketDataField depth) {
+            this.currentDepths.put(depth.InstrumentID, depth);
+            var day = depth.TradingDay;
+            if (day != null && day.length() > 0
+                    && (this.tradingDay == null || day.compareTo(this.tradingDay) > 0))
+                this.tradingDay = day;
+        }
+
+        void restoreTrade(CThostFtdcTradeField saved, String orderDay) {
+            var ongoing = this.orderSys.get(IdSequence.parse(saved.OrderSysID));
+            if (ongoing == null
+                    || !Objects.equals(orderDay, ongoing.lastRtn().TradingDay))
+                return;
+            var trade = newTrade(ongoing, saved.Price, saved.Volume);
+            trade.TradeDate = saved.TradeDate;
+            trade.TradeTime = saved.TradeTime;
+            trade.TradingDay = saved.TradingDay;
+            trade.TradeID = saved.TradeID;
+            var account = getAccount(trade.InvestorID);
+            if (!account.canTrade(trade)) {
+                // Journals written before orders were canceled for missing lots.
+                cancelOrder(ongoing, saved.TradeTime);
+                return;
+            }
+            account.trade(trade);
+            unfreeze(ongoing, trade.Volume);
+            fill(ongoing, trade.Volume, saved.TradeTime);
+        }
+
+        void restoreCancel(CThostFtdcOrderField saved) {
+            var ongoing = this.orderSys.get(IdSequence.parse(saved.OrderSysID));
+            if (ongoing != null
+                    && Objects.equals(saved.TradingDay, ongoing.lastRtn().TradingDay))
+                cancelOrder(ongoing, saved.CancelTime);
+        }
+
+        private void add(OngoingOrder ongoing) {
+            var order = ongoing.order;
+            this.orderRefs.put(ongoing.refKey, ongoing);
+            ongoing.session.addOrder(ongoing.refKey, order.InstrumentID);
+            this.orderSys.put(IdSequence.parse(ongoing.lastRtn().OrderSysID),
+                    ongoing);
+            this.resting.computeIfAbsent(order.InstrumentID, k -> new RestingOrders<>())
+                    .add(ongoing.isBuy(), order.LimitPrice, ongoing);
+            this.liveCount = this.orderRefs.size();
+        }
+
+        private void cancel(Action command) {
+            var action = command.action;
+            OngoingOrder ongoing;
+            // Find ongoing order.
+            if (action.OrderSysID != null && action.OrderSysID.length() > 0)
+                ongoing = this.orderSys.get(IdSequence.parse(action.OrderSysID));
+            else
+                ongoing = this.orderRefs.get(
+                        OrderKey.of(action.OrderRef, action.FrontID, action.SessionID));
+            if (ongoing != null) {
+                command.found = true;
+                // Cancel order and call SPI.
+                var rtn = cancelOrder(ongoing, time());
+                var journal = TradeBook.this.journal;
+                if (journal != null)
+                    journal.cancel(rtn);
+                rtnOrder(command.liveSpi(), OP.deepCopy(rtn));
+            } else if (isArchived(action))
+                command.archived = true;
+            // Answer a missing order when all asked shards have looked.
+            if (command.pending != null && command.pending.decrementAndGet() > 0
+                    || command.found)
+                return;
+            if (command.archived)
+                rspOrderAction(command.liveSpi(), action,
+                        rsp(TThostFtdcErrorCode.INSUITABLE_ORDER_STATUS,
+                                TThostFtdcErrorMessage.INSUITABLE_ORDER_STATUS),
+                        command.requestID);
+            else
+                rspOrderAction(command.liveSpi(), action,
+                        rsp(TThostFtdcErrorCode.ORDER_NOT_FOUND,
+                                TThostFtdcErrorMessage.ORDER_NOT_FOUND),
+                        command.requestID);
+        }
+
+        private boolean isArchived(CThostFtdcInputOrderActionField action) {
+            if (action.OrderSysID != null && action.OrderSysID.length() > 0)
+                return this.archive.containsSysID(action.OrderSysID);
+            else
+                return this.archive.containsRef(
+                        OrderKey.of(action.OrderRef, action.FrontID, action.SessionID));
+        }
+
+        private CThostFtdcOrderField cancelOrder(OngoingOrder ongoing,
+                                                 String cancelTime) {
+            // Update last rtn order.
+            var rtn = ongoing.lastRtn();
+            rtn.OrderStatus = TThostFtdcOrderStatusType.CANCELED;
+            rtn.StatusMsg += "已撤单";
+            rtn.CancelTime = cancelTime;
+            unfreeze(ongoing, rtn.VolumeTotal);
+            archiveOrder(ongoing);
+            return rtn;
+        }
+
+        /*
+         * Move finished order out of live state into the archive.
+         */
+        private void archiveOrder(OngoingOrder ongoing) {
+            var rtn = ongoing.lastRtn();
+            this.orderRefs.remove(ongoing.refKey, ongoing);
+            ongoing.session.removeOrder(ongoing.refKey);
+            this.orderSys.remove(IdSequence.parse(rtn.OrderSysID), ongoing);
+            var orders = this.resting.get(ongoing.order.InstrumentID);
+            if (orders != null)
+                orders.remove(ongoing.isBuy(), ongoing.order.LimitPrice, ongoing);
+            this.archive.add(ongoing.refKey, rtn.OrderSysID);
+            this.liveCount = this.orderRefs.size();
+            this.archivedCount = this.archive.size();
+        }
+
+        private void match(CThostFtdcDepthMarketDataField depthMarketData) {
+            // Save latest depth market data. The depth may be a shared snapshot that
+            // is recycled later, so keep a private copy.
+            var current = this.currentDepths.get(depthMarketData.InstrumentID);
+            if (current == null)
+                this.currentDepths.put(depthMarketData.InstrumentID,
+                        current = new CThostFtdcDepthMarketDataField());
+            OP.copyInto(depthMarketData, current);
+            var day = current.TradingDay;
+            if (day != null && day.length() > 0 && !day.equals(this.tradingDay))
+                roll(day);
+            // Check ongoing order and trade.
+            tryTrade(current);
+        }
+
+        /*
+         * Cancel close today orders of earlier trading days, because their today
+         * lots become yesterday lots on the new day.
+         */
+        private void roll(String tradingDay) {
+            this.tradingDay = tradingDay;
+            var targets = new ArrayList<OngoingOrder>();
+            this.orderRefs.forEach(ongoing -> {
+                if (ongoing.order.CombOffsetFlag
+                        == TThostFtdcCombOffsetFlagType.OFFSET_CLOSE_TODAY
+                        && tradingDay.compareTo(ongoing.lastRtn().TradingDay) > 0)
+                    targets.add(ongoing);
+            });
+            if (!targets.isEmpty())
+                cancelOrders(targets, time());
+        }
+
+        /*
+         * Cancel the specified live orders, and journal and return the cancels.
+         */
+        private void cancelOrders(List<OngoingOrder> targets, String cancelTime) {
+            for (var ongoing : targets) {
+                if (isOrderDone(ongoing))
+                    continue;
+                var rtn = cancelOrder(ongoing, cancelTime);
+                var journal = TradeBook.this.journal;
+                if (journal != null)
+                    journal.cancel(rtn);
+                rtnOrder(ongoing.liveSpi(), OP.deepCopy(rtn));
+            }
+        }
+
+        private void tryTrade(String instrID) {
+            var depth = this.currentDepths.get(instrID);
+            if (depth != null)
+                tryTrade(depth);
+        }
+
+        private void tryTrade(CThostFtdcDepthMarketDataField depthMarketData) {
+            var orders = this.resting.get(depthMarketData.InstrumentID);
+            if (orders == null || orders.size() == 0)
+                return;
+            // Collect crossing orders before filling them because SPI callbacks may
+            // insert or cancel orders.
+            var crossed = new ArrayList<OngoingOrder>();
+            orders.crossing(depthMarketData.BidPrice1, depthMarketData.AskPrice1,
+                    crossed);
+            for (var ongoing : crossed) {
+                if (isOrderDone(ongoing))
+                    continue;
+                var last = ongoing.lastRtn();
+                // Calculate traded volume this time.
+                if (last.VolumeTotal <= 0)
+                    throw new IllegalStateException("volume traded overflow");
+                int volumeNow = Math.min(last.VolumeTotal, 11);
+                if (ongoing.isBuy())
+                    trade(ongoing, depthMarketData.AskPrice1, volumeNow);
+                else
+                    trade(ongoing, depthMarketData.BidPrice1, volumeNow);
+            }
+        }
+
+        private void trade(OngoingOrder ongoing, double price, int volume) {
+            var stamp = stamp();
+            var trade = createTrade(ongoing, price, volume, stamp);
+            var account = getAccount(trade.InvestorID);
+            if (!account.canTrade(trade)) {
+                // The lots it closes are gone, so cancel instead of trading.
+                cancelOrders(List.of(ongoing), stamp.time);
+                return;
+            }
+            trade.TradeID = TradeBook.this.tradeIDs.next();
+            account.trade(trade);
+            unfreeze(ongoing, volume);
+            var journal = TradeBook.this.journal;
+            if (journal != null)
+                journal.trade(trade, ongoing.lastRtn().TradingDay);
+            // Call SPI.
+            rtnTrade(ongoing.liveSpi(), trade);
+            // Update order and call SPI.
+            rtnOrder(ongoing.liveSpi(), OP.deepCopy(fill(ongoing, volume,
+                    stamp.time)));
+        }
+
+        /*
+         * Release volume and money frozen for the specified volume of an order.
+         */
+        private void unfreeze(OngoingOrder ongoing, int volume) {
+            if (volume <= 0)
+                return;
+            var order = ongoing.order;
+            var account = getAccount(order.InvestorID);
+            if (!ongoing.isOpen()) {
+                // Buy closes short positions and sell closes long positions.
+                account.unfreezeClose(order.InstrumentID, !ongoing.isBuy(),
+                        order.CombOffsetFlag, volume);
+                return;
+            }
+            account.release(order.InstrumentID, ongoing.isBuy(), volume);
+            var rule = ongoing.frozen;
+            if (rule == null)
+                return;
+            var price = order.LimitPrice;
+            account.unfreeze(rule.margin(ongoing.isBuy(), price) * volume,
+                    rule.commission(price) * volume);
+        }
+
+        private CThostFtdcOrderField fill(OngoingOrder ongoing, int volume,
+                                          String updateTime) {
+            var rtn = ongoing.lastRtn();
+            rtn.VolumeTraded += volume;
+            rtn.VolumeTotal -= volume;
+            if (rtn.VolumeTotal > 0) {
+                rtn.OrderStatus = TThostFtdcOrderStatusType.PART_TRADED_QUEUEING;
+                rtn.StatusMsg += "部分成交";
+            } else {
+                rtn.OrderStatus = TThostFtdcOrderStatusType.ALL_TRADED;
+                rtn.StatusMsg += "全部成交";
+            }
+            rtn.UpdateTime = updateTime;
+            if (rtn.OrderStatus == TThostFtdcOrderStatusType.ALL_TRADED)
+                archiveOrder(ongoing);
+            return rtn;
+        }
+
+        private void rtnOrder(CThostFtdcTraderSpi spi, CThostFtdcOrderField order) {
+            dispatch(spi, () -> spi.OnRtnOrder(order));
+        }
+
+        private void rtnTrade(CThostFtdcTraderSpi spi, CThostFtdcTradeField trade) {
+            dispatch(spi, () -> spi.OnRtnTrade(trade));
+        }
+
+        private void rspOrderInsert(CThostFtdcTraderSpi spi,
+                                    CThostFtdcInputOrderField order,
+                                    CThostFtdcRspInfoField rsp, int requestID) {
+            dispatch(spi, () -> spi.OnRspOrderInsert(order, rsp, requestID, true));
+        }
+
+        private void rspOrderAction(CThostFtdcTraderSpi spi,
+                                    CThostFtdcInputOrderActionField action,
+                                    CThostFtdcRspInfoField rsp, int requestID) {
+            dispatch(spi, () -> spi.OnRspOrderAction(action, rsp, requestID, true));
+        }
+
+        /*
+         * Deliver callback, or keep it until the end of the running batch.
+         */
+        private void dispatch(CThostFtdcTraderSpi spi, Runnable callback) {
+            if (spi == null)
+                return;
+            if (this.batched != null)
+                this.batched.computeIfAbsent(spi, k -> new ArrayList<>()).add(callback);
+            else
+                deliver(spi, callback);
+        }
+    }
+
+    /**
+     * Default number of matching shards, half of the available processors.
+     */
+    public static final int DEFAULT_SHARDS
+            = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+    static final int DEPTH_RING_SIZE = 1024;
+    static final long FLUSH_TIMEOUT_MILLIS = 10 * 1000;
+    /**
+     * Capacity of the callback queue of a trader session.
+     */
+    public static final int CALLBACK_QUEUE_SIZE = 64 * 1024;
+    /**
+     * Error ID returned by {@code OnRspError} to a trader session whose callback
+     * queue overflows, before the session is disconnected.
+     */
+    public static final int CALLBACK_OVERFLOW = 9001;
+    static final String CALLBACK_OVERFLOW_MSG = "回报队列溢出，会话已断开";
+
     private final static TradeBook book = new TradeBook();
     private final CThostFtdcRspUserLoginField loginProfile
             = new CThostFtdcRspUserLoginField();
-    private final Map<String, OngoingOrder> orderRefs = new ConcurrentHashMap<>();
-    private final Map<String, OngoingOrder> orderSys = new ConcurrentHashMap<>();
-    private final Map<String, CThostFtdcDepthMarketDataField> currentDepths
+    private final Shard[] shards;
+    private final SessionRegistry sessions;
+    private final IdSequence orderSysIDs = new IdSequence(),
+            tradeIDs = new IdSequence();
+    private volatile boolean synchronous = false;
+    // Outbound callbacks by trader session.
+    private final Map<CThostFtdcTraderSpi, CallbackDispatcher> dispatchers
             = new ConcurrentHashMap<>();
+    private int callbackQueueSize = CALLBACK_QUEUE_SIZE;
+    private final ThreadFactory callbackThreads = Threads.virtual("trade-callback");
+    // Accounts by investor, and latest prices to mark their positions.
+    private final Map<String, Account> accounts = new ConcurrentHashMap<>();
+    private final Map<String, AtomicLong> lastPrices = new ConcurrentHashMap<>();
+    private final RiskCheck risk = new RiskCheck();
+    private volatile TradeJournal journal;
 
     TradeBook() {
+        this(DEFAULT_SHARDS);
+    }
+
+    TradeBook(int shards) {
+        if (shards < 1)
+            throw new IllegalArgumentException("shard count less than 1");
+        this.shards = new Shard[shards];
+        var threads = Threads.platform("trade-book");
+        for (int i = 0; i < shards; ++i) {
+            this.shards[i] = new Shard();
+            threads.newThread(this.shards[i]).start();
+        }
         TickSource.getTickSource().addSPI(this);
         // Init login.
         this.loginProfile.BrokerID = "9999";
         this.loginProfile.SystemName = "Simulation";
         this.loginProfile.FrontID = 1;
         this.loginProfile.SessionID = 0;
+        this.sessions = new SessionRegistry(this.loginProfile);
+    }
+
+    /**
+     * Get number of live orders, that is orders not all traded or canceled.
+     *
+     * @return number of live orders
+     */
+    public int getLiveCount() {
+        int n = 0;
+        for (var shard : this.shards)
+            n += shard.liveCount;
+        return n;
+    }
+
+    /**
+     * Get number of finished orders moved to the archive.
+     *
+     * @return number of archived orders
+     */
+    public long getArchivedCount() {
+        long n = 0;
+        for (var shard : this.shards)
+            n += shard.archivedCount;
+        return n;
+    }
+
+    public int getShards() {
+        return this.shards.length;
     }
 
     public CThostFtdcRspUserLoginField getLoginProfile() {
         return this.loginProfile;
     }
 
+    /**
+     * Get trader sessions of the book.
+     *
+     * @return session registry
+     */
+    public SessionRegistry getSessions() {
+        return this.sessions;
+    }
+
+    /**
+     * Log in a trader session. The login response is a copy of the login profile
+     * with a new session ID, the specified user ID and current times.
+     *
+     * @param userID user ID
+     * @param spi    SPI to return order updates to
+     * @return new session
+     */
+    public SessionRegistry.Session login(String userID, CThostFtdcTraderSpi spi) {
+        var login = OP.deepCopy(this.loginProfile);
+        if (login == null)
+            throw new IllegalStateException("login rsp null");
+        login.CZCETime = login.DCETime
+                = login.FFEXTime
+                = login.INETime
+                = login.SHFETime
+                = login.LoginTime
+                = OP.getTime(SimClock.current().time(), null);
+        login.UserID = userID;
+        login.TradingDay = OP.getTradingDay(SimClock.current().now());
+        return this.sessions.login(login, spi);
+    }
+
+    /**
+     * Log out the specified trader session and release its delivery thread. Its
+     * live orders stay in the book, but their updates are not returned to it any
+     * more. Order refs of the session can't be reused by later sessions because
+     * they get new session IDs.
+     *
+     * @param session session to log out
+     */
+    public void logout(SessionRegistry.Session session) {
+        if (session == null)
+            return;
+        if (this.sessions.logout(session))
+            release(session.getSpi());
+    }
+
     public static TradeBook getTradeSource() {
         return book;
     }
 
+    /**
+     * Get pre-trade checks that orders pass before they are queued.
+     *
+     * @return risk check of the book
+     */
+    public RiskCheck getRiskCheck() {
+        return this.risk;
+    }
+
+    /**
+     * Replay events of the specified journal into the book, then append later
+     * events to it. Orders live at the end of the journal are restored into the
+     * resting books and accounts get their positions and frozen money back. Order
+     * refs and IDs continue after the replayed ones.
+     *
+     * <p>Restored orders belong to sessions without SPI, so their later updates
+     * are not returned to any SPI. Call it once on an empty book before any request.
+     * </p>
+     *
+     * @param journal journal to replay and append to
+     * @return number of replayed events
+     */
+    public synchronized long recover(TradeJournal journal) {
+        if (journal == null)
+            throw new NullPointerException("journal null");
+        if (this.journal != null)
+            throw new IllegalStateException("journal already set");
+        var sync = this.synchronous;
+        // Replay on the calling thread while matching threads are idle.
+        setSynchronous(true);
+        try {
+            journal.replay(new TradeJournal.Handler() {
+                @Override
+                public void insert(long refKey, CThostFtdcInputOrderField order,
+                                   CThostFtdcOrderField rtn) {
+                    sessions.session(rtn.FrontID, rtn.SessionID).admit(refKey);
+                    orderSysIDs.advance(IdSequence.parse(rtn.OrderSysID));
+                    shard(order.InstrumentID).restore(refKey, order, rtn);
+                }
+
+                @Override
+                public void trade(CThostFtdcTradeField trade, String orderDay) {
+                    tradeIDs.advance(IdSequence.parse(trade.TradeID));
+                    shard(trade.InstrumentID).restoreTrade(trade, orderDay);
+                }
+
+                @Override
+                public void cancel(CThostFtdcOrderField rtn) {
+                    shard(rtn.InstrumentID).restoreCancel(rtn);
+                }
+            });
+        } finally {
+            setSynchronous(sync);
+        }
+        this.journal = journal;
+        return journal.getEventCount();
+    }
+
+    /*
+     * Write ID sequences, order refs, accounts, latest prices and live orders
+     * into a snapshot. Each shard writes its own orders on its thread, one shard
+     * after another.
+     */
+    void save(SimSnapshot.Output out) {
+        flush();
+        this.orderSysIDs.save(out);
+        this.tradeIDs.save(out);
+        this.sessions.save(out);
+        out.putInt(this.lastPrices.size());
+        for (var entry : this.lastPrices.entrySet()) {
+            out.putString(entry.getKey());
+            out.putLong(entry.getValue().get());
+        }
+        out.putInt(this.accounts.size());
+        for (var account : this.accounts.values())
+            account.save(out);
+        out.putInt(this.shards.length);
+        for (var shard : this.shards) {
+            var latch = new CountDownLatch(1);
+            var error = new AtomicReference<RuntimeException>();
+            shard.submit(s -> {
+                try {
+                    s.save(out);
+                } catch (RuntimeException e) {
+                    error.set(e);
+                } finally {
+                    latch.countDown();
+                }
+            });
+            await(latch);
+            if (error.get() != null)
+                throw error.get();
+        }
+    }
+
+    /*
+     * Read state written by save(). The returned action replaces the state of the
+     * book with it. Orders and depths go to the shards of their instruments, so
+     * the book may have a different number of shards than the saved one.
+     */
+    synchronized Runnable load(SimSnapshot.Input in) {
+        checkLoadable();
+        var orderSysIDs = this.orderSysIDs.load(in);
+        var tradeIDs = this.tradeIDs.load(in);
+        var sessions = this.sessions.load(in);
+        var lastPrices = new HashMap<String, AtomicLong>();
+        for (int i = 0, n = in.getInt(); i < n; ++i) {
+            var instrID = in.getString();
+            lastPrices.put(instrID, new AtomicLong(in.getLong()));
+        }
+        var accounts = new HashMap<String, Account>();
+        for (int i = 0, n = in.getInt(); i < n; ++i) {
+            var account = Account.load(in);
+            accounts.put(account.getAccountID(), account);
+        }
+        var refKeys = new ArrayList<Long>();
+        var orders = new ArrayList<CThostFtdcInputOrderField>();
+        var rtns = new ArrayList<CThostFtdcOrderField>();
+        var depths = new ArrayList<CThostFtdcDepthMarketDataField>();
+        for (int i = 0, shards = in.getInt(); i < shards; ++i) {
+            for (int j = 0, n = in.getInt(); j < n; ++j) {
+                refKeys.add(in.getLong());
+                orders.add(in.getStruct(CThostFtdcInputOrderField.class));
+                rtns.add(in.getStruct(CThostFtdcOrderField.class));
+            }
+            for (int j = 0, n = in.getInt(); j < n; ++j)
+                depths.add(in.getStruct(CThostFtdcDepthMarketDataField.class));
+        }
+        return () -> {
+            synchronized (this) {
+                checkLoadable();
+                orderSysIDs.run();
+                tradeIDs.run();
+                sessions.run();
+                this.lastPrices.clear();
+                this.lastPrices.putAll(lastPrices);
+                this.accounts.clear();
+                this.accounts.putAll(accounts);
+                // Common data may have changed.
+                this.risk.refresh();
+                var sync = this.synchronous;
+                setSynchronous(true);
+                try {
+                    for (int i = 0; i < orders.size(); ++i) {
+                        var order = orders.get(i);
+                        shard(order.InstrumentID).restoreLive(refKeys.get(i), order,
+                                rtns.get(i));
+                    }
+                    for (var depth : depths)
+                        shard(depth.InstrumentID).restoreDepth(depth);
+                } finally {
+                    setSynchronous(sync);
+                }
+            }
+        };
+    }
+
+    private void checkLoadable() {
+        if (this.journal != null)
+            throw new IllegalStateException("load into book with journal");
+        if (getLiveCount() != 0 || getArchivedCount() != 0)
+            throw new IllegalStateException("load into book not empty");
+    }
+
+    /**
+     * Get account of the specified investor. An account is opened with
+     * {@link Account#DEFAULT_BALANCE} on first use.
+     *
+     * @param investorID investor ID
+     * @return account of the investor
+     */
+    public Account getAccount(String investorID) {
+        var id = investorID == null ? "" : investorID;
+        var account = this.accounts.get(id);
+        if (account == null)
+            account = this.accounts.computeIfAbsent(id, k -> new Account(
+                    this.loginProfile.BrokerID, k, Account.DEFAULT_BALANCE));
+        return account;
+    }
+
+    /**
+     * Get trading account of the specified investor, with positions marked to the
+     * latest prices.
+     *
+     * @param investorID investor ID
+     * @return trading account
+     */
+    public CThostFtdcTradingAccountField getTradingAccount(String investorID) {
+        return getAccount(investorID).getTradingAccount(
+                OP.getTradingDay(SimClock.current().now()), this::lastPrice);
+    }
+
+    /**
+     * Get open position details of the specified investor and instrument, or of
+     * all instruments if the instrument ID is {@code null} or empty.
+     *
+     * @param investorID investor ID
+     * @param instrID    instrument ID
+     * @return list of position details
+     */
+    public List<CThostFtdcInvestorPositionDetailField> getPositionDetails(
+            String investorID, String instrID) {
+        return getAccount(investorID).getPositionDetails(instrID,
+                OP.getTradingDay(SimClock.current().now()), this::lastPrice);
+    }
+
+    /*
+     * Latest price from depths, or last price of the settlement depth if no depth
+     * comes yet.
+     */
+    private double lastPrice(String instrID) {
+        var price = this.lastPrices.get(instrID);
+        if (price != null)
+            return Double.longBitsToDouble(price.get());
+        var depth = CommonData.getDepth(instrID);
+        return depth == null ? Double.NaN : depth.LastPrice;
+    }
+
+    /**
+     * Handle requests and depths on the calling thread, or go back to the matching
+     * threads of the shards. Switching waits until all queued requests and depths
+     * are handled.
+     *
+     * <p>Synchronous mode is for single-threaded backtests, and requests and depths
+     * must come from one thread at a time.
+     * </p>
+     *
+     * @param synchronous {@code true} to handle requests on the calling thread
+     */
+    public void setSynchronous(boolean synchronous) {
+        if (this.synchronous == synchronous)
+            return;
+        flush();
+        this.synchronous = synchronous;
+    }
+
+    public boolean isSynchronous() {
+        return this.synchronous;
+    }
+
+    /**
+     * Wait until all requests and depths queued before the call are handled.
+     */
+    public void flush() {
+        if (this.synchronous)
+            return;
+        var latch = new CountDownLatch(this.shards.length);
+        for (var shard : this.shards)
+            shard.submit(s -> s.flush(latch));
+        await(latch);
+        // Callbacks of the handled requests are queued by now.
+        var delivered = new CountDownLatch(this.dispatchers.size());
+        for (var dispatcher : this.dispatchers.values()) {
+            // A callback that flushes can't wait for its own queue.
+            if (dispatcher.isDeliveryThread() || !dispatcher.dispatch(delivered::countDown))
+                delivered.countDown();
+        }
+        await(delivered);
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            if (!latch.await(FLUSH_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS))
+                throw new IllegalStateException("flush timeout");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Get number of callbacks queued for the specified trader session but not
+     * delivered yet.
+     *
+     * @param spi SPI of the trader session
+     * @return callback queue depth, or 0 if the session has no callback queued
+     */
+    public int getQueueDepth(CThostFtdcTraderSpi spi) {
+        var dispatcher = this.dispatchers.get(spi);
+        return dispatcher == null ? 0 : dispatcher.depth();
+    }
+
+    /*
+     * Set capacity of callback queues created later.
+     */
+    void setCallbackQueueSize(int size) {
+        if (size < 1)
+            throw new IllegalArgumentException("queue size less than 1");
+        this.callbackQueueSize = size;
+    }
+
+    /**
+     * Stop delivering callbacks to the specified trader session and release its
+     * delivery thread. Callbacks not delivered yet are dropped.
+     *
+     * @param spi SPI of the trader session
+     */
+    public void release(CThostFtdcTraderSpi spi) {
+        if (spi == null)
+            return;
+        var dispatcher = this.dispatchers.remove(spi);
+        if (dispatcher != null)
+            dispatcher.stop();
+    }
+
+    /*
+     * Stop matching threads and unsubscribe depths. Requests after stop are never
+     * handled.
+     */
+    void stop() {
+        TickSource.getTickSource().removeSPI(this);
+        for (var shard : this.shards)
+            shard.stop();
+        for (var spi : this.dispatchers.keySet())
+            release(spi);
+    }
+
     public int enqueue(CThostFtdcInputOrderField order, int requestID,
                        CThostFtdcTraderSpi spi, CThostFtdcRspUserLoginField usr) {
-        submitOrder(order, requestID, spi, usr);
-        // Check current market data. Trade if it could.
-        var depth = this.currentDepths.get(order.InstrumentID);
-        if (depth != null)
-            tryTrade(depth);
+        return enqueue(order, requestID, spi,
+                this.sessions.session(usr.FrontID, usr.SessionID));
+    }
+
+    /**
+     * Queue an order of the specified session. Its order ref must be new in the
+     * session.
+     *
+     * @param order     input order
+     * @param requestID request ID
+     * @param spi       SPI to answer
+     * @param session   trader session
+     * @return 0
+     */
+    public int enqueue(CThostFtdcInputOrderField order, int requestID,
+                       CThostFtdcTraderSpi spi, SessionRegistry.Session session) {
+        var insert = check(order, requestID, spi, session, true);
+        shard(insert.order.InstrumentID).submit(insert);
+        return 0;
+    }
+
+    /*
+     * Check order ref of an order on the calling thread, and its risk too if
+     * asked, so checks of later orders see its frozen money. Otherwise the shard
+     * checks risk before it accepts the order.
+     */
+    private Insert check(CThostFtdcInputOrderField order, int requestID,
+                         CThostFtdcTraderSpi spi, SessionRegistry.Session session,
+                         boolean checkRisk) {
+        var refKey = OrderKey.of(order.OrderRef, session.getFrontID(),
+                session.getSessionID());
+        // Copy request because the caller may reuse it when the shard handles it.
+        var copy = OP.deepCopy(order);
+        var rule = this.risk.rule(copy.InstrumentID);
+        // Ref is used even if the order fails the check.
+        if (!session.admit(refKey))
+            return new Insert(refKey, copy, requestID, spi, session, rule,
+                    TThostFtdcErrorCode.DUPLICATE_ORDER_REF, true);
+        if (!checkRisk)
+            return new Insert(refKey, copy, requestID, spi, session, rule,
+                    TThostFtdcErrorCode.NONE, false);
+        var error = this.risk.check(copy, rule, getAccount(copy.InvestorID));
+        return new Insert(refKey, copy, requestID, spi, session, rule, error, true);
+    }
+
+    /**
+     * Queue cancels and orders of the specified session as one batch. Each shard
+     * handles its part of the batch in one command: cancels first, then orders,
+     * then it matches the instruments of the orders once. Callbacks of a batch are
+     * delivered in one go to each SPI.
+     *
+     * <p>Order refs are checked on the calling thread. Risk of the orders is
+     * checked on their shard after the cancels of the batch, so volume and money
+     * released by a cancel are free to the orders of the same shard. A cancel and
+     * a replacing order of the same instrument are always in the same shard.
+     * </p>
+     *
+     * @param orders    input orders, or {@code null}
+     * @param actions   order actions, or {@code null}
+     * @param requestID request ID
+     * @param spi       SPI to answer
+     * @param session   trader session
+     * @return 0
+     */
+    public int enqueue(List<CThostFtdcInputOrderField> orders,
+                       List<CThostFtdcInputOrderActionField> actions, int requestID,
+                       CThostFtdcTraderSpi spi, SessionRegistry.Session session) {
+        if (session == null)
+            throw new NullPointerException("session null");
+        var batches = new Batch[this.shards.length];
+        if (actions != null)
+            for (var action : actions) {
+                var instrID = route(action);
+                var copy = OP.deepCopy(action);
+                if (instrID == null)
+                    broadcast(new Action(copy, requestID, spi, session,
+                            new AtomicInteger(this.shards.length)));
+                else
+                    batch(batches, instrID).actions.add(
+                            new Action(copy, requestID, spi, session, null));
+            }
+        if (orders != null)
+            for (var order : orders) {
+                var insert = check(order, requestID, spi, session, false);
+                batch(batches, insert.order.InstrumentID).inserts.add(insert);
+            }
+        for (int i = 0; i < batches.length; ++i)
+            if (batches[i] != null)
+                this.shards[i].submit(batches[i]);
+        return 0;
+    }
+
+    private Batch batch(Batch[] batches, String instrID) {
+        var i = shardIndex(instrID);
+        if (batches[i] == null)
+            batches[i] = new Batch();
+        return batches[i];
+    }
+
+    /**
+     * Cancel all live orders of the specified instrument, of all sessions. The
+     * orders are canceled in one batch, and each session is returned its own
+     * canceled orders.
+     *
+     * @param instrID instrument ID
+     * @return 0
+     */
+    public int cancelAll(String instrID) {
+        if (instrID == null || instrID.length() == 0)
+            throw new IllegalArgumentException("instrument ID empty");
+        shard(instrID).submit(new MassCancel(instrID, null));
+        return 0;
+    }
+
+    /**
+     * Cancel all live orders of the specified session, or only those of the
+     * specified instrument if it isn't {@code null} or empty. Orders of each
+     * shard are canceled in one batch, including orders of the session queued
+     * before the call.
+     *
+     * @param session trader session
+     * @param instrID instrument ID, or {@code null} for all instruments
+     * @return 0
+     */
+    public int cancelAll(SessionRegistry.Session session, String instrID) {
+        if (session == null)
+            throw new NullPointerException("session null");
+        if (instrID == null || instrID.length() == 0) {
+            var command = new MassCancel(null, session);
+            for (var shard : this.shards)
+                shard.submit(command);
+        } else
+            shard(instrID).submit(new MassCancel(instrID, session));
         return 0;
     }
 
     public int enqueue(CThostFtdcInputOrderActionField action, int requestID,
                        CThostFtdcTraderSpi spi) {
-        OngoingOrder ongoing;
-        // Find ongoing order.
-        if (action.OrderSysID != null && action.OrderSysID.length() > 0)
-            ongoing = this.orderSys.get(action.OrderSysID);
-        else
-            ongoing = this.orderRefs.get
-                    (getRefKey(action.OrderRef, action.FrontID, action.SessionID));
-        // Try cancel order.
-        if (ongoing == null)
-            spi.OnRspOrderAction(action,
-                    rsp(TThostFtdcErrorCode.ORDER_NOT_FOUND,
-                            TThostFtdcErrorMessage.ORDER_NOT_FOUND),
-                    requestID, true);
-        else if (isOrderDone(ongoing))
-            spi.OnRspOrderAction(action,
-                    rsp(TThostFtdcErrorCode.INSUITABLE_ORDER_STATUS,
-                            TThostFtdcErrorMessage.INSUITABLE_ORDER_STATUS),
-                    requestID, true);
+        return enqueue(action, requestID, spi, null);
+    }
+
+    /**
+     * Queue an order action of the specified session. Its answer and the canceled
+     * order are not returned after the session logs out.
+     *
+     * @param action    order action
+     * @param requestID request ID
+     * @param spi       SPI to answer
+     * @param session   trader session, or {@code null} if the request is made
+     *                  without a session
+     * @return 0
+     */
+    public int enqueue(CThostFtdcInputOrderActionField action, int requestID,
+                       CThostFtdcTraderSpi spi, SessionRegistry.Session session) {
+        var copy = OP.deepCopy(action);
+        var instrID = route(action);
+        if (instrID != null)
+            shard(instrID).submit(new Action(copy, requestID, spi, session, null));
         else
-            // Cancel order and call SPI.
-            spi.OnRtnOrder(cancelOrder(ongoing));
+            broadcast(new Action(copy, requestID, spi, session,
+                    new AtomicInteger(this.shards.length)));
         return 0;
     }
 
-    private CThostFtdcOrderField cancelOrder(OngoingOrder ongoing) {
-        var rtn = OP.deepCopy(ongoing.lastRtn());
-        if (rtn == null)
-            throw new IllegalStateException("create rtn order null");
-        // Update last rtn order.
-        rtn.OrderStatus = TThostFtdcOrderStatusType.CANCELED;
-        rtn.StatusMsg += "已撤单";
-        rtn.CancelTime = OP.getTime(LocalTime.now(), null);
-        ongoing.rtn.add(rtn);
-        return OP.deepCopy(rtn);
+    /*
+     * Get instrument ID of the order to cancel, or null if it isn't known.
+     */
+    private String route(CThostFtdcInputOrderActionField action) {
+        var instrID = action.InstrumentID;
+        if ((instrID == null || instrID.length() == 0)
+                && (action.OrderSysID == null || action.OrderSysID.length() == 0)) {
+            // Live order by ref is indexed in its session.
+            var session = this.sessions.get(action.FrontID, action.SessionID);
+            if (session != null)
+                instrID = session.getInstrumentID(OrderKey.of(action.OrderRef,
+                        action.FrontID, action.SessionID));
+        }
+        return instrID == null || instrID.length() == 0 ? null : instrID;
+    }
+
+    /*
+     * Ask all shards because the instrument is unknown.
+     */
+    private void broadcast(Action command) {
+        for (var shard : this.shards)
+            shard.submit(command);
+    }
+
+    @Override
+    public void OnRtnDepthMarketData(
+            CThostFtdcDepthMarketDataField depthMarketData) {
+        var last = depthMarketData.LastPrice;
+        if (last > 0 && last < Double.MAX_VALUE) {
+            // Invalid prices are zero or max double.
+            var price = this.lastPrices.get(depthMarketData.InstrumentID);
+            if (price == null)
+                price = this.lastPrices.computeIfAbsent(
+                        depthMarketData.InstrumentID, k -> new AtomicLong());
+            price.set(Double.doubleToRawLongBits(last));
+        }
+        shard(depthMarketData.InstrumentID).publish(depthMarketData);
+    }
+
+    private Shard shard(String instrID) {
+        return this.shards[shardIndex(instrID)];
+    }
+
+    private int shardIndex(String instrID) {
+        if (this.shards.length == 1)
+            return 0;
+        // Hash regardless of case, as instrument IDs match regardless of case.
+        int h = 0;
+        for (int i = 0; i < instrID.length(); ++i)
+            h = 31 * h + Character.toLowerCase(instrID.charAt(i));
+        return Math.floorMod(h, this.shards.length);
+    }
+
+    /*
+     * Call SPI on the session's delivery thread, so a slow session doesn't hold
+     * the matching thread.
+     */
+    private void deliver(CThostFtdcTraderSpi spi, Runnable callback) {
+        if (spi == null)
+            // Order replayed from journal has no session.
+            return;
+        if (this.synchronous) {
+            callback.run();
+            return;
+        }
+        var dispatcher = this.dispatchers.computeIfAbsent(spi,
+                k -> new CallbackDispatcher(this.callbackQueueSize, this.callbackThreads,
+                        () -> spi.OnRspError(rsp(CALLBACK_OVERFLOW, CALLBACK_OVERFLOW_MSG),
+                                0, true)));
+        if (!dispatcher.dispatch(callback) && dispatcher.isOverflowed())
+            disconnect(spi, dispatcher);
+    }
+
+    /*
+     * Log out sessions of an SPI whose callback queue overflows. The dispatcher
+     * delivers the overflow error and then stops by itself.
+     */
+    private void disconnect(CThostFtdcTraderSpi spi, CallbackDispatcher dispatcher) {
+        if (!this.dispatchers.remove(spi, dispatcher))
+            return;
+        for (var session : this.sessions.find(spi))
+            this.sessions.logout(session);
     }
 
-    private boolean isOrderDone(OngoingOrder ongoing) {
-        if (ongoing.rtn.size() < 1)
-            throw new IllegalStateException("return order empty");
+    private static boolean isOrderDone(OngoingOrder ongoing) {
         var status = ongoing.lastRtn().OrderStatus;
         return status == TThostFtdcOrderStatusType.ALL_TRADED
                 || status == TThostFtdcOrderStatusType.CANCELED;
     }
 
-    private CThostFtdcRspInfoField rsp(int errorID, String errorMsg) {
+    private static String message(int errorID) {
+        switch (errorID) {
+            case TThostFtdcErrorCode.DUPLICATE_ORDER_REF:
+                return TThostFtdcErrorMessage.DUPLICATE_ORDER_REF;
+            case TThostFtdcErrorCode.INSTRUMENT_NOT_FOUND:
+                return TThostFtdcErrorMessage.INSTRUMENT_NOT_FOUND;
+            case TThostFtdcErrorCode.OVER_CLOSE_POSITION:
+                return TThostFtdcErrorMessage.OVER_CLOSE_POSITION;
+            case TThostFtdcErrorCode.INSUFFICIENT_MONEY:
+                return TThostFtdcErrorMessage.INSUFFICIENT_MONEY;
+            case RiskCheck.OVER_POSITION_LIMIT:
+                return RiskCheck.OVER_POSITION_LIMIT_MSG;
+            default:
+                return TThostFtdcErrorMessage.BAD_FIELD;
+        }
+    }
+
+    private static CThostFtdcRspInfoField rsp(int errorID, String errorMsg) {
         var rsp = new CThostFtdcRspInfoField();
         rsp.ErrorID = errorID;
         rsp.ErrorMsg = errorMsg;
         return rsp;
     }
 
-    private void submitOrder(CThostFtdcInputOrderField order, int requestID,
-                             CThostFtdcTraderSpi spi,
-                             CThostFtdcRspUserLoginField usr) {
-        // Try submit order.
-        if (!checkUnity(order.OrderRef, usr.FrontID, usr.SessionID))
-            // Duplicated order ref.
-            // Call SPI.
-            spi.OnRspOrderInsert(order,
-                    rsp(TThostFtdcErrorCode.DUPLICATE_ORDER_REF,
-                            TThostFtdcErrorMessage.DUPLICATE_ORDER_REF),
-                    requestID, true);
-        else
-            // Insert order and call SPI.
-            spi.OnRtnOrder(insertOrder(order, requestID, spi, usr));
-    }
-
-    private CThostFtdcOrderField insertOrder(CThostFtdcInputOrderField order, int requestID,
-                             CThostFtdcTraderSpi spi,
-                             CThostFtdcRspUserLoginField usr) {
-        var rtn = createRtnOrder(order);
-        // Other ID.
-        rtn.RequestID = requestID;
-        rtn.FrontID = usr.FrontID;
-        rtn.SessionID = usr.SessionID;
-        // Statuses.
-        rtn.OrderStatus = TThostFtdcOrderStatusType.NO_TRADE_QUEUEING;
-        rtn.OrderSubmitStatus = TThostFtdcOrderSubmitStatusType.ACCEPTED;
-        rtn.StatusMsg = "已提交";
-        // Create internal order object.
-        var ongoing = new OngoingOrder(OP.deepCopy(order), spi, OP.deepCopy(usr));
-        ongoing.order.RequestID = requestID;
-        ongoing.rtn.add(rtn);
-        // Add mapping.
-        this.orderRefs.put(
-                getRefKey(order.OrderRef, usr.FrontID, usr.SessionID),
-                ongoing);
-        this.orderSys.put(rtn.OrderSysID, ongoing);
-        return OP.deepCopy(rtn);
-    }
-
-    private boolean checkUnity(String orderRef, int frontID, int sessionID) {
-        var key = getRefKey(orderRef, frontID, sessionID);
-        return !this.orderRefs.containsKey(key);
-    }
-
-    private String getRefKey(String orderRef, int frontID, int sessionID) {
-        return orderRef + "_" + frontID + "_" + sessionID;
-    }
-
-    private CThostFtdcOrderField createRtnOrder(CThostFtdcInputOrderField order) {
+    private CThostFtdcOrderField createRtnOrder(CThostFtdcInputOrderField order,
+                                                Stamp stamp) {
+        var rtn = newRtnOrder(order);
+        // Day and time.
+        rtn.TradingDay = stamp.tradingDay;
+        rtn.InsertDate = stamp.day;
+        rtn.InsertTime = stamp.time;
+        rtn.ActiveTime = rtn.InsertTime;
+        // OrderSysID.
+        rtn.OrderSysID = this.orderSysIDs.next();
+        return rtn;
+    }
+
+    private static CThostFtdcOrderField newRtnOrder(CThostFtdcInputOrderField order) {
         var rtn = new CThostFtdcOrderField();
         // Copy info.
         rtn.AccountID = order.AccountID;
@@ -235,82 +1632,23 @@ public class TradeBook extends CThostFtdcMdSpi {
         rtn.UserID = order.UserID;
         rtn.VolumeCondition = order.VolumeCondition;
         rtn.VolumeTotalOriginal = order.VolumeTotalOriginal;
-        // Day and time.
-        rtn.TradingDay = OP.getTradingDay(LocalDate.now());
-        rtn.InsertDate = OP.getDay(LocalDate.now(), null);
-        rtn.InsertTime = OP.getTime(LocalTime.now(), null);
-        rtn.ActiveTime = rtn.InsertTime;
-        // OrderSysID.
-        rtn.OrderSysID = getOrderSysID();
         // Volume.
         rtn.VolumeTraded = 0;
         rtn.VolumeTotal = rtn.VolumeTotalOriginal;
         return rtn;
     }
 
-    private String getOrderSysID() {
-        return LocalDateTime.now()
-                .format(DateTimeFormatter.ofPattern("yyyyMMddHHmmssSSSSSS"));
-    }
-
-    @Override
-    public void OnRtnDepthMarketData(
-            CThostFtdcDepthMarketDataField depthMarketData) {
-        // Save latest depth market data.
-        this.currentDepths.put(depthMarketData.InstrumentID, depthMarketData);
-        // Check ongoing order and trade.
-        tryTrade(depthMarketData);
-    }
-
-    private void tryTrade(CThostFtdcDepthMarketDataField depthMarketData) {
-        for (var ongoing : this.orderSys.values()) {
-            if (ongoing.order.InstrumentID
-                    .compareToIgnoreCase(depthMarketData.InstrumentID) != 0
-                    || isOrderDone(ongoing))
-                continue;
-            var last = ongoing.lastRtn();
-            // Calculate traded volume this time.
-            if (last.VolumeTotal <= 0)
-                throw new IllegalStateException("volume traded overflow");
-            int volumeNow = Math.min(last.VolumeTotal, 11);
-            // Check price.
-            if (ongoing.order.Direction == TThostFtdcDirectionType.DIRECTION_BUY) {
-                if (ongoing.order.LimitPrice >= depthMarketData.AskPrice1)
-                    trade(ongoing, depthMarketData.AskPrice1, volumeNow);
-            } else {
-                if (ongoing.order.LimitPrice <= depthMarketData.BidPrice1)
-                    trade(ongoing, depthMarketData.BidPrice1, volumeNow);
-            }
-        }
-    }
-
-    private void trade(OngoingOrder ongoing, double price, int volume) {
-        // Call SPI.
-        ongoing.spi.OnRtnTrade(createTrade(ongoing, price, volume));
-        // Update order and call SPI.
-        ongoing.spi.OnRtnOrder(updateOrder(ongoing, volume));
-    }
-
-    private CThostFtdcOrderField updateOrder(OngoingOrder ongoing, int volume) {
-        var rtn = OP.deepCopy(ongoing.lastRtn());
-        if (rtn == null)
-            throw new IllegalStateException("create rtn order null");
-        rtn.VolumeTraded += volume;
-        rtn.VolumeTotal -= volume;
-        if (rtn.VolumeTotal > 0) {
-            rtn.OrderStatus = TThostFtdcOrderStatusType.PART_TRADED_QUEUEING;
-            rtn.StatusMsg += "部分成交";
-        } else {
-            rtn.OrderStatus = TThostFtdcOrderStatusType.ALL_TRADED;
-            rtn.StatusMsg += "全部成交";
-        }
-        rtn.UpdateTime = OP.getTime(LocalTime.now(), null);
-        ongoing.rtn.add(rtn);
-        return OP.deepCopy(rtn);
+    private CThostFtdcTradeField createTrade(OngoingOrder ongoing, double price,
+                                             int volume, Stamp stamp) {
+        var trade = newTrade(ongoing, price, volume);
+        trade.TradeDate = stamp.day;
+        trade.TradeTime = stamp.time;
+        trade.TradingDay = stamp.tradingDay;
+        return trade;
     }
 
-    private CThostFtdcTradeField createTrade(OngoingOrder ongoing, double price,
-                                             int volume) {
+    private static CThostFtdcTradeField newTrade(OngoingOrder ongoing, double price,
+                                                 int volume) {
         var trade = new CThostFtdcTradeField();
         trade.BrokerID = ongoing.order.BrokerID;
         trade.InvestorID = ongoing.order.InvestorID;
@@ -318,7 +1656,6 @@ public class TradeBook extends CThostFtdcMdSpi {
         trade.OrderRef = ongoing.order.OrderRef;
         trade.UserID = ongoing.order.UserID;
         trade.ExchangeID = ongoing.order.ExchangeID;
-        trade.TradeID = String.valueOf(System.nanoTime());
         trade.Direction = ongoing.order.Direction;
         trade.OrderSysID = ongoing.lastRtn().OrderSysID;
         trade.ParticipantID = "";
@@ -329,8 +1666,6 @@ public class TradeBook extends CThostFtdcMdSpi {
         trade.HedgeFlag = ongoing.order.CombHedgeFlag;
         trade.Price = price;
         trade.Volume = volume;
-        trade.TradeDate = OP.getDay(LocalDate.now(), null);
-        trade.TradeTime = OP.getTime(LocalTime.now(), null);
         trade.TradeType = 0;
         trade.PriceSource = 0;
         trade.TraderID = "";
@@ -338,7 +1673,6 @@ public class TradeBook extends CThostFtdcMdSpi {
         trade.ClearingPartID = "";
         trade.BusinessUnit = "";
         trade.SequenceNo = 0;
-        trade.TradingDay = OP.getTradingDay(LocalDate.now());
         trade.SettlementID = 0;
         trade.BrokerOrderSeq = 0;
         trade.TradeSource = 0;
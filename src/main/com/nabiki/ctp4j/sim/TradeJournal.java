@@ -0,0 +1,506 @@
+/*
+ * Copyright (c) 2020 Hongbao Chen <chenhongbao@outlook.com>
+ *
+ * Licensed under the  GNU Affero General Public License v3.0 and you may not use
+ * this file except in compliance with the  License. You may obtain a copy of the
+ * License at
+ *
+ *                    https://www.gnu.org/licenses/agpl-3.0.txt
+ *
+ * Permission is hereby  granted, free of charge, to any  person obtaining a copy
+ * of this software and associated  documentation files (the "Software"), to deal
+ * in the Software  without restriction, including without  limitation the rights
+ * to  use, copy,  modify, merge,  publish, distribute,  sublicense, and/or  sell
+ * copies  of  the Software,  and  to  permit persons  to  whom  the Software  is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE  IS PROVIDED "AS  IS", WITHOUT WARRANTY  OF ANY KIND,  EXPRESS OR
+ * IMPLIED,  INCLUDING BUT  NOT  LIMITED TO  THE  WARRANTIES OF  MERCHANTABILITY,
+ * FITNESS FOR  A PARTICULAR PURPOSE AND  NONINFRINGEMENT. IN NO EVENT  SHALL THE
+ * AUTHORS  OR COPYRIGHT  HOLDERS  BE  LIABLE FOR  ANY  CLAIM,  DAMAGES OR  OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF  CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE  OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.nabiki.ctp4j.sim;
+
+import com.nabiki.ctp4j._x.StructCodec;
+import com.nabiki.ctp4j._x.Threads;
+import com.nabiki.ctp4j.jni.struct.CThostFtdcInputOrderField;
+import com.nabiki.ctp4j.jni.struct.CThostFtdcOrderField;
+import com.nabiki.ctp4j.jni.struct.CThostFtdcTradeField;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+import static com.nabiki.ctp4j._x.StructCodec.getString;
+import static com.nabiki.ctp4j._x.StructCodec.putString;
+import static com.nabiki.ctp4j._x.StructCodec.skipString;
+
+/**
+ * Append-only journal of order, trade and cancel events of {@link TradeBook},
+ * in a memory-mapped file.
+ *
+ * <p>Matching threads append events when they change order state. A writer
+ * reserves its space by an atomic add on the end of the journal and then writes
+ * its record without a lock. Records are in memory of the file as soon as they
+ * are written, so they survive a crash of the process. A background thread
+ * forces them to disk every {@link #SYNC_INTERVAL_MILLIS} milliseconds, so a crash
+ * of the machine loses at most that much.
+ * </p>
+ *
+ * <p>The file is mapped in chunks and a record never crosses a chunk. When a
+ * record doesn't fit the rest of a chunk, the rest is skipped by a pad record.
+ * All numbers are little-endian.
+ * </p>
+ * <pre>
+ * header, 16 bytes: int magic, short version, short zero, long zero
+ * record: int length of the whole record, byte type, 3 bytes zero, then
+ *   insert: long ref key, int front ID, int session ID, int request ID,
+ *     long order sys ID, strings trading day, insert date and insert time,
+ *     then the input order encoded by {@link StructCodec}
+ *   trade: long order sys ID, long trade ID, double price, int volume,
+ *     strings instrument ID, trading day of the order, trading day, trade date
+ *     and trade time
+ *   cancel: long order sys ID, strings instrument ID, trading day of the order
+ *     and cancel time
+ *   pad: nothing
+ * </pre>
+ *
+ * <p>Trades and cancels name their order by order sys ID and its trading day,
+ * the same pair an insert is written with.
+ * </p>
+ *
+ * <p>Record length is written last, and the journal ends at the first record of
+ * zero length. On open the journal is scanned to its end, and the file after the
+ * end is zeroed, so records a crash left behind a broken one can't show up again
+ * behind records appended later. {@link #replay(Handler)} reads the events back
+ * in the order they were appended.
+ * </p>
+ */
+public class TradeJournal implements Closeable {
+    /**
+     * Receiver of events read from the journal.
+     */
+    public interface Handler {
+        /**
+         * Order accepted.
+         *
+         * @param refKey key of the order ref
+         * @param order  input order
+         * @param rtn    return order that has only front ID, session ID, request
+         *               ID, order sys ID, trading day, insert date and time
+         */
+        void insert(long refKey, CThostFtdcInputOrderField order,
+                    CThostFtdcOrderField rtn);
+
+        /**
+         * Order traded.
+         *
+         * @param trade    trade that has only instrument ID, order sys ID, trade
+         *                 ID, price, volume, trading day, trade date and time
+         * @param orderDay trading day of the traded order
+         */
+        void trade(CThostFtdcTradeField trade, String orderDay);
+
+        /**
+         * Order canceled.
+         *
+         * @param rtn return order that has only instrument ID, order sys ID,
+         *            trading day and cancel time
+         */
+        void cancel(CThostFtdcOrderField rtn);
+    }
+
+    /**
+     * Interval between forcing appended records to disk.
+     */
+    public static final long SYNC_INTERVAL_MILLIS = 10;
+    static final int MAGIC = 0x4a505443; // "CTPJ"
+    static final short VERSION = 2;
+    static final int HEADER_SIZE = 16, RECORD_HEADER_SIZE = 8;
+    static final int CHUNK_SIZE = 64 << 20, MAX_CHUNKS = 4096;
+    static final byte INSERT = 1, TRADE = 2, CANCEL = 3, PAD = 4;
+    // Replay shares repeated strings like IDs and dates through a cache.
+    static final int STRING_CACHE_SIZE = 4096;
+
+    private final FileChannel channel;
+    private final int chunkSize;
+    private final AtomicReferenceArray<MappedByteBuffer> chunks
+            = new AtomicReferenceArray<>(MAX_CHUNKS);
+    // Offset where the next record starts.
+    private final AtomicLong end;
+    private final AtomicLong count = new AtomicLong(0);
+    private final Thread syncer;
+    private volatile boolean closed = false;
+    // Offset up to which records are forced to disk, guarded by sync lock.
+    private long synced;
+    private final Object syncLock = new Object();
+
+    /**
+     * Open the specified journal, or create it if it doesn't exist.
+     *
+     * @param file journal file
+     * @throws IOException if the file can't be opened or is not a journal
+     */
+    public TradeJournal(Path file) throws IOException {
+        this(file, CHUNK_SIZE);
+    }
+
+    TradeJournal(Path file, int chunkSize) throws IOException {
+        if (chunkSize < HEADER_SIZE + RECORD_HEADER_SIZE)
+            throw new IllegalArgumentException("chunk size too small");
+        this.chunkSize = chunkSize;
+        this.channel = FileChannel.open(file, StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            var fresh = this.channel.size() == 0;
+            var b = chunk(0);
+            if (fresh) {
+                b.putInt(0, MAGIC);
+                b.putShort(4, VERSION);
+            } else if (b.getInt(0) != MAGIC)
+                throw new IOException("not a trade journal: " + file);
+            else if (b.getShort(4) != VERSION)
+                throw new IOException("unsupported trade journal version: " + file);
+            this.end = new AtomicLong(scan());
+            if (!fresh)
+                clearTail(this.end.get());
+        } catch (IOException | RuntimeException e) {
+            this.channel.close();
+            throw e;
+        }
+        this.synced = this.end.get();
+        this.syncer = Threads.platform("trade-journal").newThread(this::syncLoop);
+        this.syncer.start();
+    }
+
+    /**
+     * Get number of events in the journal, both replayed and appended.
+     *
+     * @return number of events
+     */
+    public long getEventCount() {
+        return this.count.get();
+    }
+
+    /**
+     * Get size of the journal's records in bytes, including the header.
+     *
+     * @return size of records
+     */
+    public long getSize() {
+        return this.end.get();
+    }
+
+    void insert(long refKey, CThostFtdcInputOrderField order,
+                CThostFtdcOrderField rtn) {
+        var codec = StructCodec.of(CThostFtdcInputOrderField.class);
+        var size = RECORD_HEADER_SIZE + 32 + StructCodec.size(rtn.TradingDay)
+                + StructCodec.size(rtn.InsertDate)
+                + StructCodec.size(rtn.InsertTime) + codec.size(order);
+        var at = reserve(size);
+        var b = chunk(at / this.chunkSize);
+        var p = (int) (at % this.chunkSize) + RECORD_HEADER_SIZE;
+        b.putLong(p, refKey);
+        b.putInt(p + 8, rtn.FrontID);
+        b.putInt(p + 12, rtn.SessionID);
+        b.putInt(p + 16, rtn.RequestID);
+        b.putLong(p + 20, IdSequence.parse(rtn.OrderSysID));
+        p = putString(b, p + 28, rtn.TradingDay);
+        p = putString(b, p, rtn.InsertDate);
+        p = putString(b, p, rtn.InsertTime);
+        codec.write(b, p, order);
+        commit(b, at, size, INSERT);
+    }
+
+    void trade(CThostFtdcTradeField trade, String orderDay) {
+        var size = RECORD_HEADER_SIZE + 28 + StructCodec.size(trade.InstrumentID)
+                + StructCodec.size(orderDay) + StructCodec.size(trade.TradingDay)
+                + StructCodec.size(trade.TradeDate)
+                + StructCodec.size(trade.TradeTime);
+        var at = reserve(size);
+        var b = chunk(at / this.chunkSize);
+        var p = (int) (at % this.chunkSize) + RECORD_HEADER_SIZE;
+        b.putLong(p, IdSequence.parse(trade.OrderSysID));
+        b.putLong(p + 8, IdSequence.parse(trade.TradeID));
+        b.putDouble(p + 16, trade.Price);
+        b.putInt(p + 24, trade.Volume);
+        p = putString(b, p + 28, trade.InstrumentID);
+        p = putString(b, p, orderDay);
+        p = putString(b, p, trade.TradingDay);
+        p = putString(b, p, trade.TradeDate);
+        putString(b, p, trade.TradeTime);
+        commit(b, at, size, TRADE);
+    }
+
+    void cancel(CThostFtdcOrderField rtn) {
+        var size = RECORD_HEADER_SIZE + 8 + StructCodec.size(rtn.InstrumentID)
+                + StructCodec.size(rtn.TradingDay) + StructCodec.size(rtn.CancelTime);
+        var at = reserve(size);
+        var b = chunk(at / this.chunkSize);
+        var p = (int) (at % this.chunkSize) + RECORD_HEADER_SIZE;
+        b.putLong(p, IdSequence.parse(rtn.OrderSysID));
+        p = putString(b, p + 8, rtn.InstrumentID);
+        p = putString(b, p, rtn.TradingDay);
+        putString(b, p, rtn.CancelTime);
+        commit(b, at, size, CANCEL);
+    }
+
+    /**
+     * Read all events in the journal in the order they are appended.
+     *
+     * @param handler receiver of events
+     */
+    public void replay(Handler handler) {
+        var codec = StructCodec.of(CThostFtdcInputOrderField.class);
+        var strings = new StructCodec.StringCache(STRING_CACHE_SIZE);
+        long at = HEADER_SIZE, end = this.end.get();
+        while (at < end) {
+            if (this.chunkSize - at % this.chunkSize < RECORD_HEADER_SIZE) {
+                at = next(at);
+                continue;
+            }
+            var b = chunk(at / this.chunkSize);
+            var p = (int) (at % this.chunkSize);
+            var length = b.getInt(p);
+            var type = b.get(p + 4);
+            p += RECORD_HEADER_SIZE;
+            if (type == INSERT) {
+                var rtn = new CThostFtdcOrderField();
+                var refKey = b.getLong(p);
+                rtn.FrontID = b.getInt(p + 8);
+                rtn.SessionID = b.getInt(p + 12);
+                rtn.RequestID = b.getInt(p + 16);
+                rtn.OrderSysID = IdSequence.render(b.getLong(p + 20));
+                p += 28;
+                rtn.TradingDay = getString(b, p, strings);
+                p = skipString(b, p);
+                rtn.InsertDate = getString(b, p, strings);
+                p = skipString(b, p);
+                rtn.InsertTime = getString(b, p, strings);
+                p = skipString(b, p);
+                var order = new CThostFtdcInputOrderField();
+                codec.read(b, p, order, strings);
+                handler.insert(refKey, order, rtn);
+            } else if (type == TRADE) {
+                var trade = new CThostFtdcTradeField();
+                trade.OrderSysID = IdSequence.render(b.getLong(p));
+                trade.TradeID = IdSequence.render(b.getLong(p + 8));
+                trade.Price = b.getDouble(p + 16);
+                trade.Volume = b.getInt(p + 24);
+                p += 28;
+                trade.InstrumentID = getString(b, p, strings);
+                p = skipString(b, p);
+                var orderDay = getString(b, p, strings);
+                p = skipString(b, p);
+                trade.TradingDay = getString(b, p, strings);
+                p = skipString(b, p);
+                trade.TradeDate = getString(b, p, strings);
+                p = skipString(b, p);
+                trade.TradeTime = getString(b, p, strings);
+                handler.trade(trade, orderDay);
+            } else if (type == CANCEL) {
+                var rtn = new CThostFtdcOrderField();
+                rtn.OrderSysID = IdSequence.render(b.getLong(p));
+                p += 8;
+                rtn.InstrumentID = getString(b, p, strings);
+                p = skipString(b, p);
+                rtn.TradingDay = getString(b, p, strings);
+                p = skipString(b, p);
+                rtn.CancelTime = getString(b, p, strings);
+                handler.cancel(rtn);
+            }
+            at += length;
+        }
+    }
+
+    /**
+     * Force appended records to disk.
+     */
+    public void sync() {
+        synchronized (this.syncLock) {
+            var end = this.end.get();
+            if (end == this.synced)
+                return;
+            var from = (int) (this.synced / this.chunkSize);
+            var to = (int) ((end - 1) / this.chunkSize);
+            for (int i = from; i <= to; ++i) {
+                var b = this.chunks.get(i);
+                if (b != null)
+                    b.force();
+            }
+            this.synced = end;
+        }
+    }
+
+    /**
+     * Stop syncing in background, force records to disk and close the file.
+     * Appending after close fails.
+     *
+     * @throws IOException if closing the file fails
+     */
+    @Override
+    public void close() throws IOException {
+        if (this.closed)
+            return;
+        this.closed = true;
+        LockSupport.unpark(this.syncer);
+        try {
+            this.syncer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        sync();
+        this.channel.close();
+    }
+
+    private void syncLoop() {
+        while (!this.closed) {
+            LockSupport.parkNanos(SYNC_INTERVAL_MILLIS * 1000 * 1000);
+            try {
+                sync();
+            } catch (Throwable ignored) {
+            }
+        }
+    }
+
+    /*
+     * Find end of the journal, and count its events.
+     */
+    private long scan() {
+        long at = HEADER_SIZE, n = 0, size = sizeOf(this.channel);
+        while (true) {
+            if (this.chunkSize - at % this.chunkSize < RECORD_HEADER_SIZE) {
+                at = next(at);
+                continue;
+            }
+            var index = (int) (at / this.chunkSize);
+            if (index >= MAX_CHUNKS || this.chunkSize * (long) index >= size)
+                break;
+            var b = chunk(index);
+            var p = (int) (at % this.chunkSize);
+            var length = b.getInt(p);
+            var type = b.get(p + 4);
+            // A record is broken if it was being written when the process died.
+            if (length < RECORD_HEADER_SIZE || length > this.chunkSize - p
+                    || type < INSERT || type > PAD)
+                break;
+            if (type != PAD)
+                ++n;
+            at += length;
+        }
+        this.count.set(n);
+        return at;
+    }
+
+    /*
+     * Zero the file from the end of the journal. Pages already zero are only
+     * read, so a clean tail isn't written back.
+     */
+    private void clearTail(long from) {
+        var size = sizeOf(this.channel);
+        var at = from;
+        while (at < size && at / this.chunkSize < MAX_CHUNKS) {
+            var b = chunk(at / this.chunkSize);
+            var p = (int) (at % this.chunkSize);
+            var to = (int) Math.min(this.chunkSize, size - (at - p));
+            var dirty = false;
+            for (; p < to && (p & 7) != 0; ++p)
+                if (b.get(p) != 0) {
+                    b.put(p, (byte) 0);
+                    dirty = true;
+                }
+            for (; p + 8 <= to; p += 8)
+                if (b.getLong(p) != 0) {
+                    b.putLong(p, 0L);
+                    dirty = true;
+                }
+            for (; p < to; ++p)
+                if (b.get(p) != 0) {
+                    b.put(p, (byte) 0);
+                    dirty = true;
+                }
+            if (dirty)
+                b.force();
+            at = next(at);
+        }
+    }
+
+    private static long sizeOf(FileChannel channel) {
+        try {
+            return channel.size();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private long next(long at) {
+        return (at / this.chunkSize + 1) * this.chunkSize;
+    }
+
+    /*
+     * Reserve space for a record of the specified size and return its offset.
+     */
+    private long reserve(int size) {
+        if (this.closed)
+            throw new IllegalStateException("journal closed");
+        if (size > this.chunkSize)
+            throw new IllegalArgumentException("record too large");
+        while (true) {
+            var at = this.end.get();
+            var left = this.chunkSize - at % this.chunkSize;
+            var start = left < size ? at + left : at;
+            if (start + size > (long) this.chunkSize * MAX_CHUNKS)
+                throw new IllegalStateException("journal full");
+            if (this.end.compareAndSet(at, start + size)) {
+                if (start != at && left >= RECORD_HEADER_SIZE)
+                    // Skip rest of the chunk.
+                    commit(chunk(at / this.chunkSize), at, (int) left, PAD);
+                return start;
+            }
+        }
+    }
+
+    private void commit(MappedByteBuffer b, long at, int size, byte type) {
+        var p = (int) (at % this.chunkSize);
+        b.put(p + 4, type);
+        b.putInt(p, size);
+        if (type != PAD)
+            this.count.incrementAndGet();
+    }
+
+    private MappedByteBuffer chunk(long index) {
+        var i = (int) index;
+        var b = this.chunks.get(i);
+        if (b != null)
+            return b;
+        synchronized (this.chunks) {
+            b = this.chunks.get(i);
+            if (b == null) {
+                try {
+                    b = this.channel.map(FileChannel.MapMode.READ_WRITE,
+                            (long) i * this.chunkSize, this.chunkSize);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                b.order(ByteOrder.LITTLE_ENDIAN);
+                this.chunks.set(i, b);
+            }
+            return b;
+        }
+    }
+}
@@ -29,10 +29,12 @@
 package com.nabiki.ctp4j.trader.internal;
 
 import com.nabiki.ctp4j._x.OP;
+import com.nabiki.ctp4j._x.SimClock;
 import com.nabiki.ctp4j.jni.flag.TThostFtdcErrorCode;
 import com.nabiki.ctp4j.jni.flag.TThostFtdcErrorMessage;
 import com.nabiki.ctp4j.jni.struct.*;
 import com.nabiki.ctp4j.sim.CommonData;
+import com.nabiki.ctp4j.sim.SessionRegistry;
 import com.nabiki.ctp4j.sim.TradeBook;
 import com.nabiki.ctp4j.trader.CThostFtdcTraderApi;
 import com.nabiki.ctp4j.trader.CThostFtdcTraderSpi;
@@ -42,8 +44,7 @@ import java.io.FileFilter;
 import java.io.IOException;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Path;
-import java.time.LocalDate;
-import java.time.LocalTime;
+import java.util.List;
 import java.util.logging.FileHandler;
 import java.util.logging.Logger;
 import java.util.logging.SimpleFormatter;
@@ -58,7 +59,7 @@ class CThostFtdcTraderApiImpl extends CThostFtdcTraderApi {
     private final Logger log;
 
     private CThostFtdcTraderSpi spi = new DefaultSPI();
-    private CThostFtdcRspUserLoginField selfLogin;
+    private SessionRegistry.Session session;
 
     public CThostFtdcTraderApiImpl(String flowDir) {
         OP.ensure(flowDir, ".log");
@@ -83,7 +84,7 @@ class CThostFtdcTraderApiImpl extends CThostFtdcTraderApi {
 
     @Override
     public String GetTradingDay() {
-        return OP.getTradingDay(LocalDate.now());
+        return OP.getTradingDay(SimClock.current().now());
     }
 
     @Override
@@ -150,6 +151,9 @@ class CThostFtdcTraderApiImpl extends CThostFtdcTraderApi {
 
     @Override
     public void Release() {
+        TradeBook.getTradeSource().logout(this.session);
+        TradeBook.getTradeSource().release(this.spi);
+        this.session = null;
         this.spi = null;
     }
 
@@ -175,20 +179,12 @@ class CThostFtdcTraderApiImpl extends CThostFtdcTraderApi {
     @Override
     public int ReqUserLogin(CThostFtdcReqUserLoginField reqUserLoginField,
                             int requestID) {
-        this.selfLogin = OP.deepCopy(TradeBook.getTradeSource().getLoginProfile());
-        if (this.selfLogin == null)
-            throw new IllegalStateException("login rsp null");
-        this.selfLogin.CZCETime = this.selfLogin.DCETime
-                = this.selfLogin.FFEXTime
-                = this.selfLogin.INETime
-                = this.selfLogin.SHFETime
-                = this.selfLogin.LoginTime
-                = OP.getTime(LocalTime.now(), null);
-        this.selfLogin.SessionID += 1;
-        this.selfLogin.UserID = reqUserLoginField.UserID;
-        this.selfLogin.TradingDay = OP.getTradingDay(LocalDate.now());
+        var book = TradeBook.getTradeSource();
+        // Login again replaces the session.
+        book.logout(this.session);
+        this.session = book.login(reqUserLoginField.UserID, this.spi);
         try {
-            this.spi.OnRspUserLogin(this.selfLogin,
+            this.spi.OnRspUserLogin(OP.deepCopy(this.session.getLogin()),
                     rsp(TThostFtdcErrorCode.NONE, TThostFtdcErrorMessage.NONE),
                     requestID, true);
         } catch (Throwable th) {
@@ -200,6 +196,8 @@ class CThostFtdcTraderApiImpl extends CThostFtdcTraderApi {
 
     @Override
     public int ReqUserLogout(CThostFtdcUserLogoutField userLogout, int requestID) {
+        TradeBook.getTradeSource().logout(this.session);
+        this.session = null;
         try {
             this.spi.OnRspUserLogout(userLogout,
                     rsp(TThostFtdcErrorCode.NONE, TThostFtdcErrorMessage.NONE),
@@ -228,9 +226,14 @@ class CThostFtdcTraderApiImpl extends CThostFtdcTraderApi {
 
     @Override
     public int ReqOrderInsert(CThostFtdcInputOrderField inputOrder, int requestID) {
+        var session = this.session;
+        if (session == null) {
+            this.log.severe("order insert without login");
+            return (-1);
+        }
         try {
             return TradeBook.getTradeSource().enqueue(inputOrder, requestID,
-                    this.spi, this.selfLogin);
+                    this.spi, session);
         } catch (Throwable th) {
             this.log.severe(th.getMessage());
             return (-1);
@@ -242,7 +245,54 @@ class CThostFtdcTraderApiImpl extends CThostFtdcTraderApi {
                               int requestID) {
         try {
             return TradeBook.getTradeSource().enqueue(inputOrderAction, requestID,
-                    this.spi);
+                    this.spi, this.session);
+        } catch (Throwable th) {
+            this.log.severe(th.getMessage());
+            return (-1);
+        }
+    }
+
+    /**
+     * Insert and cancel orders in one batch. The simulator matches the batch in
+     * one pass and returns its callbacks together.
+     *
+     * @param inputOrders       orders to insert, or {@code null}
+     * @param inputOrderActions orders to cancel, or {@code null}
+     * @param requestID         request ID
+     * @return 0 if the batch is queued, -1 otherwise
+     */
+    public int ReqOrderBatch(List<CThostFtdcInputOrderField> inputOrders,
+                             List<CThostFtdcInputOrderActionField> inputOrderActions,
+                             int requestID) {
+        var session = this.session;
+        if (session == null) {
+            this.log.severe("order batch without login");
+            return (-1);
+        }
+        try {
+            return TradeBook.getTradeSource().enqueue(inputOrders,
+                    inputOrderActions, requestID, this.spi, session);
+        } catch (Throwable th) {
+            this.log.severe(th.getMessage());
+            return (-1);
+        }
+    }
+
+    /**
+     * Cancel all live orders of the session, or only those of the specified
+     * instrument. Canceled orders are returned by {@code OnRtnOrder}.
+     *
+     * @param instrumentID instrument ID, or {@code null} for all instruments
+     * @return 0 if the cancel is queued, -1 otherwise
+     */
+    public int ReqMassOrderAction(String instrumentID) {
+        var session = this.session;
+        if (session == null) {
+            this.log.severe("mass order action without login");
+            return (-1);
+        }
+        try {
+            return TradeBook.getTradeSource().cancelAll(session, instrumentID);
         } catch (Throwable th) {
             this.log.severe(th.getMessage());
             return (-1);
@@ -318,13 +368,39 @@ class CThostFtdcTraderApiImpl extends CThostFtdcTraderApi {
     @Override
     public int ReqQryTradingAccount(
             CThostFtdcQryTradingAccountField qryTradingAccount, int requestID) {
-        throw new UnsupportedOperationException("no implementation");
+        try {
+            var account = TradeBook.getTradeSource().getTradingAccount(
+                    qryTradingAccount.InvestorID);
+            this.spi.OnRspQryTradingAccount(account,
+                    rsp(TThostFtdcErrorCode.NONE, TThostFtdcErrorMessage.NONE),
+                    requestID, true);
+        } catch (Throwable th) {
+            this.log.severe(th.getMessage());
+            return (-1);
+        }
+        return 0;
     }
 
     @Override
     public int ReqQryInvestorPositionDetail(
             CThostFtdcQryInvestorPositionDetailField qryInvestorPositionDetail,
             int requestID) {
-        throw new UnsupportedOperationException("no implementation");
+        try {
+            var details = TradeBook.getTradeSource().getPositionDetails(
+                    qryInvestorPositionDetail.InvestorID,
+                    qryInvestorPositionDetail.InstrumentID);
+            if (details.isEmpty())
+                this.spi.OnRspQryInvestorPositionDetail(null,
+                        rsp(TThostFtdcErrorCode.NONE, TThostFtdcErrorMessage.NONE),
+                        requestID, true);
+            for (int i = 0; i < details.size(); ++i)
+                this.spi.OnRspQryInvestorPositionDetail(details.get(i),
+                        rsp(TThostFtdcErrorCode.NONE, TThostFtdcErrorMessage.NONE),
+                        requestID, i == details.size() - 1);
+        } catch (Throwable th) {
+            this.log.severe(th.getMessage());
+            return (-1);
+        }
+        return 0;
     }
 }
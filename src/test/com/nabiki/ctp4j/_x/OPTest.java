@@ -0,0 +1,139 @@
+/*
+ * Copyright (c) 2020 Hongbao Chen <chenhongbao@outlook.com>
+ *
+ * Licensed under the  GNU Affero General Public License v3.0 and you may not use
+ * this file except in compliance with the  License. You may obtain a copy of the
+ * License at
+ *
+ *                    https://www.gnu.org/licenses/agpl-3.0.txt
+ *
+ * Permission is hereby  granted, free of charge, to any  person obtaining a copy
+ * of this software and associated  documentation files (the "Software"), to deal
+ * in the Software  without restriction, including without  limitation the rights
+ * to  use, copy,  modify, merge,  publish, distribute,  sublicense, and/or  sell
+ * copies  of  the Software,  and  to  permit persons  to  whom  the Software  is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE  IS PROVIDED "AS  IS", WITHOUT WARRANTY  OF ANY KIND,  EXPRESS OR
+ * IMPLIED,  INCLUDING BUT  NOT  LIMITED TO  THE  WARRANTIES OF  MERCHANTABILITY,
+ * FITNESS FOR  A PARTICULAR PURPOSE AND  NONINFRINGEMENT. IN NO EVENT  SHALL THE
+ * AUTHORS  OR COPYRIGHT  HOLDERS  BE  LIABLE FOR  ANY  CLAIM,  DAMAGES OR  OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF  CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE  OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.nabiki.ctp4j._x;
+
+import com.nabiki.ctp4j.jni.struct.CThostFtdcDepthMarketDataField;
+import com.nabiki.ctp4j.jni.struct.CThostFtdcOrderField;
+import org.junit.Test;
+
+import java.io.Serializable;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+
+import static org.junit.Assert.*;
+
+public class OPTest {
+    private static CThostFtdcDepthMarketDataField depth() {
+        var md = new CThostFtdcDepthMarketDataField();
+        md.InstrumentID = "x2009";
+        md.TradingDay = "20200709";
+        md.UpdateTime = "09:30:00";
+        md.UpdateMillisec = 500;
+        md.AskVolume1 = 1352;
+        md.AskPrice1 = 2100;
+        md.BidVolume1 = 465;
+        md.BidPrice1 = 2099;
+        md.Volume = 3252;
+        md.OpenInterest = 12345;
+        return md;
+    }
+
+    @Test
+    public void deep_copy() {
+        var origin = depth();
+        var copy = OP.deepCopy(origin);
+        assertNotNull(copy);
+        assertNotSame(origin, copy);
+        assertEquals(OP.toJson(origin), OP.toJson(copy));
+        // Copy is independent of the origin.
+        copy.AskPrice1 = 2101;
+        assertEquals(2100, origin.AskPrice1, 0.0D);
+    }
+
+    @Test
+    public void copy_into() {
+        var origin = depth();
+        var dst = new CThostFtdcDepthMarketDataField();
+        assertSame(dst, OP.copyInto(origin, dst));
+        assertEquals(OP.toJson(origin), OP.toJson(dst));
+    }
+
+    static class Nested implements Serializable {
+        public int[] values;
+        public CThostFtdcOrderField order;
+
+        public Nested() {}
+    }
+
+    static class Immutable implements Serializable {
+        public final String value;
+
+        Immutable(String value) {
+            this.value = value;
+        }
+    }
+
+    @Test
+    public void deep_copy_nested() {
+        var n = new Nested();
+        n.values = new int[] {1, 2, 3};
+        n.order = new CThostFtdcOrderField();
+        n.order.OrderRef = "1";
+        var copy = OP.deepCopy(n);
+        assertNotNull(copy);
+        assertNotSame(n.values, copy.values);
+        assertNotSame(n.order, copy.order);
+        assertEquals(3, copy.values[2]);
+        assertEquals("1", copy.order.OrderRef);
+    }
+
+    @Test
+    public void deep_copy_fallback() {
+        var copy = OP.deepCopy(new Immutable("value"));
+        assertNotNull(copy);
+        assertEquals("value", copy.value);
+        assertNull(OP.deepCopy(new Object()));
+        assertNull(OP.deepCopy(null));
+    }
+
+    @Test
+    public void trading_day() {
+        assertEquals("20200709",
+                OP.getTradingDay(LocalDateTime.of(2020, 7, 9, 14, 59)));
+        assertEquals("20200710",
+                OP.getTradingDay(LocalDateTime.of(2020, 7, 9, 21, 0)));
+        // Night session of Friday and its hours after midnight trade for Monday.
+        assertEquals("20200713",
+                OP.getTradingDay(LocalDateTime.of(2020, 7, 10, 21, 0)));
+        assertEquals("20200713",
+                OP.getTradingDay(LocalDateTime.of(2020, 7, 11, 1, 0)));
+        assertEquals("20200708", OP.getDay(LocalDate.of(2020, 7, 8), null));
+    }
+
+    @Test
+    public void deep_copy_same_as_serialization() {
+        // Cost of both copiers is in DeepCopyBench.
+        var origin = depth();
+        var serial = StructCopier.serialCopy(origin);
+        var field = OP.deepCopy(origin);
+        assertNotSame(origin, field);
+        assertEquals(OP.toJson(serial), OP.toJson(field));
+        assertEquals(OP.toJson(origin), OP.toJson(field));
+    }
+}
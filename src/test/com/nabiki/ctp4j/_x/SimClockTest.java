@@ -0,0 +1,76 @@
+/*
+ * Copyright (c) 2020 Hongbao Chen <chenhongbao@outlook.com>
+ *
+ * Licensed under the  GNU Affero General Public License v3.0 and you may not use
+ * this file except in compliance with the  License. You may obtain a copy of the
+ * License at
+ *
+ *                    https://www.gnu.org/licenses/agpl-3.0.txt
+ *
+ * Permission is hereby  granted, free of charge, to any  person obtaining a copy
+ * of this software and associated  documentation files (the "Software"), to deal
+ * in the Software  without restriction, including without  limitation the rights
+ * to  use, copy,  modify, merge,  publish, distribute,  sublicense, and/or  sell
+ * copies  of  the Software,  and  to  permit persons  to  whom  the Software  is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE  IS PROVIDED "AS  IS", WITHOUT WARRANTY  OF ANY KIND,  EXPRESS OR
+ * IMPLIED,  INCLUDING BUT  NOT  LIMITED TO  THE  WARRANTIES OF  MERCHANTABILITY,
+ * FITNESS FOR  A PARTICULAR PURPOSE AND  NONINFRINGEMENT. IN NO EVENT  SHALL THE
+ * AUTHORS  OR COPYRIGHT  HOLDERS  BE  LIABLE FOR  ANY  CLAIM,  DAMAGES OR  OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF  CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE  OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.nabiki.ctp4j._x;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.time.LocalDateTime;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class SimClockTest {
+    @After
+    public void reset() {
+        SimClock.setCurrent(SimClock.wall());
+    }
+
+    @Test
+    public void stepped() {
+        var clock = SimClock.stepped(LocalDateTime.of(2020, 7, 9, 9, 0));
+        SimClock.setCurrent(clock);
+        assertEquals(LocalDateTime.of(2020, 7, 9, 9, 0), SimClock.current().now());
+        clock.advance(1500, TimeUnit.MILLISECONDS);
+        assertEquals(LocalDateTime.of(2020, 7, 9, 9, 0, 1, 500_000_000),
+                SimClock.current().now());
+        assertEquals("09:00:01", OP.getTime(SimClock.current().time(), null));
+        clock.set(LocalDateTime.of(2020, 7, 10, 21, 0));
+        // Friday night session trades for Monday.
+        assertEquals("20200713", OP.getTradingDay(clock.today()));
+    }
+
+    @Test
+    public void accelerated() throws InterruptedException {
+        var start = LocalDateTime.of(2020, 7, 9, 9, 0);
+        var clock = SimClock.accelerated(start, 3600);
+        Thread.sleep(100);
+        // An hour a second.
+        var elapsed = clock.millis() - SimClock.toMillis(start);
+        assertTrue(elapsed >= 360 * 1000);
+        assertEquals(1000, clock.toWallNanos(3600 * 1000));
+    }
+
+    @Test
+    public void wall() {
+        var now = LocalDateTime.now();
+        var clock = SimClock.wall().now();
+        assertTrue(Math.abs(SimClock.toMillis(now) - SimClock.toMillis(clock)) < 1000);
+    }
+}
@@ -0,0 +1,217 @@
+/*
+ * Copyright (c) 2020 Hongbao Chen <chenhongbao@outlook.com>
+ *
+ * Licensed under the  GNU Affero General Public License v3.0 and you may not use
+ * this file except in compliance with the  License. You may obtain a copy of the
+ * License at
+ *
+ *                    https://www.gnu.org/licenses/agpl-3.0.txt
+ *
+ * Permission is hereby  granted, free of charge, to any  person obtaining a copy
+ * of this software and associated  documentation files (the "Software"), to deal
+ * in the Software  without restriction, including without  limitation the rights
+ * to  use, copy,  modify, merge,  publish, distribute,  sublicense, and/or  sell
+ * copies  of  the Software,  and  to  permit persons  to  whom  the Software  is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE  IS PROVIDED "AS  IS", WITHOUT WARRANTY  OF ANY KIND,  EXPRESS OR
+ * IMPLIED,  INCLUDING BUT  NOT  LIMITED TO  THE  WARRANTIES OF  MERCHANTABILITY,
+ * FITNESS FOR  A PARTICULAR PURPOSE AND  NONINFRINGEMENT. IN NO EVENT  SHALL THE
+ * AUTHORS  OR COPYRIGHT  HOLDERS  BE  LIABLE FOR  ANY  CLAIM,  DAMAGES OR  OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF  CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE  OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.nabiki.ctp4j.sim;
+
+import com.nabiki.ctp4j.jni.flag.TThostFtdcCombOffsetFlagType;
+import com.nabiki.ctp4j.jni.flag.TThostFtdcDirectionType;
+import com.nabiki.ctp4j.jni.struct.CThostFtdcInstrumentCommissionRateField;
+import com.nabiki.ctp4j.jni.struct.CThostFtdcInstrumentField;
+import com.nabiki.ctp4j.jni.struct.CThostFtdcInstrumentMarginRateField;
+import com.nabiki.ctp4j.jni.struct.CThostFtdcTradeField;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class AccountTest {
+    private static final String INSTR = "acct2009";
+
+    private int tradeID;
+
+    @BeforeClass
+    public static void setUpClass() {
+        var instr = new CThostFtdcInstrumentField();
+        instr.InstrumentID = INSTR;
+        instr.VolumeMultiple = 10;
+        CommonData.addInstrument(INSTR, instr);
+        var margin = new CThostFtdcInstrumentMarginRateField();
+        margin.InstrumentID = INSTR;
+        margin.LongMarginRatioByMoney = 0.1D;
+        margin.ShortMarginRatioByMoney = 0.2D;
+        CommonData.addMargin(INSTR, margin);
+        var comm = new CThostFtdcInstrumentCommissionRateField();
+        comm.InstrumentID = INSTR;
+        comm.OpenRatioByVolume = 1.0D;
+        comm.CloseRatioByVolume = 2.0D;
+        comm.CloseTodayRatioByVolume = 3.0D;
+        CommonData.addCommission(INSTR, comm);
+    }
+
+    private CThostFtdcTradeField trade(String instrID, String day, boolean buy,
+                                       byte offset, double price, int volume) {
+        var trade = new CThostFtdcTradeField();
+        trade.BrokerID = "9999";
+        trade.InvestorID = "0001";
+        trade.InstrumentID = instrID;
+        trade.TradeID = String.valueOf(++this.tradeID);
+        trade.TradingDay = day;
+        trade.Direction = buy ? TThostFtdcDirectionType.DIRECTION_BUY
+                : TThostFtdcDirectionType.DIRECTION_SELL;
+        trade.OffsetFlag = offset;
+        trade.Price = price;
+        trade.Volume = volume;
+        return trade;
+    }
+
+    @Test
+    public void open_and_close_today() {
+        var account = new Account("9999", "0001", 10000);
+        account.trade(trade(INSTR, "20200709", true,
+                TThostFtdcCombOffsetFlagType.OFFSET_OPEN, 100, 2));
+        var a = account.getTradingAccount("20200709", id -> 100);
+        assertEquals(200, a.CurrMargin, 1E-6);
+        assertEquals(2, a.Commission, 1E-6);
+        assertEquals(9998, a.Balance, 1E-6);
+        assertEquals(9798, a.Available, 1E-6);
+        // Sell closes the long position.
+        account.trade(trade(INSTR, "20200709", false,
+                TThostFtdcCombOffsetFlagType.OFFSET_CLOSE_TODAY, 110, 1));
+        a = account.getTradingAccount("20200709", id -> 120);
+        assertEquals(100, a.CurrMargin, 1E-6);
+        assertEquals(5, a.Commission, 1E-6);
+        assertEquals(100, a.CloseProfit, 1E-6);
+        assertEquals(200, a.PositionProfit, 1E-6);
+        assertEquals(10000 + 100 + 200 - 5, a.Balance, 1E-6);
+        var details = account.getPositionDetails(INSTR, "20200709", id -> 120);
+        assertEquals(1, details.size());
+        assertEquals(1, details.get(0).Volume);
+        assertEquals(1, details.get(0).CloseVolume);
+        assertEquals(200, details.get(0).PositionProfitByTrade, 1E-6);
+        // Copies don't change the account.
+        details.get(0).Volume = 100;
+        assertEquals(1, account.getPositionDetails("", "20200709", id -> 120)
+                .get(0).Volume);
+        account.trade(trade(INSTR, "20200709", false,
+                TThostFtdcCombOffsetFlagType.OFFSET_CLOSE, 90, 1));
+        a = account.getTradingAccount("20200709", id -> 120);
+        assertEquals(0, a.CurrMargin, 0.0D);
+        assertEquals(0, a.PositionProfit, 0.0D);
+        assertTrue(account.getPositionDetails(null, "20200709", id -> 120).isEmpty());
+    }
+
+    @Test
+    public void freeze_close_volume() {
+        var account = new Account("9999", "0001", 10000);
+        var close = TThostFtdcCombOffsetFlagType.OFFSET_CLOSE;
+        var closeToday = TThostFtdcCombOffsetFlagType.OFFSET_CLOSE_TODAY;
+        var closeYd = TThostFtdcCombOffsetFlagType.OFFSET_CLOSE_YESTERDAY;
+        assertFalse(account.tryFreezeClose(INSTR, true, close, 1, "20200709"));
+        account.trade(trade(INSTR, "20200709", true,
+                TThostFtdcCombOffsetFlagType.OFFSET_OPEN, 100, 2));
+        account.trade(trade(INSTR, "20200710", true,
+                TThostFtdcCombOffsetFlagType.OFFSET_OPEN, 100, 3));
+        // Two yesterday lots and three today lots.
+        assertTrue(account.tryFreezeClose(INSTR, true, closeYd, 1, "20200710"));
+        assertEquals(1, account.getClosable(INSTR, true, closeYd, "20200710"));
+        assertTrue(account.tryFreezeClose(INSTR, true, close, 2, "20200710"));
+        // A close of either day may take the last yesterday lot.
+        assertEquals(2, account.getClosable(INSTR, true, closeToday, "20200710"));
+        assertFalse(account.tryFreezeClose(INSTR, true, closeToday, 3, "20200710"));
+        assertTrue(account.tryFreezeClose(INSTR, true, closeToday, 2, "20200710"));
+        assertEquals(0, account.getClosable(INSTR, true, close, "20200710"));
+        assertFalse(account.tryFreezeClose(INSTR, true, closeYd, 1, "20200710"));
+        account.unfreezeClose(INSTR, true, close, 2);
+        assertEquals(1, account.getClosable(INSTR, true, closeYd, "20200710"));
+        assertEquals(2, account.getClosable(INSTR, true, close, "20200710"));
+        // Pending opens count to the position limit.
+        assertTrue(account.tryReserve(INSTR, true, 3, 8));
+        assertFalse(account.tryReserve(INSTR, true, 1, 8));
+        assertTrue(account.tryReserve(INSTR, false, 8, 8));
+        account.release(INSTR, true, 3);
+        assertTrue(account.tryReserve(INSTR, true, 3, 8));
+    }
+
+    @Test
+    public void over_close_throws() {
+        var account = new Account("9999", "0001", 10000);
+        account.trade(trade(INSTR, "20200709", true,
+                TThostFtdcCombOffsetFlagType.OFFSET_OPEN, 100, 1));
+        try {
+            account.trade(trade(INSTR, "20200709", false,
+                    TThostFtdcCombOffsetFlagType.OFFSET_CLOSE, 100, 2));
+            fail();
+        } catch (IllegalStateException ignored) {
+        }
+        // The position is not touched.
+        assertEquals(1, account.getPosition(INSTR, true));
+    }
+
+    @Test
+    public void yesterday_split() {
+        var account = new Account("9999", "0001", 10000);
+        account.trade(trade(INSTR, "20200709", false,
+                TThostFtdcCombOffsetFlagType.OFFSET_OPEN, 100, 1));
+        account.trade(trade(INSTR, "20200710", false,
+                TThostFtdcCombOffsetFlagType.OFFSET_OPEN, 105, 1));
+        var a = account.getTradingAccount("20200710", id -> Double.NaN);
+        // Last day's commission is in pre-balance.
+        assertEquals(9999, a.PreBalance, 1E-6);
+        assertEquals(200, a.PreMargin, 1E-6);
+        assertEquals(200 + 210, a.CurrMargin, 1E-6);
+        assertEquals(1, a.Commission, 1E-6);
+        // Close takes the yesterday lot first.
+        account.trade(trade(INSTR, "20200710", true,
+                TThostFtdcCombOffsetFlagType.OFFSET_CLOSE, 95, 1));
+        a = account.getTradingAccount("20200710", id -> Double.NaN);
+        assertEquals(50, a.CloseProfit, 1E-6);
+        assertEquals(1 + 2, a.Commission, 1E-6);
+        var details = account.getPositionDetails(INSTR, "20200710", id -> 100);
+        assertEquals(1, details.size());
+        assertEquals("20200710", details.get(0).OpenDate);
+        assertEquals(50, details.get(0).PositionProfitByTrade, 1E-6);
+        // No yesterday lot left.
+        try {
+            account.trade(trade(INSTR, "20200710", true,
+                    TThostFtdcCombOffsetFlagType.OFFSET_CLOSE_YESTERDAY, 95, 1));
+            fail();
+        } catch (IllegalStateException ignored) {
+        }
+        assertEquals(1, account.getPositionDetails(INSTR, "20200710", id -> 100)
+                .size());
+    }
+
+    @Test
+    public void many_positions() {
+        var account = new Account("9999", "0001", Account.DEFAULT_BALANCE);
+        int n = 5000;
+        for (int i = 0; i < n; ++i)
+            account.trade(trade("m" + i, "20200709", true,
+                    TThostFtdcCombOffsetFlagType.OFFSET_OPEN, 10, 1));
+        for (int i = 0; i < n; ++i) {
+            account.trade(trade("m" + i, "20200709", true,
+                    TThostFtdcCombOffsetFlagType.OFFSET_OPEN, 10, 1));
+            account.trade(trade("m" + i, "20200709", false,
+                    TThostFtdcCombOffsetFlagType.OFFSET_CLOSE, 11, 1));
+        }
+        assertEquals(2 * n, account.getPositionDetails(null, "20200709",
+                id -> 11).size() + n);
+        assertEquals(n, account.getTradingAccount("20200709", id -> 11)
+                .PositionProfit, 1E-6);
+    }
+}
@@ -0,0 +1,112 @@
+/*
+ * Copyright (c) 2020 Hongbao Chen <chenhongbao@outlook.com>
+ *
+ * Licensed under the  GNU Affero General Public License v3.0 and you may not use
+ * this file except in compliance with the  License. You may obtain a copy of the
+ * License at
+ *
+ *                    https://www.gnu.org/licenses/agpl-3.0.txt
+ *
+ * Permission is hereby  granted, free of charge, to any  person obtaining a copy
+ * of this software and associated  documentation files (the "Software"), to deal
+ * in the Software  without restriction, including without  limitation the rights
+ * to  use, copy,  modify, merge,  publish, distribute,  sublicense, and/or  sell
+ * copies  of  the Software,  and  to  permit persons  to  whom  the Software  is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE  IS PROVIDED "AS  IS", WITHOUT WARRANTY  OF ANY KIND,  EXPRESS OR
+ * IMPLIED,  INCLUDING BUT  NOT  LIMITED TO  THE  WARRANTIES OF  MERCHANTABILITY,
+ * FITNESS FOR  A PARTICULAR PURPOSE AND  NONINFRINGEMENT. IN NO EVENT  SHALL THE
+ * AUTHORS  OR COPYRIGHT  HOLDERS  BE  LIABLE FOR  ANY  CLAIM,  DAMAGES OR  OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF  CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE  OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.nabiki.ctp4j.sim;
+
+import com.nabiki.ctp4j.jni.struct.CThostFtdcDepthMarketDataField;
+import com.nabiki.ctp4j.md.CThostFtdcMdSpi;
+import org.junit.After;
+import org.junit.Test;
+
+import java.time.LocalDateTime;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class BacktestTest {
+    static class DigestSPI extends CThostFtdcMdSpi {
+        final Thread owner = Thread.currentThread();
+        long digest = 17, count = 0;
+        boolean otherThread = false;
+
+        @Override
+        public void OnRtnDepthMarketData(
+                CThostFtdcDepthMarketDataField depth) {
+            this.otherThread |= Thread.currentThread() != this.owner;
+            this.digest = this.digest * 31 + depth.InstrumentID.hashCode();
+            this.digest = this.digest * 31 + Double.hashCode(depth.LastPrice);
+            this.digest = this.digest * 31 + depth.Volume;
+            this.digest = this.digest * 31 + depth.UpdateTime.hashCode();
+            this.digest = this.digest * 31 + depth.UpdateMillisec;
+            ++this.count;
+        }
+    }
+
+    private static final LocalDateTime start = LocalDateTime.of(2020, 7, 9, 9, 0);
+
+    private final SimSources sources = new SimSources();
+
+    @After
+    public void tearDown() {
+        this.sources.shutdown();
+    }
+
+    private DigestSPI run(long seed, int shards) {
+        var source = this.sources.create("BT", 50);
+        source.setShards(shards);
+        var spi = new DigestSPI();
+        source.addSPI(spi);
+        try (var backtest = new Backtest(source, seed, start, 500,
+                TimeUnit.MILLISECONDS)) {
+            backtest.runUntil(start.plusMinutes(10));
+            assertEquals(start.plusMinutes(10), backtest.getClock().now());
+        }
+        source.removeSPI(spi);
+        return spi;
+    }
+
+    @Test
+    public void reproducible() {
+        var a = run(42, 1);
+        var b = run(42, 1);
+        var c = run(43, 1);
+        assertFalse(a.otherThread);
+        assertTrue(a.count > 0);
+        assertEquals(a.count, b.count);
+        assertEquals(a.digest, b.digest);
+        assertNotEquals(a.digest, c.digest);
+        // Same books in more shards draw randoms differently, but repeatably.
+        assertEquals(run(42, 4).digest, run(42, 4).digest);
+    }
+
+    @Test
+    public void event_count() {
+        var source = this.sources.create("BT", 500);
+        source.setPublishMode(TickSource.PublishMode.SNAPSHOT);
+        source.setEmitChance(1.0D);
+        var spi = new DigestSPI();
+        source.addSPI(spi);
+        try (var backtest = new Backtest(source, 42, start, 500,
+                TimeUnit.MILLISECONDS)) {
+            // Event rate is in BacktestBench.
+            assertEquals(500 * 1000, backtest.run(1000));
+            assertEquals(500 * 2000, backtest.run(2000));
+        }
+        source.removeSPI(spi);
+    }
+}
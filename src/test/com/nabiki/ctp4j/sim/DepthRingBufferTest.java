@@ -0,0 +1,145 @@
+/*
+ * Copyright (c) 2020 Hongbao Chen <chenhongbao@outlook.com>
+ *
+ * Licensed under the  GNU Affero General Public License v3.0 and you may not use
+ * this file except in compliance with the  License. You may obtain a copy of the
+ * License at
+ *
+ *                    https://www.gnu.org/licenses/agpl-3.0.txt
+ *
+ * Permission is hereby  granted, free of charge, to any  person obtaining a copy
+ * of this software and associated  documentation files (the "Software"), to deal
+ * in the Software  without restriction, including without  limitation the rights
+ * to  use, copy,  modify, merge,  publish, distribute,  sublicense, and/or  sell
+ * copies  of  the Software,  and  to  permit persons  to  whom  the Software  is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE  IS PROVIDED "AS  IS", WITHOUT WARRANTY  OF ANY KIND,  EXPRESS OR
+ * IMPLIED,  INCLUDING BUT  NOT  LIMITED TO  THE  WARRANTIES OF  MERCHANTABILITY,
+ * FITNESS FOR  A PARTICULAR PURPOSE AND  NONINFRINGEMENT. IN NO EVENT  SHALL THE
+ * AUTHORS  OR COPYRIGHT  HOLDERS  BE  LIABLE FOR  ANY  CLAIM,  DAMAGES OR  OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF  CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE  OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.nabiki.ctp4j.sim;
+
+import com.nabiki.ctp4j.jni.struct.CThostFtdcDepthMarketDataField;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class DepthRingBufferTest {
+    private static CThostFtdcDepthMarketDataField depth(int volume) {
+        var depth = new CThostFtdcDepthMarketDataField();
+        depth.InstrumentID = "x2009";
+        depth.Volume = volume;
+        return depth;
+    }
+
+    @Test
+    public void wrap_around() {
+        var ring = new DepthRingBuffer(8);
+        var sequence = ring.subscribe();
+        var volumes = new ArrayList<Integer>();
+        for (int round = 0; round < 5; ++round) {
+            for (int i = 0; i < 6; ++i)
+                ring.publish(depth(round * 6 + i));
+            assertTrue(sequence.available());
+            assertEquals(6, sequence.drain(d -> volumes.add(d.Volume)));
+            assertFalse(sequence.available());
+        }
+        assertEquals(30, volumes.size());
+        for (int i = 0; i < 30; ++i)
+            assertEquals(i, (int) volumes.get(i));
+    }
+
+    @Test
+    public void gate_on_slowest() throws InterruptedException {
+        var ring = new DepthRingBuffer(4);
+        var fast = ring.subscribe();
+        var slow = ring.subscribe();
+        var published = new AtomicInteger();
+        var producer = new Thread(() -> {
+            for (int i = 0; i < 6; ++i) {
+                ring.publish(depth(i));
+                published.incrementAndGet();
+                // Fast consumer drains at once.
+                fast.drain(d -> {});
+            }
+        });
+        producer.start();
+        producer.join(200);
+        // Held back by the slow consumer a full ring behind.
+        assertTrue(producer.isAlive());
+        assertEquals(4, published.get());
+        var volumes = new ArrayList<Integer>();
+        slow.drain(d -> volumes.add(d.Volume));
+        producer.join(1000);
+        assertFalse(producer.isAlive());
+        slow.drain(d -> volumes.add(d.Volume));
+        assertEquals(List.of(0, 1, 2, 3, 4, 5), volumes);
+        // Unsubscribed consumer no longer holds it back.
+        ring.unsubscribe(slow);
+        for (int i = 0; i < 8; ++i) {
+            ring.publish(depth(i));
+            fast.drain(d -> {});
+        }
+    }
+
+    @Test
+    public void consumers_in_order() throws InterruptedException {
+        var ring = new DepthRingBuffer(16);
+        var count = 10 * 1000;
+        var consumers = 3;
+        var done = new CountDownLatch(consumers);
+        var errors = new AtomicInteger();
+        for (int c = 0; c < consumers; ++c) {
+            var sequence = ring.subscribe();
+            new Thread(() -> {
+                var expected = new int[] {0};
+                while (expected[0] < count) {
+                    if (sequence.drain(d -> {
+                        if (d.Volume != expected[0]++)
+                            errors.incrementAndGet();
+                    }) == 0)
+                        DepthRingBuffer.await(new DepthRingBuffer.Sequence[] {sequence});
+                }
+                done.countDown();
+            }).start();
+        }
+        for (int i = 0; i < count; ++i)
+            ring.publish(depth(i));
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        assertEquals(0, errors.get());
+    }
+
+    @Test
+    public void copy_owned_by_ring() {
+        var ring = new DepthRingBuffer(4);
+        var sequence = ring.subscribe();
+        var reused = depth(0);
+        var seen = new ArrayList<CThostFtdcDepthMarketDataField>();
+        for (int i = 0; i < 3; ++i) {
+            reused.Volume = i;
+            ring.publishCopy(reused);
+        }
+        // Rewriting the published depth doesn't change the copies.
+        reused.Volume = 99;
+        sequence.drain(seen::add);
+        assertEquals(3, seen.size());
+        for (int i = 0; i < 3; ++i) {
+            assertEquals(i, seen.get(i).Volume);
+            assertNotSame(reused, seen.get(i));
+        }
+    }
+}
@@ -0,0 +1,72 @@
+/*
+ * Copyright (c) 2020 Hongbao Chen <chenhongbao@outlook.com>
+ *
+ * Licensed under the  GNU Affero General Public License v3.0 and you may not use
+ * this file except in compliance with the  License. You may obtain a copy of the
+ * License at
+ *
+ *                    https://www.gnu.org/licenses/agpl-3.0.txt
+ *
+ * Permission is hereby  granted, free of charge, to any  person obtaining a copy
+ * of this software and associated  documentation files (the "Software"), to deal
+ * in the Software  without restriction, including without  limitation the rights
+ * to  use, copy,  modify, merge,  publish, distribute,  sublicense, and/or  sell
+ * copies  of  the Software,  and  to  permit persons  to  whom  the Software  is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE  IS PROVIDED "AS  IS", WITHOUT WARRANTY  OF ANY KIND,  EXPRESS OR
+ * IMPLIED,  INCLUDING BUT  NOT  LIMITED TO  THE  WARRANTIES OF  MERCHANTABILITY,
+ * FITNESS FOR  A PARTICULAR PURPOSE AND  NONINFRINGEMENT. IN NO EVENT  SHALL THE
+ * AUTHORS  OR COPYRIGHT  HOLDERS  BE  LIABLE FOR  ANY  CLAIM,  DAMAGES OR  OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF  CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE  OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.nabiki.ctp4j.sim;
+
+import org.junit.Test;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.*;
+
+public class IdSequenceTest {
+    @Test
+    public void unique_across_threads() throws InterruptedException {
+        var sequence = new IdSequence();
+        var count = 100 * 1000;
+        Set<String> ids = ConcurrentHashMap.newKeySet();
+        var done = new CountDownLatch(2);
+        for (int k = 0; k < 2; ++k) {
+            new Thread(() -> {
+                try {
+                    for (int i = 0; i < count; ++i)
+                        assertTrue(ids.add(sequence.next()));
+                } finally {
+                    done.countDown();
+                }
+            }).start();
+        }
+        done.await();
+        assertEquals(2 * count, ids.size());
+        assertEquals(2L * count + 1, IdSequence.parse(sequence.next()));
+    }
+
+    @Test
+    public void advance_and_parse() {
+        var sequence = new IdSequence();
+        sequence.advance(41);
+        assertEquals("000000000042", sequence.next());
+        // Advancing backward doesn't reissue IDs.
+        sequence.advance(7);
+        assertEquals(43, IdSequence.parse(" 000000000043 "));
+        assertEquals("000000000043", sequence.next());
+        assertEquals(-1, IdSequence.parse("42"));
+        assertEquals(-1, IdSequence.parse(null));
+    }
+}
@@ -0,0 +1,107 @@
+/*
+ * Copyright (c) 2020 Hongbao Chen <chenhongbao@outlook.com>
+ *
+ * Licensed under the  GNU Affero General Public License v3.0 and you may not use
+ * this file except in compliance with the  License. You may obtain a copy of the
+ * License at
+ *
+ *                    https://www.gnu.org/licenses/agpl-3.0.txt
+ *
+ * Permission is hereby  granted, free of charge, to any  person obtaining a copy
+ * of this software and associated  documentation files (the "Software"), to deal
+ * in the Software  without restriction, including without  limitation the rights
+ * to  use, copy,  modify, merge,  publish, distribute,  sublicense, and/or  sell
+ * copies  of  the Software,  and  to  permit persons  to  whom  the Software  is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE  IS PROVIDED "AS  IS", WITHOUT WARRANTY  OF ANY KIND,  EXPRESS OR
+ * IMPLIED,  INCLUDING BUT  NOT  LIMITED TO  THE  WARRANTIES OF  MERCHANTABILITY,
+ * FITNESS FOR  A PARTICULAR PURPOSE AND  NONINFRINGEMENT. IN NO EVENT  SHALL THE
+ * AUTHORS  OR COPYRIGHT  HOLDERS  BE  LIABLE FOR  ANY  CLAIM,  DAMAGES OR  OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF  CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE  OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.nabiki.ctp4j.sim;
+
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.util.HashMap;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class LongObjectMapTest {
+    @Test
+    public void same_as_hash_map() {
+        var map = new LongObjectMap<Long>();
+        var expected = new HashMap<Long, Long>();
+        var rand = new Random(42);
+        for (int i = 0; i < 200 * 1000; ++i) {
+            // Small key range so removals hit probe runs.
+            long key = rand.nextInt(5000) * 1024L;
+            switch (rand.nextInt(3)) {
+                case 0:
+                    assertEquals(expected.put(key, (long) i), map.put(key, (long) i));
+                    break;
+                case 1:
+                    assertEquals(expected.remove(key), map.remove(key));
+                    break;
+                default:
+                    assertEquals(expected.get(key), map.get(key));
+            }
+            assertEquals(expected.size(), map.size());
+        }
+        for (var e : expected.entrySet())
+            assertEquals(e.getValue(), map.get(e.getKey()));
+    }
+
+    @Test
+    public void order_key() {
+        var key = OrderKey.of("  12", 1, 3);
+        assertTrue(OrderKey.isPacked(key));
+        assertEquals(key, OrderKey.of("12", 1, 3));
+        assertEquals(12, OrderKey.ref(key));
+        assertEquals(OrderKey.session(key), OrderKey.session(OrderKey.of("13", 1, 3)));
+        assertNotEquals(OrderKey.session(key),
+                OrderKey.session(OrderKey.of("12", 1, 4)));
+        // Keys that don't pack are hashed apart from packed keys.
+        assertFalse(OrderKey.isPacked(OrderKey.of("a1", 1, 3)));
+        assertFalse(OrderKey.isPacked(OrderKey.of("12", 1, -1)));
+        assertFalse(OrderKey.isPacked(OrderKey.of("99999999999", 1, 3)));
+        assertNotEquals(OrderKey.of("a1", 1, 3), OrderKey.of("a1", 1, 4));
+    }
+
+    @Test
+    public void lookup_without_garbage() {
+        var map = new LongObjectMap<String>();
+        var refs = new String[1000];
+        for (int i = 0; i < refs.length; ++i) {
+            refs[i] = String.valueOf(i + 1);
+            map.put(OrderKey.of(refs[i], 1, 1), refs[i]);
+        }
+        var bean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        var id = Thread.currentThread().getId();
+        int found = 0;
+        long bytes = 0;
+        for (int round = 0; round < 2; ++round) {
+            // First round warms up.
+            var start = bean.getThreadAllocatedBytes(id);
+            for (int i = 0; i < 1000 * 1000; ++i) {
+                var key = OrderKey.of(refs[i % refs.length], 1, 1);
+                if (map.get(key) != null)
+                    ++found;
+                map.remove(key);
+                map.put(key, refs[i % refs.length]);
+            }
+            bytes = bean.getThreadAllocatedBytes(id) - start;
+        }
+        assertEquals(2 * 1000 * 1000, found);
+        assertEquals(0, bytes / 1000);
+    }
+}
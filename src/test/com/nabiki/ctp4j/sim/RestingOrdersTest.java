@@ -0,0 +1,93 @@
+/*
+ * Copyright (c) 2020 Hongbao Chen <chenhongbao@outlook.com>
+ *
+ * Licensed under the  GNU Affero General Public License v3.0 and you may not use
+ * this file except in compliance with the  License. You may obtain a copy of the
+ * License at
+ *
+ *                    https://www.gnu.org/licenses/agpl-3.0.txt
+ *
+ * Permission is hereby  granted, free of charge, to any  person obtaining a copy
+ * of this software and associated  documentation files (the "Software"), to deal
+ * in the Software  without restriction, including without  limitation the rights
+ * to  use, copy,  modify, merge,  publish, distribute,  sublicense, and/or  sell
+ * copies  of  the Software,  and  to  permit persons  to  whom  the Software  is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE  IS PROVIDED "AS  IS", WITHOUT WARRANTY  OF ANY KIND,  EXPRESS OR
+ * IMPLIED,  INCLUDING BUT  NOT  LIMITED TO  THE  WARRANTIES OF  MERCHANTABILITY,
+ * FITNESS FOR  A PARTICULAR PURPOSE AND  NONINFRINGEMENT. IN NO EVENT  SHALL THE
+ * AUTHORS  OR COPYRIGHT  HOLDERS  BE  LIABLE FOR  ANY  CLAIM,  DAMAGES OR  OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF  CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE  OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.nabiki.ctp4j.sim;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class RestingOrdersTest {
+    private static List<String> crossing(RestingOrders<String> orders, double bid,
+                                         double ask) {
+        var r = new ArrayList<String>();
+        orders.crossing(bid, ask, r);
+        return r;
+    }
+
+    @Test
+    public void remove_from_middle() {
+        var orders = new RestingOrders<String>();
+        orders.add(true, 100, "b1");
+        orders.add(true, 100, "b2");
+        orders.add(true, 100, "b3");
+        orders.add(true, 101, "b4");
+        orders.add(false, 102, "s1");
+        orders.add(false, 102, "s2");
+        orders.add(false, 102, "s3");
+        assertEquals(7, orders.size());
+        assertTrue(orders.remove(true, 100, "b2"));
+        assertTrue(orders.remove(false, 102, "s2"));
+        // Not in the book, or not at that price.
+        assertFalse(orders.remove(true, 100, "b2"));
+        assertFalse(orders.remove(true, 101, "b1"));
+        assertEquals(5, orders.size());
+        // Price then time priority, and the rest of a level keeps its order.
+        assertEquals(List.of("b4", "b1", "b3", "s1", "s3"), crossing(orders, 102, 100));
+        orders.add(true, 100, "b2");
+        assertEquals(List.of("b4", "b1", "b3", "b2"), crossing(orders, 0, 100));
+        // Emptied levels are gone.
+        assertTrue(orders.remove(true, 101, "b4"));
+        assertEquals(List.of("b1", "b3", "b2"), crossing(orders, 0, 100));
+        var all = new ArrayList<String>();
+        orders.all(all);
+        assertEquals(List.of("b1", "b3", "b2", "s1", "s3"), all);
+    }
+
+    @Test
+    public void remove_many_from_one_level() {
+        var orders = new RestingOrders<Integer>();
+        int n = 100 * 1000;
+        for (int i = 0; i < n; ++i)
+            orders.add(i % 2 == 0, 100, i);
+        // Remove every other order of each side, from the back.
+        for (int i = n - 1; i >= 0; i -= 4)
+            assertTrue(orders.remove(i % 2 == 0, 100, i));
+        assertEquals(n - n / 4, orders.size());
+        var all = new ArrayList<Integer>();
+        orders.all(all);
+        int last = -1;
+        for (var i : all)
+            if (i % 2 == 0) {
+                assertTrue(i > last);
+                last = i;
+            }
+    }
+}
@@ -0,0 +1,296 @@
+/*
+ * Copyright (c) 2020 Hongbao Chen <chenhongbao@outlook.com>
+ *
+ * Licensed under the  GNU Affero General Public License v3.0 and you may not use
+ * this file except in compliance with the  License. You may obtain a copy of the
+ * License at
+ *
+ *                    https://www.gnu.org/licenses/agpl-3.0.txt
+ *
+ * Permission is hereby  granted, free of charge, to any  person obtaining a copy
+ * of this software and associated  documentation files (the "Software"), to deal
+ * in the Software  without restriction, including without  limitation the rights
+ * to  use, copy,  modify, merge,  publish, distribute,  sublicense, and/or  sell
+ * copies  of  the Software,  and  to  permit persons  to  whom  the Software  is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE  IS PROVIDED "AS  IS", WITHOUT WARRANTY  OF ANY KIND,  EXPRESS OR
+ * IMPLIED,  INCLUDING BUT  NOT  LIMITED TO  THE  WARRANTIES OF  MERCHANTABILITY,
+ * FITNESS FOR  A PARTICULAR PURPOSE AND  NONINFRINGEMENT. IN NO EVENT  SHALL THE
+ * AUTHORS  OR COPYRIGHT  HOLDERS  BE  LIABLE FOR  ANY  CLAIM,  DAMAGES OR  OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF  CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE  OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.nabiki.ctp4j.sim;
+
+import com.nabiki.ctp4j._x.SimClock;
+import com.nabiki.ctp4j.jni.flag.TThostFtdcCombOffsetFlagType;
+import com.nabiki.ctp4j.jni.flag.TThostFtdcDirectionType;
+import com.nabiki.ctp4j.jni.flag.TThostFtdcErrorCode;
+import com.nabiki.ctp4j.jni.flag.TThostFtdcOrderStatusType;
+import com.nabiki.ctp4j.jni.struct.CThostFtdcDepthMarketDataField;
+import com.nabiki.ctp4j.jni.struct.CThostFtdcInputOrderActionField;
+import com.nabiki.ctp4j.jni.struct.CThostFtdcInputOrderField;
+import com.nabiki.ctp4j.jni.struct.CThostFtdcInstrumentField;
+import com.nabiki.ctp4j.jni.struct.CThostFtdcInstrumentMarginRateField;
+import com.nabiki.ctp4j.jni.struct.CThostFtdcOrderField;
+import com.nabiki.ctp4j.jni.struct.CThostFtdcRspUserLoginField;
+import com.nabiki.ctp4j.jni.struct.CThostFtdcTradeField;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.time.LocalDateTime;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class RiskCheckTest {
+    private static final String INSTR = "risk2009";
+
+    @BeforeClass
+    public static void setUpClass() {
+        var instr = new CThostFtdcInstrumentField();
+        instr.InstrumentID = INSTR;
+        instr.PriceTick = 0.5D;
+        instr.VolumeMultiple = 10;
+        instr.MaxLimitOrderVolume = 100;
+        CommonData.addInstrument(INSTR, instr);
+        var margin = new CThostFtdcInstrumentMarginRateField();
+        margin.InstrumentID = INSTR;
+        margin.LongMarginRatioByMoney = 0.1D;
+        margin.ShortMarginRatioByMoney = 0.1D;
+        CommonData.addMargin(INSTR, margin);
+        var depth = new CThostFtdcDepthMarketDataField();
+        depth.InstrumentID = INSTR;
+        depth.UpperLimitPrice = 120;
+        depth.LowerLimitPrice = 80;
+        CommonData.addDepth(INSTR, depth);
+    }
+
+    private static CThostFtdcInputOrderField order(String instrID, boolean buy,
+                                                   byte offset, double price,
+                                                   int volume) {
+        var order = TradeBookTest.order(instrID, "1", buy, price, volume);
+        order.CombOffsetFlag = offset;
+        return order;
+    }
+
+    private static int check(RiskCheck risk, Account account, String instrID,
+                             boolean buy, byte offset, double price, int volume) {
+        return risk.check(order(instrID, buy, offset, price, volume),
+                risk.rule(instrID), account);
+    }
+
+    @Test
+    public void reject_bad_orders() {
+        var risk = new RiskCheck();
+        var account = new Account("9999", "0001", 1000);
+        var open = TThostFtdcCombOffsetFlagType.OFFSET_OPEN;
+        assertNull(risk.rule("none"));
+        assertEquals(TThostFtdcErrorCode.INSTRUMENT_NOT_FOUND,
+                check(risk, account, "none", true, open, 100, 1));
+        assertEquals(TThostFtdcErrorCode.BAD_FIELD,
+                check(risk, account, INSTR, true, open, 100, 0));
+        assertEquals(TThostFtdcErrorCode.BAD_FIELD,
+                check(risk, account, INSTR, true, open, 100, 101));
+        // Off tick and out of the limit band.
+        assertEquals(TThostFtdcErrorCode.BAD_FIELD,
+                check(risk, account, INSTR, true, open, 100.3, 1));
+        assertEquals(TThostFtdcErrorCode.BAD_FIELD,
+                check(risk, account, INSTR, true, open, 120.5, 1));
+        assertEquals(TThostFtdcErrorCode.OVER_CLOSE_POSITION,
+                check(risk, account, INSTR, false,
+                        TThostFtdcCombOffsetFlagType.OFFSET_CLOSE, 100, 1));
+        // Margin is 100 a lot.
+        assertEquals(TThostFtdcErrorCode.INSUFFICIENT_MONEY,
+                check(risk, account, INSTR, true, open, 100, 11));
+        assertEquals(TThostFtdcErrorCode.NONE,
+                check(risk, account, INSTR, true, open, 100, 6));
+        assertEquals(400, account.getAvailable(), 1E-6);
+        assertEquals(TThostFtdcErrorCode.INSUFFICIENT_MONEY,
+                check(risk, account, INSTR, false, open, 100, 5));
+        account.unfreeze(600, 0);
+        assertEquals(1000, account.getAvailable(), 1E-6);
+        risk.setPositionLimit(5);
+        assertEquals(RiskCheck.OVER_POSITION_LIMIT,
+                check(risk, account, INSTR, false, open, 100, 6));
+        assertEquals(TThostFtdcErrorCode.NONE,
+                check(risk, account, INSTR, false, open, 100, 5));
+    }
+
+    @Test
+    public void reject_through_book() {
+        var spi = new TradeBookTest.Spi();
+        var usr = new CThostFtdcRspUserLoginField();
+        usr.FrontID = 1;
+        usr.SessionID = 1;
+        var book = new TradeBook(1);
+        try {
+            book.enqueue(order("none", true, TThostFtdcCombOffsetFlagType.OFFSET_OPEN,
+                    100, 1), 0, spi, usr);
+            book.flush();
+            assertEquals(1, spi.errors.size());
+            assertEquals(TThostFtdcErrorCode.INSTRUMENT_NOT_FOUND,
+                    spi.errors.get(0).ErrorID);
+            assertTrue(spi.orders.isEmpty());
+            // Frozen money is released when the order is canceled.
+            var order = order(INSTR, true, TThostFtdcCombOffsetFlagType.OFFSET_OPEN,
+                    100, 10);
+            order.OrderRef = "2";
+            book.enqueue(order, 0, spi, usr);
+            book.flush();
+            var account = book.getAccount(order.InvestorID);
+            assertEquals(Account.DEFAULT_BALANCE - 1000, account.getAvailable(), 1E-6);
+            var action = new CThostFtdcInputOrderActionField();
+            action.OrderSysID = spi.orders.get(0).OrderSysID;
+            book.enqueue(action, 0, spi);
+            book.flush();
+            assertEquals(Account.DEFAULT_BALANCE, account.getAvailable(), 1E-6);
+            assertEquals(0, book.getTradingAccount(order.InvestorID).FrozenMargin,
+                    1E-6);
+        } finally {
+            book.stop();
+        }
+    }
+
+    @Test
+    public void freeze_pending_volume() {
+        var risk = new RiskCheck();
+        var account = new Account("9999", "0001", Account.DEFAULT_BALANCE);
+        var open = TThostFtdcCombOffsetFlagType.OFFSET_OPEN;
+        var close = TThostFtdcCombOffsetFlagType.OFFSET_CLOSE;
+        risk.setPositionLimit(5);
+        // Live opens count to the limit before they trade.
+        assertEquals(TThostFtdcErrorCode.NONE,
+                check(risk, account, INSTR, true, open, 100, 3));
+        assertEquals(RiskCheck.OVER_POSITION_LIMIT,
+                check(risk, account, INSTR, true, open, 100, 3));
+        // Money of the failed order is not frozen and volume not reserved.
+        assertEquals(Account.DEFAULT_BALANCE - 300, account.getAvailable(), 1E-6);
+        account.release(INSTR, true, 3);
+        assertEquals(TThostFtdcErrorCode.NONE,
+                check(risk, account, INSTR, true, open, 100, 5));
+        account.release(INSTR, true, 5);
+        // Two live closes can't close the same lot.
+        var trade = new CThostFtdcTradeField();
+        trade.InstrumentID = INSTR;
+        trade.TradingDay = "20200709";
+        trade.Direction = TThostFtdcDirectionType.DIRECTION_BUY;
+        trade.OffsetFlag = open;
+        trade.Price = 100;
+        trade.Volume = 1;
+        account.trade(trade);
+        assertEquals(TThostFtdcErrorCode.NONE,
+                check(risk, account, INSTR, false, close, 100, 1));
+        assertEquals(TThostFtdcErrorCode.OVER_CLOSE_POSITION,
+                check(risk, account, INSTR, false, close, 100, 1));
+    }
+
+    @Test
+    public void release_closes_through_book() {
+        var spi = new TradeBookTest.Spi();
+        var book = new TradeBook(1);
+        try {
+            var session = book.login("0001", spi);
+            var account = book.getAccount("0001");
+            var trade = new CThostFtdcTradeField();
+            trade.InstrumentID = INSTR;
+            trade.Direction = TThostFtdcDirectionType.DIRECTION_BUY;
+            trade.OffsetFlag = TThostFtdcCombOffsetFlagType.OFFSET_OPEN;
+            trade.Price = 100;
+            trade.Volume = 2;
+            account.trade(trade);
+            var close = order(INSTR, false, TThostFtdcCombOffsetFlagType.OFFSET_CLOSE,
+                    100, 2);
+            book.enqueue(close, 0, spi, session);
+            book.flush();
+            var again = order(INSTR, false, TThostFtdcCombOffsetFlagType.OFFSET_CLOSE,
+                    100, 1);
+            again.OrderRef = "2";
+            book.enqueue(again, 0, spi, session);
+            book.flush();
+            assertEquals(1, spi.errors.size());
+            assertEquals(TThostFtdcErrorCode.OVER_CLOSE_POSITION,
+                    spi.errors.get(0).ErrorID);
+            // Canceling the close releases its volume.
+            var action = new CThostFtdcInputOrderActionField();
+            action.OrderSysID = spi.orders.get(0).OrderSysID;
+            book.enqueue(action, 0, spi);
+            book.flush();
+            assertEquals(2, account.getClosable(INSTR, true,
+                    TThostFtdcCombOffsetFlagType.OFFSET_CLOSE, null));
+        } finally {
+            book.stop();
+        }
+    }
+
+    /*
+     * Hold 2 long lots of today, and queue a close today of them that crosses
+     * the depth of the next trading day. Return the close's last order.
+     */
+    private static CThostFtdcOrderField closeTodayOnNextDay(String depthDay) {
+        var clock = SimClock.stepped(LocalDateTime.of(2020, 7, 9, 10, 0));
+        SimClock.setCurrent(clock);
+        var spi = new TradeBookTest.Spi();
+        var book = new TradeBook(1);
+        try {
+            var session = book.login("0001", spi);
+            var account = book.getAccount("0001");
+            var trade = new CThostFtdcTradeField();
+            trade.InstrumentID = INSTR;
+            trade.TradingDay = "20200709";
+            trade.Direction = TThostFtdcDirectionType.DIRECTION_BUY;
+            trade.OffsetFlag = TThostFtdcCombOffsetFlagType.OFFSET_OPEN;
+            trade.Price = 100;
+            trade.Volume = 2;
+            account.trade(trade);
+            book.enqueue(order(INSTR, false,
+                    TThostFtdcCombOffsetFlagType.OFFSET_CLOSE_TODAY, 100, 2), 0,
+                    spi, session);
+            book.flush();
+            assertEquals(1, book.getLiveCount());
+            // Night session of the next trading day.
+            clock.advance(11, TimeUnit.HOURS);
+            var depth = TradeBookTest.depth(INSTR, 100, 100.5);
+            depth.TradingDay = depthDay;
+            book.OnRtnDepthMarketData(depth);
+            book.flush();
+            assertTrue(spi.trades.isEmpty());
+            assertEquals(0, book.getLiveCount());
+            // The lots are yesterday's now, and free to close.
+            assertEquals(2, account.getClosable(INSTR, true,
+                    TThostFtdcCombOffsetFlagType.OFFSET_CLOSE_YESTERDAY, "20200710"));
+            // The book goes on matching.
+            var open = order(INSTR, true, TThostFtdcCombOffsetFlagType.OFFSET_OPEN,
+                    100.5, 1);
+            open.OrderRef = "2";
+            book.enqueue(open, 0, spi, session);
+            book.flush();
+            assertEquals(1, spi.trades.size());
+            return spi.orders.get(1);
+        } finally {
+            book.stop();
+            SimClock.setCurrent(SimClock.wall());
+        }
+    }
+
+    @Test
+    public void cancel_close_today_at_roll() {
+        var rtn = closeTodayOnNextDay("20200710");
+        assertEquals(TThostFtdcOrderStatusType.CANCELED, rtn.OrderStatus);
+        assertEquals(2, rtn.VolumeTotal);
+    }
+
+    @Test
+    public void cancel_over_close_at_fill() {
+        // Without a trading day in the depth, the fill finds no today lots.
+        var rtn = closeTodayOnNextDay(null);
+        assertEquals(TThostFtdcOrderStatusType.CANCELED, rtn.OrderStatus);
+        assertEquals(2, rtn.VolumeTotal);
+    }
+}
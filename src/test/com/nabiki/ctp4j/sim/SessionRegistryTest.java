@@ -0,0 +1,252 @@
+/*
+ * Copyright (c) 2020 Hongbao Chen <chenhongbao@outlook.com>
+ *
+ * Licensed under the  GNU Affero General Public License v3.0 and you may not use
+ * this file except in compliance with the  License. You may obtain a copy of the
+ * License at
+ *
+ *                    https://www.gnu.org/licenses/agpl-3.0.txt
+ *
+ * Permission is hereby  granted, free of charge, to any  person obtaining a copy
+ * of this software and associated  documentation files (the "Software"), to deal
+ * in the Software  without restriction, including without  limitation the rights
+ * to  use, copy,  modify, merge,  publish, distribute,  sublicense, and/or  sell
+ * copies  of  the Software,  and  to  permit persons  to  whom  the Software  is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE  IS PROVIDED "AS  IS", WITHOUT WARRANTY  OF ANY KIND,  EXPRESS OR
+ * IMPLIED,  INCLUDING BUT  NOT  LIMITED TO  THE  WARRANTIES OF  MERCHANTABILITY,
+ * FITNESS FOR  A PARTICULAR PURPOSE AND  NONINFRINGEMENT. IN NO EVENT  SHALL THE
+ * AUTHORS  OR COPYRIGHT  HOLDERS  BE  LIABLE FOR  ANY  CLAIM,  DAMAGES OR  OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF  CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE  OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.nabiki.ctp4j.sim;
+
+import com.nabiki.ctp4j._x.SimClock;
+import com.nabiki.ctp4j.jni.flag.TThostFtdcOrderStatusType;
+import com.nabiki.ctp4j.jni.struct.*;
+import com.nabiki.ctp4j.trader.CThostFtdcTraderSpi;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.time.LocalDateTime;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class SessionRegistryTest {
+    static class CountingSpi extends CThostFtdcTraderSpi {
+        final AtomicInteger accepted = new AtomicInteger(), canceled = new AtomicInteger(),
+                trades = new AtomicInteger(), errors = new AtomicInteger();
+
+        @Override
+        public void OnRtnOrder(CThostFtdcOrderField order) {
+            if (order.OrderStatus == TThostFtdcOrderStatusType.CANCELED)
+                this.canceled.incrementAndGet();
+            else if (order.OrderStatus == TThostFtdcOrderStatusType.NO_TRADE_QUEUEING)
+                this.accepted.incrementAndGet();
+        }
+
+        @Override
+        public void OnRtnTrade(CThostFtdcTradeField trade) {
+            this.trades.incrementAndGet();
+        }
+
+        @Override
+        public void OnRspOrderInsert(CThostFtdcInputOrderField inputOrder,
+                                     CThostFtdcRspInfoField rspInfo,
+                                     int requestID, boolean isLast) {
+            this.errors.incrementAndGet();
+        }
+
+        @Override
+        public void OnRspOrderAction(CThostFtdcInputOrderActionField inputOrderAction,
+                                     CThostFtdcRspInfoField rspInfo,
+                                     int requestID, boolean isLast) {
+            this.errors.incrementAndGet();
+        }
+    }
+
+    static final int SESSIONS = 5000, THREADS = 8;
+
+    private final CountingSpi spi = new CountingSpi();
+    private TradeBook book;
+
+    @BeforeClass
+    public static void setUpClass() {
+        CommonData.addInstrument("x2009", TradeBookTest.instrument("x2009"));
+    }
+
+    @Before
+    public void setUp() {
+        SimClock.setCurrent(SimClock.stepped(LocalDateTime.of(2020, 7, 9, 9, 0)));
+        this.book = new TradeBook(2);
+    }
+
+    @After
+    public void tearDown() {
+        this.book.stop();
+        SimClock.setCurrent(SimClock.wall());
+    }
+
+    private List<SessionRegistry.Session> loginAll() throws InterruptedException {
+        var sessions = new CopyOnWriteArrayList<SessionRegistry.Session>();
+        var done = new CountDownLatch(THREADS);
+        for (int t = 0; t < THREADS; ++t) {
+            new Thread(() -> {
+                try {
+                    for (int i = 0; i < SESSIONS / THREADS; ++i) {
+                        var session = this.book.login("0001", this.spi);
+                        // Every session sends the same order ref.
+                        this.book.enqueue(TradeBookTest.order("x2009", "1", true, 100, 1),
+                                0, this.spi, session);
+                        sessions.add(session);
+                    }
+                } finally {
+                    done.countDown();
+                }
+            }).start();
+        }
+        done.await();
+        this.book.flush();
+        return sessions;
+    }
+
+    @Test
+    public void unique_sessions() throws InterruptedException {
+        var sessions = loginAll();
+        assertEquals(SESSIONS, sessions.size());
+        assertEquals(SESSIONS, this.book.getSessions().size());
+        Set<Integer> ids = new HashSet<>();
+        for (var session : sessions) {
+            assertTrue(ids.add(session.getSessionID()));
+            assertEquals(session.getSessionID(), session.getLogin().SessionID);
+            assertEquals(1, session.getOrderCount());
+        }
+        // Same ref in different sessions is no duplicate.
+        assertEquals(SESSIONS, this.spi.accepted.get());
+        assertEquals(0, this.spi.errors.get());
+        assertEquals(SESSIONS, this.book.getLiveCount());
+        // But it is in the same session.
+        var first = sessions.get(0);
+        this.book.enqueue(TradeBookTest.order("x2009", "1", true, 100, 1), 0,
+                this.spi, first);
+        this.book.flush();
+        assertEquals(1, this.spi.errors.get());
+    }
+
+    @Test
+    public void cancel_by_session() throws InterruptedException {
+        var sessions = loginAll();
+        var session = sessions.get(SESSIONS / 2);
+        // Cancel by ref without instrument ID.
+        var action = new CThostFtdcInputOrderActionField();
+        action.OrderRef = "1";
+        action.FrontID = session.getFrontID();
+        action.SessionID = session.getSessionID();
+        this.book.enqueue(action, 0, this.spi);
+        this.book.flush();
+        assertEquals(1, this.spi.canceled.get());
+        assertEquals(0, session.getOrderCount());
+        assertEquals(SESSIONS - 1, this.book.getLiveCount());
+    }
+
+    @Test
+    public void logout_stops_callbacks() throws InterruptedException {
+        var sessions = loginAll();
+        var logouts = new ConcurrentHashMap<Integer, Boolean>();
+        var done = new CountDownLatch(THREADS);
+        for (int t = 0; t < THREADS; ++t) {
+            final int offset = t;
+            new Thread(() -> {
+                try {
+                    for (int i = offset; i < SESSIONS; i += THREADS) {
+                        var session = sessions.get(i);
+                        this.book.logout(session);
+                        logouts.put(session.getSessionID(), session.isActive());
+                    }
+                } finally {
+                    done.countDown();
+                }
+            }).start();
+        }
+        done.await();
+        assertEquals(SESSIONS, logouts.size());
+        assertFalse(logouts.containsValue(true));
+        assertEquals(0, this.book.getSessions().size());
+        // Orders stay in the book and trade, without callbacks.
+        this.book.OnRtnDepthMarketData(TradeBookTest.depth("x2009", 99, 100));
+        this.book.flush();
+        assertEquals(0, this.book.getLiveCount());
+        assertEquals(0, this.spi.trades.get());
+        // New session gets a new ID, so it doesn't inherit old refs.
+        var session = this.book.login("0001", this.spi);
+        assertTrue(session.getSessionID() > SESSIONS);
+        this.book.enqueue(TradeBookTest.order("x2009", "1", true, 100, 1), 0,
+                this.spi, session);
+        this.book.flush();
+        assertEquals(0, this.spi.errors.get());
+    }
+
+    @Test
+    public void logout_stops_cancel_callbacks() {
+        var session = this.book.login("0001", this.spi);
+        this.book.enqueue(TradeBookTest.order("x2009", "1", true, 100, 1), 0,
+                this.spi, session);
+        this.book.flush();
+        assertEquals(1, this.spi.accepted.get());
+        this.book.logout(session);
+        this.book.release(this.spi);
+        // Cancels still in flight when the session logs out.
+        var action = new CThostFtdcInputOrderActionField();
+        action.OrderRef = "1";
+        action.FrontID = session.getFrontID();
+        action.SessionID = session.getSessionID();
+        this.book.enqueue(action, 0, this.spi, session);
+        var missing = new CThostFtdcInputOrderActionField();
+        missing.OrderSysID = "none";
+        this.book.enqueue(missing, 0, this.spi, session);
+        this.book.flush();
+        // The order is canceled but nothing is returned.
+        assertEquals(0, this.book.getLiveCount());
+        assertEquals(0, this.spi.canceled.get());
+        assertEquals(0, this.spi.errors.get());
+        assertEquals(0, this.book.getQueueDepth(this.spi));
+    }
+
+    @Test
+    public void refs_survive_logout() {
+        var session = this.book.login("0001", this.spi);
+        this.book.enqueue(TradeBookTest.order("x2009", "1", true, 100, 1), 0,
+                this.spi, session);
+        this.book.enqueue(TradeBookTest.order("x2009", "ref-a", true, 100, 1), 0,
+                this.spi, session);
+        this.book.flush();
+        this.book.logout(session);
+        // Requests with the IDs of the logged out session, without a login.
+        var usr = new CThostFtdcRspUserLoginField();
+        usr.FrontID = session.getFrontID();
+        usr.SessionID = session.getSessionID();
+        for (var ref : new String[] {"1", "ref-a", "2"})
+            this.book.enqueue(TradeBookTest.order("x2009", ref, true, 100, 1), 0,
+                    this.spi, usr);
+        this.book.flush();
+        // Used refs are rejected and the old orders are left alone.
+        assertEquals(2, this.spi.errors.get());
+        assertEquals(3, this.spi.accepted.get());
+        assertEquals(3, this.book.getLiveCount());
+    }
+}
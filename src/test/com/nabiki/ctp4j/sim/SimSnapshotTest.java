@@ -0,0 +1,290 @@
+/*
+ * Copyright (c) 2020 Hongbao Chen <chenhongbao@outlook.com>
+ *
+ * Licensed under the  GNU Affero General Public License v3.0 and you may not use
+ * this file except in compliance with the  License. You may obtain a copy of the
+ * License at
+ *
+ *                    https://www.gnu.org/licenses/agpl-3.0.txt
+ *
+ * Permission is hereby  granted, free of charge, to any  person obtaining a copy
+ * of this software and associated  documentation files (the "Software"), to deal
+ * in the Software  without restriction, including without  limitation the rights
+ * to  use, copy,  modify, merge,  publish, distribute,  sublicense, and/or  sell
+ * copies  of  the Software,  and  to  permit persons  to  whom  the Software  is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE  IS PROVIDED "AS  IS", WITHOUT WARRANTY  OF ANY KIND,  EXPRESS OR
+ * IMPLIED,  INCLUDING BUT  NOT  LIMITED TO  THE  WARRANTIES OF  MERCHANTABILITY,
+ * FITNESS FOR  A PARTICULAR PURPOSE AND  NONINFRINGEMENT. IN NO EVENT  SHALL THE
+ * AUTHORS  OR COPYRIGHT  HOLDERS  BE  LIABLE FOR  ANY  CLAIM,  DAMAGES OR  OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF  CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE  OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.nabiki.ctp4j.sim;
+
+import com.nabiki.ctp4j._x.OP;
+import com.nabiki.ctp4j._x.SimClock;
+import com.nabiki.ctp4j.jni.struct.CThostFtdcDepthMarketDataField;
+import com.nabiki.ctp4j.jni.struct.CThostFtdcRspUserLoginField;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class SimSnapshotTest {
+    static class LastDepthSPI extends BacktestTest.DigestSPI {
+        final Map<String, CThostFtdcDepthMarketDataField> last = new HashMap<>();
+
+        @Override
+        public void OnRtnDepthMarketData(CThostFtdcDepthMarketDataField depth) {
+            super.OnRtnDepthMarketData(depth);
+            this.last.put(depth.InstrumentID, OP.deepCopy(depth));
+        }
+    }
+
+    private final CThostFtdcRspUserLoginField usr = new CThostFtdcRspUserLoginField();
+    private SimClock.Stepped clock;
+    private Path file;
+    private final SimSources sources = new SimSources();
+
+    @Before
+    public void setUp() throws IOException {
+        this.usr.FrontID = 1;
+        this.usr.SessionID = 1;
+        this.clock = SimClock.stepped(LocalDateTime.of(2020, 7, 9, 9, 0));
+        SimClock.setCurrent(this.clock);
+        this.file = Files.createTempFile("snapshot", ".bin");
+        this.file.toFile().deleteOnExit();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        this.sources.shutdown();
+        SimClock.setCurrent(SimClock.wall());
+        Files.deleteIfExists(this.file);
+    }
+
+    private TickSource source(int books) {
+        var source = this.sources.create("SN", books);
+        source.setSynchronous(true);
+        return source;
+    }
+
+    private static TradeBook book(TickSource source) {
+        var book = new TradeBook(2);
+        book.setSynchronous(true);
+        source.addSPI(book);
+        return book;
+    }
+
+    private void run(TickSource source, int rounds) {
+        for (int i = 0; i < rounds; ++i) {
+            source.run();
+            this.clock.advance(500, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private static int ref = 0;
+
+    private void insert(TradeBook book, LastDepthSPI md, int books) {
+        var spi = new TradeBookTest.Spi();
+        for (int i = 0; i < books; ++i) {
+            var depth = md.last.get("SN" + i);
+            if (depth == null)
+                continue;
+            // One crosses the spread and opens at once, others rest in the book.
+            book.enqueue(TradeBookTest.order(depth.InstrumentID,
+                    String.valueOf(++ref), true, depth.AskPrice1, 5), 0, spi, this.usr);
+            book.enqueue(TradeBookTest.order(depth.InstrumentID,
+                    String.valueOf(++ref), true, depth.BidPrice1 - 2, 20), 0, spi,
+                    this.usr);
+            book.enqueue(TradeBookTest.order(depth.InstrumentID,
+                    String.valueOf(++ref), false, depth.AskPrice1 + 2, 20), 0, spi,
+                    this.usr);
+        }
+        assertTrue(spi.errors.isEmpty());
+    }
+
+    @Test
+    public void fork_same_state() throws IOException {
+        var books = 20;
+        var source = source(books);
+        var book = book(source);
+        var md = new LastDepthSPI();
+        source.addSPI(md);
+        source.setSeed(42);
+        try {
+            run(source, 200);
+            insert(book, md, books);
+            run(source, 50);
+            assertTrue(book.getLiveCount() > 0);
+            SimSnapshot.save(this.file, source, book);
+        } finally {
+            book.stop();
+        }
+        var forked = new long[2];
+        var accounts = new String[2];
+        var sysIDs = new String[2];
+        var start = this.clock.now();
+        for (int k = 0; k < 2; ++k) {
+            this.clock = SimClock.stepped(start);
+            SimClock.setCurrent(this.clock);
+            var restoredSource = this.sources.create();
+            restoredSource.setSynchronous(true);
+            var restoredBook = book(restoredSource);
+            var spi = new LastDepthSPI();
+            restoredSource.addSPI(spi);
+            try {
+                SimSnapshot.load(this.file, restoredSource, restoredBook);
+                assertEquals(book.getLiveCount(), restoredBook.getLiveCount());
+                assertFalse(restoredBook.getPositionDetails("0001", null).isEmpty());
+                run(restoredSource, 300);
+                forked[k] = spi.digest;
+                accounts[k] = OP.toJson(restoredBook.getTradingAccount("0001"));
+                var trader = new TradeBookTest.Spi();
+                restoredBook.enqueue(TradeBookTest.order("SN0", String.valueOf(ref + 1),
+                        true, spi.last.get("SN0").BidPrice1 - 1, 1), 0, trader,
+                        this.usr);
+                sysIDs[k] = trader.orders.get(0).OrderSysID;
+            } finally {
+                restoredBook.stop();
+            }
+        }
+        // Both forks go on the same way from the snapshot.
+        assertEquals(forked[0], forked[1]);
+        assertEquals(accounts[0], accounts[1]);
+        assertEquals(sysIDs[0], sysIDs[1]);
+        // And the same way as the saved simulator.
+        this.clock = SimClock.stepped(start);
+        SimClock.setCurrent(this.clock);
+        source.removeSPI(md);
+        var spi = new LastDepthSPI();
+        source.addSPI(spi);
+        run(source, 300);
+        assertEquals(spi.digest, forked[0]);
+    }
+
+    @Test
+    public void save_and_load_many() throws IOException {
+        var books = 500;
+        var source = source(books);
+        var book = book(source);
+        var md = new LastDepthSPI();
+        source.addSPI(md);
+        try {
+            run(source, 20);
+            for (int i = 0; i < 10; ++i) {
+                insert(book, md, books);
+                run(source, 1);
+            }
+            // Save and load time is in SimSnapshotBench.
+            SimSnapshot.save(this.file, source, book);
+        } finally {
+            book.stop();
+        }
+        var restoredSource = this.sources.create();
+        var restoredBook = new TradeBook(2);
+        try {
+            SimSnapshot.load(this.file, restoredSource, restoredBook);
+            assertEquals(book.getLiveCount(), restoredBook.getLiveCount());
+        } finally {
+            restoredBook.stop();
+        }
+    }
+
+    @Test
+    public void broken_file_changes_nothing() throws IOException {
+        var books = 20;
+        var source = source(books);
+        var book = book(source);
+        var md = new LastDepthSPI();
+        source.addSPI(md);
+        try {
+            run(source, 20);
+            insert(book, md, books);
+            SimSnapshot.save(this.file, source, book);
+        } finally {
+            book.stop();
+        }
+        // Cut the file in the trade book, the last part of it.
+        var bytes = Files.readAllBytes(this.file);
+        Files.write(this.file, Arrays.copyOf(bytes, bytes.length - 8));
+        var restoredSource = this.sources.create("SB", 1);
+        restoredSource.setSynchronous(true);
+        var restoredBook = new TradeBook(1);
+        try {
+            SimSnapshot.load(this.file, restoredSource, restoredBook);
+            fail("broken snapshot");
+        } catch (IOException ignored) {
+        } finally {
+            restoredBook.stop();
+        }
+        // Common data and books of the source are not replaced.
+        assertNotNull(CommonData.getInstrument("SB0"));
+        var spi = new LastDepthSPI();
+        restoredSource.addSPI(spi);
+        restoredSource.setEmitChance(1.0D);
+        restoredSource.run();
+        assertEquals(Set.of("SB0"), spi.last.keySet());
+    }
+
+    @Test
+    public void match_after_restore() throws IOException {
+        var source = source(1);
+        var book = book(source);
+        var md = new LastDepthSPI();
+        source.addSPI(md);
+        try {
+            run(source, 20);
+            SimSnapshot.save(this.file, source, book);
+        } finally {
+            book.stop();
+        }
+        var restoredSource = this.sources.create();
+        restoredSource.setSynchronous(true);
+        var restoredBook = book(restoredSource);
+        try {
+            SimSnapshot.load(this.file, restoredSource, restoredBook);
+            // An order crossing the saved depth trades before any new depth.
+            var depth = md.last.get("SN0");
+            var trader = new TradeBookTest.Spi();
+            restoredBook.enqueue(TradeBookTest.order("SN0", String.valueOf(++ref),
+                    true, depth.AskPrice1, 1), 0, trader, this.usr);
+            assertTrue(trader.errors.isEmpty());
+            assertEquals(1, trader.trades.size());
+            assertEquals(depth.AskPrice1, trader.trades.get(0).Price, 0);
+        } finally {
+            restoredBook.stop();
+        }
+    }
+
+    @Test
+    public void reject_bad_file() throws IOException {
+        Files.write(this.file, new byte[] {1, 2, 3, 4, 5, 6, 7, 8});
+        var source = this.sources.create();
+        var book = new TradeBook(1);
+        try {
+            SimSnapshot.load(this.file, source, book);
+            fail("not a snapshot");
+        } catch (IOException ignored) {
+        } finally {
+            book.stop();
+        }
+    }
+}
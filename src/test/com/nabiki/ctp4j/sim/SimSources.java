@@ -0,0 +1,94 @@
+/*
+ * Copyright (c) 2020 Hongbao Chen <chenhongbao@outlook.com>
+ *
+ * Licensed under the  GNU Affero General Public License v3.0 and you may not use
+ * this file except in compliance with the  License. You may obtain a copy of the
+ * License at
+ *
+ *                    https://www.gnu.org/licenses/agpl-3.0.txt
+ *
+ * Permission is hereby  granted, free of charge, to any  person obtaining a copy
+ * of this software and associated  documentation files (the "Software"), to deal
+ * in the Software  without restriction, including without  limitation the rights
+ * to  use, copy,  modify, merge,  publish, distribute,  sublicense, and/or  sell
+ * copies  of  the Software,  and  to  permit persons  to  whom  the Software  is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE  IS PROVIDED "AS  IS", WITHOUT WARRANTY  OF ANY KIND,  EXPRESS OR
+ * IMPLIED,  INCLUDING BUT  NOT  LIMITED TO  THE  WARRANTIES OF  MERCHANTABILITY,
+ * FITNESS FOR  A PARTICULAR PURPOSE AND  NONINFRINGEMENT. IN NO EVENT  SHALL THE
+ * AUTHORS  OR COPYRIGHT  HOLDERS  BE  LIABLE FOR  ANY  CLAIM,  DAMAGES OR  OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF  CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE  OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+package com.nabiki.ctp4j.sim;
+
+import com.nabiki.ctp4j._x.OP;
+
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * Tick sources for tests, made of books of {@link SimInfo}. Sources made by the
+ * same object are shut down together, so their threads don't outlive the test.
+ */
+public class SimSources {
+    private final List<TickSource> sources = new LinkedList<>();
+
+    /**
+     * Create a stopped source without books.
+     *
+     * @return stopped source
+     */
+    public TickSource create() {
+        var source = new TickSource();
+        source.stop();
+        this.sources.add(source);
+        return source;
+    }
+
+    /**
+     * Create a stopped source with the specified number of books. Books are named
+     * by the prefix and their index, and get instrument and depth of
+     * {@link SimInfo}, added to {@link CommonData}.
+     *
+     * @param prefix prefix of instrument ID
+     * @param books number of books
+     * @return stopped source
+     */
+    public TickSource create(String prefix, int books) {
+        var source = create();
+        for (int i = 0; i < books; ++i) {
+            var depth = OP.deepCopy(SimInfo.depths[i % SimInfo.depths.length]);
+            depth.InstrumentID = prefix + i;
+            var in = OP.deepCopy(SimInfo.instruments[0]);
+            in.InstrumentID = depth.InstrumentID;
+            CommonData.addInstrument(in.InstrumentID, in);
+            CommonData.addDepth(depth.InstrumentID, depth);
+            source.initialize(depth);
+        }
+        return source;
+    }
+
+    /**
+     * Shut down all sources made by this object.
+     */
+    public void shutdown() {
+        for (var source : this.sources)
+            source.shutdown();
+        this.sources.clear();
+    }
+
+    public static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException ignored) {
+        }
+    }
+}
@@ -28,14 +28,20 @@
 
 package com.nabiki.ctp4j.sim;
 
+import com.nabiki.ctp4j._x.SimClock;
 import com.nabiki.ctp4j.jni.struct.CThostFtdcDepthMarketDataField;
 import org.junit.Test;
 
 import java.io.FileWriter;
 import java.io.IOException;
 import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
 import java.nio.file.Path;
+import java.time.LocalDateTime;
 import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
 
 public class TickBookTest {
     private final static String dir = "C:\\Users\\chenh\\Desktop\\";
@@ -116,6 +122,64 @@ public class TickBookTest {
             write(book.refresh().LastPrice, "biased_down.txt");
     }
 
+    @Test
+    public void snapshot_ring() {
+        var book = new TickBook(originMd, 1.0D);
+        var first = book.snapshot();
+        var price = first.LastPrice;
+        for (int i = 1; i < TickBook.SNAPSHOT_SLOTS; ++i)
+            assertNotSame(first, book.snapshot());
+        // Slot is unchanged until the ring laps around.
+        assertEquals(price, first.LastPrice, 0.0D);
+        assertSame(first, book.snapshot());
+    }
+
+    @Test
+    public void zero_garbage() {
+        var clock = SimClock.stepped(LocalDateTime.of(2020, 7, 9, 20, 59));
+        var previous = SimClock.current();
+        SimClock.setCurrent(clock);
+        try {
+            var book = new TickBook(originMd, 1.0D);
+            var depth = new CThostFtdcDepthMarketDataField();
+            assertSame(depth, book.refresh(depth));
+            assertEquals("20200709", depth.TradingDay);
+            assertEquals("20200709", depth.ActionDay);
+            assertEquals("20:59:00", depth.UpdateTime);
+            // Cross the night session boundary.
+            clock.advance(60500, TimeUnit.MILLISECONDS);
+            book.refresh(depth);
+            assertEquals("20200710", depth.TradingDay);
+            assertEquals("21:00:00", depth.UpdateTime);
+            assertEquals(500, depth.UpdateMillisec);
+            // Warm up, then measure. Only the time string is built, once a
+            // second, so a million ticks over a thousand seconds allocate no
+            // more than that string each second and a little slack.
+            var ticks = 1000 * 1000;
+            var seconds = ticks / 1000;
+            allocation(book, depth, clock, ticks);
+            var bytes = allocation(book, depth, clock, ticks);
+            assertTrue("allocated " + bytes + " bytes", bytes <= seconds * 64 + 1024);
+        } finally {
+            SimClock.setCurrent(previous);
+        }
+    }
+
+    private static long allocation(TickBook book, CThostFtdcDepthMarketDataField depth,
+                                   SimClock.Stepped clock, int ticks) {
+        var bean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        var id = Thread.currentThread().getId();
+        var start = bean.getThreadAllocatedBytes(id);
+        for (int i = 0; i < ticks; ++i) {
+            clock.advance(1, TimeUnit.MILLISECONDS);
+            if ((i & 1) == 0)
+                book.refresh(depth);
+            else
+                book.snapshot();
+        }
+        return bean.getThreadAllocatedBytes(id) - start;
+    }
+
     private static void write(double price, String file) {
         while (true)
             try (PrintWriter pw = new PrintWriter(
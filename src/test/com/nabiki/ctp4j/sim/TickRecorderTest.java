@@ -0,0 +1,179 @@
+/*
+ * Copyright (c) 2020 Hongbao Chen <chenhongbao@outlook.com>
+ *
+ * Licensed under the  GNU Affero General Public License v3.0 and you may not use
+ * this file except in compliance with the  License. You may obtain a copy of the
+ * License at
+ *
+ *                    https://www.gnu.org/licenses/agpl-3.0.txt
+ *
+ * Permission is hereby  granted, free of charge, to any  person obtaining a copy
+ * of this software and associated  documentation files (the "Software"), to deal
+ * in the Software  without restriction, including without  limitation the rights
+ * to  use, copy,  modify, merge,  publish, distribute,  sublicense, and/or  sell
+ * copies  of  the Software,  and  to  permit persons  to  whom  the Software  is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE  IS PROVIDED "AS  IS", WITHOUT WARRANTY  OF ANY KIND,  EXPRESS OR
+ * IMPLIED,  INCLUDING BUT  NOT  LIMITED TO  THE  WARRANTIES OF  MERCHANTABILITY,
+ * FITNESS FOR  A PARTICULAR PURPOSE AND  NONINFRINGEMENT. IN NO EVENT  SHALL THE
+ * AUTHORS  OR COPYRIGHT  HOLDERS  BE  LIABLE FOR  ANY  CLAIM,  DAMAGES OR  OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF  CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE  OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.nabiki.ctp4j.sim;
+
+import com.nabiki.ctp4j._x.OP;
+import com.nabiki.ctp4j.jni.struct.CThostFtdcDepthMarketDataField;
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+public class TickRecorderTest {
+    private final SimSources sources = new SimSources();
+
+    @After
+    public void tearDown() {
+        this.sources.shutdown();
+    }
+
+    private static Path temp(String suffix) throws IOException {
+        var file = Files.createTempFile("tick", suffix);
+        file.toFile().deleteOnExit();
+        return file;
+    }
+
+    // Random walk depths of the specified instruments, every 500 ms from 09:00.
+    private static List<CThostFtdcDepthMarketDataField> depths(int instruments,
+                                                               int count) {
+        var random = new Random(42);
+        var r = new ArrayList<CThostFtdcDepthMarketDataField>();
+        var last = new CThostFtdcDepthMarketDataField[instruments];
+        for (int i = 0; i < instruments; ++i) {
+            last[i] = OP.deepCopy(SimInfo.depths[0]);
+            last[i].InstrumentID = "r" + i;
+            last[i].ExchangeID = "SZFE";
+            last[i].TradingDay = last[i].ActionDay = "20200709";
+            // Empty levels as CTP sends them.
+            last[i].BidPrice5 = last[i].AskPrice5 = Double.MAX_VALUE;
+        }
+        for (int n = 0; n < count; ++n) {
+            var d = OP.deepCopy(last[n % instruments]);
+            var millis = 9 * 3600 * 1000 + n / instruments * 500;
+            d.UpdateTime = String.format("%02d:%02d:%02d", millis / 3600000,
+                    millis / 60000 % 60, millis / 1000 % 60);
+            d.UpdateMillisec = millis % 1000;
+            d.LastPrice += (random.nextInt(3) - 1) * 0.2D;
+            d.BidPrice1 = d.LastPrice - 0.2D;
+            d.AskPrice1 = d.LastPrice;
+            d.BidVolume1 = random.nextInt(100);
+            d.AskVolume1 = random.nextInt(100);
+            d.Volume += random.nextInt(10);
+            d.Turnover += d.LastPrice * 10 / 3.0D;
+            d.AveragePrice = d.Turnover / Math.max(1, d.Volume);
+            r.add(d);
+            last[n % instruments] = d;
+        }
+        return r;
+    }
+
+    private static CThostFtdcDepthMarketDataField expected(
+            CThostFtdcDepthMarketDataField d) {
+        var e = OP.deepCopy(d);
+        e.ExchangeInstID = e.InstrumentID;
+        e.PreDelta = e.CurrDelta = 0;
+        return e;
+    }
+
+    @Test
+    public void record_and_replay() throws IOException {
+        var depths = depths(10, 20000);
+        var file = temp(".tkz");
+        try (var recorder = new TickRecorder(file)) {
+            for (var d : depths)
+                recorder.OnRtnDepthMarketData(d);
+            assertEquals(depths.size(), recorder.getRecordCount());
+        }
+        try (var replay = TickReplay.open(file)) {
+            assertEquals(depths.size(), replay.count());
+            var depth = new CThostFtdcDepthMarketDataField();
+            for (var d : depths) {
+                assertTrue(replay.next());
+                assertEquals(OP.toJson(expected(d)), OP.toJson(replay.read(depth)));
+            }
+            assertFalse(replay.next());
+        }
+        // Compare sizes with fixed records.
+        var fixed = temp(".bin");
+        try (var writer = new TickFileWriter(fixed)) {
+            for (var d : depths)
+                writer.write(d);
+        }
+        assertTrue(Files.size(file) * 4 < Files.size(fixed));
+    }
+
+    @Test
+    public void select_by_index() throws IOException {
+        var depths = depths(10, 100000);
+        var file = temp(".tkz");
+        try (var recorder = new TickRecorder(file)) {
+            for (var d : depths)
+                recorder.OnRtnDepthMarketData(d);
+        }
+        var fixed = temp(".bin");
+        try (var writer = new TickFileWriter(fixed)) {
+            for (var d : depths)
+                writer.write(d);
+        }
+        var from = TickReplay.timestamp(LocalDateTime.of(2020, 7, 9, 9, 30));
+        var to = TickReplay.timestamp(LocalDateTime.of(2020, 7, 9, 9, 31));
+        for (var path : new Path[] {file, fixed}) {
+            try (var replay = TickReplay.open(Set.of("r3"), from, to, path)) {
+                int count = 0;
+                while (replay.next()) {
+                    assertEquals("r3", replay.instrumentID());
+                    assertTrue(replay.timestamp() >= from && replay.timestamp() <= to);
+                    ++count;
+                }
+                // Two ticks a second, in 60 seconds and the last millisecond.
+                assertEquals(121, count);
+            }
+        }
+    }
+
+    @Test
+    public void record_from_source() throws IOException {
+        var source = this.sources.create("RS", 10);
+        source.setEmitChance(1.0D);
+        var file = temp(".tkz");
+        var recorder = new TickRecorder(file);
+        source.addSPI(recorder);
+        for (int i = 0; i < 1000; ++i)
+            source.run();
+        for (int i = 0; i < 1000 && recorder.getRecordCount() < 10000; ++i)
+            SimSources.sleep(1);
+        source.removeSPI(recorder);
+        recorder.close();
+        try (var replay = TickReplay.open(file)) {
+            int count = 0;
+            while (replay.next())
+                ++count;
+            assertEquals(10000, count);
+        }
+    }
+}
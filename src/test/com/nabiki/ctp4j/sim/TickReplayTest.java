@@ -0,0 +1,210 @@
+/*
+ * Copyright (c) 2020 Hongbao Chen <chenhongbao@outlook.com>
+ *
+ * Licensed under the  GNU Affero General Public License v3.0 and you may not use
+ * this file except in compliance with the  License. You may obtain a copy of the
+ * License at
+ *
+ *                    https://www.gnu.org/licenses/agpl-3.0.txt
+ *
+ * Permission is hereby  granted, free of charge, to any  person obtaining a copy
+ * of this software and associated  documentation files (the "Software"), to deal
+ * in the Software  without restriction, including without  limitation the rights
+ * to  use, copy,  modify, merge,  publish, distribute,  sublicense, and/or  sell
+ * copies  of  the Software,  and  to  permit persons  to  whom  the Software  is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE  IS PROVIDED "AS  IS", WITHOUT WARRANTY  OF ANY KIND,  EXPRESS OR
+ * IMPLIED,  INCLUDING BUT  NOT  LIMITED TO  THE  WARRANTIES OF  MERCHANTABILITY,
+ * FITNESS FOR  A PARTICULAR PURPOSE AND  NONINFRINGEMENT. IN NO EVENT  SHALL THE
+ * AUTHORS  OR COPYRIGHT  HOLDERS  BE  LIABLE FOR  ANY  CLAIM,  DAMAGES OR  OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF  CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE  OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.nabiki.ctp4j.sim;
+
+import com.nabiki.ctp4j._x.OP;
+import com.nabiki.ctp4j.jni.struct.CThostFtdcDepthMarketDataField;
+import com.nabiki.ctp4j.md.CThostFtdcMdSpi;
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.*;
+
+public class TickReplayTest {
+    private final SimSources sources = new SimSources();
+
+    @After
+    public void tearDown() {
+        this.sources.shutdown();
+    }
+
+    private static CThostFtdcDepthMarketDataField depth(String id, int second,
+                                                        int millis) {
+        var d = OP.deepCopy(SimInfo.depths[0]);
+        d.InstrumentID = id;
+        d.TradingDay = "20200710";
+        d.ActionDay = "20200709";
+        d.UpdateTime = String.format("%02d:%02d:%02d",
+                second / 3600, second / 60 % 60, second % 60);
+        d.UpdateMillisec = millis;
+        d.LastPrice = 1000 + second;
+        d.Volume = second;
+        d.AskPrice5 = 2000 + second;
+        d.BidVolume5 = 3000 + second;
+        return d;
+    }
+
+    // Write depths of the specified instrument, at every second from first.
+    private static Path write(String id, int first, int count) throws IOException {
+        var file = Files.createTempFile("tick", ".bin");
+        file.toFile().deleteOnExit();
+        try (var writer = new TickFileWriter(file)) {
+            for (int i = 0; i < count; ++i)
+                writer.write(depth(id, first + i * 2, 500));
+        }
+        return file;
+    }
+
+    @Test
+    public void round_trip() throws IOException {
+        var file = write("x2009", 0, 100);
+        try (var replay = TickReplay.open(file)) {
+            assertEquals(100, replay.count());
+            var depth = new CThostFtdcDepthMarketDataField();
+            for (int i = 0; i < 100; ++i) {
+                assertTrue(replay.next());
+                replay.read(depth);
+                var origin = depth("x2009", i * 2, 500);
+                origin.ExchangeInstID = origin.InstrumentID;
+                origin.PreDelta = origin.CurrDelta = 0;
+                assertEquals(OP.toJson(origin), OP.toJson(depth));
+            }
+            assertFalse(replay.next());
+        }
+    }
+
+    @Test
+    public void merge_by_time() throws IOException {
+        var a = write("a2009", 0, 1000);
+        var b = write("b2009", 1, 1000);
+        var c = write("c2009", 1, 1000);
+        try (var replay = TickReplay.open(a, b, c)) {
+            long last = Long.MIN_VALUE;
+            String lastID = "";
+            int count = 0;
+            while (replay.next()) {
+                var time = replay.timestamp();
+                assertTrue(time >= last);
+                // Same time keeps the order of files.
+                if (time == last)
+                    assertTrue(replay.instrumentID().compareTo(lastID) > 0);
+                last = time;
+                lastID = replay.instrumentID();
+                ++count;
+            }
+            assertEquals(3000, count);
+        }
+    }
+
+    @Test
+    public void replay_through_source() throws IOException, InterruptedException {
+        var file = write("r2009", 0, 40000);
+        var source = this.sources.create();
+        var count = new AtomicLong();
+        var spi = new CThostFtdcMdSpi() {
+            @Override
+            public void OnRtnDepthMarketData(
+                    CThostFtdcDepthMarketDataField depthMarketData) {
+                count.incrementAndGet();
+            }
+        };
+        source.addSPI(spi);
+        try (var replay = TickReplay.open(file)) {
+            source.startReplay(replay, TickSource.UNTHROTTLED);
+            while (source.isReplaying())
+                Thread.sleep(1);
+            for (int i = 0; i < 1000 && count.get() < 40000; ++i)
+                Thread.sleep(1);
+            source.stop();
+        }
+        assertEquals(40000, count.get());
+        // 100 records in 200 seconds of market time, replayed at 1000x.
+        file = write("r2009", 0, 100);
+        try (var replay = TickReplay.open(file)) {
+            var start = System.nanoTime();
+            source.startReplay(replay, 1000);
+            while (source.isReplaying())
+                Thread.sleep(1);
+            var elapsed = System.nanoTime() - start;
+            source.stop();
+            assertTrue(elapsed >= 190_000_000L);
+        }
+        source.removeSPI(spi);
+    }
+
+    @Test
+    public void conflate_replay() throws IOException, InterruptedException {
+        // The SPI blocks on p2009 while a2009 waits in its slot and b2009 laps the
+        // replay's depth ring.
+        var blocker = write("p2009", 0, 1);
+        var a = write("a2009", 1, 1);
+        var b = write("b2009", 2, TickSource.RING_SIZE * 3);
+        var source = this.sources.create();
+        var unblock = new CountDownLatch(1);
+        var delivered = new CountDownLatch(1);
+        var last = new ConcurrentHashMap<String, CThostFtdcDepthMarketDataField>();
+        var spi = new CThostFtdcMdSpi() {
+            @Override
+            public void OnRtnDepthMarketData(
+                    CThostFtdcDepthMarketDataField depthMarketData) {
+                try {
+                    unblock.await();
+                } catch (InterruptedException ignored) {
+                }
+                last.put(depthMarketData.InstrumentID, OP.deepCopy(depthMarketData));
+                if (depthMarketData.InstrumentID.equals("a2009"))
+                    delivered.countDown();
+            }
+        };
+        // Another SPI gets every depth, and tells when the replay is through.
+        var replayed = new CountDownLatch(2 + TickSource.RING_SIZE * 3);
+        var all = new CThostFtdcMdSpi() {
+            @Override
+            public void OnRtnDepthMarketData(
+                    CThostFtdcDepthMarketDataField depthMarketData) {
+                replayed.countDown();
+            }
+        };
+        source.addSPI(spi, TickSource.Delivery.CONFLATE);
+        source.addSPI(all);
+        try (var replay = TickReplay.open(blocker, a, b)) {
+            source.startReplay(replay, TickSource.UNTHROTTLED);
+            assertTrue(replayed.await(10, TimeUnit.SECONDS));
+            source.stop();
+        }
+        unblock.countDown();
+        assertTrue(delivered.await(10, TimeUnit.SECONDS));
+        source.removeSPI(all);
+        source.removeSPI(spi);
+        var origin = depth("a2009", 1, 500);
+        assertEquals(origin.LastPrice, last.get("a2009").LastPrice, 0);
+        assertEquals(origin.Volume, last.get("a2009").Volume);
+        for (Map.Entry<String, CThostFtdcDepthMarketDataField> e : last.entrySet())
+            assertEquals(e.getKey(), e.getValue().InstrumentID);
+    }
+}
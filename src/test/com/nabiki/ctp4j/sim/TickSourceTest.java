@@ -0,0 +1,246 @@
+/*
+ * Copyright (c) 2020 Hongbao Chen <chenhongbao@outlook.com>
+ *
+ * Licensed under the  GNU Affero General Public License v3.0 and you may not use
+ * this file except in compliance with the  License. You may obtain a copy of the
+ * License at
+ *
+ *                    https://www.gnu.org/licenses/agpl-3.0.txt
+ *
+ * Permission is hereby  granted, free of charge, to any  person obtaining a copy
+ * of this software and associated  documentation files (the "Software"), to deal
+ * in the Software  without restriction, including without  limitation the rights
+ * to  use, copy,  modify, merge,  publish, distribute,  sublicense, and/or  sell
+ * copies  of  the Software,  and  to  permit persons  to  whom  the Software  is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE  IS PROVIDED "AS  IS", WITHOUT WARRANTY  OF ANY KIND,  EXPRESS OR
+ * IMPLIED,  INCLUDING BUT  NOT  LIMITED TO  THE  WARRANTIES OF  MERCHANTABILITY,
+ * FITNESS FOR  A PARTICULAR PURPOSE AND  NONINFRINGEMENT. IN NO EVENT  SHALL THE
+ * AUTHORS  OR COPYRIGHT  HOLDERS  BE  LIABLE FOR  ANY  CLAIM,  DAMAGES OR  OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF  CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE  OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.nabiki.ctp4j.sim;
+
+import com.nabiki.ctp4j._x.OP;
+import com.nabiki.ctp4j.jni.struct.CThostFtdcDepthMarketDataField;
+import com.nabiki.ctp4j.md.CThostFtdcMdSpi;
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.LinkedList;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.*;
+
+public class TickSourceTest {
+    static class CountSPI extends CThostFtdcMdSpi {
+        final AtomicLong count = new AtomicLong(0);
+        final Semaphore delivered = new Semaphore(0);
+
+        @Override
+        public void OnRtnDepthMarketData(
+                CThostFtdcDepthMarketDataField depthMarketData) {
+            this.count.incrementAndGet();
+            this.delivered.release();
+        }
+
+        /*
+         * Wait for the specified number of depths after those already waited for.
+         */
+        boolean await(long depths) throws InterruptedException {
+            return this.delivered.tryAcquire((int) depths, 10, TimeUnit.SECONDS);
+        }
+    }
+
+    private final SimSources sources = new SimSources();
+
+    @After
+    public void tearDown() {
+        this.sources.shutdown();
+    }
+
+    private TickSource source(int books) {
+        return this.sources.create("TS", books);
+    }
+
+    @Test
+    public void max_throughput() throws InterruptedException {
+        var source = source(10);
+        var spi = new CountSPI();
+        source.addSPI(spi);
+        source.startMaxThroughput();
+        assertTrue(spi.await(10 * 1000));
+        source.stop();
+        var ticks = source.getTickCount();
+        // Every book emits in every round.
+        assertEquals(0, ticks % 10);
+        assertTrue(ticks >= 10 * 1000);
+        // Loops are joined on stop, so nothing is generated after the rest is
+        // delivered.
+        assertTrue(spi.await(ticks - 10 * 1000));
+        assertEquals(ticks, source.getTickCount());
+        assertEquals(ticks, spi.count.get());
+        source.removeSPI(spi);
+    }
+
+    @Test
+    public void sharded() throws InterruptedException {
+        var source = source(100);
+        source.setShards(4);
+        var lastVolumes = new ConcurrentHashMap<String, Integer>();
+        var disorders = new AtomicLong(0);
+        var spi = new CountSPI() {
+            @Override
+            public void OnRtnDepthMarketData(
+                    CThostFtdcDepthMarketDataField depthMarketData) {
+                super.OnRtnDepthMarketData(depthMarketData);
+                // Volume only grows, so a smaller volume is out of order.
+                var last = lastVolumes.put(depthMarketData.InstrumentID,
+                        depthMarketData.Volume);
+                if (last != null && last > depthMarketData.Volume)
+                    disorders.incrementAndGet();
+            }
+        };
+        source.addSPI(spi);
+        source.startMaxThroughput();
+        assertTrue(spi.await(100 * 100));
+        source.stop();
+        assertTrue(spi.await(source.getTickCount() - 100 * 100));
+        source.removeSPI(spi);
+        assertEquals(100, lastVolumes.size());
+        assertEquals(0, disorders.get());
+    }
+
+    @Test
+    public void micro_interval() throws InterruptedException {
+        var source = source(1);
+        source.setEmitChance(1.0D);
+        var spi = new CountSPI();
+        source.addSPI(spi);
+        source.start(100, TimeUnit.MICROSECONDS);
+        // The default schedule of 1 tick per 500 ms takes 50 seconds.
+        assertTrue(spi.await(100));
+        source.stop();
+        source.removeSPI(spi);
+    }
+
+    @Test
+    public void conflate_slow_spi() throws InterruptedException {
+        var source = source(10);
+        source.setEmitChance(1.0D);
+        var blocked = new CountDownLatch(1);
+        var latch = new CountDownLatch(1);
+        var spi = new CountSPI() {
+            @Override
+            public void OnRtnDepthMarketData(
+                    CThostFtdcDepthMarketDataField depthMarketData) {
+                super.OnRtnDepthMarketData(depthMarketData);
+                blocked.countDown();
+                try {
+                    latch.await();
+                } catch (InterruptedException ignored) {
+                }
+            }
+        };
+        source.addSPI(spi, TickSource.Delivery.CONFLATE);
+        // The SPI blocks on its first depth while many rounds are generated.
+        source.run();
+        assertTrue(blocked.await(10, TimeUnit.SECONDS));
+        for (int i = 0; i < 100; ++i)
+            source.run();
+        assertTrue(source.getDropCount(spi) >= 90 * 10);
+        latch.countDown();
+        // Drops are final once the rounds return, and the rest is delivered.
+        assertTrue(spi.await(101 * 10 - source.getDropCount(spi)));
+        // At most one pending depth per instrument is left to deliver.
+        assertTrue(spi.count.get() <= 1 + 10);
+        source.removeSPI(spi);
+    }
+
+    @Test
+    public void conflate_snapshots() throws InterruptedException {
+        var source = source(10);
+        source.setEmitChance(1.0D);
+        source.setPublishMode(TickSource.PublishMode.SNAPSHOT);
+        var unblock = new CountDownLatch(1);
+        var delivered = new Semaphore(0);
+        var conflated = new ConcurrentHashMap<String, String>();
+        var slow = new CThostFtdcMdSpi() {
+            @Override
+            public void OnRtnDepthMarketData(
+                    CThostFtdcDepthMarketDataField depthMarketData) {
+                try {
+                    unblock.await();
+                } catch (InterruptedException ignored) {
+                }
+                conflated.put(depthMarketData.InstrumentID, OP.toJson(depthMarketData));
+                delivered.release();
+            }
+        };
+        var received = new CountDownLatch(1010);
+        var latest = new ConcurrentHashMap<String, String>();
+        var all = new CThostFtdcMdSpi() {
+            @Override
+            public void OnRtnDepthMarketData(
+                    CThostFtdcDepthMarketDataField depthMarketData) {
+                latest.put(depthMarketData.InstrumentID, OP.toJson(depthMarketData));
+                received.countDown();
+            }
+        };
+        source.addSPI(slow, TickSource.Delivery.CONFLATE);
+        source.addSPI(all);
+        // Snapshots of each book are recycled many times while the SPI blocks.
+        for (int i = 0; i < 101; ++i)
+            source.run();
+        assertTrue(received.await(10, TimeUnit.SECONDS));
+        unblock.countDown();
+        var offered = 1010 - source.getDropCount(slow);
+        assertTrue(delivered.tryAcquire((int) offered, 10, TimeUnit.SECONDS));
+        source.removeSPI(all);
+        source.removeSPI(slow);
+        // The SPI ends with the latest depth of every book, intact.
+        assertEquals(latest, conflated);
+    }
+
+    @Test
+    public void remove_spi_stops_thread() throws InterruptedException {
+        var source = source(10);
+        source.setEmitChance(1.0D);
+        source.setThreadMode(TickSource.ThreadMode.VIRTUAL);
+        var threads = new ConcurrentHashMap<CThostFtdcMdSpi, Thread>();
+        var spis = new LinkedList<CThostFtdcMdSpi>();
+        var blocked = new CountDownLatch(100);
+        for (int i = 0; i < 100; ++i) {
+            var spi = new CThostFtdcMdSpi() {
+                @Override
+                public void OnRtnDepthMarketData(
+                        CThostFtdcDepthMarketDataField depthMarketData) {
+                    threads.put(this, Thread.currentThread());
+                    blocked.countDown();
+                    // Block until interrupted.
+                    SimSources.sleep(TimeUnit.DAYS.toMillis(1));
+                }
+            };
+            spis.add(spi);
+            source.addSPI(spi);
+        }
+        source.run();
+        assertTrue(blocked.await(10, TimeUnit.SECONDS));
+        assertEquals(spis.size(), threads.size());
+        for (var spi : spis)
+            source.removeSPI(spi);
+        for (var thread : threads.values())
+            assertFalse(thread.isAlive());
+    }
+}
@@ -0,0 +1,626 @@
+/*
+ * Copyright (c) 2020 Hongbao Chen <chenhongbao@outlook.com>
+ *
+ * Licensed under the  GNU Affero General Public License v3.0 and you may not use
+ * this file except in compliance with the  License. You may obtain a copy of the
+ * License at
+ *
+ *                    https://www.gnu.org/licenses/agpl-3.0.txt
+ *
+ * Permission is hereby  granted, free of charge, to any  person obtaining a copy
+ * of this software and associated  documentation files (the "Software"), to deal
+ * in the Software  without restriction, including without  limitation the rights
+ * to  use, copy,  modify, merge,  publish, distribute,  sublicense, and/or  sell
+ * copies  of  the Software,  and  to  permit persons  to  whom  the Software  is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE  IS PROVIDED "AS  IS", WITHOUT WARRANTY  OF ANY KIND,  EXPRESS OR
+ * IMPLIED,  INCLUDING BUT  NOT  LIMITED TO  THE  WARRANTIES OF  MERCHANTABILITY,
+ * FITNESS FOR  A PARTICULAR PURPOSE AND  NONINFRINGEMENT. IN NO EVENT  SHALL THE
+ * AUTHORS  OR COPYRIGHT  HOLDERS  BE  LIABLE FOR  ANY  CLAIM,  DAMAGES OR  OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF  CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE  OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.nabiki.ctp4j.sim;
+
+import com.nabiki.ctp4j._x.OP;
+import com.nabiki.ctp4j._x.SimClock;
+import com.nabiki.ctp4j.jni.flag.TThostFtdcCombHedgeFlagType;
+import com.nabiki.ctp4j.jni.flag.TThostFtdcCombOffsetFlagType;
+import com.nabiki.ctp4j.jni.flag.TThostFtdcDirectionType;
+import com.nabiki.ctp4j.jni.flag.TThostFtdcErrorCode;
+import com.nabiki.ctp4j.jni.flag.TThostFtdcOrderStatusType;
+import com.nabiki.ctp4j.jni.struct.*;
+import com.nabiki.ctp4j.trader.CThostFtdcTraderSpi;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.time.LocalDateTime;
+import java.util.*;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class TradeBookTest {
+    static class Spi extends CThostFtdcTraderSpi {
+        final List<CThostFtdcOrderField> orders = new ArrayList<>();
+        final List<CThostFtdcTradeField> trades = new ArrayList<>();
+        final List<CThostFtdcRspInfoField> errors = new ArrayList<>();
+
+        @Override
+        public synchronized void OnRtnOrder(CThostFtdcOrderField order) {
+            this.orders.add(order);
+        }
+
+        @Override
+        public synchronized void OnRtnTrade(CThostFtdcTradeField trade) {
+            this.trades.add(trade);
+        }
+
+        @Override
+        public synchronized void OnRspOrderInsert(CThostFtdcInputOrderField inputOrder,
+                                                  CThostFtdcRspInfoField rspInfo,
+                                                  int requestID, boolean isLast) {
+            this.errors.add(rspInfo);
+        }
+
+        @Override
+        public synchronized void OnRspOrderAction(
+                CThostFtdcInputOrderActionField inputOrderAction,
+                CThostFtdcRspInfoField rspInfo, int requestID, boolean isLast) {
+            this.errors.add(rspInfo);
+        }
+    }
+
+    private final Spi spi = new Spi();
+    private final CThostFtdcRspUserLoginField usr = new CThostFtdcRspUserLoginField();
+    private final SimClock.Stepped clock
+            = SimClock.stepped(LocalDateTime.of(2020, 7, 9, 9, 0));
+    private TradeBook book;
+    private int orderRef;
+
+    @BeforeClass
+    public static void setUpClass() {
+        for (var instrID : new String[] {"x2009", "y2009"})
+            CommonData.addInstrument(instrID, instrument(instrID));
+        for (int i = 0; i < 500; ++i)
+            CommonData.addInstrument("x" + i, instrument("x" + i));
+    }
+
+    static CThostFtdcInstrumentField instrument(String instrID) {
+        var instrument = new CThostFtdcInstrumentField();
+        instrument.InstrumentID = instrID;
+        instrument.PriceTick = 1;
+        instrument.VolumeMultiple = 1;
+        return instrument;
+    }
+
+    @Before
+    public void setUp() {
+        this.usr.BrokerID = "9999";
+        this.usr.UserID = "0001";
+        this.usr.FrontID = 1;
+        this.usr.SessionID = 1;
+        SimClock.setCurrent(this.clock);
+        this.book = new TradeBook(2);
+    }
+
+    @After
+    public void tearDown() {
+        this.book.stop();
+        SimClock.setCurrent(SimClock.wall());
+    }
+
+    static CThostFtdcInputOrderField order(String instrID, String orderRef,
+                                           boolean buy, double price, int volume) {
+        var order = new CThostFtdcInputOrderField();
+        order.BrokerID = "9999";
+        order.InvestorID = "0001";
+        order.UserID = "0001";
+        order.InstrumentID = instrID;
+        order.ExchangeID = "SZFE";
+        order.OrderRef = orderRef;
+        order.Direction = buy ? TThostFtdcDirectionType.DIRECTION_BUY
+                : TThostFtdcDirectionType.DIRECTION_SELL;
+        order.CombOffsetFlag = TThostFtdcCombOffsetFlagType.OFFSET_OPEN;
+        order.CombHedgeFlag = TThostFtdcCombHedgeFlagType.SPECULATION;
+        order.LimitPrice = price;
+        order.VolumeTotalOriginal = volume;
+        return order;
+    }
+
+    static CThostFtdcDepthMarketDataField depth(String instrID, double bid, double ask) {
+        var depth = new CThostFtdcDepthMarketDataField();
+        depth.InstrumentID = instrID;
+        depth.BidPrice1 = bid;
+        depth.AskPrice1 = ask;
+        return depth;
+    }
+
+    private CThostFtdcOrderField insert(String instrID, boolean buy, double price,
+                                        int volume) {
+        var before = this.spi.orders.size();
+        this.clock.advance(1, TimeUnit.MILLISECONDS);
+        enqueue(order(instrID, String.valueOf(++this.orderRef), buy, price, volume));
+        // Inserted, and may trade at once with the current depth.
+        assertTrue(this.spi.orders.size() > before);
+        return this.spi.orders.get(before);
+    }
+
+    private void enqueue(CThostFtdcInputOrderField order) {
+        this.book.enqueue(order, 0, this.spi, this.usr);
+        this.book.flush();
+    }
+
+    private void enqueue(CThostFtdcInputOrderActionField action) {
+        this.book.enqueue(action, 0, this.spi);
+        this.book.flush();
+    }
+
+    private void tick(CThostFtdcDepthMarketDataField depth) {
+        this.book.OnRtnDepthMarketData(depth);
+        this.book.flush();
+    }
+
+    @Test
+    public void match_crossing_levels() {
+        insert("x2009", true, 100, 1);
+        insert("x2009", true, 101, 1);
+        insert("x2009", false, 105, 1);
+        insert("y2009", true, 200, 1);
+        // Only the higher buy crosses the ask.
+        tick(depth("x2009", 99, 101));
+        assertEquals(1, this.spi.trades.size());
+        assertEquals(101, this.spi.trades.get(0).Price, 0.0D);
+        assertEquals("2", this.spi.trades.get(0).OrderRef);
+        // Filled order leaves the book.
+        tick(depth("x2009", 99, 101));
+        assertEquals(1, this.spi.trades.size());
+        tick(depth("x2009", 99, 100));
+        assertEquals(2, this.spi.trades.size());
+        assertEquals("1", this.spi.trades.get(1).OrderRef);
+        // Instrument ID matches regardless of case.
+        tick(depth("X2009", 105, 106));
+        assertEquals(3, this.spi.trades.size());
+        assertEquals("3", this.spi.trades.get(2).OrderRef);
+        assertEquals(105, this.spi.trades.get(2).Price, 0.0D);
+    }
+
+    @Test
+    public void partial_fill_until_done() {
+        insert("x2009", true, 100, 25);
+        for (int i = 0; i < 5; ++i)
+            tick(depth("x2009", 99, 100));
+        // Fills 11 a tick.
+        assertEquals(3, this.spi.trades.size());
+        assertEquals(3, this.spi.trades.get(2).Volume);
+        var last = this.spi.orders.get(this.spi.orders.size() - 1);
+        assertEquals(TThostFtdcOrderStatusType.ALL_TRADED, last.OrderStatus);
+    }
+
+    @Test
+    public void cancel_leaves_book() {
+        var rtn = insert("x2009", false, 100, 1);
+        var action = new CThostFtdcInputOrderActionField();
+        action.OrderSysID = rtn.OrderSysID;
+        enqueue(action);
+        var last = this.spi.orders.get(this.spi.orders.size() - 1);
+        assertEquals(TThostFtdcOrderStatusType.CANCELED, last.OrderStatus);
+        tick(depth("x2009", 101, 102));
+        assertEquals(0, this.spi.trades.size());
+    }
+
+    @Test
+    public void archive_finished_orders() {
+        var filled = insert("x2009", true, 100, 1);
+        var canceled = insert("x2009", true, 90, 1);
+        var live = insert("x2009", true, 80, 1);
+        tick(depth("x2009", 99, 100));
+        var action = new CThostFtdcInputOrderActionField();
+        action.OrderSysID = canceled.OrderSysID;
+        enqueue(action);
+        assertEquals(1, this.book.getLiveCount());
+        assertEquals(2, this.book.getArchivedCount());
+        // Refs of finished orders are still taken.
+        enqueue(order("x2009", filled.OrderRef, true, 100, 1));
+        assertEquals(TThostFtdcErrorCode.DUPLICATE_ORDER_REF,
+                this.spi.errors.get(0).ErrorID);
+        // Finished orders can't be canceled, by system ID or by ref.
+        enqueue(action);
+        assertEquals(TThostFtdcErrorCode.INSUITABLE_ORDER_STATUS,
+                this.spi.errors.get(1).ErrorID);
+        action = new CThostFtdcInputOrderActionField();
+        action.OrderRef = filled.OrderRef;
+        action.FrontID = this.usr.FrontID;
+        action.SessionID = this.usr.SessionID;
+        enqueue(action);
+        assertEquals(TThostFtdcErrorCode.INSUITABLE_ORDER_STATUS,
+                this.spi.errors.get(2).ErrorID);
+        action.OrderRef = "unknown";
+        enqueue(action);
+        assertEquals(TThostFtdcErrorCode.ORDER_NOT_FOUND,
+                this.spi.errors.get(3).ErrorID);
+        // Live order is still there.
+        action.OrderRef = live.OrderRef;
+        enqueue(action);
+        assertEquals(4, this.spi.errors.size());
+        assertEquals(0, this.book.getLiveCount());
+    }
+
+    @Test
+    public void monotonic_order_ref() {
+        enqueue(order("x2009", "5", true, 90, 1));
+        // Refs must increase in a session.
+        enqueue(order("x2009", "3", true, 90, 1));
+        enqueue(order("x2009", "  5", true, 90, 1));
+        assertEquals(2, this.spi.errors.size());
+        assertEquals(TThostFtdcErrorCode.DUPLICATE_ORDER_REF,
+                this.spi.errors.get(1).ErrorID);
+        enqueue(order("x2009", "6", true, 90, 1));
+        // Other session has its own refs.
+        this.usr.SessionID = 2;
+        enqueue(order("x2009", "1", true, 90, 1));
+        // Non-numeric refs are only checked for duplicates.
+        enqueue(order("x2009", "b", true, 90, 1));
+        enqueue(order("x2009", "a", true, 90, 1));
+        enqueue(order("x2009", "a", true, 90, 1));
+        assertEquals(3, this.spi.errors.size());
+        assertEquals(5, this.book.getLiveCount());
+        // Cancel by ref of the session.
+        var action = new CThostFtdcInputOrderActionField();
+        action.OrderRef = "a";
+        action.FrontID = this.usr.FrontID;
+        action.SessionID = 2;
+        enqueue(action);
+        assertEquals(3, this.spi.errors.size());
+        assertEquals(4, this.book.getLiveCount());
+    }
+
+    @Test
+    public void unique_ids_in_same_instant() {
+        var ids = new ArrayList<String>();
+        for (int i = 0; i < 100; ++i) {
+            enqueue(order("x2009", String.valueOf(i + 1), true, 100, 1));
+            ids.add(this.spi.orders.get(this.spi.orders.size() - 1).OrderSysID);
+        }
+        assertEquals("000000000001", ids.get(0));
+        var sorted = new ArrayList<>(ids);
+        Collections.sort(sorted);
+        assertEquals(ids, sorted);
+        assertEquals(100, new HashSet<>(ids).size());
+        // Fill all, and trade IDs are unique too.
+        tick(depth("x2009", 99, 100));
+        assertEquals(100, this.spi.trades.size());
+        var trades = new HashSet<String>();
+        for (var trade : this.spi.trades)
+            trades.add(trade.TradeID);
+        assertEquals(100, trades.size());
+        // Order left resting over the day boundary.
+        enqueue(order("x2009", "101", true, 90, 1));
+        var yesterday = this.spi.orders.get(this.spi.orders.size() - 1);
+        // Sequence goes on next trading day, so IDs don't collide.
+        this.clock.advance(1, TimeUnit.DAYS);
+        enqueue(order("x2009", "102", true, 90, 1));
+        var today = this.spi.orders.get(this.spi.orders.size() - 1);
+        assertEquals("000000000102", today.OrderSysID);
+        assertEquals(2, this.book.getLiveCount());
+        var action = new CThostFtdcInputOrderActionField();
+        action.OrderSysID = yesterday.OrderSysID;
+        enqueue(action);
+        var canceled = this.spi.orders.get(this.spi.orders.size() - 1);
+        assertEquals("101", canceled.OrderRef);
+        assertEquals(TThostFtdcOrderStatusType.CANCELED, canceled.OrderStatus);
+        assertEquals(1, this.book.getLiveCount());
+    }
+
+    @Test
+    public void concurrent_sequence() throws InterruptedException {
+        var sequence = new IdSequence();
+        var count = 100 * 1000;
+        var threads = new Thread[4];
+        var ids = new ArrayList<Set<String>>();
+        for (int i = 0; i < threads.length; ++i) {
+            var set = new HashSet<String>();
+            ids.add(set);
+            threads[i] = new Thread(() -> {
+                for (int j = 0; j < count; ++j)
+                    set.add(sequence.next());
+            });
+            threads[i].start();
+        }
+        var all = new HashSet<String>();
+        for (int i = 0; i < threads.length; ++i) {
+            threads[i].join();
+            all.addAll(ids.get(i));
+        }
+        assertEquals(threads.length * count, all.size());
+    }
+
+    @Test
+    public void cancel_without_instrument() {
+        var x = insert("x2009", true, 90, 1);
+        insert("y2009", true, 90, 1);
+        // Asked on all shards, answered once.
+        var action = new CThostFtdcInputOrderActionField();
+        action.OrderSysID = x.OrderSysID;
+        enqueue(action);
+        assertEquals(TThostFtdcOrderStatusType.CANCELED,
+                this.spi.orders.get(this.spi.orders.size() - 1).OrderStatus);
+        assertEquals(0, this.spi.errors.size());
+        enqueue(action);
+        assertEquals(1, this.spi.errors.size());
+        assertEquals(TThostFtdcErrorCode.INSUITABLE_ORDER_STATUS,
+                this.spi.errors.get(0).ErrorID);
+        action.OrderSysID = "999999999999";
+        enqueue(action);
+        assertEquals(2, this.spi.errors.size());
+        assertEquals(TThostFtdcErrorCode.ORDER_NOT_FOUND,
+                this.spi.errors.get(1).ErrorID);
+        // Routed by instrument.
+        action.OrderSysID = x.OrderSysID;
+        action.InstrumentID = "x2009";
+        enqueue(action);
+        assertEquals(3, this.spi.errors.size());
+        assertEquals(1, this.book.getLiveCount());
+    }
+
+    @Test
+    public void synchronous() {
+        this.book.setSynchronous(true);
+        // Answered before enqueue returns.
+        this.book.enqueue(order("x2009", "1", true, 100, 1), 0, this.spi, this.usr);
+        assertEquals(1, this.spi.orders.size());
+        this.book.OnRtnDepthMarketData(depth("x2009", 99, 100));
+        assertEquals(1, this.spi.trades.size());
+        this.book.setSynchronous(false);
+        this.book.enqueue(order("x2009", "2", true, 100, 1), 0, this.spi, this.usr);
+        this.book.flush();
+        assertEquals(2, this.spi.trades.size());
+    }
+
+    @Test
+    public void slow_session_isolated() throws InterruptedException {
+        var slow = new Spi() {
+            @Override
+            public synchronized void OnRtnOrder(CThostFtdcOrderField order) {
+                try {
+                    Thread.sleep(20);
+                } catch (InterruptedException ignored) {
+                }
+                super.OnRtnOrder(order);
+            }
+        };
+        var fast = new CountDownLatch(1);
+        var fastSpi = new CThostFtdcTraderSpi() {
+            @Override
+            public void OnRtnOrder(CThostFtdcOrderField order) {
+                fast.countDown();
+            }
+        };
+        var slowUser = OP.deepCopy(this.usr);
+        slowUser.SessionID = 2;
+        for (int i = 0; i < 20; ++i)
+            this.book.enqueue(order("x2009", String.valueOf(i + 1), true, 90, 1), 0,
+                    slow, slowUser);
+        this.book.enqueue(order("x2009", "1", true, 90, 1), 0, fastSpi, this.usr);
+        // Fast session isn't held behind the slow one on the same shard.
+        assertTrue(fast.await(200, TimeUnit.MILLISECONDS));
+        assertTrue(this.book.getQueueDepth(slow) > 0);
+        assertEquals(0, this.book.getQueueDepth(fastSpi));
+        this.book.flush();
+        // Callbacks of a session keep their order.
+        assertEquals(20, slow.orders.size());
+        for (int i = 0; i < 20; ++i)
+            assertEquals(String.valueOf(i + 1), slow.orders.get(i).OrderRef);
+    }
+
+    @Test
+    public void stuck_session_overflows() throws InterruptedException {
+        this.book.setCallbackQueueSize(16);
+        var release = new CountDownLatch(1);
+        var overflow = new CountDownLatch(1);
+        var stuck = new CThostFtdcTraderSpi() {
+            @Override
+            public void OnRtnOrder(CThostFtdcOrderField order) {
+                try {
+                    release.await();
+                } catch (InterruptedException ignored) {
+                }
+            }
+
+            @Override
+            public void OnRspError(CThostFtdcRspInfoField rspInfo, int requestID,
+                                   boolean isLast) {
+                if (rspInfo.ErrorID == TradeBook.CALLBACK_OVERFLOW)
+                    overflow.countDown();
+            }
+        };
+        var stuckSession = this.book.login("0001", stuck);
+        for (int i = 0; i < 100; ++i)
+            this.book.enqueue(order("x2009", String.valueOf(i + 1), true, 90, 1), 0,
+                    stuck, stuckSession);
+        // Another session on the same shard isn't held by the stuck one.
+        var fast = new CountDownLatch(1);
+        var fastSpi = new CThostFtdcTraderSpi() {
+            @Override
+            public void OnRtnOrder(CThostFtdcOrderField order) {
+                // Flush from a callback doesn't wait for its own queue.
+                TradeBookTest.this.book.flush();
+                fast.countDown();
+            }
+        };
+        this.book.enqueue(order("x2009", "1", true, 90, 1), 0, fastSpi,
+                this.book.login("0002", fastSpi));
+        assertTrue(fast.await(1, TimeUnit.SECONDS));
+        // Overflowed session is disconnected with an error.
+        assertFalse(stuckSession.isActive());
+        assertNull(this.book.getSessions().get(stuckSession.getFrontID(),
+                stuckSession.getSessionID()));
+        release.countDown();
+        assertTrue(overflow.await(1, TimeUnit.SECONDS));
+        this.book.flush();
+        assertEquals(101, this.book.getLiveCount());
+    }
+
+    @Test
+    public void soak_flat_live_state() {
+        var count = 200 * 1000;
+        var depth = depth("x2009", 99, 100);
+        var quiet = new CThostFtdcTraderSpi() {};
+        for (int i = 0; i < count; ++i) {
+            this.book.enqueue(order("x2009", String.valueOf(i + 1), i % 2 == 0,
+                    i % 2 == 0 ? 100 : 99, 1), 0, quiet, this.usr);
+            this.book.OnRtnDepthMarketData(depth);
+        }
+        this.book.flush();
+        assertEquals(0, this.book.getLiveCount());
+        assertEquals(count, this.book.getArchivedCount());
+    }
+
+    @Test
+    public void account_follows_trades() {
+        insert("x2009", true, 100, 25);
+        var depth = depth("x2009", 99, 100);
+        depth.LastPrice = 102;
+        for (int i = 0; i < 3; ++i)
+            tick(depth);
+        var details = this.book.getPositionDetails("0001", "x2009");
+        assertEquals(3, details.size());
+        assertEquals(25, details.stream().mapToInt(d -> d.Volume).sum());
+        assertEquals(this.spi.trades.get(0).TradeID, details.get(0).TradeID);
+        // Marked to the last price.
+        var account = this.book.getTradingAccount("0001");
+        assertEquals(25 * 2, account.PositionProfit, 1E-6);
+        assertEquals(Account.DEFAULT_BALANCE + 50, account.Balance, 1E-6);
+        assertTrue(this.book.getPositionDetails("0002", "").isEmpty());
+    }
+
+    @Test
+    public void match_with_history() {
+        // Resting orders away from the market on many instruments.
+        var instruments = 500;
+        for (int i = 0; i < 100 * 1000; ++i)
+            this.book.enqueue(order("x" + (i % instruments), String.valueOf(i + 1),
+                    i % 2 == 0, i % 2 == 0 ? 90 : 110, 1), 0, this.spi, this.usr);
+        this.book.flush();
+        assertEquals(100 * 1000, this.book.getLiveCount());
+        // Cost of a tick against a deep book is in TradeBookBench.
+        for (int i = 0; i < instruments; ++i)
+            this.book.OnRtnDepthMarketData(depth("x" + i, 99, 100));
+        this.book.flush();
+        assertEquals(0, this.spi.trades.size());
+        assertEquals(100 * 1000, this.book.getLiveCount());
+    }
+
+    @Test
+    public void batch_matches_once() {
+        tick(depth("x2009", 99, 100));
+        var session = this.book.login("0001", this.spi);
+        var orders = new ArrayList<CThostFtdcInputOrderField>();
+        for (int i = 0; i < 10; ++i) {
+            orders.add(order("x2009", String.valueOf(2 * i + 1), true, 100, 1));
+            orders.add(order("y2009", String.valueOf(2 * i + 2), true, 90, 1));
+        }
+        this.book.enqueue(orders, null, 0, this.spi, session);
+        this.book.flush();
+        assertEquals(10, this.spi.trades.size());
+        assertEquals(10, this.book.getLiveCount());
+        // All orders of x2009 are accepted before the batch is matched.
+        int lastAccepted = -1, firstTraded = Integer.MAX_VALUE;
+        for (int i = 0; i < this.spi.orders.size(); ++i) {
+            var rtn = this.spi.orders.get(i);
+            if (!rtn.InstrumentID.equals("x2009"))
+                continue;
+            if (rtn.OrderStatus == TThostFtdcOrderStatusType.NO_TRADE_QUEUEING)
+                lastAccepted = i;
+            else if (firstTraded == Integer.MAX_VALUE)
+                firstTraded = i;
+        }
+        assertTrue(lastAccepted < firstTraded);
+        // Cancels by ref and a new order in the next batch.
+        var actions = new ArrayList<CThostFtdcInputOrderActionField>();
+        for (int i = 2; i <= 10; i += 2) {
+            var action = new CThostFtdcInputOrderActionField();
+            action.OrderRef = String.valueOf(i);
+            action.FrontID = session.getFrontID();
+            action.SessionID = session.getSessionID();
+            actions.add(action);
+        }
+        this.book.enqueue(List.of(order("y2009", "21", true, 90, 1)), actions, 0,
+                this.spi, session);
+        this.book.flush();
+        assertEquals(6, this.book.getLiveCount());
+        assertTrue(this.spi.errors.isEmpty());
+    }
+
+    @Test
+    public void batch_replaces_full_close() {
+        var session = this.book.login("0001", this.spi);
+        var trade = new CThostFtdcTradeField();
+        trade.InstrumentID = "x2009";
+        trade.TradingDay = "20200709";
+        trade.Direction = TThostFtdcDirectionType.DIRECTION_BUY;
+        trade.OffsetFlag = TThostFtdcCombOffsetFlagType.OFFSET_OPEN;
+        trade.Price = 100;
+        trade.Volume = 2;
+        this.book.getAccount("0001").trade(trade);
+        var close = order("x2009", "1", false, 110, 2);
+        close.CombOffsetFlag = TThostFtdcCombOffsetFlagType.OFFSET_CLOSE;
+        this.book.enqueue(close, 0, this.spi, session);
+        this.book.flush();
+        // Cancel the close and close the same lots at another price.
+        var action = new CThostFtdcInputOrderActionField();
+        action.OrderRef = "1";
+        action.FrontID = session.getFrontID();
+        action.SessionID = session.getSessionID();
+        var replace = order("x2009", "2", false, 105, 2);
+        replace.CombOffsetFlag = TThostFtdcCombOffsetFlagType.OFFSET_CLOSE;
+        this.book.enqueue(List.of(replace), List.of(action), 0, this.spi, session);
+        this.book.flush();
+        assertTrue(this.spi.errors.isEmpty());
+        assertEquals(1, this.book.getLiveCount());
+        var last = this.spi.orders.get(this.spi.orders.size() - 1);
+        assertEquals("2", last.OrderRef);
+        assertEquals(TThostFtdcOrderStatusType.NO_TRADE_QUEUEING, last.OrderStatus);
+    }
+
+    @Test
+    public void mass_cancel() {
+        var session = this.book.login("0001", this.spi);
+        var other = this.book.login("0002", this.spi);
+        for (int i = 0; i < 5; ++i) {
+            this.book.enqueue(order("x2009", String.valueOf(2 * i + 1), true, 90, 1),
+                    0, this.spi, session);
+            this.book.enqueue(order("y2009", String.valueOf(2 * i + 2), true, 90, 1),
+                    0, this.spi, session);
+            this.book.enqueue(order("x2009", String.valueOf(i + 1), true, 90, 1), 0,
+                    this.spi, other);
+        }
+        this.book.flush();
+        assertEquals(15, this.book.getLiveCount());
+        // All sessions' orders of the instrument, regardless of case.
+        this.book.cancelAll("X2009");
+        this.book.flush();
+        assertEquals(5, this.book.getLiveCount());
+        // Orders of a session, including one still queued.
+        this.book.enqueue(order("x2009", "6", true, 90, 1), 0, this.spi, other);
+        this.book.enqueue(order("x2009", "99", true, 90, 1), 0, this.spi, session);
+        this.book.cancelAll(other, null);
+        this.book.flush();
+        assertEquals(6, this.book.getLiveCount());
+        this.book.cancelAll(session, "y2009");
+        this.book.flush();
+        assertEquals(1, this.book.getLiveCount());
+        var canceled = this.spi.orders.stream().filter(
+                rtn -> rtn.OrderStatus == TThostFtdcOrderStatusType.CANCELED).count();
+        assertEquals(16, canceled);
+    }
+}
@@ -0,0 +1,303 @@
+/*
+ * Copyright (c) 2020 Hongbao Chen <chenhongbao@outlook.com>
+ *
+ * Licensed under the  GNU Affero General Public License v3.0 and you may not use
+ * this file except in compliance with the  License. You may obtain a copy of the
+ * License at
+ *
+ *                    https://www.gnu.org/licenses/agpl-3.0.txt
+ *
+ * Permission is hereby  granted, free of charge, to any  person obtaining a copy
+ * of this software and associated  documentation files (the "Software"), to deal
+ * in the Software  without restriction, including without  limitation the rights
+ * to  use, copy,  modify, merge,  publish, distribute,  sublicense, and/or  sell
+ * copies  of  the Software,  and  to  permit persons  to  whom  the Software  is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE  IS PROVIDED "AS  IS", WITHOUT WARRANTY  OF ANY KIND,  EXPRESS OR
+ * IMPLIED,  INCLUDING BUT  NOT  LIMITED TO  THE  WARRANTIES OF  MERCHANTABILITY,
+ * FITNESS FOR  A PARTICULAR PURPOSE AND  NONINFRINGEMENT. IN NO EVENT  SHALL THE
+ * AUTHORS  OR COPYRIGHT  HOLDERS  BE  LIABLE FOR  ANY  CLAIM,  DAMAGES OR  OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF  CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE  OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.nabiki.ctp4j.sim;
+
+import com.nabiki.ctp4j._x.SimClock;
+import com.nabiki.ctp4j.jni.struct.CThostFtdcInputOrderActionField;
+import com.nabiki.ctp4j.jni.struct.CThostFtdcInputOrderField;
+import com.nabiki.ctp4j.jni.struct.CThostFtdcOrderField;
+import com.nabiki.ctp4j.jni.struct.CThostFtdcRspUserLoginField;
+import com.nabiki.ctp4j.jni.struct.CThostFtdcTradeField;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDateTime;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class TradeJournalTest {
+    private final SimClock.Stepped clock
+            = SimClock.stepped(LocalDateTime.of(2020, 7, 9, 9, 0));
+    private final CThostFtdcRspUserLoginField usr = new CThostFtdcRspUserLoginField();
+    private Path file;
+
+    @BeforeClass
+    public static void setUpClass() {
+        TradeBookTest.setUpClass();
+    }
+
+    @Before
+    public void setUp() throws IOException {
+        this.usr.FrontID = 1;
+        this.usr.SessionID = 1;
+        SimClock.setCurrent(this.clock);
+        this.file = Files.createTempFile("journal", ".bin");
+        this.file.toFile().deleteOnExit();
+        Files.delete(this.file);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        SimClock.setCurrent(SimClock.wall());
+        Files.deleteIfExists(this.file);
+    }
+
+    private void insert(TradeBook book, TradeBookTest.Spi spi, String orderRef,
+                        boolean buy, double price, int volume) {
+        this.clock.advance(1, TimeUnit.MILLISECONDS);
+        book.enqueue(TradeBookTest.order("x2009", orderRef, buy, price, volume), 0,
+                spi, this.usr);
+        book.flush();
+    }
+
+    @Test
+    public void recover_book() throws IOException {
+        var spi = new TradeBookTest.Spi();
+        var book = new TradeBook(2);
+        try (var journal = new TradeJournal(this.file)) {
+            assertEquals(0, book.recover(journal));
+            insert(book, spi, "1", true, 100, 25);
+            insert(book, spi, "2", true, 90, 1);
+            insert(book, spi, "3", true, 80, 1);
+            book.OnRtnDepthMarketData(TradeBookTest.depth("x2009", 99, 100));
+            book.flush();
+            var action = new CThostFtdcInputOrderActionField();
+            action.OrderSysID = spi.orders.get(2).OrderSysID;
+            book.enqueue(action, 0, spi);
+            book.flush();
+            // Three inserts, one trade and one cancel.
+            assertEquals(5, journal.getEventCount());
+        } finally {
+            book.stop();
+        }
+        var account = book.getTradingAccount("0001");
+        var recovered = new TradeBook(2);
+        try (var journal = new TradeJournal(this.file)) {
+            assertEquals(5, recovered.recover(journal));
+            assertEquals(2, recovered.getLiveCount());
+            assertEquals(1, recovered.getArchivedCount());
+            var restored = recovered.getTradingAccount("0001");
+            assertEquals(account.CurrMargin, restored.CurrMargin, 1E-6);
+            assertEquals(account.FrozenMargin, restored.FrozenMargin, 1E-6);
+            assertEquals(11, recovered.getPositionDetails("0001", "x2009").get(0).Volume);
+            // Refs and IDs go on after the journal.
+            var spi2 = new TradeBookTest.Spi();
+            insert(recovered, spi2, "3", true, 80, 1);
+            assertEquals(1, spi2.errors.size());
+            insert(recovered, spi2, "4", true, 80, 1);
+            var last = spi.orders.get(spi.orders.size() - 1).OrderSysID;
+            assertTrue(spi2.orders.get(0).OrderSysID.compareTo(last) > 0);
+            // Restored order still trades.
+            recovered.OnRtnDepthMarketData(TradeBookTest.depth("x2009", 99, 100));
+            recovered.flush();
+            assertEquals(11 + 11, recovered.getPositionDetails("0001", "x2009")
+                    .stream().mapToInt(d -> d.Volume).sum());
+            // One more insert and one more trade.
+            assertEquals(7, journal.getEventCount());
+        } finally {
+            recovered.stop();
+        }
+    }
+
+    @Test
+    public void broken_tail() throws IOException {
+        long end;
+        try (var journal = new TradeJournal(this.file)) {
+            for (int i = 0; i < 3; ++i)
+                journal.cancel(cancel(i + 1));
+            end = journal.getSize();
+        }
+        // A record being written when the process died.
+        try (var channel = FileChannel.open(this.file, StandardOpenOption.WRITE)) {
+            var b = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
+            b.putInt(0, Integer.MAX_VALUE);
+            b.put(4, TradeJournal.INSERT);
+            channel.write(b, end);
+        }
+        try (var journal = new TradeJournal(this.file)) {
+            assertEquals(3, journal.getEventCount());
+            assertEquals(end, journal.getSize());
+            journal.cancel(cancel(4));
+        }
+        try (var journal = new TradeJournal(this.file)) {
+            assertEquals(4, journal.getEventCount());
+            var ids = new StringBuilder();
+            journal.replay(new TradeJournal.Handler() {
+                @Override
+                public void insert(long refKey, CThostFtdcInputOrderField order,
+                                   CThostFtdcOrderField rtn) {
+                    fail();
+                }
+
+                @Override
+                public void trade(CThostFtdcTradeField trade, String orderDay) {
+                    fail();
+                }
+
+                @Override
+                public void cancel(CThostFtdcOrderField rtn) {
+                    ids.append(IdSequence.parse(rtn.OrderSysID));
+                }
+            });
+            assertEquals("1234", ids.toString());
+        }
+    }
+
+    @Test
+    public void stale_records_after_crash() throws IOException {
+        long second;
+        try (var journal = new TradeJournal(this.file)) {
+            journal.cancel(cancel(1));
+            second = journal.getSize();
+            journal.cancel(cancel(2));
+            journal.cancel(cancel(3));
+        }
+        // The second record was being written when the third was done.
+        try (var channel = FileChannel.open(this.file, StandardOpenOption.WRITE)) {
+            channel.write(ByteBuffer.allocate(4), second);
+        }
+        try (var journal = new TradeJournal(this.file)) {
+            assertEquals(1, journal.getEventCount());
+            assertEquals(second, journal.getSize());
+            // Same size as the broken record, so the next record would start
+            // where the third one was.
+            journal.cancel(cancel(4));
+        }
+        try (var journal = new TradeJournal(this.file)) {
+            assertEquals(2, journal.getEventCount());
+            var ids = new StringBuilder();
+            journal.replay(new TradeJournal.Handler() {
+                @Override
+                public void insert(long refKey, CThostFtdcInputOrderField order,
+                                   CThostFtdcOrderField rtn) {
+                    fail();
+                }
+
+                @Override
+                public void trade(CThostFtdcTradeField trade, String orderDay) {
+                    fail();
+                }
+
+                @Override
+                public void cancel(CThostFtdcOrderField rtn) {
+                    assertEquals("20200709", rtn.TradingDay);
+                    ids.append(IdSequence.parse(rtn.OrderSysID));
+                }
+            });
+            assertEquals("14", ids.toString());
+        }
+    }
+
+    @Test
+    public void chunk_boundary() throws IOException {
+        // Small chunks so records skip chunk tails.
+        try (var journal = new TradeJournal(this.file, 100)) {
+            for (int i = 0; i < 50; ++i)
+                journal.cancel(cancel(i + 1));
+        }
+        try (var journal = new TradeJournal(this.file, 100)) {
+            assertEquals(50, journal.getEventCount());
+            var count = new int[1];
+            journal.replay(new TradeJournal.Handler() {
+                @Override
+                public void insert(long refKey, CThostFtdcInputOrderField order,
+                                   CThostFtdcOrderField rtn) {
+                }
+
+                @Override
+                public void trade(CThostFtdcTradeField trade, String orderDay) {
+                }
+
+                @Override
+                public void cancel(CThostFtdcOrderField rtn) {
+                    assertEquals(++count[0], IdSequence.parse(rtn.OrderSysID));
+                }
+            });
+            assertEquals(50, count[0]);
+        }
+    }
+
+    private static CThostFtdcOrderField cancel(long orderSysID) {
+        var rtn = new CThostFtdcOrderField();
+        rtn.InstrumentID = "x2009";
+        rtn.OrderSysID = IdSequence.render(orderSysID);
+        rtn.TradingDay = "20200709";
+        rtn.CancelTime = "09:00:00";
+        return rtn;
+    }
+
+    @Test
+    public void recover_many() throws IOException {
+        // Append and recover time is in TradeJournalBench.
+        var n = 50 * 1000;
+        var order = TradeBookTest.order("x2009", "1", true, 90, 2);
+        var rtn = new CThostFtdcOrderField();
+        rtn.FrontID = 1;
+        rtn.SessionID = 1;
+        rtn.TradingDay = "20200709";
+        rtn.InsertDate = "20200709";
+        rtn.InsertTime = "09:00:00";
+        var trade = new CThostFtdcTradeField();
+        trade.InstrumentID = "x2009";
+        trade.Price = 90;
+        trade.Volume = 1;
+        trade.TradingDay = "20200709";
+        trade.TradeDate = "20200709";
+        trade.TradeTime = "09:00:00";
+        try (var journal = new TradeJournal(this.file)) {
+            for (int i = 0; i < n; ++i) {
+                order.OrderRef = String.valueOf(i + 1);
+                rtn.OrderSysID = IdSequence.render(i + 1);
+                journal.insert(OrderKey.of(order.OrderRef, 1, 1), order, rtn);
+                trade.OrderSysID = rtn.OrderSysID;
+                trade.TradeID = IdSequence.render(i + 1);
+                journal.trade(trade, rtn.TradingDay);
+            }
+        }
+        var book = new TradeBook(2);
+        try (var journal = new TradeJournal(this.file)) {
+            assertEquals(2 * n, book.recover(journal));
+            // Each order is half filled.
+            assertEquals(n, book.getLiveCount());
+            assertEquals(n, book.getPositionDetails("0001", "x2009").size());
+        } finally {
+            book.stop();
+        }
+    }
+}